@@ -24,6 +24,8 @@ import androidx.annotation.WorkerThread;
 import androidx.work.WorkManager;
 import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
 import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.keydownload.KeyFileCache;
+import com.google.android.apps.exposurenotification.keyupload.UploadOutboxWorker;
 import com.google.android.apps.exposurenotification.nearby.ExposureInfoCleanupWorker;
 import com.google.android.apps.exposurenotification.nearby.ExposureInformationHelper;
 import com.google.android.apps.exposurenotification.restore.RestoreNotificationWorker;
@@ -36,6 +38,10 @@ import com.google.android.apps.exposurenotification.storage.ExposureCheckEntity;
 import com.google.android.apps.exposurenotification.storage.ExposureCheckRepository;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
 import com.google.android.apps.exposurenotification.storage.ExposureRepository;
+import com.google.android.apps.exposurenotification.storage.IndexFileRepository;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
+import com.google.android.apps.exposurenotification.storage.PendingUploadRepository;
+import com.google.android.apps.exposurenotification.storage.ProvidedKeyFileRepository;
 import com.google.android.apps.exposurenotification.storage.VerificationCodeRequestRepository;
 import com.google.android.apps.exposurenotification.storage.WorkerStatusRepository;
 import com.google.common.util.concurrent.FluentFuture;
@@ -72,10 +78,15 @@ public class CleanupHelper {
   private final CountryRepository countryRepository;
   private final DiagnosisRepository diagnosisRepository;
   private final DownloadServerRepository downloadServerRepository;
+  private final PartialDownloadRepository partialDownloadRepository;
+  private final IndexFileRepository indexFileRepository;
+  private final ProvidedKeyFileRepository providedKeyFileRepository;
+  private final KeyFileCache keyFileCache;
   private final ExposureRepository exposureRepository;
   private final ExposureCheckRepository exposureCheckRepository;
   private final VerificationCodeRequestRepository verificationCodeRequestRepository;
   private final WorkerStatusRepository workerStatusRepository;
+  private final PendingUploadRepository pendingUploadRepository;
   private final ExposureInformationHelper exposureInformationHelper;
   private final WorkManager workManager;
   private final Context context;
@@ -91,10 +102,15 @@ public class CleanupHelper {
       CountryRepository countryRepository,
       DiagnosisRepository diagnosisRepository,
       DownloadServerRepository downloadServerRepository,
+      PartialDownloadRepository partialDownloadRepository,
+      IndexFileRepository indexFileRepository,
+      ProvidedKeyFileRepository providedKeyFileRepository,
+      KeyFileCache keyFileCache,
       ExposureRepository exposureRepository,
       ExposureCheckRepository exposureCheckRepository,
       VerificationCodeRequestRepository verificationCodeRequestRepository,
       WorkerStatusRepository workerStatusRepository,
+      PendingUploadRepository pendingUploadRepository,
       ExposureInformationHelper exposureInformationHelper,
       WorkManager workManager,
       NotificationHelper notificationHelper,
@@ -105,10 +121,15 @@ public class CleanupHelper {
     this.countryRepository = countryRepository;
     this.diagnosisRepository = diagnosisRepository;
     this.downloadServerRepository = downloadServerRepository;
+    this.partialDownloadRepository = partialDownloadRepository;
+    this.indexFileRepository = indexFileRepository;
+    this.providedKeyFileRepository = providedKeyFileRepository;
+    this.keyFileCache = keyFileCache;
     this.exposureCheckRepository = exposureCheckRepository;
     this.exposureRepository = exposureRepository;
     this.verificationCodeRequestRepository = verificationCodeRequestRepository;
     this.workerStatusRepository = workerStatusRepository;
+    this.pendingUploadRepository = pendingUploadRepository;
     this.exposureInformationHelper = exposureInformationHelper;
     this.workManager = workManager;
     this.context = context;
@@ -126,6 +147,9 @@ public class CleanupHelper {
    *   {@link CleanupHelper#EXPOSURE_CHECK_MAX_AGE} days</li>.
    *   <li>requests for a verification code, which expire after
    *   {@link CleanupHelper#VERIFICATION_CODE_REQUEST_MAX_AGE} days.</li>
+   *   <li>downloaded keyfiles left behind by interrupted runs (see {@link KeyFileCache}).</li>
+   *   <li>key uploads queued for a retry, which expire after
+   *   {@link UploadOutboxWorker#MAX_AGE}.</li>
    * </ul>
    *
    * <p>This method should be called as frequently as possible to ensure we delete outdated data
@@ -142,6 +166,10 @@ public class CleanupHelper {
     if (exposureInformationHelper.isOutdatedExposurePresent()) {
       exposureInformationHelper.deleteExposures();
     }
+    // Delete abandoned keyfiles, and keep the rest within quota.
+    keyFileCache.sweep();
+    // Delete key uploads queued for so long that they could no longer succeed.
+    pendingUploadRepository.deleteOutdatedIfAny(clock.now().minus(UploadOutboxWorker.MAX_AGE));
   }
 
   /**
@@ -188,6 +216,15 @@ public class CleanupHelper {
         .transformAsync(
             unused -> downloadServerRepository.deleteDownloadServerEntitiesAsync(),
             backgroundExecutor)
+        .transformAsync(
+            unused -> partialDownloadRepository.deletePartialDownloadEntitiesAsync(),
+            backgroundExecutor)
+        .transformAsync(
+            unused -> indexFileRepository.deleteIndexFileEntitiesAsync(),
+            backgroundExecutor)
+        .transformAsync(
+            unused -> providedKeyFileRepository.deleteProvidedKeyFileEntitiesAsync(),
+            backgroundExecutor)
         .transformAsync(
             unused -> exposureRepository.deleteExposureEntitiesAsync(),
             backgroundExecutor)
@@ -201,6 +238,9 @@ public class CleanupHelper {
         .transformAsync(
             unused -> workerStatusRepository.deleteWorkerStatusEntities(),
             backgroundExecutor)
+        .transformAsync(
+            unused -> pendingUploadRepository.deletePendingUploadEntitiesAsync(),
+            backgroundExecutor)
         .transformAsync(unused -> {
           // Also clean up private analytics data and the last analytics logging timestamp.
           exposureNotificationSharedPreferences.clearPrivateAnalyticsFields();
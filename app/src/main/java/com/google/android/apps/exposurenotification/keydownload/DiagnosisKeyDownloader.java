@@ -25,36 +25,47 @@ import androidx.concurrent.futures.CallbackToFutureAdapter;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
 import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
-import com.google.android.apps.exposurenotification.common.Qualifiers.LightweightExecutor;
 import com.google.android.apps.exposurenotification.common.Qualifiers.ScheduledExecutor;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
 import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.keydownload.Qualifiers.HomeDownloadUriPair;
 import com.google.android.apps.exposurenotification.keydownload.Qualifiers.TravellerDownloadUriPairs;
 import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
+import com.google.android.apps.exposurenotification.network.RequestLane;
 import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
-import com.google.android.apps.exposurenotification.network.RespondableByteArrayRequest;
+import com.google.android.apps.exposurenotification.network.RespondableFileRequest;
 import com.google.android.apps.exposurenotification.network.VolleyUtils;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
 import com.google.android.apps.exposurenotification.roaming.CountryCodes;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import dagger.hilt.android.qualifiers.ApplicationContext;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Inject;
-import org.apache.commons.io.FileUtils;
 import org.threeten.bp.Duration;
 
 /**
@@ -63,6 +74,9 @@ import org.threeten.bp.Duration;
  * <p>Consults one service for users who not travelled outside their home region in the past 14 days
  * (as far as we can tell very roughly from cell network country codes). Consults roaming servers
  * for travellers, if the app is configured to do so by the user's home health authority.
+ *
+ * <p>On a metered network, the {@link DownloadPlanner} holds the run back to the home server's
+ * backlog, up to a budget, and leaves traveller servers for a later run.
  */
 public class DiagnosisKeyDownloader {
 
@@ -70,17 +84,23 @@ public class DiagnosisKeyDownloader {
   private static final SecureRandom RAND = new SecureRandom();
   private static final BaseEncoding BASE32 = BaseEncoding.base32().lowerCase().omitPadding();
 
-  private static final String FILE_PATTERN = "/diag_keys/%s/keys_%s.zip";
+  private static final String FILE_PATTERN = "/" + KeyFileCache.DIR_NAME + "/%s/keys_%s.zip";
   private static final Duration DOWNLOAD_ALL_FILES_TIMEOUT = Duration.ofMinutes(30);
+  // Partial downloads we haven't got back to in this long are unlikely to still be worth resuming.
+  private static final Duration PARTIAL_DOWNLOAD_MAX_AGE = Duration.ofDays(14);
 
   private final Context context;
   private final CountryCodes countryCodes;
   private final KeyFileUriResolver keyFileUriResolver;
+  private final ExportWindowPruner exportWindowPruner;
+  private final KeyFileDownloadScheduler downloadScheduler;
+  private final DownloadPlanner downloadPlanner;
+  private final KeyFileValidator keyFileValidator;
+  private final PartialDownloadRepository partialDownloadRepository;
   private final DownloadUriPair homeDownloadUris;
   private final Map<String, List<DownloadUriPair>> travellerDownloadUriPairs;
   private final RequestQueueWrapper requestQueueWrapper;
   private final ExecutorService backgroundExecutor;
-  private final ExecutorService lightweightExecutor;
   private final ScheduledExecutorService scheduledExecutor;
   private final AnalyticsLogger logger;
   private final Clock clock;
@@ -91,10 +111,14 @@ public class DiagnosisKeyDownloader {
       RequestQueueWrapper requestQueueWrapper,
       CountryCodes countryCodes,
       KeyFileUriResolver keyFileUriResolver,
+      ExportWindowPruner exportWindowPruner,
+      KeyFileDownloadScheduler downloadScheduler,
+      DownloadPlanner downloadPlanner,
+      KeyFileValidator keyFileValidator,
+      PartialDownloadRepository partialDownloadRepository,
       @HomeDownloadUriPair DownloadUriPair homeDownloadUris,
       @TravellerDownloadUriPairs Map<String, List<DownloadUriPair>> travellerDownloadUriPairs,
       @BackgroundExecutor ExecutorService backgroundExecutor,
-      @LightweightExecutor ExecutorService lightweightExecutor,
       @ScheduledExecutor ScheduledExecutorService scheduledExecutor,
       AnalyticsLogger logger,
       Clock clock) {
@@ -102,10 +126,14 @@ public class DiagnosisKeyDownloader {
     this.requestQueueWrapper = requestQueueWrapper;
     this.countryCodes = countryCodes;
     this.keyFileUriResolver = keyFileUriResolver;
+    this.exportWindowPruner = exportWindowPruner;
+    this.downloadScheduler = downloadScheduler;
+    this.downloadPlanner = downloadPlanner;
+    this.keyFileValidator = keyFileValidator;
+    this.partialDownloadRepository = partialDownloadRepository;
     this.homeDownloadUris = homeDownloadUris;
     this.travellerDownloadUriPairs = travellerDownloadUriPairs;
     this.backgroundExecutor = backgroundExecutor;
-    this.lightweightExecutor = lightweightExecutor;
     this.scheduledExecutor = scheduledExecutor;
     this.logger = logger;
     this.clock = clock;
@@ -116,22 +144,37 @@ public class DiagnosisKeyDownloader {
    * returns a future with a list of all the batches of files.
    */
   public ListenableFuture<ImmutableList<KeyFile>> download() {
-    ImmutableList.Builder<DownloadUriPair> keyserversToCall =
-        ImmutableList.<DownloadUriPair>builder().add(homeDownloadUris);
+    // Decide once for the whole run, in case the network changes part way through.
+    boolean metered = downloadPlanner.isMetered();
+    // Roaming configs may list the same servers for several countries (or even the home server),
+    // so collect them in a set to call each one only once.
+    ImmutableSet.Builder<DownloadUriPair> keyserversToCall =
+        ImmutableSet.<DownloadUriPair>builder().add(homeDownloadUris);
     // Did the user travel outside their home region in the last 14 days? If so, include their HA's
-    // traveller URLs too.
-    for (String countryCode : countryCodes.getExposureRelevantCountryCodes()) {
-      if (travellerDownloadUriPairs.containsKey(countryCode)) {
-        keyserversToCall.addAll(travellerDownloadUriPairs.get(countryCode));
+    // traveller URLs too. Their backlogs can be large, so on a metered network we leave them for a
+    // later run. We don't call those servers at all then, so their last successful downloads stay
+    // where they are.
+    if (metered) {
+      logcat.d("On a metered network, deferring downloads from traveller servers.");
+    } else {
+      for (String countryCode : countryCodes.getExposureRelevantCountryCodes()) {
+        if (travellerDownloadUriPairs.containsKey(countryCode)) {
+          keyserversToCall.addAll(travellerDownloadUriPairs.get(countryCode));
+        }
       }
     }
 
     ListenableFuture<ImmutableList<KeyFile>> downloadedFiles =
         // Start with the user's home region download URIs.
-        FluentFuture.from(keyFileUriResolver.resolve(keyserversToCall.build()))
-            // Now initiate file downloads for each URI
+        FluentFuture.from(keyFileUriResolver.resolve(keyserversToCall.build().asList()))
+            // Now initiate file downloads for each URI we plan to download this run, except those
+            // too old to be of any use.
             .transformAsync(
-                this::initiateDownloads,
+                keyFiles -> Futures.transformAsync(
+                    exportWindowPruner.findStale(keyFiles),
+                    staleUris -> initiateDownloads(
+                        downloadPlanner.plan(keyFiles, staleUris, metered), staleUris),
+                    backgroundExecutor),
                 backgroundExecutor)
             // It's important to have a timeout since we're waiting for network operations that may
             // or may not complete.
@@ -146,59 +189,322 @@ public class DiagnosisKeyDownloader {
     return downloadedFiles;
   }
 
-  private ListenableFuture<ImmutableList<KeyFile>> initiateDownloads(List<KeyFile> keyFiles) {
+  /**
+   * Downloads the given keyfiles, but for those whose URIs are in {@code staleUris}. Those come
+   * back without a file, which still moves their server's last successful download past them.
+   */
+  private ListenableFuture<ImmutableList<KeyFile>> initiateDownloads(
+      List<KeyFile> keyFiles, Set<Uri> staleUris) {
+    deleteStalePartialDownloads();
+    // Different servers may list the same file. Download it only once, but keep a KeyFile for each
+    // server, so that each one's last successful download still moves past it.
+    Map<Uri, KeyFile> uniqueKeyFiles = new LinkedHashMap<>();
+    int duplicates = 0;
+    for (KeyFile keyFile : keyFiles) {
+      if (staleUris.contains(keyFile.uri())) {
+        continue;
+      }
+      if (uniqueKeyFiles.containsKey(keyFile.uri())) {
+        duplicates++;
+      } else {
+        uniqueKeyFiles.put(keyFile.uri(), keyFile);
+      }
+    }
+    if (duplicates > 0) {
+      logcat.d("Skipping " + duplicates + " keyfiles listed by more than one server.");
+    }
+
     String dir = randDirname();
-    List<ListenableFuture<KeyFile>> downloadedFiles = new ArrayList<>();
-    int fileCounter = 1;
-    for (KeyFile file : keyFiles) {
-      String path = String.format(FILE_PATTERN, dir, fileCounter++);
-      downloadedFiles.add(downloadAndSave(file, path));
-    }
-    return FluentFuture.from(Futures.allAsList(downloadedFiles))
-        .transform(ImmutableList::copyOf, lightweightExecutor);
+    AtomicInteger fileCounter = new AtomicInteger(1);
+    ImmutableList<ListenableFuture<KeyFile>> uniqueDownloads = downloadScheduler.schedule(
+        ImmutableList.copyOf(uniqueKeyFiles.values()),
+        homeDownloadUris.indexUri(),
+        keyFile -> downloadAndValidate(
+            keyFile, String.format(FILE_PATTERN, dir, fileCounter.getAndIncrement())));
+    Map<Uri, ListenableFuture<KeyFile>> downloadsByUri = new HashMap<>();
+    int i = 0;
+    for (Uri uri : uniqueKeyFiles.keySet()) {
+      downloadsByUri.put(uri, uniqueDownloads.get(i++));
+    }
+    ImmutableList.Builder<ListenableFuture<KeyFile>> downloadsBuilder = ImmutableList.builder();
+    for (KeyFile keyFile : keyFiles) {
+      if (staleUris.contains(keyFile.uri())) {
+        downloadsBuilder.add(Futures.immediateFuture(keyFile));
+        continue;
+      }
+      downloadsBuilder.add(Futures.transform(
+          downloadsByUri.get(keyFile.uri()),
+          downloaded -> keyFile.with(downloaded.file()),
+          MoreExecutors.directExecutor()));
+    }
+    ImmutableList<ListenableFuture<KeyFile>> downloadedFiles = downloadsBuilder.build();
+    // Wait for every file to finish or fail on its own before reporting, so no download is still
+    // writing into the directory after we've given up on the batch.
+    return Futures.whenAllComplete(downloadedFiles)
+        .callAsync(() -> collectDownloads(keyFiles, downloadedFiles), backgroundExecutor);
   }
 
-  private ListenableFuture<KeyFile> downloadAndSave(KeyFile keyFile, String path) {
-    return FluentFuture.from(downloadFile(keyFile.uri()))
+  /**
+   * Collects a batch of completed downloads, given in the same order as {@code keyFiles}.
+   *
+   * <p>A file that's still invalid after its retry cuts its server's files short just before it:
+   * neither it nor any later file of that server is provided, so that server's last successful
+   * download stays in front of it and the next run queues it up again. Every other server's files
+   * are provided as usual.
+   *
+   * <p>If any file failed to download at all we fail the whole batch (so that no server's last
+   * successful download moves past a file we don't have) and clean up the rest.
+   */
+  private ListenableFuture<ImmutableList<KeyFile>> collectDownloads(
+      List<KeyFile> keyFiles, List<ListenableFuture<KeyFile>> downloads) {
+    ImmutableList.Builder<KeyFile> downloaded = ImmutableList.builder();
+    Set<Uri> cutServers = new HashSet<>();
+    Set<File> cutFiles = new HashSet<>();
+    Throwable failure = null;
+    for (int i = 0; i < downloads.size(); i++) {
+      Uri server = keyFiles.get(i).index();
+      try {
+        KeyFile keyFile = Futures.getDone(downloads.get(i));
+        if (!cutServers.contains(server)) {
+          downloaded.add(keyFile);
+        } else if (keyFile.file() != null) {
+          cutFiles.add(keyFile.file());
+        }
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof InvalidKeyFileException) {
+          if (cutServers.add(server)) {
+            logcat.w("Leaving keyfile " + keyFiles.get(i).uri() + " and those after it on server "
+                + server + " for the next run");
+          }
+        } else {
+          failure = failure == null ? e.getCause() : failure;
+        }
+      } catch (CancellationException e) {
+        failure = failure == null ? e : failure;
+      }
+    }
+    logcat.d("Download scheduler stats: " + downloadScheduler.getStats());
+    Set<File> keptFiles = new HashSet<>();
+    if (failure == null) {
+      for (KeyFile keyFile : downloaded.build()) {
+        keptFiles.add(keyFile.file());
+      }
+    } else {
+      for (KeyFile keyFile : downloaded.build()) {
+        cutFiles.add(keyFile.file());
+      }
+    }
+    // Several servers may share a file, so keep it if any server still provides it.
+    for (File file : cutFiles) {
+      if (file != null && !keptFiles.contains(file)) {
+        file.delete();
+      }
+    }
+    return failure == null
+        ? Futures.immediateFuture(downloaded.build())
+        : Futures.immediateFailedFuture(failure);
+  }
+
+  /**
+   * Downloads the given keyfile and checks it's one we can provide to the EN API. A bad file is
+   * deleted and downloaded once more, from scratch, in case it was damaged on the way to us.
+   *
+   * <p>If it's still bad the returned future fails with an {@link InvalidKeyFileException}, which
+   * leaves the file and the rest of its server's files for the next run (see {@link
+   * #collectDownloads}).
+   */
+  private ListenableFuture<KeyFile> downloadAndValidate(KeyFile keyFile, String path) {
+    return FluentFuture.from(downloadAndSave(keyFile, path))
         .transformAsync(
-            bytes -> {
-              try {
-                return Futures.immediateFuture(keyFile.with(saveKeyFile(bytes, path)));
-              } catch (IOException e) {
-                return Futures.immediateFailedFuture(e);
+            downloaded -> {
+              if (isValid(downloaded)) {
+                return Futures.immediateFuture(downloaded);
               }
+              logcat.w("Downloading keyfile " + keyFile.uri() + " again");
+              return FluentFuture.from(downloadAndSave(keyFile, path))
+                  .transformAsync(
+                      retried -> {
+                        try {
+                          validateOrDelete(retried);
+                        } catch (IOException e) {
+                          throw new InvalidKeyFileException(keyFile.uri(), e);
+                        }
+                        return Futures.immediateFuture(retried);
+                      },
+                      backgroundExecutor);
             },
             backgroundExecutor);
   }
 
-  private ListenableFuture<byte[]> downloadFile(Uri uri) {
+  /**
+   * Validates a downloaded keyfile, deleting it (and any journal of its download) if it's bad.
+   */
+  private boolean isValid(KeyFile keyFile) {
+    try {
+      validateOrDelete(keyFile);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private void validateOrDelete(KeyFile keyFile) throws IOException {
+    try {
+      keyFileValidator.validate(keyFile.file());
+    } catch (IOException e) {
+      logcat.e("Dropping invalid keyfile " + keyFile.uri(), e);
+      partialDownloadRepository.delete(keyFile.uri());
+      keyFile.file().delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Downloads the given keyfile, streaming it straight into a file at {@code path} under the app's
+   * files dir, so that at no point do we hold the whole file in memory.
+   *
+   * <p>If an earlier run got part way through the same file, we instead pick up where it left off,
+   * in the file it was writing to. Progress is journaled as the body arrives, and an unfinished
+   * file is kept on failure so that the next run can resume it too.
+   *
+   * <p>The journal is written off the network thread, in order, and a finished file is reported
+   * only once its journal entry is gone, so that we never keep a journal saying to resume a file
+   * that's already complete.
+   */
+  private ListenableFuture<KeyFile> downloadAndSave(KeyFile keyFile, String path) {
+    PartialDownloadEntity partialDownload = findResumablePartialDownload(keyFile);
+    String toPath = partialDownload != null ? partialDownload.path() : path;
+    File toFile = new File(context.getFilesDir(), toPath);
+    Executor journalExecutor = MoreExecutors.newSequentialExecutor(backgroundExecutor);
     return CallbackToFutureAdapter.getFuture(
         completer -> {
-          Listener<byte[]> responseListener =
-              response -> {
-                logcat.d(
-                    "Keyfile " + uri + " successfully downloaded " + response.length + " bytes.");
-                completer.set(response);
+          Listener<Long> responseListener =
+              bytesWritten -> {
+                logcat.d("Keyfile " + keyFile.uri() + " successfully downloaded " + bytesWritten
+                    + " bytes to " + toFile);
+                journalExecutor.execute(() -> {
+                  try {
+                    partialDownloadRepository.delete(keyFile.uri());
+                  } finally {
+                    completer.set(keyFile.with(toFile));
+                  }
+                });
               };
 
           ErrorListener errorListener =
               err -> {
-                logcat.e("Error getting keyfile " + uri);
-                completer.setException(err);
+                logcat.e("Error getting keyfile " + keyFile.uri());
+                journalExecutor.execute(() -> {
+                  try {
+                    if (VolleyUtils.getHttpStatus(err)
+                        == RespondableFileRequest.HTTP_RANGE_NOT_SATISFIABLE) {
+                      // The journal claims more of the file than the server has, so it's of no
+                      // use. Forget it, and the next run starts this file over.
+                      partialDownloadRepository.delete(keyFile.uri());
+                      toFile.delete();
+                    } else {
+                      keepOrDeletePartialFile(keyFile, toFile);
+                    }
+                  } finally {
+                    completer.setException(err);
+                  }
+                });
               };
 
-          logcat.d("Downloading keyfile file from " + uri);
-          RespondableByteArrayRequest request =
-              new RespondableByteArrayRequest(uri, responseListener, errorListener, clock);
-          requestQueueWrapper.add(request);
+          RespondableFileRequest request = new RespondableFileRequest(
+              keyFile.uri(), toFile, responseListener, errorListener, clock);
+          if (partialDownload != null) {
+            logcat.d("Resuming keyfile " + keyFile.uri() + " from byte "
+                + partialDownload.bytesWritten());
+            request.setResumeFrom(partialDownload.bytesWritten(), partialDownload.etag());
+          }
+          request.setProgressListener(
+              (etag, bytesOnDisk) -> journalExecutor.execute(
+                  () -> journalProgress(keyFile, toPath, etag, bytesOnDisk)));
+          completer.addCancellationListener(request::cancel, backgroundExecutor);
+          request.setTag(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD);
+
+          logcat.d("Downloading keyfile file from " + keyFile.uri());
+          requestQueueWrapper.add(request, RequestLane.BACKGROUND_BULK);
           return request;
         });
   }
 
-  private File saveKeyFile(byte[] content, String path) throws IOException {
-    File toFile = new File(context.getFilesDir(), path);
-    FileUtils.writeByteArrayToFile(toFile, content);
-    return toFile;
+  /**
+   * Returns the journal entry for an unfinished earlier download of the given keyfile, if we still
+   * have its file and can resume it. Also truncates the file to the journaled length, in case the
+   * last bytes written never made it to the journal.
+   */
+  @Nullable
+  private PartialDownloadEntity findResumablePartialDownload(KeyFile keyFile) {
+    PartialDownloadEntity partialDownload = partialDownloadRepository.get(keyFile.uri());
+    if (partialDownload == null) {
+      return null;
+    }
+    File partialFile = new File(context.getFilesDir(), partialDownload.path());
+    long offset = Math.min(partialDownload.bytesWritten(), partialFile.length());
+    if (offset <= 0 || partialDownload.etag().isEmpty()) {
+      deletePartialDownload(partialDownload);
+      return null;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(partialFile, "rw")) {
+      file.setLength(offset);
+    } catch (IOException e) {
+      logcat.w("Unable to reuse partial keyfile " + partialFile, e);
+      deletePartialDownload(partialDownload);
+      return null;
+    }
+    return PartialDownloadEntity.create(
+        partialDownload.uri(),
+        partialDownload.path(),
+        partialDownload.etag(),
+        offset,
+        partialDownload.lastUpdatedTimestampMs());
+  }
+
+  /**
+   * Records how far we got with a keyfile. Without an ETag we can't tell on resuming whether the
+   * server's file changed, so such downloads are never resumed.
+   */
+  private void journalProgress(
+      KeyFile keyFile, String path, @Nullable String etag, long bytesOnDisk) {
+    if (etag == null || etag.isEmpty() || bytesOnDisk <= 0) {
+      partialDownloadRepository.delete(keyFile.uri());
+      return;
+    }
+    partialDownloadRepository.upsert(PartialDownloadEntity.create(
+        keyFile.uri(), path, etag, bytesOnDisk, clock.currentTimeMillis()));
+  }
+
+  /**
+   * Keeps a failed download's file if the journal says we can resume it, and deletes it otherwise.
+   */
+  private void keepOrDeletePartialFile(KeyFile keyFile, File file) {
+    PartialDownloadEntity partialDownload = partialDownloadRepository.get(keyFile.uri());
+    if (partialDownload != null) {
+      logcat.d("Keeping " + partialDownload.bytesWritten() + " bytes of keyfile " + keyFile.uri()
+          + " to resume later");
+      return;
+    }
+    // Don't leave a partial file lying around.
+    file.delete();
+  }
+
+  /**
+   * Forgets partial downloads old enough that we're unlikely to come back to them.
+   */
+  private void deleteStalePartialDownloads() {
+    long cutoffMs = clock.currentTimeMillis() - PARTIAL_DOWNLOAD_MAX_AGE.toMillis();
+    for (PartialDownloadEntity partialDownload : partialDownloadRepository.getAll()) {
+      if (partialDownload.lastUpdatedTimestampMs() < cutoffMs) {
+        deletePartialDownload(partialDownload);
+      }
+    }
+  }
+
+  private void deletePartialDownload(PartialDownloadEntity partialDownload) {
+    partialDownloadRepository.delete(partialDownload.uri());
+    new File(context.getFilesDir(), partialDownload.path()).delete();
   }
 
   private static String randDirname() {
@@ -207,13 +513,28 @@ public class DiagnosisKeyDownloader {
     return BASE32.encode(bytes);
   }
 
+  /**
+   * A keyfile that was still invalid when downloaded a second time.
+   */
+  private static class InvalidKeyFileException extends IOException {
+
+    InvalidKeyFileException(Uri uri, IOException cause) {
+      super("Invalid keyfile " + uri, cause);
+    }
+  }
+
   private final FutureCallback<ImmutableList<KeyFile>> LOG_OUTCOME =
       new FutureCallback<ImmutableList<KeyFile>>() {
         @Override
         public void onSuccess(@Nullable ImmutableList<KeyFile> files) {
+          downloadPlanner.learnFrom(files);
           int totalBytesDownloaded = 0;
+          // Files listed by several servers appear once for each, but were downloaded just once.
+          Set<File> uniqueFiles = new HashSet<>();
           for (KeyFile file : files) {
-            totalBytesDownloaded += file.file().length();
+            if (file.file() != null && uniqueFiles.add(file.file())) {
+              totalBytesDownloaded += file.file().length();
+            }
           }
           logger.logRpcCallSuccess(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD, totalBytesDownloaded);
         }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import android.net.Uri;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.network.Connectivity;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Inject;
+
+/**
+ * Decides how much of the keyfile backlog a download run should fetch, given the kind of network
+ * we're on.
+ *
+ * <p>On an unmetered network we fetch everything. On a metered one we leave out traveller servers
+ * altogether and fetch only as much of the home server's backlog as fits in {@link
+ * DownloadSchedulerConfig#meteredDownloadBudgetBytes()}. The rest waits for a later run, ideally
+ * an unmetered one.
+ *
+ * <p>We can't know a keyfile's size before downloading it, as the index lists only URIs. We
+ * estimate it from the sizes of the keyfiles we downloaded before, less anything already on disk
+ * from an interrupted download of the same file.
+ *
+ * <p>Each server's last successful download moves to the last of its files we provide. So a
+ * budgeted plan always keeps a prefix of each server's files, in index order: the files we leave
+ * out come after every file we keep, and the next run picks up where this one stopped.
+ */
+public class DownloadPlanner {
+
+  private static final Logger logger = Logger.getLogger("DownloadPlanner");
+
+  // Used until we've downloaded some keyfiles and know better. On the large side of what key
+  // servers publish, so we'd rather underspend the budget than overspend it.
+  @VisibleForTesting
+  static final long DEFAULT_KEYFILE_SIZE_ESTIMATE_BYTES = 512 * 1024;
+
+  private final Connectivity connectivity;
+  private final PartialDownloadRepository partialDownloadRepository;
+  private final ExposureNotificationSharedPreferences prefs;
+  private final DownloadSchedulerConfig config;
+
+  @Inject
+  DownloadPlanner(
+      Connectivity connectivity,
+      PartialDownloadRepository partialDownloadRepository,
+      ExposureNotificationSharedPreferences prefs,
+      DownloadSchedulerConfig config) {
+    this.connectivity = connectivity;
+    this.partialDownloadRepository = partialDownloadRepository;
+    this.prefs = prefs;
+    this.config = config;
+  }
+
+  /**
+   * Whether this run should hold back on downloads, fetching only the home server's backlog and
+   * only up to the budget.
+   */
+  boolean isMetered() {
+    return connectivity.isMetered();
+  }
+
+  /**
+   * Returns the keyfiles to download in this run, as a prefix of each server's files in {@code
+   * keyFiles}. Files in {@code staleUris} aren't downloaded, so they cost nothing.
+   *
+   * <p>On an unmetered network that's all of them. On a metered network, it's as many as fit in
+   * the budget, but always at least one, so that even a user who is only ever on metered networks
+   * catches up eventually.
+   */
+  @WorkerThread
+  ImmutableList<KeyFile> plan(List<KeyFile> keyFiles, Set<Uri> staleUris, boolean metered) {
+    Map<Uri, Long> costs = estimateCosts(keyFiles, staleUris);
+    long totalBytes = 0;
+    for (long cost : costs.values()) {
+      totalBytes += cost;
+    }
+    if (!metered) {
+      logger.d("Planning to download about " + totalBytes + " bytes of keyfiles.");
+      return ImmutableList.copyOf(keyFiles);
+    }
+
+    long budgetBytes = config.meteredDownloadBudgetBytes();
+    long plannedBytes = 0;
+    Set<Uri> paidFor = new HashSet<>();
+    Set<Uri> cutServers = new HashSet<>();
+    ImmutableList.Builder<KeyFile> planned = ImmutableList.builder();
+    int deferred = 0;
+    for (KeyFile keyFile : keyFiles) {
+      if (cutServers.contains(keyFile.index())) {
+        deferred++;
+        continue;
+      }
+      // Different servers may list the same file, but we only download it once.
+      long cost = paidFor.contains(keyFile.uri()) ? 0 : costs.get(keyFile.uri());
+      if (cost > 0 && plannedBytes > 0 && plannedBytes + cost > budgetBytes) {
+        // Leave out this file and every later file from the same server, so that the server's last
+        // successful download doesn't move past any file we haven't got.
+        cutServers.add(keyFile.index());
+        deferred++;
+        continue;
+      }
+      plannedBytes += cost;
+      paidFor.add(keyFile.uri());
+      planned.add(keyFile);
+    }
+    logger.d("On a metered network, planning to download about " + plannedBytes + " of "
+        + totalBytes + " bytes of keyfiles, deferring " + deferred + " keyfiles.");
+    return planned.build();
+  }
+
+  /**
+   * Updates our estimate of keyfile sizes from the keyfiles downloaded in a successful run.
+   */
+  @WorkerThread
+  void learnFrom(List<KeyFile> downloaded) {
+    Set<File> uniqueFiles = new HashSet<>();
+    long bytes = 0;
+    for (KeyFile keyFile : downloaded) {
+      if (keyFile.file() != null && uniqueFiles.add(keyFile.file())) {
+        bytes += keyFile.file().length();
+      }
+    }
+    if (uniqueFiles.isEmpty()) {
+      return;
+    }
+    long runAverage = bytes / uniqueFiles.size();
+    Optional<Long> estimate = prefs.maybeGetKeyFileSizeEstimateBytes();
+    // Give this run and all earlier runs equal weight, so one odd run doesn't throw us off much.
+    prefs.setKeyFileSizeEstimateBytes(
+        estimate.isPresent() ? (estimate.get() + runAverage) / 2 : runAverage);
+  }
+
+  /**
+   * Estimates how many bytes we'd have to fetch for each distinct keyfile URI.
+   */
+  private Map<Uri, Long> estimateCosts(List<KeyFile> keyFiles, Set<Uri> staleUris) {
+    long fileSizeBytes =
+        prefs.maybeGetKeyFileSizeEstimateBytes().or(DEFAULT_KEYFILE_SIZE_ESTIMATE_BYTES);
+    Map<Uri, Long> bytesOnDisk = new HashMap<>();
+    for (PartialDownloadEntity partialDownload : partialDownloadRepository.getAll()) {
+      bytesOnDisk.put(partialDownload.uri(), partialDownload.bytesWritten());
+    }
+    Map<Uri, Long> costs = new HashMap<>();
+    for (KeyFile keyFile : keyFiles) {
+      if (staleUris.contains(keyFile.uri())) {
+        costs.put(keyFile.uri(), 0L);
+        continue;
+      }
+      Long resumeFrom = bytesOnDisk.get(keyFile.uri());
+      long remaining = fileSizeBytes - (resumeFrom != null ? resumeFrom : 0L);
+      costs.put(keyFile.uri(), Math.max(remaining, 0L));
+    }
+    return costs;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * A value class holding the limits {@link KeyFileDownloadScheduler} and {@link DownloadPlanner}
+ * apply to keyfile downloads.
+ */
+@AutoValue
+public abstract class DownloadSchedulerConfig {
+
+  private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+  private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_HOST = 2;
+  private static final long DEFAULT_METERED_DOWNLOAD_BUDGET_BYTES = 4L * 1024 * 1024;
+
+  /**
+   * The most keyfile downloads we'll have in flight at once, across all key servers.
+   */
+  public abstract int maxConcurrentDownloads();
+
+  /**
+   * The most keyfile downloads we'll have in flight at once to any one host.
+   */
+  public abstract int maxConcurrentDownloadsPerHost();
+
+  /**
+   * Roughly the most keyfile bytes a single download run may fetch over a metered network.
+   */
+  public abstract long meteredDownloadBudgetBytes();
+
+  public static DownloadSchedulerConfig.Builder newBuilder() {
+    return new AutoValue_DownloadSchedulerConfig.Builder()
+        .setMaxConcurrentDownloads(DEFAULT_MAX_CONCURRENT_DOWNLOADS)
+        .setMaxConcurrentDownloadsPerHost(DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_HOST)
+        .setMeteredDownloadBudgetBytes(DEFAULT_METERED_DOWNLOAD_BUDGET_BYTES);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+
+    public abstract DownloadSchedulerConfig.Builder setMaxConcurrentDownloads(int value);
+
+    public abstract DownloadSchedulerConfig.Builder setMaxConcurrentDownloadsPerHost(int value);
+
+    public abstract DownloadSchedulerConfig.Builder setMeteredDownloadBudgetBytes(long value);
+
+    abstract DownloadSchedulerConfig autoBuild();
+
+    public DownloadSchedulerConfig build() {
+      DownloadSchedulerConfig config = autoBuild();
+      if (config.maxConcurrentDownloads() < 1 || config.maxConcurrentDownloadsPerHost() < 1) {
+        throw new IllegalArgumentException("Download concurrency limits must be at least 1.");
+      }
+      if (config.meteredDownloadBudgetBytes() < 0) {
+        throw new IllegalArgumentException("Metered download budget must not be negative.");
+      }
+      return config;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import dagger.Module;
+import dagger.Provides;
+import dagger.hilt.InstallIn;
+import dagger.hilt.components.SingletonComponent;
+
+/**
+ * Module providing the production limits for keyfile download scheduling.
+ *
+ * <p>Tests, or deployments wanting to tune for their own fleet, may exclude this module and supply
+ * their own {@link DownloadSchedulerConfig}.
+ */
+@Module
+@InstallIn(SingletonComponent.class)
+public class DownloadSchedulerModule {
+
+  @Provides
+  public DownloadSchedulerConfig provideDownloadSchedulerConfig() {
+    return DownloadSchedulerConfig.newBuilder().build();
+  }
+}
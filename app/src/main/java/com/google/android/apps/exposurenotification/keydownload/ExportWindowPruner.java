@@ -0,0 +1,261 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.network.RequestLane;
+import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
+import com.google.android.apps.exposurenotification.network.RespondableByteArrayRequest;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKeyExport;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.inject.Inject;
+import org.threeten.bp.Duration;
+
+/**
+ * Finds keyfiles whose exports are too old to produce any matches, so we can skip downloading
+ * them. That's most of the files after a long time offline, on a fresh install, or when we start
+ * using a traveller server for the first time.
+ *
+ * <p>An export's time window comes from its file name when the server uses the usual {@code
+ * <start>-<end>-<batch>.zip} naming. Otherwise we read the {@code end_timestamp} from the first
+ * kilobyte of the file with a ranged request. Servers list their exports oldest first, so a binary
+ * search over each server's files takes only a handful of such requests.
+ */
+public class ExportWindowPruner {
+
+  private static final Logger logger = Logger.getLogger("ExportWindowPruner");
+
+  // The EN API matches keys against the last 14 days of observations, and the newest keys in an
+  // export may have been broadcast for up to a day after it was closed.
+  @VisibleForTesting
+  static final Duration STALE_AFTER = Duration.ofDays(15);
+  // Probing costs up to log2(n) small requests one after another, which isn't worth it for the
+  // handful of new files a regular run sees.
+  @VisibleForTesting
+  static final int MIN_FILES_TO_PROBE = 8;
+  // Ample for the zip's local file header and the compressed start of export.bin, even if
+  // export.sig comes first.
+  private static final int PROBE_LENGTH_BYTES = 1024;
+  private static final int HEADER_LEN = 16;
+  // When we can't tell when an export ends, we assume it's recent and download it.
+  private static final long UNKNOWN = Long.MAX_VALUE;
+  private static final Pattern WINDOW_FILE_NAME = Pattern.compile("^(\\d+)-(\\d+)-\\d+\\.zip$");
+
+  private final RequestQueueWrapper requestQueueWrapper;
+  private final Clock clock;
+  private final ExecutorService backgroundExecutor;
+
+  @Inject
+  ExportWindowPruner(
+      RequestQueueWrapper requestQueueWrapper,
+      Clock clock,
+      @BackgroundExecutor ExecutorService backgroundExecutor) {
+    this.requestQueueWrapper = requestQueueWrapper;
+    this.clock = clock;
+    this.backgroundExecutor = backgroundExecutor;
+  }
+
+  /**
+   * Returns the URIs of those of the given keyfiles whose exports ended too long ago to produce
+   * matches. Each server's files must be in the order its index lists them.
+   *
+   * <p>Never fails for want of a time window: we keep any file we can't date.
+   */
+  public ListenableFuture<ImmutableSet<Uri>> findStale(List<KeyFile> keyFiles) {
+    long cutoffSeconds = clock.now().minus(STALE_AFTER).getEpochSecond();
+    Map<Uri, List<KeyFile>> filesByServer = new LinkedHashMap<>();
+    for (KeyFile keyFile : keyFiles) {
+      if (!filesByServer.containsKey(keyFile.index())) {
+        filesByServer.put(keyFile.index(), new ArrayList<>());
+      }
+      filesByServer.get(keyFile.index()).add(keyFile);
+    }
+
+    List<ListenableFuture<List<KeyFile>>> staleByServer = new ArrayList<>();
+    for (List<KeyFile> serverFiles : filesByServer.values()) {
+      staleByServer.add(findStaleForServer(serverFiles, cutoffSeconds));
+    }
+    return Futures.transform(
+        Futures.allAsList(staleByServer),
+        staleLists -> {
+          ImmutableSet.Builder<Uri> stale = ImmutableSet.builder();
+          for (List<KeyFile> staleList : staleLists) {
+            for (KeyFile keyFile : staleList) {
+              stale.add(keyFile.uri());
+            }
+          }
+          ImmutableSet<Uri> staleUris = stale.build();
+          if (!staleUris.isEmpty()) {
+            logger.d("Skipping " + staleUris.size() + " keyfiles too old to produce matches.");
+          }
+          return staleUris;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<List<KeyFile>> findStaleForServer(
+      List<KeyFile> serverFiles, long cutoffSeconds) {
+    boolean allNamedWithWindow = true;
+    List<KeyFile> staleByName = new ArrayList<>();
+    for (KeyFile keyFile : serverFiles) {
+      long endSeconds = endSecondsFromName(keyFile.uri());
+      if (endSeconds == UNKNOWN) {
+        allNamedWithWindow = false;
+      } else if (endSeconds < cutoffSeconds) {
+        staleByName.add(keyFile);
+      }
+    }
+    if (allNamedWithWindow || serverFiles.size() < MIN_FILES_TO_PROBE) {
+      return Futures.immediateFuture(staleByName);
+    }
+    return Futures.transform(
+        firstFreshIndex(serverFiles, cutoffSeconds, 0, serverFiles.size()),
+        firstFresh -> serverFiles.subList(0, firstFresh),
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Binary searches {@code files[lo, hi)} for the first file whose export isn't stale.
+   */
+  private ListenableFuture<Integer> firstFreshIndex(
+      List<KeyFile> files, long cutoffSeconds, int lo, int hi) {
+    if (lo >= hi) {
+      return Futures.immediateFuture(lo);
+    }
+    int mid = (lo + hi) >>> 1;
+    return FluentFuture.from(endSeconds(files.get(mid)))
+        .transformAsync(
+            end -> end < cutoffSeconds
+                ? firstFreshIndex(files, cutoffSeconds, mid + 1, hi)
+                : firstFreshIndex(files, cutoffSeconds, lo, mid),
+            backgroundExecutor);
+  }
+
+  private ListenableFuture<Long> endSeconds(KeyFile keyFile) {
+    long fromName = endSecondsFromName(keyFile.uri());
+    if (fromName != UNKNOWN) {
+      return Futures.immediateFuture(fromName);
+    }
+    ListenableFuture<byte[]> probe = CallbackToFutureAdapter.getFuture(
+        completer -> {
+          RespondableByteArrayRequest request = new RespondableByteArrayRequest(
+              keyFile.uri(), completer::set, completer::setException, clock);
+          request.setRange(0, PROBE_LENGTH_BYTES - 1);
+          completer.addCancellationListener(request::cancel, backgroundExecutor);
+          request.setTag(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD);
+          requestQueueWrapper.add(request, RequestLane.BACKGROUND_BULK);
+          return request;
+        });
+    return FluentFuture.from(probe)
+        .transform(ExportWindowPruner::endSecondsFromPartialFile, backgroundExecutor)
+        .catching(
+            Exception.class,
+            e -> {
+              logger.w("Unable to probe keyfile " + keyFile.uri(), e);
+              return UNKNOWN;
+            },
+            backgroundExecutor);
+  }
+
+  /**
+   * Returns the end of the export window given in a keyfile's name, or {@link #UNKNOWN}.
+   */
+  @VisibleForTesting
+  static long endSecondsFromName(Uri uri) {
+    String name = uri.getLastPathSegment();
+    if (name == null) {
+      return UNKNOWN;
+    }
+    Matcher matcher = WINDOW_FILE_NAME.matcher(name);
+    if (!matcher.matches()) {
+      return UNKNOWN;
+    }
+    try {
+      long start = Long.parseLong(matcher.group(1));
+      long end = Long.parseLong(matcher.group(2));
+      return start <= end ? end : UNKNOWN;
+    } catch (NumberFormatException e) {
+      return UNKNOWN;
+    }
+  }
+
+  /**
+   * Returns the {@code end_timestamp} of the export in the first bytes of a keyfile, or {@link
+   * #UNKNOWN} if they don't get that far.
+   */
+  @VisibleForTesting
+  static long endSecondsFromPartialFile(@Nullable byte[] partialFile) {
+    if (partialFile == null) {
+      return UNKNOWN;
+    }
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(partialFile))) {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        if (KeyFileConstants.EXPORT_FILENAME.equals(entry.getName())) {
+          return readEndTimestamp(zip);
+        }
+      }
+    } catch (IOException e) {
+      // Cut off before we got to the timestamps.
+    }
+    return UNKNOWN;
+  }
+
+  private static long readEndTimestamp(InputStream export) throws IOException {
+    ByteStreams.skipFully(export, HEADER_LEN);
+    CodedInputStream in = CodedInputStream.newInstance(export);
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      if (WireFormat.getTagFieldNumber(tag)
+          == TemporaryExposureKeyExport.END_TIMESTAMP_FIELD_NUMBER
+          && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_FIXED64) {
+        return in.readFixed64();
+      }
+      if (!in.skipField(tag)) {
+        break;
+      }
+    }
+    return UNKNOWN;
+  }
+}
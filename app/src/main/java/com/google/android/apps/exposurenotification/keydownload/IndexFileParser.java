@@ -0,0 +1,174 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+
+/**
+ * Parses a keyserver's index file: a whitespace separated list of keyfile paths, relative to the
+ * server's {@link DownloadUriPair#fileBaseUri()}, oldest first.
+ *
+ * <p>Indices can list thousands of files, most of which we've usually downloaded already. So we
+ * scan the content once, remembering only where each entry starts and ends, find the last file we
+ * downloaded by comparing strings in place, and build {@link KeyFile}s (and their {@link Uri}s)
+ * only for the entries after it.
+ */
+final class IndexFileParser {
+
+  private IndexFileParser() {
+  }
+
+  /**
+   * The outcome of parsing an index file.
+   */
+  @AutoValue
+  abstract static class ParsedIndex {
+
+    /**
+     * The number of entries in the whole index.
+     */
+    abstract int entryCount();
+
+    /**
+     * The files listed after the last successful download (or all of them if it's not listed),
+     * the last of which is marked most recent.
+     */
+    abstract ImmutableList<KeyFile> keyFiles();
+
+    /**
+     * The last file the whole index lists, or null if it lists none.
+     */
+    @Nullable
+    abstract Uri lastFileUri();
+
+    static ParsedIndex create(
+        int entryCount, ImmutableList<KeyFile> keyFiles, @Nullable Uri lastFileUri) {
+      return new AutoValue_IndexFileParser_ParsedIndex(entryCount, keyFiles, lastFileUri);
+    }
+  }
+
+  /**
+   * Parses {@code indexContent} from the server at {@code uriPair}, skipping everything up to and
+   * including {@code lastSuccessfulDownload} if the index lists it.
+   */
+  static ParsedIndex parse(
+      DownloadUriPair uriPair, String indexContent, @Nullable Uri lastSuccessfulDownload) {
+    EntryResolver resolver = new EntryResolver(uriPair.fileBaseUri());
+    String checkpoint = lastSuccessfulDownload != null ? lastSuccessfulDownload.toString() : null;
+    boolean checkpointFound = false;
+
+    // Start and end offsets of the entries after the checkpoint, in pairs.
+    int[] entries = new int[32];
+    int numEntries = 0;
+    int entryCount = 0;
+    int lastStart = -1;
+    int lastEnd = -1;
+
+    int length = indexContent.length();
+    int pos = 0;
+    while (pos < length) {
+      while (pos < length && isWhitespace(indexContent.charAt(pos))) {
+        pos++;
+      }
+      if (pos == length) {
+        break;
+      }
+      int start = pos;
+      while (pos < length && !isWhitespace(indexContent.charAt(pos))) {
+        pos++;
+      }
+      entryCount++;
+      lastStart = start;
+      lastEnd = pos;
+
+      if (!checkpointFound
+          && checkpoint != null
+          && resolver.matches(checkpoint, indexContent, start, pos)) {
+        // We've got everything up to here. Like the server, we take the first listing to count.
+        checkpointFound = true;
+        numEntries = 0;
+        continue;
+      }
+      if (2 * numEntries + 2 > entries.length) {
+        entries = Arrays.copyOf(entries, 2 * entries.length);
+      }
+      entries[2 * numEntries] = start;
+      entries[2 * numEntries + 1] = pos;
+      numEntries++;
+    }
+
+    ImmutableList.Builder<KeyFile> keyFiles = ImmutableList.builderWithExpectedSize(numEntries);
+    for (int i = 0; i < numEntries; i++) {
+      Uri fileUri =
+          resolver.resolve(indexContent.substring(entries[2 * i], entries[2 * i + 1]));
+      keyFiles.add(KeyFile.create(uriPair.indexUri(), fileUri, i == numEntries - 1));
+    }
+    Uri lastFileUri =
+        lastStart >= 0 ? resolver.resolve(indexContent.substring(lastStart, lastEnd)) : null;
+    return ParsedIndex.create(entryCount, keyFiles.build(), lastFileUri);
+  }
+
+  /**
+   * Same as the {@code \s} regex character class, which is what index files have always been split
+   * on.
+   */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Turns index entries into keyfile URIs, the same way {@link Uri.Builder#appendEncodedPath} does.
+   */
+  private static class EntryResolver {
+
+    private final Uri fileBaseUri;
+    // What every keyfile URI starts with, or null if we can't tell by string concatenation alone
+    // (e.g. the base has a query, which goes after the entry in the URI).
+    @Nullable
+    private final String prefix;
+
+    EntryResolver(Uri fileBaseUri) {
+      this.fileBaseUri = fileBaseUri;
+      this.prefix =
+          fileBaseUri.getEncodedQuery() == null && fileBaseUri.getEncodedFragment() == null
+              ? fileBaseUri.buildUpon().appendEncodedPath("").build().toString()
+              : null;
+    }
+
+    /**
+     * Whether the entry at {@code content[start, end)} resolves to the URI {@code uri}, without
+     * building a URI for it if we can avoid it.
+     */
+    boolean matches(String uri, String content, int start, int end) {
+      if (prefix == null) {
+        return uri.equals(resolve(content.substring(start, end)).toString());
+      }
+      return uri.length() == prefix.length() + (end - start)
+          && uri.startsWith(prefix)
+          && uri.regionMatches(prefix.length(), content, start, end - start);
+    }
+
+    Uri resolve(String entry) {
+      return fileBaseUri.buildUpon().appendEncodedPath(entry).build();
+    }
+  }
+}
@@ -41,7 +41,7 @@ public abstract class KeyFile {
     return new AutoValue_KeyFile(index, fileUri, null, isMostRecent);
   }
 
-  public KeyFile with(File f) {
+  public KeyFile with(@Nullable File f) {
     return new AutoValue_KeyFile(index(), uri(), f, isMostRecent());
   }
 
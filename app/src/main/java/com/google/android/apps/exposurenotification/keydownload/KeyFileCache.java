@@ -0,0 +1,197 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import android.content.Context;
+import androidx.annotation.AnyThread;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
+import com.google.auto.value.AutoValue;
+import com.google.common.io.Files;
+import dagger.hilt.android.qualifiers.ApplicationContext;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.threeten.bp.Duration;
+
+/**
+ * Keeps the keyfiles we download under control on disk.
+ *
+ * <p>Each download run writes into a new directory under {@link #DIR_NAME}, and the files are
+ * deleted once they've been provided to the EN API (or failed to be). If the process dies in
+ * between, they'd otherwise stay there forever. A {@link #sweep()} deletes files nobody has
+ * touched in a while, then the oldest files while we're still over quota.
+ *
+ * <p>Unfinished downloads we may still resume are exempt from the age limit, as the journal of
+ * partial downloads expires them itself, but not from the quota.
+ *
+ * <p>A run can take far longer than any fixed grace period (half an hour to download, then up to
+ * an hour per batch to provide), so runs tell us when they start and finish, and nothing written
+ * since the oldest run still in progress is swept at all.
+ */
+@Singleton
+public class KeyFileCache {
+
+  private static final Logger logger = Logger.getLogger("KeyFileCache");
+
+  static final String DIR_NAME = "diag_keys";
+
+  // A download run, including providing the files, is long over by then.
+  @VisibleForTesting
+  static final Duration MAX_AGE = Duration.ofDays(1);
+  // Files touched more recently than this may belong to a run in progress in another process, so we
+  // leave them alone even when over quota.
+  @VisibleForTesting
+  static final Duration IN_USE_GRACE = Duration.ofHours(1);
+  @VisibleForTesting
+  static final long QUOTA_BYTES = 64L * 1024 * 1024;
+
+  private final Context context;
+  private final PartialDownloadRepository partialDownloadRepository;
+  private final Clock clock;
+  // Start times of the runs in progress.
+  private final List<Long> runsInProgressMs = new ArrayList<>();
+
+  @Inject
+  KeyFileCache(
+      @ApplicationContext Context context,
+      PartialDownloadRepository partialDownloadRepository,
+      Clock clock) {
+    this.context = context;
+    this.partialDownloadRepository = partialDownloadRepository;
+    this.clock = clock;
+  }
+
+  /**
+   * Marks the start of a run that downloads keyfiles and provides them to the EN API. Until it's
+   * passed to {@link #runFinished(long)}, no file written since is swept.
+   */
+  @AnyThread
+  public synchronized long runStarted() {
+    long startedMs = clock.currentTimeMillis();
+    runsInProgressMs.add(startedMs);
+    return startedMs;
+  }
+
+  /**
+   * Marks the end of a run, given the time {@link #runStarted()} returned for it.
+   */
+  @AnyThread
+  public synchronized void runFinished(long startedMs) {
+    runsInProgressMs.remove(Long.valueOf(startedMs));
+  }
+
+  private synchronized long oldestRunInProgressMs() {
+    return runsInProgressMs.isEmpty() ? Long.MAX_VALUE : Collections.min(runsInProgressMs);
+  }
+
+  /**
+   * Deletes abandoned keyfiles and, if still over quota, the oldest files not in use, along with
+   * any directories left empty. Returns how much we found and how much we deleted.
+   */
+  @WorkerThread
+  public SweepStats sweep() {
+    File root = new File(context.getFilesDir(), DIR_NAME);
+    List<File> files = new ArrayList<>();
+    for (File file : Files.fileTraverser().depthFirstPreOrder(root)) {
+      if (file.isFile()) {
+        files.add(file);
+      }
+    }
+    // Oldest first, so that the quota evicts those first.
+    Collections.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+
+    Map<File, PartialDownloadEntity> partialDownloads = new HashMap<>();
+    for (PartialDownloadEntity partialDownload : partialDownloadRepository.getAll()) {
+      partialDownloads.put(new File(context.getFilesDir(), partialDownload.path()), partialDownload);
+    }
+
+    long nowMs = clock.currentTimeMillis();
+    long abandonedBeforeMs = nowMs - MAX_AGE.toMillis();
+    long inUseSinceMs = nowMs - IN_USE_GRACE.toMillis();
+    long runInProgressSinceMs = oldestRunInProgressMs();
+    long bytes = 0;
+    for (File file : files) {
+      bytes += file.length();
+    }
+    long bytesLeft = bytes;
+    int filesDeleted = 0;
+    for (File file : files) {
+      if (file.lastModified() >= runInProgressSinceMs) {
+        continue;
+      }
+      boolean abandoned =
+          file.lastModified() < abandonedBeforeMs && !partialDownloads.containsKey(file);
+      boolean overQuota = bytesLeft > QUOTA_BYTES && file.lastModified() < inUseSinceMs;
+      if (!abandoned && !overQuota) {
+        continue;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        bytesLeft -= length;
+        filesDeleted++;
+        PartialDownloadEntity partialDownload = partialDownloads.get(file);
+        if (partialDownload != null) {
+          partialDownloadRepository.delete(partialDownload.uri());
+        }
+      }
+    }
+    deleteEmptyDirs(root);
+
+    SweepStats stats = SweepStats.create(files.size(), bytes, filesDeleted, bytes - bytesLeft);
+    logger.d("Keyfile cache: " + stats);
+    return stats;
+  }
+
+  private static void deleteEmptyDirs(File root) {
+    for (File file : Files.fileTraverser().depthFirstPostOrder(root)) {
+      if (!file.equals(root) && file.isDirectory()) {
+        // Only succeeds if the directory is empty.
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * How much a {@link #sweep()} found on disk, and how much of it it deleted.
+   */
+  @AutoValue
+  public abstract static class SweepStats {
+
+    public abstract int files();
+
+    public abstract long bytes();
+
+    public abstract int filesDeleted();
+
+    public abstract long bytesDeleted();
+
+    static SweepStats create(int files, long bytes, int filesDeleted, long bytesDeleted) {
+      return new AutoValue_KeyFileCache_SweepStats(files, bytes, filesDeleted, bytesDeleted);
+    }
+  }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Paces keyfile downloads so that a large backlog doesn't flood the shared request queue.
+ *
+ * <p>At most {@link DownloadSchedulerConfig#maxConcurrentDownloads()} files are in flight at once,
+ * and at most {@link DownloadSchedulerConfig#maxConcurrentDownloadsPerHost()} to any one host.
+ * Files from the home server go first, and within each server the newest files go first. Each file
+ * finishes or fails on its own future, and the scheduler itself never holds up or cancels other
+ * files because one failed. It's up to the caller what a failure means for the rest of its run:
+ * {@link DiagnosisKeyDownloader} waits for all of them, then fails the whole run and deletes its
+ * files if any file failed to download, while a file that downloaded but is invalid only holds back
+ * the rest of its own server's files.
+ *
+ * <p>Waiting files are queued per host, so picking the next one only looks at the head of each
+ * host's queue, however long the backlog for a busy host.
+ *
+ * <p>The scheduler is a singleton, so the limits hold across overlapping download runs too.
+ */
+@Singleton
+class KeyFileDownloadScheduler {
+
+  private static final Logger logger = Logger.getLogger("KeyFileDownloadScheduler");
+
+  private final DownloadSchedulerConfig config;
+  private final Clock clock;
+  private final ExecutorService backgroundExecutor;
+
+  // All the following are guarded by "this".
+  private final Map<String, PriorityQueue<PendingDownload>> pendingPerHost = new HashMap<>();
+  private final Map<String, Integer> inFlightPerHost = new HashMap<>();
+  private int pendingCount = 0;
+  private int inFlight = 0;
+  private long nextSequence = 0;
+  private long completed = 0;
+  private long failed = 0;
+  private long bytesDownloaded = 0;
+  private long busyMillis = 0;
+  private long busySinceMillis = 0;
+
+  @Inject
+  KeyFileDownloadScheduler(
+      DownloadSchedulerConfig config,
+      Clock clock,
+      @BackgroundExecutor ExecutorService backgroundExecutor) {
+    this.config = config;
+    this.clock = clock;
+    this.backgroundExecutor = backgroundExecutor;
+  }
+
+  /**
+   * Queues up downloads of the given keyfiles, and returns a future for each, in the same order as
+   * the given files.
+   *
+   * @param keyFiles     the files to download, in index file order for each server.
+   * @param homeIndexUri index URI of the user's home server, whose files get priority.
+   * @param download     starts the download of one file, when the scheduler decides it's time.
+   */
+  ImmutableList<ListenableFuture<KeyFile>> schedule(
+      List<KeyFile> keyFiles, Uri homeIndexUri, AsyncFunction<KeyFile, KeyFile> download) {
+    ImmutableList.Builder<ListenableFuture<KeyFile>> results = ImmutableList.builder();
+    // Later entries in a server's index are newer, so rank each file by how many files come after
+    // it in its own server: the newest file of every server has rank zero.
+    Map<Uri, Integer> remainingInServer = new HashMap<>();
+    for (KeyFile keyFile : keyFiles) {
+      Integer count = remainingInServer.get(keyFile.index());
+      remainingInServer.put(keyFile.index(), count == null ? 1 : count + 1);
+    }
+    synchronized (this) {
+      for (KeyFile keyFile : keyFiles) {
+        int newerFiles = remainingInServer.get(keyFile.index()) - 1;
+        remainingInServer.put(keyFile.index(), newerFiles);
+        PendingDownload pendingDownload = new PendingDownload(
+            keyFile,
+            download,
+            keyFile.index().equals(homeIndexUri),
+            newerFiles,
+            nextSequence++);
+        PriorityQueue<PendingDownload> hostQueue = pendingPerHost.get(pendingDownload.host);
+        if (hostQueue == null) {
+          hostQueue = new PriorityQueue<>();
+          pendingPerHost.put(pendingDownload.host, hostQueue);
+        }
+        hostQueue.add(pendingDownload);
+        pendingCount++;
+        results.add(pendingDownload.result);
+      }
+      logger.d("Scheduled " + keyFiles.size() + " downloads. Queue depth is now " + pendingCount);
+    }
+    startReadyDownloads();
+    return results.build();
+  }
+
+  /**
+   * Returns a snapshot of the scheduler's queue and throughput, for monitoring and tuning.
+   */
+  synchronized Stats getStats() {
+    long busy = busyMillis;
+    if (inFlight > 0) {
+      busy += clock.currentTimeMillis() - busySinceMillis;
+    }
+    double throughput = busy > 0 ? bytesDownloaded * 1000.0 / busy : 0;
+    return Stats.create(pendingCount, inFlight, completed, failed, bytesDownloaded, throughput);
+  }
+
+  private void startReadyDownloads() {
+    List<PendingDownload> toStart = new ArrayList<>();
+    synchronized (this) {
+      PendingDownload next;
+      while (inFlight < config.maxConcurrentDownloads() && (next = pollNextReady()) != null) {
+        if (inFlight == 0) {
+          busySinceMillis = clock.currentTimeMillis();
+        }
+        inFlight++;
+        inFlightPerHost.put(next.host, inFlightFor(next.host) + 1);
+        toStart.add(next);
+      }
+    }
+    // Start the downloads outside the lock, in case they complete synchronously.
+    for (PendingDownload pendingDownload : toStart) {
+      start(pendingDownload);
+    }
+  }
+
+  /**
+   * Takes the highest priority file among the heads of the queues of hosts with room for another
+   * download, or returns null if there's none. Drops files cancelled while they waited.
+   */
+  @Nullable
+  private synchronized PendingDownload pollNextReady() {
+    PriorityQueue<PendingDownload> best = null;
+    Iterator<Map.Entry<String, PriorityQueue<PendingDownload>>> hosts =
+        pendingPerHost.entrySet().iterator();
+    while (hosts.hasNext()) {
+      Map.Entry<String, PriorityQueue<PendingDownload>> host = hosts.next();
+      PriorityQueue<PendingDownload> hostQueue = host.getValue();
+      while (!hostQueue.isEmpty() && hostQueue.peek().result.isDone()) {
+        // Cancelled before it got going.
+        hostQueue.poll();
+        pendingCount--;
+      }
+      if (hostQueue.isEmpty()) {
+        hosts.remove();
+        continue;
+      }
+      if (inFlightFor(host.getKey()) >= config.maxConcurrentDownloadsPerHost()) {
+        continue;
+      }
+      if (best == null || hostQueue.peek().compareTo(best.peek()) < 0) {
+        best = hostQueue;
+      }
+    }
+    if (best == null) {
+      return null;
+    }
+    pendingCount--;
+    return best.poll();
+  }
+
+  private void start(PendingDownload pendingDownload) {
+    ListenableFuture<KeyFile> download;
+    try {
+      download = pendingDownload.download.apply(pendingDownload.keyFile);
+    } catch (Exception e) {
+      download = Futures.immediateFailedFuture(e);
+    }
+    pendingDownload.result.setFuture(download);
+    ListenableFuture<KeyFile> finalDownload = download;
+    download.addListener(() -> onFinished(pendingDownload, finalDownload), backgroundExecutor);
+  }
+
+  private void onFinished(PendingDownload pendingDownload, ListenableFuture<KeyFile> download) {
+    long bytes = 0;
+    boolean succeeded = false;
+    try {
+      File file = Futures.getDone(download).file();
+      bytes = file != null ? file.length() : 0;
+      succeeded = true;
+    } catch (ExecutionException | RuntimeException e) {
+      // Failed or cancelled. The caller sees that through the file's own future.
+    }
+    synchronized (this) {
+      inFlight--;
+      int hostInFlight = inFlightFor(pendingDownload.host) - 1;
+      if (hostInFlight > 0) {
+        inFlightPerHost.put(pendingDownload.host, hostInFlight);
+      } else {
+        inFlightPerHost.remove(pendingDownload.host);
+      }
+      if (inFlight == 0) {
+        busyMillis += clock.currentTimeMillis() - busySinceMillis;
+      }
+      if (succeeded) {
+        completed++;
+        bytesDownloaded += bytes;
+      } else {
+        failed++;
+      }
+    }
+    startReadyDownloads();
+  }
+
+  private int inFlightFor(String host) {
+    Integer count = inFlightPerHost.get(host);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * A snapshot of the scheduler's state.
+   */
+  @AutoValue
+  abstract static class Stats {
+
+    /** Files waiting to start. */
+    abstract int queueDepth();
+
+    /** Files currently downloading. */
+    abstract int inFlight();
+
+    /** Files downloaded successfully since the app started. */
+    abstract long completed();
+
+    /** Files whose downloads failed since the app started. */
+    abstract long failed();
+
+    /** Total bytes in successfully downloaded files since the app started. */
+    abstract long bytesDownloaded();
+
+    /** Bytes per second, over the time when at least one download was in flight. */
+    abstract double throughputBytesPerSecond();
+
+    @VisibleForTesting
+    static Stats create(int queueDepth, int inFlight, long completed, long failed,
+        long bytesDownloaded, double throughputBytesPerSecond) {
+      return new AutoValue_KeyFileDownloadScheduler_Stats(
+          queueDepth, inFlight, completed, failed, bytesDownloaded, throughputBytesPerSecond);
+    }
+  }
+
+  /**
+   * A file waiting its turn, ordered by priority: home server first, then newest first, then first
+   * come first served.
+   */
+  private static class PendingDownload implements Comparable<PendingDownload> {
+
+    private final KeyFile keyFile;
+    private final AsyncFunction<KeyFile, KeyFile> download;
+    private final boolean isHome;
+    private final int newerFilesInServer;
+    private final long sequence;
+    private final String host;
+    private final SettableFuture<KeyFile> result = SettableFuture.create();
+
+    PendingDownload(KeyFile keyFile, AsyncFunction<KeyFile, KeyFile> download, boolean isHome,
+        int newerFilesInServer, long sequence) {
+      this.keyFile = keyFile;
+      this.download = download;
+      this.isHome = isHome;
+      this.newerFilesInServer = newerFilesInServer;
+      this.sequence = sequence;
+      String uriHost = keyFile.uri().getHost();
+      this.host = uriHost == null ? "" : uriHost;
+    }
+
+    @Override
+    public int compareTo(@NonNull PendingDownload other) {
+      if (isHome != other.isHome) {
+        return isHome ? -1 : 1;
+      }
+      if (newerFilesInServer != other.newerFilesInServer) {
+        return Integer.compare(newerFilesInServer, other.newerFilesInServer);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -18,6 +18,7 @@
 package com.google.android.apps.exposurenotification.keydownload;
 
 import android.net.Uri;
+import androidx.annotation.Nullable;
 import androidx.concurrent.futures.CallbackToFutureAdapter;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
@@ -25,12 +26,17 @@ import com.google.android.apps.exposurenotification.common.Qualifiers.Background
 import com.google.android.apps.exposurenotification.common.Qualifiers.LightweightExecutor;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
 import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.keydownload.IndexFileParser.ParsedIndex;
+import com.google.android.apps.exposurenotification.network.RequestLane;
 import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
-import com.google.android.apps.exposurenotification.network.RespondableStringRequest;
+import com.google.android.apps.exposurenotification.network.RespondableConditionalStringRequest;
+import com.google.android.apps.exposurenotification.network.RespondableConditionalStringRequest.Result;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
 import com.google.android.apps.exposurenotification.storage.DownloadServerRepository;
-import com.google.common.base.Splitter;
+import com.google.android.apps.exposurenotification.storage.IndexFileEntity;
+import com.google.android.apps.exposurenotification.storage.IndexFileRepository;
+import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -47,10 +53,9 @@ import javax.inject.Inject;
 class KeyFileUriResolver {
 
   private static final Logger logger = Logger.getLogger("KeyFileUriResolver");
-  private static final Splitter WHITESPACE_SPLITTER =
-      Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
 
   private final DownloadServerRepository downloadServerRepo;
+  private final IndexFileRepository indexFileRepo;
   private final RequestQueueWrapper queue;
   private final Clock clock;
   private final ExecutorService backgroundExecutor;
@@ -59,11 +64,13 @@ class KeyFileUriResolver {
   @Inject
   KeyFileUriResolver(
       DownloadServerRepository downloadServerRepo,
+      IndexFileRepository indexFileRepo,
       RequestQueueWrapper queue,
       Clock clock,
       @BackgroundExecutor ExecutorService backgroundExecutor,
       @LightweightExecutor ExecutorService lightweightExecutor) {
     this.downloadServerRepo = downloadServerRepo;
+    this.indexFileRepo = indexFileRepo;
     this.queue = queue;
     this.clock = clock;
     this.backgroundExecutor = backgroundExecutor;
@@ -93,49 +100,71 @@ class KeyFileUriResolver {
   }
 
   private ListenableFuture<ImmutableList<KeyFile>> keyFilesFor(DownloadUriPair uriPair) {
-    return FluentFuture.from(indexFileFrom(uriPair))
+    return FluentFuture.from(
+        Futures.submitAsync(
+            () -> indexFileFrom(uriPair, cachedIndexFor(uriPair)), backgroundExecutor))
         .transform(
-            indexContent -> {
-              logger.d("Index content is " + indexContent);
-              List<String> indexEntries = WHITESPACE_SPLITTER.splitToList(indexContent);
-              logger.d("Index file has " + indexEntries.size() + " lines.");
-
-              // Parse out each line of the index file
-              List<Uri> fileUris = new ArrayList<>();
-              for (String indexEntry : indexEntries) {
-                Uri fileUri = uriPair.fileBaseUri().buildUpon()
-                    .appendEncodedPath(indexEntry)
-                    .build();
-                fileUris.add(fileUri);
+            indexResult -> {
+              if (indexResult.notModified()) {
+                // We already have every file the index lists, so there's nothing to parse or get.
+                logger.d("Index file for " + uriPair.indexUri() + " not modified.");
+                return ImmutableList.of();
               }
-
-              // If we have a "most recently downloaded" for this DownloadUriPair, and it's found in
-              // the list of files we got, skip past (and exclude) that one.
               Uri lastSuccessfulDownload =
                   downloadServerRepo.getMostRecentSuccessfulDownload(uriPair.indexUri());
-              if (lastSuccessfulDownload != null
-                  && fileUris.contains(lastSuccessfulDownload)) {
-                fileUris =
-                    fileUris.subList(fileUris.indexOf(lastSuccessfulDownload) + 1, fileUris.size());
-              }
-
-              // Now we have the (sub?)set of files we want. Build them into a list of KeyFiles.
-              ImmutableList.Builder<KeyFile> builder = ImmutableList.builder();
-              for (Uri fileUri : fileUris) {
-                boolean isMostRecent = fileUri.equals(Iterables.getLast(fileUris));
-                builder.add(KeyFile.create(uriPair.indexUri(), fileUri, isMostRecent));
-              }
+              // Skip past (and exclude) our "most recently downloaded" for this DownloadUriPair, if
+              // the index lists it.
+              ParsedIndex parsedIndex =
+                  IndexFileParser.parse(uriPair, indexResult.content(), lastSuccessfulDownload);
+              logger.d("Index file has " + parsedIndex.entryCount() + " lines.");
+              cacheIndex(uriPair, indexResult, parsedIndex.lastFileUri());
+
+              ImmutableList<KeyFile> keyFiles = parsedIndex.keyFiles();
               logger.d(String.format(
-                  "Uris for server [%s]: [%s]", uriPair.indexUri(), builder.build()));
-              return builder.build();
+                  "Uris for server [%s]: [%s]", uriPair.indexUri(), keyFiles));
+              return keyFiles;
             },
             backgroundExecutor);
   }
 
-  private ListenableFuture<String> indexFileFrom(DownloadUriPair uriPair) {
+  /**
+   * Returns the cached validators of this server's index if it's worth asking for the index
+   * conditionally, i.e. if we've already successfully downloaded every file the cached version
+   * lists, so that an unchanged index means there's nothing new for us. Returns null otherwise.
+   */
+  @Nullable
+  private IndexFileEntity cachedIndexFor(DownloadUriPair uriPair) {
+    IndexFileEntity cachedIndex = indexFileRepo.get(uriPair.indexUri());
+    if (cachedIndex == null) {
+      return null;
+    }
+    Uri lastSuccessfulDownload =
+        downloadServerRepo.getMostRecentSuccessfulDownload(uriPair.indexUri());
+    if (!Objects.equal(cachedIndex.lastFileUri(), lastSuccessfulDownload)) {
+      // There are files in the cached index we still need, so we need the index content too.
+      return null;
+    }
+    return cachedIndex;
+  }
+
+  /**
+   * Remembers the validators of a freshly downloaded index, for a conditional request next time.
+   */
+  private void cacheIndex(DownloadUriPair uriPair, Result indexResult, @Nullable Uri lastFileUri) {
+    if (indexResult.etag() == null && indexResult.lastModified() == null) {
+      // The server gave us nothing to validate the index with.
+      indexFileRepo.delete(uriPair.indexUri());
+      return;
+    }
+    indexFileRepo.upsert(IndexFileEntity.create(
+        uriPair.indexUri(), indexResult.etag(), indexResult.lastModified(), lastFileUri));
+  }
+
+  private ListenableFuture<Result> indexFileFrom(
+      DownloadUriPair uriPair, @Nullable IndexFileEntity cachedIndex) {
     return CallbackToFutureAdapter.getFuture(
         completer -> {
-          Listener<String> responseListener =
+          Listener<Result> responseListener =
               resp -> {
                 logger.d("Response was " + resp);
                 completer.set(resp);
@@ -148,11 +177,16 @@ class KeyFileUriResolver {
               };
 
           logger.d("Getting index file from " + uriPair.indexUri());
-          RespondableStringRequest request =
-              new RespondableStringRequest(
-                  uriPair.indexUri().toString(), responseListener, errorListener, clock);
-          request.setShouldCache(false);
-          queue.add(request);
+          RespondableConditionalStringRequest request =
+              new RespondableConditionalStringRequest(
+                  uriPair.indexUri().toString(),
+                  cachedIndex != null ? cachedIndex.etag() : null,
+                  cachedIndex != null ? cachedIndex.lastModified() : null,
+                  responseListener,
+                  errorListener,
+                  clock);
+          request.setTag(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD);
+          queue.add(request, RequestLane.BACKGROUND_BULK);
           return request;
         });
   }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import com.google.android.apps.exposurenotification.proto.TEKSignatureList;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKeyExport;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import javax.inject.Inject;
+
+/**
+ * Checks that a downloaded keyfile is one the Exposure Notifications API can use, before we hand it
+ * over: a zip archive with intact {@code export.bin} and {@code export.sig} entries, the former
+ * starting with the export header and holding a well-formed {@link TemporaryExposureKeyExport},
+ * the latter holding at least one signature.
+ *
+ * <p>We open the archive with {@link ZipFile}, which, like the EN API, finds the entries through
+ * the central directory at the end of the file, so a file cut short anywhere fails here. Both
+ * entries are then parsed as they're streamed out of the archive, so we never hold a whole
+ * (decompressed) entry in memory, and read to their end to check their CRCs.
+ *
+ * <p>The export is walked field by field rather than parsed into a message: its keys, which make up
+ * nearly all of it, are skipped over, so that checking a file doesn't build every key in it.
+ */
+public class KeyFileValidator {
+
+  private static final String HEADER_PREFIX = "EK Export v1";
+  private static final int HEADER_LEN = 16;
+  private static final int LARGEST_EXPORT_FIELD = TemporaryExposureKeyExport.KEYS_FIELD_NUMBER;
+
+  @Inject
+  KeyFileValidator() {
+  }
+
+  /**
+   * Throws an {@link IOException} saying what's wrong with the given keyfile, if anything.
+   */
+  public void validate(File file) throws IOException {
+    try (ZipFile zip = new ZipFile(file)) {
+      ZipEntry export = null;
+      ZipEntry signature = null;
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (KeyFileConstants.EXPORT_FILENAME.equals(name)) {
+          export = checkNotDuplicate(export, entry);
+        } else if (KeyFileConstants.SIG_FILENAME.equals(name)) {
+          signature = checkNotDuplicate(signature, entry);
+        }
+      }
+      if (export == null) {
+        throw new ZipException("Missing " + KeyFileConstants.EXPORT_FILENAME);
+      }
+      if (signature == null) {
+        throw new ZipException("Missing " + KeyFileConstants.SIG_FILENAME);
+      }
+      validateEntry(zip, export, KeyFileValidator::validateExport);
+      validateEntry(zip, signature, KeyFileValidator::validateSignature);
+    }
+  }
+
+  /**
+   * Parses an entry with the given validator, then drains whatever the parser left and checks the
+   * entry's CRC.
+   */
+  private static void validateEntry(ZipFile zip, ZipEntry entry, EntryValidator validator)
+      throws IOException {
+    CRC32 crc = new CRC32();
+    try (InputStream in = new CheckedInputStream(
+        new BufferedInputStream(zip.getInputStream(entry)), crc)) {
+      validator.validate(in);
+      ByteStreams.exhaust(in);
+    }
+    if (entry.getCrc() != -1 && entry.getCrc() != crc.getValue()) {
+      throw new ZipException("Bad CRC for " + entry.getName());
+    }
+  }
+
+  private static void validateExport(InputStream in) throws IOException {
+    byte[] header = new byte[HEADER_LEN];
+    ByteStreams.readFully(in, header);
+    String headerString = new String(header, StandardCharsets.US_ASCII);
+    if (!headerString.startsWith(HEADER_PREFIX)) {
+      throw new IOException("Unexpected export header [" + headerString + "]");
+    }
+    for (int i = HEADER_PREFIX.length(); i < HEADER_LEN; i++) {
+      // The header is padded out to its full length, with spaces or zeros.
+      if (header[i] != ' ' && header[i] != 0) {
+        throw new IOException("Unexpected export header [" + headerString + "]");
+      }
+    }
+    walkExport(CodedInputStream.newInstance(in));
+  }
+
+  /**
+   * Reads through a {@link TemporaryExposureKeyExport} without building it, checking that each
+   * field we know of has the wire type it's declared with, and skipping over its value.
+   */
+  private static void walkExport(CodedInputStream export) throws IOException {
+    int tag;
+    while ((tag = export.readTag()) != 0) {
+      int field = WireFormat.getTagFieldNumber(tag);
+      int wireType = WireFormat.getTagWireType(tag);
+      if (field <= LARGEST_EXPORT_FIELD && wireType != exportWireType(field)) {
+        throw new InvalidProtocolBufferException(
+            "Unexpected wire type " + wireType + " for export field " + field);
+      }
+      if (!export.skipField(tag)) {
+        throw new InvalidProtocolBufferException("Unexpected end group in export");
+      }
+    }
+  }
+
+  private static int exportWireType(int field) {
+    switch (field) {
+      case TemporaryExposureKeyExport.START_TIMESTAMP_FIELD_NUMBER:
+      case TemporaryExposureKeyExport.END_TIMESTAMP_FIELD_NUMBER:
+        return WireFormat.WIRETYPE_FIXED64;
+      case TemporaryExposureKeyExport.BATCH_NUM_FIELD_NUMBER:
+      case TemporaryExposureKeyExport.BATCH_SIZE_FIELD_NUMBER:
+        return WireFormat.WIRETYPE_VARINT;
+      default:
+        // The region, signature infos and keys.
+        return WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+  }
+
+  private static void validateSignature(InputStream in) throws IOException {
+    TEKSignatureList signatures = TEKSignatureList.parseFrom(CodedInputStream.newInstance(in));
+    if (signatures.getSignaturesCount() == 0) {
+      throw new IOException("No signatures in " + KeyFileConstants.SIG_FILENAME);
+    }
+  }
+
+  private static ZipEntry checkNotDuplicate(ZipEntry seen, ZipEntry entry) throws ZipException {
+    if (seen != null) {
+      throw new ZipException("Duplicate " + entry.getName());
+    }
+    return entry;
+  }
+
+  private interface EntryValidator {
+
+    void validate(InputStream in) throws IOException;
+  }
+}
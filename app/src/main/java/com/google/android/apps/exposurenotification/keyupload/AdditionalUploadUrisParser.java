@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import android.net.Uri;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.common.collect.ImmutableMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * Parser for the config of the other regions' keyservers we share keys with.
+ */
+class AdditionalUploadUrisParser {
+
+  private static final Logger logger = Logger.getLogger("AdditionalUploadUrisParser");
+
+  /**
+   * Parses a JSON string like:
+   *
+   * <pre>{@code
+   * {
+   *   "DE": "https://my-key-server-de/v1/publish",
+   *   "FR": "https://my-key-server-fr/v1/publish",
+   * }
+   * }</pre>
+   * <p>
+   * into a map of upload URIs keyed by ISO-Alpha-2 country codes, in the order given.
+   */
+  static Map<String, Uri> parse(String config) {
+    try {
+      JSONObject uploadConfig = new JSONObject(config);
+      ImmutableMap.Builder<String, Uri> outBuilder = ImmutableMap.builder();
+
+      Iterator<String> jsonKeys = uploadConfig.keys();
+      while (jsonKeys.hasNext()) {
+        String countryCode = jsonKeys.next();
+        outBuilder.put(countryCode, Uri.parse(uploadConfig.getString(countryCode)));
+      }
+
+      Map<String, Uri> uris = outBuilder.build();
+      logger.d("Parsed " + uris.size() + " additional upload region(s)");
+      return uris;
+    } catch (Exception e) {
+      // Swallow all failures to parse this config and continue with our own keyserver only.
+      logger.e("Failed to parse JSON upload config, continuing with no additional servers.", e);
+      return ImmutableMap.of();
+    }
+  }
+}
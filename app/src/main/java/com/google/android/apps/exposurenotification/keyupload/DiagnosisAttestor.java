@@ -35,7 +35,9 @@ import com.google.android.apps.exposurenotification.keyupload.UploadController.V
 import com.google.android.apps.exposurenotification.keyupload.UploadController.VerificationServerFailureException;
 import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
 import com.google.android.apps.exposurenotification.network.DiagnosisKey;
-import com.google.android.apps.exposurenotification.network.Padding;
+import com.google.android.apps.exposurenotification.network.JsonPayload;
+import com.google.android.apps.exposurenotification.network.JsonPayloadWriter;
+import com.google.android.apps.exposurenotification.network.RequestLane;
 import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
 import com.google.android.apps.exposurenotification.network.RespondableJsonObjectRequest;
 import com.google.android.apps.exposurenotification.network.VolleyUtils;
@@ -56,10 +58,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.threeten.bp.LocalDate;
@@ -82,12 +84,12 @@ class DiagnosisAttestor {
   private static final Joiner COMMAS = Joiner.on(',');
   private static final BaseEncoding BASE64 = BaseEncoding.base64();
   private static final String HASH_ALGO = "HmacSHA256";
-  private static final JSONArray SUPPORTED_TEST_TYPES = new JSONArray(
+  private static final ImmutableList<String> SUPPORTED_TEST_TYPES =
       ImmutableList.of(
           TestResult.CONFIRMED.toApiType(),
           TestResult.LIKELY.toApiType(),
           TestResult.NEGATIVE.toApiType(),
-          TestResult.USER_REPORT.toApiType()));
+          TestResult.USER_REPORT.toApiType());
 
   private final Uri codeUri;
   private final Uri certUri;
@@ -117,11 +119,11 @@ class DiagnosisAttestor {
 
   ListenableFuture<UserReportUpload> requestCode(UserReportUpload upload) {
     return CallbackToFutureAdapter.getFuture(completer -> {
-      JSONObject requestBody = verificationUserReportRequestBody(upload);
+      JsonPayload requestBody = verificationUserReportRequestBody(upload);
 
       Listener<JSONObject> responseListener = response -> {
-        analyticsLogger.logRpcCallSuccessAsync(RpcCallType.RPC_TYPE_VERIFICATION,
-            requestBody.toString().length());
+        analyticsLogger.logRpcCallSuccessAsync(
+            RpcCallType.RPC_TYPE_VERIFICATION, requestBody.length());
         completer.set(captureVerificationUserReportResponse(upload, response));
       };
 
@@ -139,18 +141,19 @@ class DiagnosisAttestor {
           new VerificationRequest(
               apiKey, userReportUri, requestBody, responseListener, errorListener,
               clock, upload.isCoverTraffic());
-      queue.add(request);
+      queue.add(request, upload.isCoverTraffic() ? RequestLane.CHAFF : RequestLane.INTERACTIVE);
       return request;
     });
   }
 
-  private static JSONObject verificationUserReportRequestBody(UserReportUpload upload)
-      throws JSONException {
-    return Padding.addPadding(new JSONObject()
-        .put(VerifyV1.TEST_DATE, upload.testDate())
-        .put(VerifyV1.TZ_OFFSET, upload.tzOffsetMin())
-        .put(VerifyV1.PHONE, upload.phoneNumber())
-        .put(VerifyV1.NONCE, upload.nonceBase64()));
+  private static JsonPayload verificationUserReportRequestBody(UserReportUpload upload) {
+    return new JsonPayloadWriter()
+        .beginObject()
+        .name(VerifyV1.TEST_DATE).value(Objects.toString(upload.testDate(), null))
+        .name(VerifyV1.TZ_OFFSET).value(upload.tzOffsetMin())
+        .name(VerifyV1.PHONE).value(upload.phoneNumber())
+        .name(VerifyV1.NONCE).value(upload.nonceBase64())
+        .finish();
   }
 
   private static UserReportUpload captureVerificationUserReportResponse(
@@ -180,13 +183,13 @@ class DiagnosisAttestor {
   ListenableFuture<Upload> submitCode(Upload upload) {
     logcat.d("Submitting verification code: " + upload);
     return CallbackToFutureAdapter.getFuture(completer -> {
-      JSONObject requestBody = verificationCodeRequestBody(upload);
+      JsonPayload requestBody = verificationCodeRequestBody(upload);
       logcat.d("Submitting verification code: " + requestBody);
 
       Listener<JSONObject> responseListener =
           response -> {
-            analyticsLogger.logRpcCallSuccessAsync(RpcCallType.RPC_TYPE_VERIFICATION,
-                requestBody.toString().length());
+            analyticsLogger.logRpcCallSuccessAsync(
+                RpcCallType.RPC_TYPE_VERIFICATION, requestBody.length());
             logcat.d("Verification code submission succeeded: " + response);
             completer.set(captureVerificationCodeResponse(upload, response));
           };
@@ -207,19 +210,24 @@ class DiagnosisAttestor {
           new VerificationRequest(
               apiKey, codeUri, requestBody, responseListener, errorListener,
               clock, upload.isCoverTraffic());
-      queue.add(request);
+      queue.add(request, upload.isCoverTraffic() ? RequestLane.CHAFF : RequestLane.INTERACTIVE);
       return request;
     });
   }
 
-  private static JSONObject verificationCodeRequestBody(Upload upload) throws JSONException {
-    JSONObject verificationCodeRequestBody = new JSONObject()
-        .put(VerifyV1.VERIFICATION_CODE, upload.verificationCode())
-        .put(VerifyV1.ACCEPT_TEST_TYPES, SUPPORTED_TEST_TYPES);
+  private static JsonPayload verificationCodeRequestBody(Upload upload) {
+    JsonPayloadWriter verificationCodeRequestBody = new JsonPayloadWriter()
+        .beginObject()
+        .name(VerifyV1.VERIFICATION_CODE).value(upload.verificationCode())
+        .name(VerifyV1.ACCEPT_TEST_TYPES).beginArray();
+    for (String testType : SUPPORTED_TEST_TYPES) {
+      verificationCodeRequestBody.value(testType);
+    }
+    verificationCodeRequestBody.endArray();
     if (!TextUtils.isEmpty(upload.nonceBase64())) {
-      verificationCodeRequestBody.put(VerifyV1.NONCE, upload.nonceBase64());
+      verificationCodeRequestBody.name(VerifyV1.NONCE).value(upload.nonceBase64());
     }
-    return Padding.addPadding(verificationCodeRequestBody);
+    return verificationCodeRequestBody.finish();
   }
 
   private static Upload captureVerificationCodeResponse(Upload upload, JSONObject response) {
@@ -253,13 +261,13 @@ class DiagnosisAttestor {
   ListenableFuture<Upload> submitKeysForCert(Upload upload) {
     return CallbackToFutureAdapter.getFuture(
         completer -> {
-          JSONObject requestBody = certRequestBody(upload);
+          JsonPayload requestBody = certRequestBody(upload);
           logcat.d("Submitting request for certificate: " + requestBody);
 
           Listener<JSONObject> responseListener =
               response -> {
-                analyticsLogger.logRpcCallSuccessAsync(RpcCallType.RPC_TYPE_VERIFICATION,
-                    requestBody.toString().length());
+                analyticsLogger.logRpcCallSuccessAsync(
+                    RpcCallType.RPC_TYPE_VERIFICATION, requestBody.length());
                 logcat.d("Certificate obtained: " + response);
                 completer.set(captureCertResponse(upload, response));
               };
@@ -280,20 +288,29 @@ class DiagnosisAttestor {
               new VerificationRequest(
                   apiKey, certUri, requestBody, responseListener, errorListener,
                   clock, upload.isCoverTraffic());
-          queue.add(request);
+          queue.add(
+              request, upload.isCoverTraffic() ? RequestLane.CHAFF : RequestLane.INTERACTIVE);
           return request;
         });
   }
 
-  private static JSONObject certRequestBody(Upload upload) throws JSONException {
-    return Padding.addPadding(new JSONObject()
-        .put(VerifyV1.VERIFICATION_TOKEN, upload.longTermToken())
-        .put(VerifyV1.HMAC_KEY, hashedKeys(upload)));
+  private static JsonPayload certRequestBody(Upload upload) {
+    return new JsonPayloadWriter()
+        .beginObject()
+        .name(VerifyV1.VERIFICATION_TOKEN).value(upload.longTermToken())
+        .name(VerifyV1.HMAC_KEY).value(
+            upload.keysHmacBase64() != null
+                ? upload.keysHmacBase64()
+                : keysHmac(upload.keys(), upload.hmacKeyBase64()))
+        .finish();
   }
 
-  private static String hashedKeys(Upload upload) {
-    List<String> cleartextSegments = new ArrayList<>(upload.keys().size());
-    for (DiagnosisKey k : upload.keys()) {
+  /**
+   * Computes the HMAC of the given keys that the verification server signs in its certificate.
+   */
+  static String keysHmac(List<DiagnosisKey> keys, String hmacKeyBase64) {
+    List<String> cleartextSegments = new ArrayList<>(keys.size());
+    for (DiagnosisKey k : keys) {
       cleartextSegments.add(String.format(
           Locale.ENGLISH,
           "%s.%d.%d.%d",
@@ -304,10 +321,10 @@ class DiagnosisAttestor {
     }
     Collections.sort(cleartextSegments);
     String cleartext = COMMAS.join(cleartextSegments);
-    logcat.d(upload.keys().size() + " keys for hashing prior to verification: [" + cleartext + "]");
+    logcat.d(keys.size() + " keys for hashing prior to verification: [" + cleartext + "]");
     try {
       Mac mac = Mac.getInstance(HASH_ALGO);
-      mac.init(new SecretKeySpec(BASE64.decode(upload.hmacKeyBase64()), HASH_ALGO));
+      mac.init(new SecretKeySpec(BASE64.decode(hmacKeyBase64), HASH_ALGO));
       return BASE64.encode(mac.doFinal(cleartext.getBytes(StandardCharsets.UTF_8)));
     } catch (NoSuchAlgorithmException | InvalidKeyException e) {
       // TODO: Better exception
@@ -344,14 +361,15 @@ class DiagnosisAttestor {
     VerificationRequest(
         String apiKey,
         Uri endpoint,
-        JSONObject jsonRequest,
+        JsonPayload payload,
         Response.Listener<JSONObject> listener,
         Response.ErrorListener errorListener,
         Clock clock,
         boolean isCoverTraffic) {
       super(Method.POST,
-          endpoint.toString(), jsonRequest, listener, errorListener, clock, isCoverTraffic);
+          endpoint.toString(), payload, listener, errorListener, clock, isCoverTraffic);
       this.apiKey = apiKey;
+      setTag(RpcCallType.RPC_TYPE_VERIFICATION);
     }
 
     @Override
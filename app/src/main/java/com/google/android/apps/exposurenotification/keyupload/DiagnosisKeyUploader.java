@@ -19,39 +19,25 @@ package com.google.android.apps.exposurenotification.keyupload;
 
 import android.content.Context;
 import android.net.Uri;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
-import com.android.volley.Response;
-import com.android.volley.Response.ErrorListener;
-import com.android.volley.Response.Listener;
 import com.google.android.apps.exposurenotification.R;
 import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
 import com.google.android.apps.exposurenotification.common.Qualifiers.LightweightExecutor;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
-import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.AdditionalUploadUris;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.UploadUri;
-import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitFailureException;
-import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitServerFailureException;
-import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
 import com.google.android.apps.exposurenotification.network.DiagnosisKey;
-import com.google.android.apps.exposurenotification.network.Padding;
-import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
-import com.google.android.apps.exposurenotification.network.RespondableJsonObjectRequest;
-import com.google.android.apps.exposurenotification.network.VolleyUtils;
-import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.network.JsonPayload;
+import com.google.android.apps.exposurenotification.network.JsonPayloadWriter;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import dagger.hilt.android.qualifiers.ApplicationContext;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import javax.inject.Inject;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.threeten.bp.Duration;
 import org.threeten.bp.ZoneOffset;
 
 /**
@@ -74,38 +60,31 @@ import org.threeten.bp.ZoneOffset;
 class DiagnosisKeyUploader {
 
   private static final Logger logcat = Logger.getLogger("DiagnosisKeyUploader");
-  // NOTE: The server expects padding.
-  private static final BaseEncoding BASE64 = BaseEncoding.base64();
-  // All requests to the server take at least 5s by design, so time out far longer than that.
-  private static final Duration TIMEOUT = Duration.ofSeconds(30);
-  private static final int MAX_RETRIES = 3;
-  private static final float RETRY_BACKOFF = 1.0f;
 
   private final Context context;
+  private final String homeRegion;
   private final Uri uri;
-  private final RequestQueueWrapper queue;
+  private final Map<String, Uri> additionalUris;
+  private final FanOutKeyUploader fanOutUploader;
 
   private final ExecutorService backgroundExecutor;
   private final ExecutorService lightweightExecutor;
-  private final Clock clock;
-  private final AnalyticsLogger logger;
 
   @Inject
   DiagnosisKeyUploader(
       @ApplicationContext Context context,
       @UploadUri Uri uri,
-      RequestQueueWrapper queue,
+      @AdditionalUploadUris Map<String, Uri> additionalUris,
+      FanOutKeyUploader fanOutUploader,
       @BackgroundExecutor ExecutorService backgroundExecutor,
-      @LightweightExecutor ExecutorService lightweightExecutor,
-      Clock clock,
-      AnalyticsLogger logger) {
+      @LightweightExecutor ExecutorService lightweightExecutor) {
     this.context = context;
+    this.homeRegion = context.getString(R.string.enx_regionIdentifier);
     this.uri = uri;
-    this.queue = queue;
+    this.additionalUris = additionalUris;
+    this.fanOutUploader = fanOutUploader;
     this.backgroundExecutor = backgroundExecutor;
     this.lightweightExecutor = lightweightExecutor;
-    this.clock = clock;
-    this.logger = logger;
   }
 
   /**
@@ -113,6 +92,12 @@ class DiagnosisKeyUploader {
    * countries/regions. For simplicity, we upload all keys to all relevant countries/regions. For
    * most users there will be one relevant country.
    *
+   * <p>The upload succeeds or fails with our own region's keyserver. Other regions' keyservers are
+   * best effort: their outcomes are recorded in {@link Upload#endpointResults()}, for the caller to
+   * retry those that failed on their own (see {@link UploadOutbox#addFailedRegions}). An upload
+   * with a {@link Upload#retryRegion()} goes to that region's keyserver only, and succeeds or fails
+   * with it.
+   *
    * @param upload with the keys to submit, having been previously signed by the validation server.
    */
   public ListenableFuture<Upload> upload(Upload upload) {
@@ -124,136 +109,114 @@ class DiagnosisKeyUploader {
 
     // Start by creating a JSON request payload from the given Upload.
     return FluentFuture.from(createPayload(upload))
-        // Submit to the key server.
+        // Submit the same payload to the key servers of all the regions we share keys with.
         .transformAsync(
-            payload -> submitToServer(payload, upload.isCoverTraffic()), backgroundExecutor)
-        // Extract the revision token from the response into the Upload object and return it.
+            payload -> fanOutUploader.upload(payload, endpoints(upload), upload.isCoverTraffic()),
+            backgroundExecutor)
+        // Take the revision token from our own region's response into the Upload and return it.
         .transformAsync(
-            response -> captureRevisionToken(response, upload), lightweightExecutor);
+            results -> captureResults(results, upload), lightweightExecutor);
   }
 
-  private ListenableFuture<JSONObject> createPayload(Upload upload) {
-    JSONObject payload = new JSONObject();
-
-    JSONArray keysJson = new JSONArray();
-    try {
-      for (DiagnosisKey k : upload.keys()) {
-        logcat.d("Adding key: " + k + " to submission.");
-        keysJson.put(
-            new JSONObject()
-                .put(UploadV1.KEY, BASE64.encode(k.getKeyBytes()))
-                .put(UploadV1.ROLLING_START_NUM, k.getIntervalNumber())
-                .put(UploadV1.ROLLING_PERIOD, k.getRollingPeriod())
-                .put(UploadV1.TRANSMISSION_RISK, k.getTransmissionRisk()));
-      }
-
-      JSONArray regionCodesJson = new JSONArray();
-      for (String r : upload.regions()) {
-        regionCodesJson.put(r);
-      }
-
+  private ListenableFuture<JsonPayload> createPayload(Upload upload) {
+    JsonPayloadWriter payload = new JsonPayloadWriter()
+        .beginObject()
+        .name(UploadV1.KEYS)
+        .beginArray();
+    for (DiagnosisKey k : upload.keys()) {
+      logcat.d("Adding key: " + k + " to submission.");
       payload
-          .put(UploadV1.KEYS, keysJson)
-          .put(UploadV1.APP_PACKAGE, context.getString(R.string.health_authority_id))
-          .put(UploadV1.HMAC_KEY, upload.hmacKeyBase64())
-          .put(UploadV1.VERIFICATION_CERT, upload.certificate())
-          .put(UploadV1.TRAVELER, upload.hasTraveled());
-
-      // Onset date is optional
-      if (upload.symptomOnset() != null) {
-        int onsetDateInterval = DiagnosisKey.instantToInterval(
-            upload.symptomOnset().atStartOfDay(ZoneOffset.UTC).toInstant());
-        payload.put(UploadV1.ONSET, onsetDateInterval);
-      }
-
-      // We have a revision token only on second and subsequent uploads.
-      if (upload.revisionToken() != null) {
-        payload
-            .put(ApiConstants.UploadV1.REVISION_TOKEN, upload.revisionToken());
-      }
+          .beginObject()
+          .name(UploadV1.KEY).base64Value(k.getKeyBytes())
+          .name(UploadV1.ROLLING_START_NUM).value(k.getIntervalNumber())
+          .name(UploadV1.ROLLING_PERIOD).value(k.getRollingPeriod())
+          .name(UploadV1.TRANSMISSION_RISK).value(k.getTransmissionRisk())
+          .endObject();
+    }
+    payload
+        .endArray()
+        .name(UploadV1.APP_PACKAGE).value(context.getString(R.string.health_authority_id))
+        .name(UploadV1.HMAC_KEY).value(upload.hmacKeyBase64())
+        .name(UploadV1.VERIFICATION_CERT).value(upload.certificate())
+        .name(UploadV1.TRAVELER).value(upload.hasTraveled());
+
+    // Onset date is optional
+    if (upload.symptomOnset() != null) {
+      int onsetDateInterval = DiagnosisKey.instantToInterval(
+          upload.symptomOnset().atStartOfDay(ZoneOffset.UTC).toInstant());
+      payload.name(UploadV1.ONSET).value(onsetDateInterval);
+    }
 
-      payload = Padding.addPadding(payload);
-      return Futures.immediateFuture(payload);
-    } catch (JSONException e) {
-      return Futures.immediateFailedFuture(e);
+    // We have a revision token only on second and subsequent uploads, and it's only good with our
+    // own region's keyserver.
+    if (upload.revisionToken() != null
+        && (upload.retryRegion() == null || upload.retryRegion().equals(homeRegion))) {
+      payload.name(UploadV1.REVISION_TOKEN).value(upload.revisionToken());
     }
+
+    // Serialized just this once, padding and all.
+    return Futures.immediateFuture(payload.finish());
   }
 
   /**
-   * Submits the build request to the key server and returns the server's response.
+   * Our own region's keyserver first, then those of the other regions we share keys with.
+   *
+   * <p>A retry goes only to the region it's for. A revision goes to our own region's keyserver
+   * only: its revision token is one only that keyserver issued, as we don't keep the tokens of the
+   * other regions'.
    */
-  private ListenableFuture<JSONObject> submitToServer(JSONObject payload, boolean isCoverTraffic) {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          Listener<JSONObject> responseListener =
-              response -> {
-                logger.logRpcCallSuccessAsync(RpcCallType.RPC_TYPE_KEYS_UPLOAD,
-                    payload.toString().length());
-                completer.set(response);
-              };
-
-          ErrorListener errorListener =
-              err -> {
-                logger.logRpcCallFailureAsync(RpcCallType.RPC_TYPE_KEYS_UPLOAD, err);
-                logcat.d(VolleyUtils.getErrorBodyWithoutPadding(err).toString());
-                if (VolleyUtils.getHttpStatus(err) >= 500) {
-                  completer.setException(new KeysSubmitServerFailureException(err));
-                } else {
-                  completer.setException(new KeysSubmitFailureException(err));
-                }
-              };
-
-          logcat.d("Submitting " + payload);
-
-          SubmitKeysRequest request =
-              new SubmitKeysRequest(
-                  uri, payload, responseListener, errorListener, clock, isCoverTraffic);
-          queue.add(request);
-          return request;
-        });
+  private Map<String, Uri> endpoints(Upload upload) {
+    if (upload.retryRegion() != null) {
+      Uri retryUri = upload.retryRegion().equals(homeRegion)
+          ? uri : additionalUris.get(upload.retryRegion());
+      if (retryUri == null) {
+        throw new IllegalArgumentException("No keyserver for region " + upload.retryRegion());
+      }
+      return ImmutableMap.of(upload.retryRegion(), retryUri);
+    }
+    Map<String, Uri> endpoints = new LinkedHashMap<>();
+    endpoints.put(homeRegion, uri);
+    if (upload.revisionToken() != null) {
+      return endpoints;
+    }
+    for (Map.Entry<String, Uri> additional : additionalUris.entrySet()) {
+      if (!endpoints.containsKey(additional.getKey())) {
+        endpoints.put(additional.getKey(), additional.getValue());
+      }
+    }
+    return endpoints;
   }
 
   /**
-   * Extract the revision token from the server's response, into the given {@link Upload}.
+   * Takes the outcome at our own region's keyserver (or at the one region an upload is retried at)
+   * as the outcome of the upload, capturing our own region's revision token into the given {@link
+   * Upload} along with the results for all the regions.
    *
    * <p>Returns a Future so it can act as an AsyncFunction which is allowed to throw an exception
    * whereas a regular Function may not.
    */
-  private ListenableFuture<Upload> captureRevisionToken(JSONObject response, Upload upload)
-      throws KeysSubmitFailureException {
-    if (upload.isCoverTraffic()) {
-      return Futures.immediateFuture(upload);
+  private ListenableFuture<Upload> captureResults(
+      ImmutableMap<String, UploadEndpointResult> results, Upload upload) throws Exception {
+    String region = upload.retryRegion() != null ? upload.retryRegion() : homeRegion;
+    UploadEndpointResult outcome = results.get(region);
+    if (outcome == null) {
+      throw new IllegalStateException("No upload outcome for region " + region);
     }
-    try {
-      return Futures.immediateFuture(upload.toBuilder()
-          .setRevisionToken(response.getString(UploadV1.REVISION_TOKEN))
-          .build());
-    } catch (JSONException e) {
-      // "Server error" here is maybe a bit optimistic: it assumes that the response body was
-      // incorrect, but it could be that the app's interpretation of the response is incorrect.
-      throw new KeysSubmitFailureException(UploadError.SERVER_ERROR);
+    if (!outcome.isSuccess()) {
+      throw outcome.error();
     }
-  }
-
-  /**
-   * Simple construction of a Diagnosis Keys submission.
-   */
-  private static class SubmitKeysRequest extends RespondableJsonObjectRequest {
-
-    SubmitKeysRequest(
-        Uri endpoint,
-        JSONObject jsonRequest,
-        Response.Listener<JSONObject> listener,
-        Response.ErrorListener errorListener,
-        Clock clock,
-        boolean isCoverTraffic) {
-      super(Method.POST,
-          endpoint.toString(), jsonRequest, listener, errorListener, clock, isCoverTraffic);
+    for (UploadEndpointResult result : results.values()) {
+      if (!result.isSuccess()) {
+        logcat.w("Keys not shared with region " + result.region() + ": " + result.error());
+      }
     }
-
-    @Override
-    public Map<String, String> getHeaders() {
-      return isCoverTraffic ? ImmutableMap.of(ApiConstants.CHAFF_HEADER, "1") : ImmutableMap.of();
+    if (upload.isCoverTraffic()) {
+      return Futures.immediateFuture(upload);
+    }
+    Upload.Builder uploaded = upload.toBuilder().setEndpointResults(results);
+    if (region.equals(homeRegion)) {
+      uploaded.setRevisionToken(outcome.revisionToken());
     }
+    return Futures.immediateFuture(uploaded.build());
   }
 }
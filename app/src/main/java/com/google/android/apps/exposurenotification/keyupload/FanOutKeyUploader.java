@@ -0,0 +1,335 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.TimeoutError;
+import com.google.android.apps.exposurenotification.common.Qualifiers.LightweightExecutor;
+import com.google.android.apps.exposurenotification.common.Qualifiers.ScheduledExecutor;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitFailureException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitServerFailureException;
+import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
+import com.google.android.apps.exposurenotification.network.JsonPayload;
+import com.google.android.apps.exposurenotification.network.RequestLane;
+import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
+import com.google.android.apps.exposurenotification.network.RespondableJsonObjectRequest;
+import com.google.android.apps.exposurenotification.network.VolleyUtils;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.inject.Inject;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.threeten.bp.Duration;
+
+/**
+ * Sends one already serialized key upload to the keyservers of several regions at once.
+ *
+ * <p>Each keyserver gets the very same payload bytes and its own timeout, which starts when its
+ * request gets a dispatcher rather than when it's queued. The first keyserver given is the one the
+ * upload succeeds or fails with: it gets a second attempt if it fails in a way that may clear up by
+ * itself. The others are best effort, as no one should wait on them: they get a single, shorter
+ * attempt, and one that hasn't even got a dispatcher by the time the first keyserver has answered
+ * is given up on, to be retried in the background (see {@link UploadOutbox#addFailedRegions}). A
+ * slow or broken keyserver never fails the uploads to the rest. The outcome at each keyserver,
+ * including the revision token it gave us, is reported as an {@link UploadEndpointResult}.
+ */
+class FanOutKeyUploader {
+
+  private static final Logger logcat = Logger.getLogger("FanOutKeyUploader");
+  // Long enough for a request to play out its own retries (see CustomRetryPolicy), since all
+  // requests to a keyserver take at least 5s by design.
+  private static final Duration ENDPOINT_TIMEOUT = Duration.ofMinutes(2);
+  // Long enough for one request to a keyserver that's doing fine.
+  private static final Duration OTHER_ENDPOINT_TIMEOUT = Duration.ofSeconds(15);
+  @VisibleForTesting
+  static final int MAX_ATTEMPTS_PER_ENDPOINT = 2;
+
+  private final RequestQueueWrapper queue;
+  private final ScheduledExecutorService scheduledExecutor;
+  private final ExecutorService lightweightExecutor;
+  private final Clock clock;
+  private final AnalyticsLogger logger;
+  private final Duration endpointTimeout;
+  private final Duration otherEndpointTimeout;
+
+  @Inject
+  FanOutKeyUploader(
+      RequestQueueWrapper queue,
+      @ScheduledExecutor ScheduledExecutorService scheduledExecutor,
+      @LightweightExecutor ExecutorService lightweightExecutor,
+      Clock clock,
+      AnalyticsLogger logger) {
+    this(queue, scheduledExecutor, lightweightExecutor, clock, logger, ENDPOINT_TIMEOUT,
+        OTHER_ENDPOINT_TIMEOUT);
+  }
+
+  @VisibleForTesting
+  FanOutKeyUploader(
+      RequestQueueWrapper queue,
+      ScheduledExecutorService scheduledExecutor,
+      ExecutorService lightweightExecutor,
+      Clock clock,
+      AnalyticsLogger logger,
+      Duration endpointTimeout,
+      Duration otherEndpointTimeout) {
+    this.queue = queue;
+    this.scheduledExecutor = scheduledExecutor;
+    this.lightweightExecutor = lightweightExecutor;
+    this.clock = clock;
+    this.logger = logger;
+    this.endpointTimeout = endpointTimeout;
+    this.otherEndpointTimeout = otherEndpointTimeout;
+  }
+
+  /**
+   * Submits the payload to each of the given keyservers, keyed by region, and returns the outcome
+   * for each of them, keyed and ordered the same way. The first keyserver is the one the caller
+   * waits on (see the class doc). The returned future fails only if we could not start the uploads
+   * at all: a keyserver's failure is recorded in its result.
+   */
+  ListenableFuture<ImmutableMap<String, UploadEndpointResult>> upload(
+      JsonPayload payload, Map<String, Uri> endpoints, boolean isCoverTraffic) {
+    List<ListenableFuture<UploadEndpointResult>> results = new ArrayList<>();
+    ListenableFuture<UploadEndpointResult> lead = null;
+    for (Map.Entry<String, Uri> endpoint : endpoints.entrySet()) {
+      EndpointUpload endpointUpload = lead == null
+          ? new EndpointUpload(endpoint.getKey(), endpoint.getValue(), payload, isCoverTraffic,
+              MAX_ATTEMPTS_PER_ENDPOINT, endpointTimeout, /* lead= */ null)
+          : new EndpointUpload(endpoint.getKey(), endpoint.getValue(), payload, isCoverTraffic,
+              /* maxAttempts= */ 1, otherEndpointTimeout, lead);
+      ListenableFuture<UploadEndpointResult> result = endpointUpload.start(1);
+      if (lead == null) {
+        lead = result;
+      }
+      results.add(result);
+    }
+    return Futures.transform(
+        Futures.allAsList(results), FanOutKeyUploader::byRegion, lightweightExecutor);
+  }
+
+  /**
+   * The upload to one keyserver, over as many attempts as it gets.
+   */
+  private class EndpointUpload {
+
+    private final String region;
+    private final Uri uri;
+    private final JsonPayload payload;
+    private final boolean isCoverTraffic;
+    private final int maxAttempts;
+    private final Duration timeout;
+    // The upload the caller waits on, unless this is it.
+    @Nullable
+    private final ListenableFuture<?> lead;
+
+    private EndpointUpload(String region, Uri uri, JsonPayload payload, boolean isCoverTraffic,
+        int maxAttempts, Duration timeout, @Nullable ListenableFuture<?> lead) {
+      this.region = region;
+      this.uri = uri;
+      this.payload = payload;
+      this.isCoverTraffic = isCoverTraffic;
+      this.maxAttempts = maxAttempts;
+      this.timeout = timeout;
+      this.lead = lead;
+    }
+
+    private ListenableFuture<UploadEndpointResult> start(int attempt) {
+      return FluentFuture.from(submitToServer(this))
+          .transformAsync(
+              response -> Futures.immediateFuture(UploadEndpointResult.success(
+                  region, uri, revisionToken(response, isCoverTraffic), attempt)),
+              lightweightExecutor)
+          .catchingAsync(Exception.class, ex -> {
+            Exception error = asUploadFailure(ex);
+            if (attempt < maxAttempts && UploadOutbox.isRetryable(error)) {
+              logcat.w("Upload to region " + region + " failed, retrying", error);
+              return start(attempt + 1);
+            }
+            logcat.e("Upload to region " + region + " failed after " + attempt + " attempt(s)",
+                error);
+            return Futures.immediateFuture(
+                UploadEndpointResult.failure(region, uri, error, attempt));
+          }, lightweightExecutor);
+    }
+  }
+
+  /**
+   * Submits the payload to one keyserver and returns the server's response.
+   */
+  private ListenableFuture<JSONObject> submitToServer(EndpointUpload endpoint) {
+    Uri uri = endpoint.uri;
+    JsonPayload payload = endpoint.payload;
+    return CallbackToFutureAdapter.getFuture(
+        completer -> {
+          Listener<JSONObject> responseListener =
+              response -> {
+                logger.logRpcCallSuccessAsync(RpcCallType.RPC_TYPE_KEYS_UPLOAD, payload.length());
+                completer.set(response);
+              };
+
+          ErrorListener errorListener =
+              err -> {
+                logger.logRpcCallFailureAsync(RpcCallType.RPC_TYPE_KEYS_UPLOAD, err);
+                logcat.d(VolleyUtils.getErrorBodyWithoutPadding(err).toString());
+                if (VolleyUtils.getHttpStatus(err) >= 500) {
+                  completer.setException(new KeysSubmitServerFailureException(err));
+                } else {
+                  completer.setException(new KeysSubmitFailureException(err));
+                }
+              };
+
+          logcat.d("Submitting " + payload + " to " + uri);
+
+          SubmitKeysRequest request =
+              new SubmitKeysRequest(
+                  uri, payload, responseListener, errorListener, clock, endpoint.isCoverTraffic);
+          // Time out from when the request gets a dispatcher, not while it waits behind others in
+          // its lane. Timing out cancels the request.
+          request.setDispatchListener(() -> scheduledExecutor.schedule(
+              () -> {
+                if (completer.setException(
+                    new TimeoutException("No response from " + uri + " in " + endpoint.timeout))) {
+                  request.cancel();
+                }
+              },
+              endpoint.timeout.toMillis(),
+              TimeUnit.MILLISECONDS));
+          completer.addCancellationListener(request::cancel, MoreExecutors.directExecutor());
+          queue.add(request, endpoint.isCoverTraffic ? RequestLane.CHAFF : RequestLane.UPLOAD);
+          if (endpoint.lead != null) {
+            // No one waits on this keyserver once the lead one has answered, so if this request
+            // hasn't even been sent by then, leave it for a retry in the background.
+            endpoint.lead.addListener(
+                () -> {
+                  if (!request.isDispatched() && completer.setException(
+                      new TimeoutException("Not sent to " + uri + " before the lead upload"))) {
+                    request.cancel();
+                  }
+                },
+                MoreExecutors.directExecutor());
+          }
+          return request;
+        });
+  }
+
+  /**
+   * Extracts the revision token from a keyserver's response. Cover traffic has none.
+   */
+  @Nullable
+  private static String revisionToken(JSONObject response, boolean isCoverTraffic)
+      throws KeysSubmitFailureException {
+    if (isCoverTraffic) {
+      return null;
+    }
+    try {
+      return response.getString(UploadV1.REVISION_TOKEN);
+    } catch (JSONException e) {
+      // "Server error" here is maybe a bit optimistic: it assumes that the response body was
+      // incorrect, but it could be that the app's interpretation of the response is incorrect.
+      throw new KeysSubmitFailureException(UploadError.SERVER_ERROR);
+    }
+  }
+
+  /**
+   * Reports a timeout the same way as Volley's own, so that it counts as worth retrying.
+   */
+  private static Exception asUploadFailure(Exception ex) {
+    if (ex instanceof TimeoutException) {
+      return new KeysSubmitFailureException(new TimeoutError());
+    }
+    return ex;
+  }
+
+  private static ImmutableMap<String, UploadEndpointResult> byRegion(
+      List<UploadEndpointResult> results) {
+    ImmutableMap.Builder<String, UploadEndpointResult> byRegion = ImmutableMap.builder();
+    for (UploadEndpointResult result : results) {
+      byRegion.put(result.region(), result);
+    }
+    return byRegion.build();
+  }
+
+  /**
+   * Simple construction of a Diagnosis Keys submission.
+   */
+  private static class SubmitKeysRequest extends RespondableJsonObjectRequest {
+
+    // The marker Volley adds to a request as a network dispatcher takes it.
+    private static final String DISPATCHED_MARKER = "network-queue-take";
+
+    @Nullable
+    private volatile Runnable dispatchListener;
+    private volatile boolean dispatched = false;
+
+    SubmitKeysRequest(
+        Uri endpoint,
+        JsonPayload payload,
+        Response.Listener<JSONObject> listener,
+        Response.ErrorListener errorListener,
+        Clock clock,
+        boolean isCoverTraffic) {
+      super(Method.POST,
+          endpoint.toString(), payload, listener, errorListener, clock, isCoverTraffic);
+      setTag(RpcCallType.RPC_TYPE_KEYS_UPLOAD);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+      return isCoverTraffic ? ImmutableMap.of(ApiConstants.CHAFF_HEADER, "1") : ImmutableMap.of();
+    }
+
+    void setDispatchListener(Runnable dispatchListener) {
+      this.dispatchListener = dispatchListener;
+    }
+
+    boolean isDispatched() {
+      return dispatched;
+    }
+
+    @Override
+    public void addMarker(String tag) {
+      super.addMarker(tag);
+      if (DISPATCHED_MARKER.equals(tag) && !dispatched) {
+        dispatched = true;
+        if (dispatchListener != null) {
+          dispatchListener.run();
+        }
+      }
+    }
+  }
+}
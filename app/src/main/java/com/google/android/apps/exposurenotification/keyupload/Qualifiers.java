@@ -31,6 +31,10 @@ public class Qualifiers {
   @Retention(RetentionPolicy.RUNTIME)
   public @interface UploadUri {}
 
+  @Qualifier
+  @Retention(RetentionPolicy.RUNTIME)
+  public @interface AdditionalUploadUris {}
+
   @Qualifier
   @Retention(RetentionPolicy.RUNTIME)
   public @interface VerificationCodeUri {}
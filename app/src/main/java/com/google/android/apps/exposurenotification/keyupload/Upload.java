@@ -21,6 +21,7 @@ package com.google.android.apps.exposurenotification.keyupload;
 import com.google.android.apps.exposurenotification.network.DiagnosisKey;
 import com.google.auto.value.AutoValue;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import java.util.Collection;
 import java.util.List;
 import androidx.annotation.Nullable;
@@ -52,6 +53,12 @@ public abstract class Upload {
 
   @Nullable public abstract String hmacKeyBase64();
 
+  /**
+   * The HMAC of {@link #keys()} under {@link #hmacKeyBase64()}, if it was computed ahead of the
+   * request for a certificate with {@link UploadController#computeKeysHmac(List, String)}.
+   */
+  @Nullable public abstract String keysHmacBase64();
+
   @Nullable public abstract String certificate();
 
   @Nullable public abstract LocalDate symptomOnset();
@@ -62,6 +69,17 @@ public abstract class Upload {
 
   @Nullable public abstract String nonceBase64();
 
+  /**
+   * The outcome of the upload at each region's keyserver, keyed by region, once uploaded.
+   */
+  @Nullable public abstract ImmutableMap<String, UploadEndpointResult> endpointResults();
+
+  /**
+   * The one region whose keyserver to upload to, when retrying an upload that made it to our own
+   * region's keyserver but not to this one's. Null to upload to every region's.
+   */
+  @Nullable public abstract String retryRegion();
+
   public abstract boolean hasTraveled();
 
   /**
@@ -117,6 +135,8 @@ public abstract class Upload {
 
     public abstract Upload.Builder setHmacKeyBase64(String key);
 
+    public abstract Upload.Builder setKeysHmacBase64(String keysHmac);
+
     public abstract Upload.Builder setCertificate(String cert);
 
     public abstract Upload.Builder setSymptomOnset(LocalDate date);
@@ -133,6 +153,11 @@ public abstract class Upload {
 
     public abstract Upload.Builder setNonceBase64(String nonce);
 
+    public abstract Upload.Builder setEndpointResults(
+        ImmutableMap<String, UploadEndpointResult> results);
+
+    public abstract Upload.Builder setRetryRegion(String region);
+
     public abstract Upload build();
   }
 
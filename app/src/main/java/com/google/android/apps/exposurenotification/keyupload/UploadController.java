@@ -17,11 +17,22 @@
 
 package com.google.android.apps.exposurenotification.keyupload;
 
+import android.net.Uri;
 import com.android.volley.VolleyError;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.AdditionalUploadUris;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.UploadUri;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCertUri;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCodeUri;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationUserReportUri;
+import com.google.android.apps.exposurenotification.network.ConnectionPrewarmer;
 import com.google.android.apps.exposurenotification.network.Connectivity;
+import com.google.android.apps.exposurenotification.network.DiagnosisKey;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import java.util.Map;
 import javax.inject.Inject;
 
 /**
@@ -51,15 +62,42 @@ public final class UploadController {
   private final DiagnosisAttestor diagnosisAttestor;
   private final DiagnosisKeyUploader uploader;
   private final Connectivity connectivity;
+  private final ConnectionPrewarmer connectionPrewarmer;
+  private final ImmutableList<Uri> serverUris;
 
   @Inject
   public UploadController(
       DiagnosisAttestor diagnosisAttestor,
       DiagnosisKeyUploader uploader,
-      Connectivity connectivity) {
+      Connectivity connectivity,
+      ConnectionPrewarmer connectionPrewarmer,
+      @VerificationUserReportUri Uri userReportUri,
+      @VerificationCodeUri Uri codeUri,
+      @VerificationCertUri Uri certUri,
+      @UploadUri Uri uploadUri,
+      @AdditionalUploadUris Map<String, Uri> additionalUploadUris) {
     this.diagnosisAttestor = diagnosisAttestor;
     this.uploader = uploader;
     this.connectivity = connectivity;
+    this.connectionPrewarmer = connectionPrewarmer;
+    this.serverUris = ImmutableList.<Uri>builder()
+        .add(userReportUri, codeUri, certUri, uploadUri)
+        .addAll(additionalUploadUris.values())
+        .build();
+  }
+
+  /**
+   * Opens connections to the verification and key servers (including those of the other regions
+   * we upload to) in the background, so that the calls the user then waits on don't have to.
+   *
+   * <p>Called when the user enters the flow to share their diagnosis, ahead of any of the calls
+   * below.
+   */
+  public void prewarmConnections() {
+    if (!connectivity.hasInternet()) {
+      return;
+    }
+    connectionPrewarmer.prewarm(serverUris);
   }
 
   /**
@@ -90,6 +128,18 @@ public final class UploadController {
     return diagnosisAttestor.submitCode(upload);
   }
 
+  /**
+   * Computes the HMAC of our diagnosis keys that {@link #submitKeysForCert(Upload)} asks the
+   * verification server to sign, so that the caller can have it ready before it has the rest of
+   * the {@link Upload}. Set it with {@link Upload.Builder#setKeysHmacBase64(String)}, along with
+   * the same keys and HMAC key.
+   *
+   * <p>Does no I/O, but shouldn't be called on the main thread.
+   */
+  public String computeKeysHmac(List<DiagnosisKey> keys, String hmacKeyBase64) {
+    return DiagnosisAttestor.keysHmac(keys, hmacKeyBase64);
+  }
+
   /**
    * Request the verification server to sign our diagnosis keys, given a valid verification code.
    *
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.google.auto.value.AutoValue;
+
+/**
+ * The outcome of uploading keys to one region's keyserver.
+ */
+@AutoValue
+public abstract class UploadEndpointResult {
+
+  public abstract String region();
+
+  public abstract Uri uri();
+
+  /**
+   * The revision token this keyserver gave us, or null if the upload failed or was cover traffic.
+   */
+  @Nullable public abstract String revisionToken();
+
+  /**
+   * Why the last attempt failed, or null if the upload succeeded.
+   */
+  @Nullable public abstract Exception error();
+
+  /**
+   * How many times we sent the keys to this keyserver.
+   */
+  public abstract int attempts();
+
+  public boolean isSuccess() {
+    return error() == null;
+  }
+
+  static UploadEndpointResult success(
+      String region, Uri uri, @Nullable String revisionToken, int attempts) {
+    return new AutoValue_UploadEndpointResult(region, uri, revisionToken, null, attempts);
+  }
+
+  static UploadEndpointResult failure(String region, Uri uri, Exception error, int attempts) {
+    return new AutoValue_UploadEndpointResult(region, uri, null, error, attempts);
+  }
+}
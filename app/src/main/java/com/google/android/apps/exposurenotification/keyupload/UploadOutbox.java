@@ -0,0 +1,250 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import androidx.annotation.VisibleForTesting;
+import androidx.work.WorkManager;
+import com.android.volley.NetworkError;
+import com.android.volley.TimeoutError;
+import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitServerFailureException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.NoInternetException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.UploadException;
+import com.google.android.apps.exposurenotification.nearby.TemporaryExposureKeyHelper;
+import com.google.android.apps.exposurenotification.network.DiagnosisKey;
+import com.google.android.apps.exposurenotification.storage.PendingUploadEntity;
+import com.google.android.apps.exposurenotification.storage.PendingUploadRepository;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import javax.inject.Inject;
+
+/**
+ * Keeps key uploads that failed in a way that may clear up by itself, such as a lost connection or
+ * a server error, and has the {@link UploadOutboxWorker} retry them in the background. The user
+ * then doesn't have to go through the share flow again, perhaps after their certificate expired.
+ *
+ * <p>Each pending upload is keyed on its revision token, or on its certificate if it's the first
+ * upload of a set of keys. Queueing an upload again replaces the earlier copy instead of adding a
+ * second one, and an upload that supersedes a pending one with the same revision token replaces it
+ * too, since the keyserver accepts only one revision per token anyway.
+ *
+ * <p>An upload that made it to our own region's keyserver but failed at another region's is also
+ * kept, once for each such region, to be retried at that region's keyserver only.
+ */
+public class UploadOutbox {
+
+  private static final Logger logger = Logger.getLogger("UploadOutbox");
+
+  private final PendingUploadRepository repository;
+  private final WorkManager workManager;
+  private final Clock clock;
+  private final ExecutorService backgroundExecutor;
+
+  @Inject
+  UploadOutbox(
+      PendingUploadRepository repository,
+      WorkManager workManager,
+      Clock clock,
+      @BackgroundExecutor ExecutorService backgroundExecutor) {
+    this.repository = repository;
+    this.workManager = workManager;
+    this.clock = clock;
+    this.backgroundExecutor = backgroundExecutor;
+  }
+
+  /**
+   * Whether an upload that failed with {@code t} is worth retrying later: we had no connection, the
+   * request timed out or the keyserver had a 5xx error or asked us to slow down. Anything else, for
+   * example the keyserver rejecting our revision token, fails the same way every time.
+   */
+  public static boolean isRetryable(Throwable t) {
+    if (t instanceof NoInternetException || t instanceof KeysSubmitServerFailureException) {
+      return true;
+    }
+    if (t.getCause() instanceof TimeoutError || t.getCause() instanceof NetworkError) {
+      return true;
+    }
+    if (t instanceof UploadException) {
+      UploadError uploadError = ((UploadException) t).getUploadError();
+      return UploadError.RATE_LIMITED.equals(uploadError)
+          || UploadError.SERVER_ERROR.equals(uploadError);
+    }
+    return false;
+  }
+
+  /**
+   * Keeps a certified {@code upload} of the given diagnosis for a background retry, and schedules
+   * the retry.
+   */
+  public ListenableFuture<Void> add(long diagnosisId, Upload upload) {
+    checkArgument(!Strings.isNullOrEmpty(upload.certificate()), "Upload has no certificate");
+    PendingUploadEntity pendingUpload =
+        toPendingUpload(diagnosisId, upload, clock.currentTimeMillis());
+    return Futures.submit(() -> {
+      repository.upsert(pendingUpload);
+      logger.i("Queued upload for diagnosis " + diagnosisId + " to retry in the background");
+      UploadOutboxWorker.schedule(workManager);
+    }, backgroundExecutor);
+  }
+
+  /**
+   * Keeps a copy of {@code upload}, which made it to our own region's keyserver, for a background
+   * retry at each other region's keyserver it failed at in a way that's worth retrying, and
+   * schedules the retries.
+   */
+  public ListenableFuture<Void> addFailedRegions(long diagnosisId, Upload upload) {
+    if (upload.endpointResults() == null || Strings.isNullOrEmpty(upload.certificate())) {
+      return Futures.immediateFuture(null);
+    }
+    List<PendingUploadEntity> pendingUploads = new ArrayList<>();
+    for (UploadEndpointResult result : upload.endpointResults().values()) {
+      if (result.isSuccess() || !isRetryable(result.error())) {
+        continue;
+      }
+      // The revision token is our own region's, which the other regions' keyservers never issued.
+      Upload retry = upload.toBuilder()
+          .setRevisionToken(null)
+          .setRetryRegion(result.region())
+          .build();
+      pendingUploads.add(toPendingUpload(diagnosisId, retry, clock.currentTimeMillis()));
+    }
+    if (pendingUploads.isEmpty()) {
+      return Futures.immediateFuture(null);
+    }
+    return Futures.submit(() -> {
+      for (PendingUploadEntity pendingUpload : pendingUploads) {
+        repository.upsert(pendingUpload);
+        logger.i("Queued upload for diagnosis " + diagnosisId + " to retry in the background at "
+            + "region " + pendingUpload.region());
+      }
+      UploadOutboxWorker.schedule(workManager);
+    }, backgroundExecutor);
+  }
+
+  /**
+   * Forgets any pending copy of {@code upload}, for example because it has just made it to the
+   * keyserver some other way.
+   */
+  public ListenableFuture<Void> remove(Upload upload) {
+    if (Strings.isNullOrEmpty(upload.certificate())) {
+      // Never certified, so never queued.
+      return Futures.immediateFuture(null);
+    }
+    return remove(idempotencyKey(upload));
+  }
+
+  ListenableFuture<Void> remove(String idempotencyKey) {
+    return Futures.submit(() -> repository.delete(idempotencyKey), backgroundExecutor);
+  }
+
+  /**
+   * Whether an upload of the given diagnosis is waiting for a background retry at our own region's
+   * keyserver. Retries at only another region's don't count, as we already shared the diagnosis.
+   */
+  public ListenableFuture<Boolean> hasPendingUpload(long diagnosisId) {
+    return Futures.submit(() -> {
+      for (PendingUploadEntity pendingUpload : repository.getAll()) {
+        if (pendingUpload.diagnosisId() == diagnosisId && pendingUpload.region() == null) {
+          return true;
+        }
+      }
+      return false;
+    }, backgroundExecutor);
+  }
+
+  ListenableFuture<List<PendingUploadEntity>> getAll() {
+    return Futures.submit(repository::getAll, backgroundExecutor);
+  }
+
+  ListenableFuture<Void> recordFailedAttempt(PendingUploadEntity pendingUpload) {
+    return Futures.submit(
+        () -> repository.upsert(pendingUpload.withAnotherAttempt()), backgroundExecutor);
+  }
+
+  /**
+   * An exception indicating that an upload didn't make it to the keyserver, but is queued for a
+   * background retry instead of having failed.
+   */
+  public static class QueuedForRetryException extends Exception {
+
+    public QueuedForRetryException() {
+      super("Upload queued for a background retry");
+    }
+  }
+
+  @VisibleForTesting
+  static String idempotencyKey(Upload upload) {
+    String key = Strings.isNullOrEmpty(upload.revisionToken())
+        ? upload.certificate()
+        : upload.revisionToken();
+    return upload.retryRegion() == null ? key : key + "@" + upload.retryRegion();
+  }
+
+  @VisibleForTesting
+  static PendingUploadEntity toPendingUpload(long diagnosisId, Upload upload, long nowMs) {
+    List<DiagnosisKey> keys = upload.keys() != null ? upload.keys() : ImmutableList.of();
+    return PendingUploadEntity.create(
+        idempotencyKey(upload),
+        diagnosisId,
+        TemporaryExposureKeyHelper.diagnosisKeysToTEKExportBytes(keys),
+        upload.verificationCode(),
+        upload.hmacKeyBase64(),
+        upload.certificate(),
+        upload.longTermToken(),
+        upload.testType(),
+        upload.symptomOnset(),
+        upload.revisionToken(),
+        upload.hasTraveled(),
+        nowMs,
+        /* attempts= */ 0,
+        upload.retryRegion());
+  }
+
+  /**
+   * Rebuilds the {@link Upload} that was queued, or returns absent if its keys can't be read.
+   */
+  @VisibleForTesting
+  static Optional<Upload> toUpload(PendingUploadEntity pendingUpload) {
+    Optional<List<DiagnosisKey>> keys =
+        TemporaryExposureKeyHelper.maybeBytesToDiagnosisKeys(pendingUpload.keys());
+    if (!keys.isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        Upload.newBuilder(
+                keys.get(), pendingUpload.verificationCode(), pendingUpload.hmacKeyBase64())
+            .setCertificate(pendingUpload.certificate())
+            .setLongTermToken(pendingUpload.longTermToken())
+            .setTestType(pendingUpload.testType())
+            .setSymptomOnset(pendingUpload.symptomOnset())
+            .setRevisionToken(pendingUpload.revisionToken())
+            .setHasTraveled(pendingUpload.hasTraveled())
+            .setRetryRegion(pendingUpload.region())
+            .build());
+  }
+}
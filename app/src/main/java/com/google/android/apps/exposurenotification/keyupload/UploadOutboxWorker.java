@@ -0,0 +1,237 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+import androidx.hilt.work.HiltWorker;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ListenableWorker;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
+import com.google.android.apps.exposurenotification.common.Qualifiers.LightweightExecutor;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.storage.DiagnosisEntity;
+import com.google.android.apps.exposurenotification.storage.DiagnosisEntity.Shared;
+import com.google.android.apps.exposurenotification.storage.DiagnosisEntity.TestResult;
+import com.google.android.apps.exposurenotification.storage.DiagnosisRepository;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
+import com.google.android.apps.exposurenotification.storage.PendingUploadEntity;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import dagger.assisted.Assisted;
+import dagger.assisted.AssistedInject;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.threeten.bp.Duration;
+
+/**
+ * Retries the key uploads in the {@link UploadOutbox}, one at a time and oldest first, until each
+ * of them either makes it to the keyserver or is given up on. An upload that makes it to our own
+ * region's keyserver but not to another region's is queued again for that region alone.
+ *
+ * <p>Runs only with a network connection, and backs off exponentially while any upload keeps
+ * failing in a way that's worth retrying.
+ */
+@HiltWorker
+public class UploadOutboxWorker extends ListenableWorker {
+
+  private static final Logger logger = Logger.getLogger("UploadOutboxWorker");
+
+  private static final long BACKOFF_DELAY_SECONDS = 30;
+
+  @VisibleForTesting
+  static final String WORKER_NAME = "UploadOutboxWorker";
+  // With the exponential backoff above, the last of these attempts comes about an hour after the
+  // first. A certificate is unlikely to still be valid much later than that.
+  @VisibleForTesting
+  static final int MAX_ATTEMPTS = 8;
+  // Queued uploads older than this are also swept away by CleanupHelper, in case we never run.
+  public static final Duration MAX_AGE = Duration.ofDays(1);
+
+  private final UploadOutbox uploadOutbox;
+  private final UploadController uploadController;
+  private final DiagnosisRepository diagnosisRepository;
+  private final ExposureNotificationSharedPreferences exposureNotificationSharedPreferences;
+  private final Clock clock;
+  private final ExecutorService backgroundExecutor;
+  private final ExecutorService lightweightExecutor;
+
+  @AssistedInject
+  public UploadOutboxWorker(
+      @Assisted @NonNull Context context,
+      @Assisted @NonNull WorkerParameters workerParams,
+      UploadOutbox uploadOutbox,
+      UploadController uploadController,
+      DiagnosisRepository diagnosisRepository,
+      ExposureNotificationSharedPreferences exposureNotificationSharedPreferences,
+      Clock clock,
+      @BackgroundExecutor ExecutorService backgroundExecutor,
+      @LightweightExecutor ExecutorService lightweightExecutor) {
+    super(context, workerParams);
+    this.uploadOutbox = uploadOutbox;
+    this.uploadController = uploadController;
+    this.diagnosisRepository = diagnosisRepository;
+    this.exposureNotificationSharedPreferences = exposureNotificationSharedPreferences;
+    this.clock = clock;
+    this.backgroundExecutor = backgroundExecutor;
+    this.lightweightExecutor = lightweightExecutor;
+  }
+
+  @NonNull
+  @Override
+  public ListenableFuture<Result> startWork() {
+    return FluentFuture.from(uploadOutbox.getAll())
+        .transformAsync(this::uploadAll, lightweightExecutor)
+        // Uploads still here either failed again or were queued while we were busy.
+        .transformAsync(unused -> uploadOutbox.getAll(), lightweightExecutor)
+        .transform(
+            remaining -> remaining.isEmpty() ? Result.success() : Result.retry(),
+            lightweightExecutor)
+        .catching(
+            Exception.class,
+            ex -> {
+              // Try again later: the uploads stay queued until we either get through or they
+              // expire, and no one else may schedule us again in the meantime.
+              logger.e("Failed to retry queued uploads", ex);
+              return Result.retry();
+            },
+            lightweightExecutor);
+  }
+
+  private ListenableFuture<Void> uploadAll(List<PendingUploadEntity> pendingUploads) {
+    ListenableFuture<Void> previous = Futures.immediateFuture(null);
+    for (PendingUploadEntity pendingUpload : pendingUploads) {
+      previous = Futures.transformAsync(
+          previous, unused -> uploadOne(pendingUpload), lightweightExecutor);
+    }
+    return previous;
+  }
+
+  private ListenableFuture<Void> uploadOne(PendingUploadEntity pendingUpload) {
+    String idempotencyKey = pendingUpload.idempotencyKey();
+    Optional<Upload> upload = UploadOutbox.toUpload(pendingUpload);
+    if (!upload.isPresent() || isExpired(pendingUpload)) {
+      logger.w("Giving up on queued upload for diagnosis " + pendingUpload.diagnosisId());
+      return uploadOutbox.remove(idempotencyKey);
+    }
+    return FluentFuture.from(diagnosisRepository.getByIdAsync(pendingUpload.diagnosisId()))
+        .transformAsync(
+            diagnosis -> {
+              boolean regionRetry = pendingUpload.region() != null;
+              if (diagnosis == null
+                  || (!regionRetry && Shared.SHARED.equals(diagnosis.getSharedStatus()))) {
+                // Deleted or shared by the user in the meantime, so there's nothing left to do.
+                return uploadOutbox.remove(idempotencyKey);
+              }
+              return FluentFuture.from(uploadController.upload(upload.get()))
+                  .transformAsync(
+                      uploaded -> {
+                        if (regionRetry) {
+                          logger.i("Queued upload for diagnosis " + diagnosis.getId()
+                              + " succeeded at region " + pendingUpload.region());
+                          return Futures.immediateFuture(null);
+                        }
+                        markShared(diagnosis, uploaded);
+                        return queueFailedRegions(diagnosis, uploaded);
+                      },
+                      backgroundExecutor)
+                  .transformAsync(unused -> uploadOutbox.remove(idempotencyKey),
+                      lightweightExecutor)
+                  .catchingAsync(
+                      Exception.class, ex -> onUploadFailed(pendingUpload, ex),
+                      lightweightExecutor);
+            },
+            lightweightExecutor);
+  }
+
+  /**
+   * Queues an upload that made it to our own region's keyserver for a retry at any other region's
+   * it failed at. Doesn't fail, as the upload itself went through.
+   */
+  private ListenableFuture<Void> queueFailedRegions(DiagnosisEntity diagnosis, Upload uploaded) {
+    return FluentFuture.from(uploadOutbox.addFailedRegions(diagnosis.getId(), uploaded))
+        .catching(
+            Exception.class,
+            ex -> {
+              logger.w("Failed to queue upload for retry at other regions", ex);
+              return null;
+            },
+            lightweightExecutor);
+  }
+
+    private ListenableFuture<Void> onUploadFailed(PendingUploadEntity pendingUpload, Exception ex) {
+    if (UploadOutbox.isRetryable(ex) && pendingUpload.attempts() + 1 < MAX_ATTEMPTS) {
+      logger.w("Queued upload failed, will retry", ex);
+      return uploadOutbox.recordFailedAttempt(pendingUpload);
+    }
+    logger.e("Queued upload failed, giving up", ex);
+    return uploadOutbox.remove(pendingUpload.idempotencyKey());
+  }
+
+  private boolean isExpired(PendingUploadEntity pendingUpload) {
+    return clock.currentTimeMillis() - pendingUpload.createdTimestampMs() > MAX_AGE.toMillis();
+  }
+
+  private void markShared(DiagnosisEntity diagnosis, Upload upload) {
+    logger.i("Queued upload for diagnosis " + diagnosis.getId() + " succeeded");
+    diagnosisRepository.createOrMutateById(
+        diagnosis.getId(),
+        d -> d.toBuilder()
+            .setCertificate(upload.certificate())
+            .setRevisionToken(upload.revisionToken())
+            .setSharedStatus(Shared.SHARED)
+            .build());
+    // Store in the preferences that keys have been successfully uploaded and the associated
+    // report type, as the share flow does.
+    exposureNotificationSharedPreferences.setPrivateAnalyticsLastSubmittedKeysTime(clock.now());
+    TestResult testResult = null;
+    try {
+      testResult = TestResult.of(upload.testType());
+    } catch (IllegalArgumentException | NullPointerException e) {
+      // Do nothing: testResult is already null, which is the right behavior
+    }
+    exposureNotificationSharedPreferences.setPrivateAnalyticsLastReportType(testResult);
+  }
+
+  /**
+   * Schedules a run to retry the queued uploads, unless one is already scheduled or running. A run
+   * that's already going sees any uploads queued after it started, and retries again for them.
+   */
+  static void schedule(WorkManager workManager) {
+    workManager.enqueueUniqueWork(
+        WORKER_NAME,
+        ExistingWorkPolicy.KEEP,
+        new OneTimeWorkRequest.Builder(UploadOutboxWorker.class)
+            .setConstraints(
+                new Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build())
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_DELAY_SECONDS, TimeUnit.SECONDS)
+            .build());
+  }
+
+}
@@ -20,6 +20,7 @@ package com.google.android.apps.exposurenotification.keyupload;
 import android.content.Context;
 import android.net.Uri;
 import com.google.android.apps.exposurenotification.R;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.AdditionalUploadUris;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.UploadUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCertUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCodeUri;
@@ -29,6 +30,7 @@ import dagger.Provides;
 import dagger.hilt.InstallIn;
 import dagger.hilt.android.qualifiers.ApplicationContext;
 import dagger.hilt.components.SingletonComponent;
+import java.util.Map;
 
 /**
  * Module providing production locations of the keyserver and verification server.
@@ -45,6 +47,13 @@ public class UploadUrisModule {
     return Uri.parse(context.getString(R.string.enx_tekUploadURL));
   }
 
+  @Provides
+  @AdditionalUploadUris
+  public Map<String, Uri> provideAdditionalUploadUris(@ApplicationContext Context context) {
+    return AdditionalUploadUrisParser.parse(
+        context.getString(R.string.additional_key_upload_urls));
+  }
+
   @Provides
   @VerificationCodeUri
   public Uri provideCodeUri(@ApplicationContext Context context) {
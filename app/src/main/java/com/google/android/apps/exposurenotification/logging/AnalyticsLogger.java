@@ -17,6 +17,8 @@
 
 package com.google.android.apps.exposurenotification.logging;
 
+import com.google.android.apps.exposurenotification.network.RequestTiming;
+import com.google.android.apps.exposurenotification.network.ResponseSize;
 import com.google.android.apps.exposurenotification.proto.ApiCall.ApiCallType;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
 import com.google.android.apps.exposurenotification.proto.UiInteraction.EventType;
@@ -63,9 +65,18 @@ public interface AnalyticsLogger {
   /** Asynchronously logs successful RPC call */
   ListenableFuture<?> logRpcCallSuccessAsync(RpcCallType rpcCallType, int payloadSize);
 
+  /**
+   * Asynchronously logs successful RPC call, with the size of the payload it downloaded both on the
+   * wire and decoded
+   */
+  ListenableFuture<?> logRpcCallSuccessAsync(RpcCallType rpcCallType, ResponseSize responseSize);
+
   /** Asynchronously logs failed RPC call with server error code */
   ListenableFuture<?> logRpcCallFailureAsync(RpcCallType rpcCallType, Throwable error);
 
+  /** Asynchronously logs how long the phases of one RPC call took */
+  ListenableFuture<?> logRpcCallLatencyAsync(RpcCallType rpcCallType, RequestTiming timing);
+
   /**
    * Send logs off device if permitted by app usage & performance sharing.
    * If isENEnabled is true, all logs are sent. Otherwise, this method looks for the last
@@ -35,6 +35,8 @@ import com.google.android.apps.exposurenotification.common.logging.Logger;
 import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.nearby.ExposureNotificationClientWrapper;
 import com.google.android.apps.exposurenotification.nearby.PackageConfigurationHelper;
+import com.google.android.apps.exposurenotification.network.RequestTiming;
+import com.google.android.apps.exposurenotification.network.ResponseSize;
 import com.google.android.apps.exposurenotification.network.VolleyUtils;
 import com.google.android.apps.exposurenotification.proto.ApiCall;
 import com.google.android.apps.exposurenotification.proto.ApiCall.ApiCallType;
@@ -42,6 +44,8 @@ import com.google.android.apps.exposurenotification.proto.EnxLogExtension;
 import com.google.android.apps.exposurenotification.proto.RpcCall;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallResult;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.proto.RpcLatency;
+import com.google.android.apps.exposurenotification.proto.RpcLatency.Phase;
 import com.google.android.apps.exposurenotification.proto.UiInteraction;
 import com.google.android.apps.exposurenotification.proto.UiInteraction.EventType;
 import com.google.android.apps.exposurenotification.proto.WorkManagerTask;
@@ -268,6 +272,21 @@ public class FirelogAnalyticsLogger implements AnalyticsLogger {
     return backgroundExecutor.submit(() -> logEventIfEnabled(logEvent));
   }
 
+  @Override
+  @AnyThread
+  public ListenableFuture<?> logRpcCallSuccessAsync(
+      RpcCallType rpcCallType, ResponseSize responseSize) {
+    EnxLogExtension logEvent = EnxLogExtension.newBuilder().addRpcCall(
+        RpcCall.newBuilder().setRpcCallType(rpcCallType)
+            .setPayloadSize((int) responseSize.decodedBytes())
+            .setWirePayloadSize((int) responseSize.wireBytes())
+            .setRpcCallResult(RpcCallResult.RESULT_SUCCESS).build())
+        .build();
+    logger.i(rpcCallType + " succeeded with payload size: " + responseSize.decodedBytes()
+        + ", wire size: " + responseSize.wireBytes());
+    return backgroundExecutor.submit(() -> logEventIfEnabled(logEvent));
+  }
+
   @Override
   @AnyThread
   public ListenableFuture<?> logRpcCallFailureAsync(RpcCallType rpcCallType, Throwable error) {
@@ -275,6 +294,20 @@ public class FirelogAnalyticsLogger implements AnalyticsLogger {
     return backgroundExecutor.submit(() -> logEventIfEnabled(logEvent));
   }
 
+  @Override
+  @AnyThread
+  public ListenableFuture<?> logRpcCallLatencyAsync(
+      RpcCallType rpcCallType, RequestTiming timing) {
+    EnxLogExtension.Builder logEvent = EnxLogExtension.newBuilder().addRpcLatency(
+        RpcLatencyHistograms.of(
+            rpcCallType, Phase.PHASE_TIME_TO_FIRST_BYTE, timing.timeToFirstByte()));
+    if (timing.transfer() != null) {
+      logEvent.addRpcLatency(
+          RpcLatencyHistograms.of(rpcCallType, Phase.PHASE_TRANSFER, timing.transfer()));
+    }
+    return backgroundExecutor.submit(() -> logEventIfEnabled(logEvent.build()));
+  }
+
   @WorkerThread
   @VisibleForTesting
   @Nullable
@@ -367,6 +400,11 @@ public class FirelogAnalyticsLogger implements AnalyticsLogger {
       }
     }
 
+    // Each call logged its own latencies; send them as one histogram per RPC type and phase.
+    List<RpcLatency> latencies =
+        RpcLatencyHistograms.merge(enxLogExtensionBuilder.getRpcLatencyList());
+    enxLogExtensionBuilder.clearRpcLatency().addAllRpcLatency(latencies);
+
     EnxLogExtension logEvent = enxLogExtensionBuilder
         .setBuildId(BuildConfig.VERSION_CODE)
         .setHoursSinceLastBatch(hoursSinceLastTimestamp)
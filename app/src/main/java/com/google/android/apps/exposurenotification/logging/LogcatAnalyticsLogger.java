@@ -23,6 +23,8 @@ import androidx.annotation.Nullable;
 import androidx.annotation.UiThread;
 import com.google.android.apps.exposurenotification.R;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.network.RequestTiming;
+import com.google.android.apps.exposurenotification.network.ResponseSize;
 import com.google.android.apps.exposurenotification.network.VolleyUtils;
 import com.google.android.apps.exposurenotification.proto.ApiCall.ApiCallType;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallResult;
@@ -131,6 +133,25 @@ public class LogcatAnalyticsLogger implements AnalyticsLogger {
     return Futures.immediateVoidFuture();
   }
 
+  @Override
+  @AnyThread
+  public ListenableFuture<?> logRpcCallSuccessAsync(
+      RpcCallType rpcCallType, ResponseSize responseSize) {
+    logger.i(rpcCallType + " succeeded with payload size: " + responseSize.decodedBytes()
+        + ", wire size: " + responseSize.wireBytes());
+    return Futures.immediateVoidFuture();
+  }
+
+  @Override
+  @AnyThread
+  public ListenableFuture<?> logRpcCallLatencyAsync(
+      RpcCallType rpcCallType, RequestTiming timing) {
+    logger.d(rpcCallType + " time to first byte: " + timing.timeToFirstByte().toMillis()
+        + "ms, transfer: "
+        + (timing.transfer() != null ? timing.transfer().toMillis() + "ms" : "incomplete"));
+    return Futures.immediateVoidFuture();
+  }
+
   @Override
   @AnyThread
   public ListenableFuture<?> logRpcCallFailureAsync(RpcCallType rpcCallType, Throwable error) {
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.logging;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.proto.RpcLatency;
+import com.google.android.apps.exposurenotification.proto.RpcLatency.Phase;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.threeten.bp.Duration;
+
+/**
+ * Static utils to build the {@link RpcLatency} histograms we log, and to merge the histograms of
+ * single calls into one per RPC call type and phase.
+ */
+public class RpcLatencyHistograms {
+
+  // Upper bounds of all but the last, unbounded, bucket. Must match the docs in enx.proto.
+  @VisibleForTesting
+  static final long[] BUCKET_UPPER_BOUNDS_MS =
+      {100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000};
+  @VisibleForTesting
+  static final int BUCKET_COUNT = BUCKET_UPPER_BOUNDS_MS.length + 1;
+
+  // Prevent instantiation.
+  private RpcLatencyHistograms() {}
+
+  /**
+   * Returns a histogram holding the one given latency.
+   */
+  public static RpcLatency of(RpcCallType rpcCallType, Phase phase, Duration latency) {
+    int bucket = bucketOf(latency);
+    RpcLatency.Builder histogram =
+        RpcLatency.newBuilder().setRpcCallType(rpcCallType).setPhase(phase);
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      histogram.addBucketCount(i == bucket ? 1 : 0);
+    }
+    return histogram.build();
+  }
+
+  /**
+   * Sums up the given histograms into one per RPC call type and phase, in the order each first
+   * appears.
+   */
+  public static List<RpcLatency> merge(List<RpcLatency> histograms) {
+    Map<String, int[]> counts = new LinkedHashMap<>();
+    Map<String, RpcLatency> keys = new LinkedHashMap<>();
+    for (RpcLatency histogram : histograms) {
+      String key = histogram.getRpcCallType() + "/" + histogram.getPhase();
+      if (!counts.containsKey(key)) {
+        counts.put(key, new int[BUCKET_COUNT]);
+        keys.put(key, histogram);
+      }
+      int[] sum = counts.get(key);
+      for (int i = 0; i < histogram.getBucketCountCount() && i < BUCKET_COUNT; i++) {
+        sum[i] += histogram.getBucketCount(i);
+      }
+    }
+    List<RpcLatency> merged = new ArrayList<>();
+    for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+      RpcLatency first = keys.get(entry.getKey());
+      RpcLatency.Builder histogram = RpcLatency.newBuilder()
+          .setRpcCallType(first.getRpcCallType())
+          .setPhase(first.getPhase());
+      for (int count : entry.getValue()) {
+        histogram.addBucketCount(count);
+      }
+      merged.add(histogram.build());
+    }
+    return merged;
+  }
+
+  @VisibleForTesting
+  static int bucketOf(Duration latency) {
+    long latencyMs = latency.toMillis();
+    for (int i = 0; i < BUCKET_UPPER_BOUNDS_MS.length; i++) {
+      if (latencyMs < BUCKET_UPPER_BOUNDS_MS[i]) {
+        return i;
+      }
+    }
+    return BUCKET_UPPER_BOUNDS_MS.length;
+  }
+}
@@ -17,6 +17,7 @@
 
 package com.google.android.apps.exposurenotification.nearby;
 
+import android.net.Uri;
 import androidx.annotation.Nullable;
 import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
 import com.google.android.apps.exposurenotification.common.Qualifiers.ScheduledExecutor;
@@ -33,8 +34,14 @@ import com.google.android.apps.exposurenotification.storage.DownloadServerReposi
 import com.google.android.apps.exposurenotification.storage.ExposureCheckEntity;
 import com.google.android.apps.exposurenotification.storage.ExposureCheckRepository;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
+import com.google.android.apps.exposurenotification.storage.ProvidedKeyFileEntity;
+import com.google.android.apps.exposurenotification.storage.ProvidedKeyFileRepository;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -42,7 +49,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.zip.ZipEntry;
@@ -63,11 +74,15 @@ public class DiagnosisKeyFileSubmitter {
   private static final Duration PROVIDE_KEYS_TIMEOUT = Duration.ofMinutes(60);
   private static final BaseEncoding BASE16 = BaseEncoding.base16().lowerCase();
   private static final BaseEncoding BASE64 = BaseEncoding.base64();
+  // Keys older than the matching window can't match any more, so nor can files of them.
+  private static final Duration PROVIDED_KEY_FILE_MAX_AGE = Duration.ofDays(14);
 
   private final ExposureNotificationClientWrapper exposureNotificationClientWrapper;
   private final DownloadServerRepository downloadServerRepo;
   private final ExposureCheckRepository exposureCheckRepo;
+  private final ProvidedKeyFileRepository providedKeyFileRepo;
   private final ExposureNotificationSharedPreferences preferences;
+  private final KeyFileSubmissionConfig config;
   private final ExecutorService backgroundExecutor;
   private final ScheduledExecutorService scheduledExecutor;
   private final Clock clock;
@@ -77,14 +92,18 @@ public class DiagnosisKeyFileSubmitter {
       ExposureNotificationClientWrapper exposureNotificationClientWrapper,
       DownloadServerRepository downloadServerRepo,
       ExposureCheckRepository exposureCheckRepo,
+      ProvidedKeyFileRepository providedKeyFileRepo,
       ExposureNotificationSharedPreferences preferences,
+      KeyFileSubmissionConfig config,
       Clock clock,
       @BackgroundExecutor ExecutorService backgroundExecutor,
       @ScheduledExecutor ScheduledExecutorService scheduledExecutor) {
     this.exposureNotificationClientWrapper = exposureNotificationClientWrapper;
     this.downloadServerRepo = downloadServerRepo;
     this.exposureCheckRepo = exposureCheckRepo;
+    this.providedKeyFileRepo = providedKeyFileRepo;
     this.preferences = preferences;
+    this.config = config;
     this.clock = clock;
     this.backgroundExecutor = backgroundExecutor;
     this.scheduledExecutor = scheduledExecutor;
@@ -94,9 +113,10 @@ public class DiagnosisKeyFileSubmitter {
    * Accepts key files, and submits them to provideDiagnosisKeys(), and returns a future
    * representing the completion of that task.
    *
-   * <p>This naive implementation is not robust to individual failures. In fact, a single failure
-   * will fail the entire operation. A more robust implementation would support retries, partial
-   * completion, and other robustness measures.
+   * <p>By default all the files go in a single call, so a single failure will fail the entire
+   * operation. In incremental mode (see {@link KeyFileSubmissionConfig}) they go in bounded
+   * batches, in server order, and we remember each server's last submitted file after every
+   * batch. A failure then loses only the batches not yet submitted.
    *
    * <p>Returns early if given an empty list of batches.
    */
@@ -114,34 +134,29 @@ public class DiagnosisKeyFileSubmitter {
       logKeys(keyFiles, preferences.getProvidedDiagnosisKeyHexToLog());
     }
 
+    List<List<KeyFile>> batches = config.incremental()
+        ? Lists.partition(inServerOrder(keyFiles), config.maxFilesPerBatch())
+        : ImmutableList.<List<KeyFile>>of(keyFiles);
     ListenableFuture<Void> allDone =
-        TaskToFutureAdapter.getFutureWithTimeout(
-            exposureNotificationClientWrapper.provideDiagnosisKeys(filesFrom(keyFiles)),
-            PROVIDE_KEYS_TIMEOUT,
-            scheduledExecutor);
+        FluentFuture.from(Futures.submit(() -> filesToProvide(keyFiles), backgroundExecutor))
+            .transformAsync(
+                filesToProvide -> submitBatches(batches, filesToProvide, 0), backgroundExecutor);
 
     Futures.addCallback(allDone, new FutureCallback<Void>() {
       @Override
       public void onSuccess(@Nullable Void result) {
-        for (KeyFile f : keyFiles) {
-          if (f.isMostRecent()) {
-            // On success, remember the last successful file for each server.
-            logger.d(String.format(
-                "Mark last successful download [%s] for server [%s]", f.uri(), f.index()));
-            downloadServerRepo.upsert(DownloadServerEntity.create(f.index(), f.uri()));
-          }
-          // and delete all files locally...
-          f.file().delete();
-        }
-        // and, finally, capture time of the exposure check.
+        // Finally, capture time of the exposure check.
         exposureCheckRepo.insertExposureCheck(ExposureCheckEntity.create(clock.now()));
       }
 
       @Override
       public void onFailure(Throwable t) {
         for (KeyFile f : keyFiles) {
-          // After failures, only delete the local files.
-          f.file().delete();
+          // After failures, only delete the local files (those of earlier batches are gone
+          // already).
+          if (f.file() != null) {
+            f.file().delete();
+          }
         }
       }
     }, backgroundExecutor);
@@ -149,17 +164,130 @@ public class DiagnosisKeyFileSubmitter {
     return allDone;
   }
 
-  private static List<File> filesFrom(List<KeyFile> keyFiles) {
+  /**
+   * Works out which of the given files we need to provide, and returns them mapped to the hashes
+   * of their content.
+   *
+   * <p>Servers may serve the same export under different URLs (several servers may even list the
+   * same file, in which case the downloader fetched it just once). Matching it more than once only
+   * costs time and battery, so we provide each distinct content only once, and not at all if we've
+   * provided it within the matching window already.
+   */
+  private Map<File, String> filesToProvide(List<KeyFile> keyFiles) throws IOException {
+    providedKeyFileRepo.deleteProvidedBefore(clock.now().minus(PROVIDED_KEY_FILE_MAX_AGE));
+
+    Map<File, String> hashes = new LinkedHashMap<>();
+    for (KeyFile f : keyFiles) {
+      // Keyfiles too old to produce matches (see ExportWindowPruner) come without a file, just to
+      // move their server's last successful download along. Invalid ones never get here: the
+      // downloader leaves them, and the rest of their server's files, for a later run.
+      if (f.file() != null && !hashes.containsKey(f.file())) {
+        hashes.put(f.file(), Files.asByteSource(f.file()).hash(Hashing.sha256()).toString());
+      }
+    }
+    Set<String> alreadyProvided = providedKeyFileRepo.getProvided(new ArrayList<>(hashes.values()));
+    Set<String> seen = new HashSet<>(alreadyProvided);
+
+    Map<File, String> filesToProvide = new LinkedHashMap<>();
+    for (Map.Entry<File, String> file : hashes.entrySet()) {
+      if (seen.add(file.getValue())) {
+        filesToProvide.put(file.getKey(), file.getValue());
+      }
+    }
+    if (filesToProvide.size() < keyFiles.size()) {
+      logger.d("Skipping " + (keyFiles.size() - filesToProvide.size())
+          + " keyfiles whose content is provided elsewhere or has been already.");
+    }
+    return filesToProvide;
+  }
+
+  /**
+   * Submits the given batches one after another, starting with the one at {@code index}, and
+   * commits each one as soon as it's been provided. Only the files in {@code filesToProvide} are
+   * actually provided, each of them once.
+   */
+  private ListenableFuture<Void> submitBatches(
+      List<List<KeyFile>> batches, Map<File, String> filesToProvide, int index) {
+    if (index == batches.size()) {
+      return Futures.immediateFuture(null);
+    }
+    List<KeyFile> batch = batches.get(index);
     List<File> files = new ArrayList<>();
+    List<ProvidedKeyFileEntity> provided = new ArrayList<>();
+    for (KeyFile f : batch) {
+      String hash = filesToProvide.remove(f.file());
+      if (hash != null) {
+        files.add(f.file());
+        provided.add(ProvidedKeyFileEntity.create(hash, clock.currentTimeMillis()));
+      }
+    }
+    if (batches.size() > 1) {
+      logger.d("Providing batch " + (index + 1) + " of " + batches.size() + " with "
+          + files.size() + " files.");
+    }
+    ListenableFuture<Void> providedBatch = files.isEmpty()
+        ? Futures.immediateFuture(null)
+        : TaskToFutureAdapter.getFutureWithTimeout(
+            exposureNotificationClientWrapper.provideDiagnosisKeys(files),
+            PROVIDE_KEYS_TIMEOUT,
+            scheduledExecutor);
+    return FluentFuture.from(providedBatch)
+        .transformAsync(
+            unused -> {
+              providedKeyFileRepo.upsertAll(provided);
+              commitBatch(batch);
+              return submitBatches(batches, filesToProvide, index + 1);
+            },
+            backgroundExecutor);
+  }
+
+  /**
+   * Remembers the last file in the batch from each server as its last successful download, then
+   * deletes the batch's files locally.
+   */
+  private void commitBatch(List<KeyFile> batch) {
+    Map<Uri, Uri> lastFileForServer = new LinkedHashMap<>();
+    for (KeyFile f : batch) {
+      lastFileForServer.put(f.index(), f.uri());
+    }
+    for (Map.Entry<Uri, Uri> server : lastFileForServer.entrySet()) {
+      logger.d(String.format(
+          "Mark last successful download [%s] for server [%s]", server.getValue(),
+          server.getKey()));
+      downloadServerRepo.upsert(DownloadServerEntity.create(server.getKey(), server.getValue()));
+    }
+    for (KeyFile f : batch) {
+      if (f.file() != null) {
+        f.file().delete();
+      }
+    }
+  }
+
+  /**
+   * Groups the given files by server, keeping servers in the order we first see them and each
+   * server's files in their original (index) order.
+   */
+  private static List<KeyFile> inServerOrder(List<KeyFile> keyFiles) {
+    Map<Uri, List<KeyFile>> filesByServer = new LinkedHashMap<>();
     for (KeyFile f : keyFiles) {
-      files.add(f.file());
+      if (!filesByServer.containsKey(f.index())) {
+        filesByServer.put(f.index(), new ArrayList<>());
+      }
+      filesByServer.get(f.index()).add(f);
     }
-    return files;
+    List<KeyFile> ordered = new ArrayList<>();
+    for (List<KeyFile> serverFiles : filesByServer.values()) {
+      ordered.addAll(serverFiles);
+    }
+    return ordered;
   }
 
   private void logKeys(ImmutableList<KeyFile> files, String keyHexToLog) {
     int filenum = 1;
     for (KeyFile f : files) {
+      if (f.file() == null) {
+        continue;
+      }
       try {
         FileContent fc = readFile(f.file());
         logger.d("File " + filenum + " has signature:\n" + fc.signature);
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.nearby;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * A value class holding how {@link DiagnosisKeyFileSubmitter} hands keyfiles to the Exposure
+ * Notifications API.
+ */
+@AutoValue
+public abstract class KeyFileSubmissionConfig {
+
+  private static final boolean DEFAULT_INCREMENTAL = false;
+  private static final int DEFAULT_MAX_FILES_PER_BATCH = 50;
+
+  /**
+   * Whether to provide keyfiles in bounded batches, remembering each server's progress after every
+   * batch, rather than all in a single call.
+   *
+   * <p>Each batch is a separate provideDiagnosisKeys() call, and the API limits how many of those
+   * an app may make per day. So this is off by default, and best suited to servers whose backlogs
+   * are too large to get through in one call.
+   */
+  public abstract boolean incremental();
+
+  /**
+   * The most keyfiles we provide in one call, when providing them incrementally.
+   */
+  public abstract int maxFilesPerBatch();
+
+  public static KeyFileSubmissionConfig.Builder newBuilder() {
+    return new AutoValue_KeyFileSubmissionConfig.Builder()
+        .setIncremental(DEFAULT_INCREMENTAL)
+        .setMaxFilesPerBatch(DEFAULT_MAX_FILES_PER_BATCH);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+
+    public abstract KeyFileSubmissionConfig.Builder setIncremental(boolean value);
+
+    public abstract KeyFileSubmissionConfig.Builder setMaxFilesPerBatch(int value);
+
+    abstract KeyFileSubmissionConfig autoBuild();
+
+    public KeyFileSubmissionConfig build() {
+      KeyFileSubmissionConfig config = autoBuild();
+      if (config.maxFilesPerBatch() < 1) {
+        throw new IllegalArgumentException("Keyfile batches must hold at least 1 file.");
+      }
+      return config;
+    }
+  }
+}
@@ -35,6 +35,7 @@ import com.google.android.apps.exposurenotification.common.Qualifiers.ScheduledE
 import com.google.android.apps.exposurenotification.common.TaskToFutureAdapter;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
 import com.google.android.apps.exposurenotification.keydownload.DiagnosisKeyDownloader;
+import com.google.android.apps.exposurenotification.keydownload.KeyFileCache;
 import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
 import com.google.android.apps.exposurenotification.proto.WorkManagerTask.WorkerTask;
 import com.google.android.apps.exposurenotification.work.WorkerStartupManager;
@@ -43,6 +44,7 @@ import com.google.android.gms.nearby.exposurenotification.DiagnosisKeysDataMappi
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import dagger.assisted.Assisted;
 import dagger.assisted.AssistedInject;
 import java.util.concurrent.ExecutorService;
@@ -71,6 +73,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
 
   private final DiagnosisKeyDownloader downloader;
   private final DiagnosisKeyFileSubmitter diagnosisKeyFileSubmitter;
+  private final KeyFileCache keyFileCache;
   private final ExposureNotificationClientWrapper exposureNotificationClientWrapper;
   private final DiagnosisKeysDataMapping diagnosisKeysDataMapping;
   private final ExecutorService backgroundExecutor;
@@ -85,6 +88,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
       DiagnosisKeyDownloader downloadController,
       ExposureNotificationClientWrapper exposureNotificationClientWrapper,
       DiagnosisKeyFileSubmitter diagnosisKeyFileSubmitter,
+      KeyFileCache keyFileCache,
       DiagnosisKeysDataMapping diagnosisKeysDataMapping,
       @BackgroundExecutor ExecutorService backgroundExecutor,
       @ScheduledExecutor ScheduledExecutorService scheduledExecutor,
@@ -94,6 +98,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
     this.downloader = downloadController;
     this.exposureNotificationClientWrapper = exposureNotificationClientWrapper;
     this.diagnosisKeyFileSubmitter = diagnosisKeyFileSubmitter;
+    this.keyFileCache = keyFileCache;
     this.diagnosisKeysDataMapping = diagnosisKeysDataMapping;
     this.backgroundExecutor = backgroundExecutor;
     this.scheduledExecutor = scheduledExecutor;
@@ -147,10 +152,7 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
             backgroundExecutor
         )
         .transformAsync(
-            (unused) -> downloader.download(), backgroundExecutor)
-        .transformAsync(
-            diagnosisKeyFileSubmitter::submitFiles,
-            backgroundExecutor)
+            (unused) -> downloadAndSubmitFiles(), backgroundExecutor)
         .transform(done -> {
           logger.logWorkManagerTaskSuccess(WorkerTask.TASK_PROVIDE_DIAGNOSIS_KEYS);
           return Result.success();
@@ -180,6 +182,18 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
             backgroundExecutor);
   }
 
+  /**
+   * Downloads the keyfiles and provides them to the EN API, keeping the {@link KeyFileCache} from
+   * sweeping them away in the meantime.
+   */
+  private ListenableFuture<?> downloadAndSubmitFiles() {
+    long runStartedMs = keyFileCache.runStarted();
+    ListenableFuture<?> run = FluentFuture.from(downloader.download())
+        .transformAsync(diagnosisKeyFileSubmitter::submitFiles, backgroundExecutor);
+    run.addListener(() -> keyFileCache.runFinished(runStartedMs), MoreExecutors.directExecutor());
+    return run;
+  }
+
   /**
    * Check if we need to update EN Api's version of DiagnosisKeysDataMapping. Only on update call
    * Nearby.setDiagnosisKeysDataMapping().
@@ -212,7 +226,9 @@ public class ProvideDiagnosisKeysWorker extends ListenableWorker {
    * Schedules a job that runs once a day to fetch diagnosis keys from a server and to provide them
    * to the exposure notifications API with flex period.
    *
-   * <p>This job will only be run when not low battery and with network connection.
+   * <p>This job will only be run when not low battery and with network connection. On a metered
+   * connection each run downloads less, see {@link
+   * com.google.android.apps.exposurenotification.keydownload.DownloadPlanner}.
    */
   public static Operation schedule(WorkManager workManager, Duration tekPublishInterval) {
     // Lower-bound tekPublishInterval and convert to primitive as required by PeriodicWorkRequest
@@ -53,6 +53,23 @@ public final class TemporaryExposureKeyHelper {
     return keysForExport.toByteArray();
   }
 
+  /**
+   * Serializes our network package's TEKs to the byte array with the help of
+   * {@link TemporaryExposureKeyExport} proto under the hood.
+   */
+  public static byte[] diagnosisKeysToTEKExportBytes(List<DiagnosisKey> keys) {
+    TemporaryExposureKeyExport.Builder keysForExport = TemporaryExposureKeyExport.newBuilder();
+    for (DiagnosisKey k : keys) {
+      keysForExport.addKeys(
+          TemporaryExposureKey.newBuilder()
+              .setKeyData(ByteString.copyFrom(k.getKeyBytes()))
+              .setTransmissionRiskLevel(k.getTransmissionRisk())
+              .setRollingStartIntervalNumber(k.getIntervalNumber())
+              .setRollingPeriod(k.getRollingPeriod()));
+    }
+    return keysForExport.build().toByteArray();
+  }
+
   /**
    * Transforms EN API's TEK objects to the TEK proto message objects.
    */
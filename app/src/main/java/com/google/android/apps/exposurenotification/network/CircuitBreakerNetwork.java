@@ -0,0 +1,166 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import android.net.Uri;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import java.util.Random;
+import org.threeten.bp.Duration;
+
+/**
+ * A Volley {@link Network} that consults the {@link HostHealthTracker} before each request, and
+ * reports back how it went. Requests to a host whose circuit breaker is open fail straight away
+ * with a {@link CircuitOpenError}.
+ *
+ * <p>It also puts each request's {@link RetryPolicy} under the host's retry budget, and waits out
+ * the policy's backoff before each retry it allows, unless that's longer than the request's {@link
+ * RequestLane} lets it hold a dispatcher for, in which case the request fails straight away.
+ *
+ * <p>Requests in a lane that doesn't track host health pass straight through.
+ */
+public class CircuitBreakerNetwork implements Network {
+
+  private static final Logger logger = Logger.getLogger("CircuitBreakerNetwork");
+
+  private final Network network;
+  private final HostHealthTracker tracker;
+  private final Random random = new Random();
+
+  public CircuitBreakerNetwork(Network network, HostHealthTracker tracker) {
+    this.network = network;
+    this.tracker = tracker;
+  }
+
+  /**
+   * The error a request fails with when its host's circuit breaker is open.
+   */
+  public static class CircuitOpenError extends VolleyError {
+
+    CircuitOpenError(String host) {
+      super("Circuit breaker open for " + host);
+    }
+  }
+
+  @Override
+  public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+    String host = Uri.parse(request.getUrl()).getHost();
+    RequestLane lane = RequestLanes.currentLane();
+    if (host == null || (lane != null && !lane.tracksHostHealth())) {
+      return network.performRequest(request);
+    }
+    if (!tracker.allowRequest(host)) {
+      request.addMarker("circuit-open");
+      throw new CircuitOpenError(host);
+    }
+    if (!(request.getRetryPolicy() instanceof HostRetryPolicy)) {
+      request.setRetryPolicy(new HostRetryPolicy(request, host));
+    }
+    try {
+      NetworkResponse response = network.performRequest(request);
+      tracker.onSuccess(host);
+      return response;
+    } catch (VolleyError e) {
+      if (isHostFailure(e)) {
+        tracker.onFailure(host);
+      } else if (e.networkResponse != null) {
+        // The host answered, just not with what we wanted.
+        tracker.onSuccess(host);
+      } else {
+        tracker.onInconclusive(host);
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      tracker.onInconclusive(host);
+      throw e;
+    }
+  }
+
+  private static boolean isHostFailure(VolleyError error) {
+    if (error instanceof NoConnectionError) {
+      // Most likely the device is offline, which is no fault of the host's.
+      return false;
+    }
+    if (error instanceof TimeoutError || error instanceof NetworkError) {
+      return true;
+    }
+    int httpStatus = VolleyUtils.getHttpStatus(error);
+    return httpStatus >= 500 || httpStatus == 429;
+  }
+
+  /**
+   * Wraps a request's own retry policy, spending the host's retry budget on each retry it allows
+   * and then waiting out its backoff.
+   */
+  private class HostRetryPolicy implements RetryPolicy {
+
+    private final Request<?> request;
+    private final RetryPolicy policy;
+    private final String host;
+
+    private HostRetryPolicy(Request<?> request, String host) {
+      this.request = request;
+      this.policy = request.getRetryPolicy();
+      this.host = host;
+    }
+
+    @Override
+    public int getCurrentTimeout() {
+      return policy.getCurrentTimeout();
+    }
+
+    @Override
+    public int getCurrentRetryCount() {
+      return policy.getCurrentRetryCount();
+    }
+
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+      policy.retry(error);
+      Duration backoff = policy instanceof CustomRetryPolicy
+          ? ((CustomRetryPolicy) policy).getBackoff()
+          : CustomRetryPolicy.fullJitterBackoff(random, policy.getCurrentRetryCount() - 1);
+      RequestLane lane = RequestLanes.currentLane();
+      if (lane != null && backoff.compareTo(lane.maxRetryWait()) > 0) {
+        logger.d("Not holding a " + lane + " dispatcher for " + backoff + " to retry "
+            + request.getUrl() + ". Fail now.");
+        throw error;
+      }
+      if (!tracker.tryAcquireRetry(host)) {
+        throw error;
+      }
+      if (request.isCanceled()) {
+        throw error;
+      }
+      logger.d("Retrying " + request.getUrl() + " in " + backoff);
+      try {
+        Thread.sleep(backoff.toMillis());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw error;
+      }
+    }
+  }
+}
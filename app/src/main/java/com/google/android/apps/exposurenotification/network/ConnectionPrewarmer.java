@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import android.net.Uri;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.threeten.bp.Duration;
+import org.threeten.bp.Instant;
+
+/**
+ * Opens connections to servers ahead of the requests a user is about to wait on, so that those
+ * requests don't pay for resolving the host, connecting and the TLS handshake.
+ *
+ * <p>We warm up a server by sending a HEAD request to its root. Whatever the server responds, the
+ * connection then sits in the transport's pool (see {@link HttpTransportConfig}) for the real
+ * requests to reuse. A server warmed up recently enough that its connection should still be
+ * pooled is skipped.
+ *
+ * <p>Warm-ups go in a lane of their own, so they never hold up the real requests they're for, and
+ * whatever happens to them doesn't count towards their host's health.
+ */
+@Singleton
+public class ConnectionPrewarmer {
+
+  private static final Logger logger = Logger.getLogger("ConnectionPrewarmer");
+
+  // A warm-up is worthless if it takes longer than the user does to get to the real request.
+  @VisibleForTesting
+  static final Duration PREWARM_TIMEOUT = Duration.ofSeconds(10);
+  // Rewarm well before an idle connection could have been closed.
+  private static final Duration REWARM_AFTER = HttpTransportConfig.KEEP_ALIVE.dividedBy(2);
+
+  private final RequestQueueWrapper queue;
+  private final Clock clock;
+  private final Map<String, Instant> lastWarmed = new HashMap<>();
+
+  @Inject
+  ConnectionPrewarmer(RequestQueueWrapper queue, Clock clock) {
+    this.queue = queue;
+    this.clock = clock;
+  }
+
+  /**
+   * Warms up a connection to the server of each of the given URIs, once per server.
+   */
+  public synchronized void prewarm(Iterable<Uri> uris) {
+    Set<String> origins = new LinkedHashSet<>();
+    for (Uri uri : uris) {
+      if (uri != null && uri.getScheme() != null && uri.getEncodedAuthority() != null) {
+        origins.add(uri.getScheme() + "://" + uri.getEncodedAuthority() + "/");
+      }
+    }
+    Instant now = clock.now();
+    for (String origin : origins) {
+      Instant warmed = lastWarmed.get(origin);
+      if (warmed != null && !now.isBefore(warmed) && now.isBefore(warmed.plus(REWARM_AFTER))) {
+        continue;
+      }
+      lastWarmed.put(origin, now);
+      logger.d("Prewarming connection to " + origin);
+      queue.add(new PrewarmRequest(origin), RequestLane.PREWARM);
+    }
+  }
+
+  /**
+   * A HEAD request whose response, or lack of one, we don't care about.
+   */
+  private static class PrewarmRequest extends Request<Void> {
+
+    PrewarmRequest(String url) {
+      super(Method.HEAD, url, err -> logger.d("Prewarming " + url + " got: " + err));
+      setShouldCache(false);
+      setRetryPolicy(new DefaultRetryPolicy(
+          (int) PREWARM_TIMEOUT.toMillis(), /* maxNumRetries= */ 0, /* backoffMultiplier= */ 1f));
+    }
+
+    @Override
+    protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+      return Response.success(null, /* cacheEntry= */ null);
+    }
+
+    @Override
+    protected void deliverResponse(Void response) {}
+  }
+}
@@ -25,7 +25,8 @@ import dagger.hilt.android.qualifiers.ApplicationContext;
 import javax.inject.Inject;
 
 /**
- * A helper to encapsulate and simplify checking if we have an internet connection.
+ * A helper to encapsulate and simplify checking if we have an internet connection, and of what
+ * kind.
  */
 public class Connectivity {
 
@@ -48,4 +49,12 @@ public class Connectivity {
     NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
     return networkInfo != null && networkInfo.isConnected();
   }
+
+  /**
+   * Whether the user may pay for data on the active network, e.g. on cellular data or a metered
+   * hotspot. Also true if there is no active network, as then we can't tell.
+   */
+  public boolean isMetered() {
+    return connectivityManager.isActiveNetworkMetered();
+  }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Header;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.common.io.CountingInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A {@link BaseHttpStack} that asks servers for gzipped responses and decodes them as they're
+ * read, so that whoever reads the body (a Volley network) sees plain bytes, a chunk at a time,
+ * without the whole compressed body ever being held in memory.
+ *
+ * <p>{@link java.net.HttpURLConnection} would gzip for us behind our back, but then it also hides
+ * how many bytes actually came over the network. Asking for the encoding ourselves lets us count
+ * both sides, which we hand to {@link ResponseSizeAware} requests.
+ *
+ * <p>Keyfile downloads ({@link RespondableFileRequest}s) ask for no encoding at all, as the files
+ * are zips already. Nor does any request for a byte range, such as a resumed download or a probe
+ * of the start of a file, as the range must refer to the resource's own bytes.
+ */
+public class ContentEncodingHttpStack extends BaseHttpStack {
+
+  private static final Logger logger = Logger.getLogger("ContentEncodingHttpStack");
+
+  @VisibleForTesting
+  static final String ACCEPT_ENCODING = "Accept-Encoding";
+  @VisibleForTesting
+  static final String CONTENT_ENCODING = "Content-Encoding";
+  private static final String CONTENT_LENGTH = "Content-Length";
+  private static final String RANGE = "Range";
+  private static final String GZIP = "gzip";
+  private static final String IDENTITY = "identity";
+  // How much compressed input the decoder reads from the network at a time.
+  private static final int GZIP_BUFFER_SIZE_BYTES = 8 * 1024;
+
+  private final BaseHttpStack stack;
+
+  public ContentEncodingHttpStack(BaseHttpStack stack) {
+    this.stack = stack;
+  }
+
+  @Override
+  public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+      throws IOException, AuthFailureError {
+    Map<String, String> headers = new HashMap<>(additionalHeaders);
+    // Any Accept-Encoding of the request's own takes precedence over this one.
+    headers.put(ACCEPT_ENCODING, needsIdentity(request) ? IDENTITY : GZIP);
+    HttpResponse response = stack.executeRequest(request, headers);
+
+    InputStream content = response.getContent();
+    if (content == null) {
+      return response;
+    }
+    boolean gzipped = isGzipped(response.getHeaders());
+    return new HttpResponse(
+        response.getStatusCode(),
+        gzipped ? withoutEncodingHeaders(response.getHeaders()) : response.getHeaders(),
+        gzipped ? -1 : response.getContentLength(),
+        new DecodingInputStream(request, content, gzipped));
+  }
+
+  private static boolean needsIdentity(Request<?> request) throws AuthFailureError {
+    if (request instanceof RespondableFileRequest) {
+      return true;
+    }
+    for (String name : request.getHeaders().keySet()) {
+      if (name.equalsIgnoreCase(RANGE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isGzipped(List<Header> headers) {
+    for (Header header : headers) {
+      if (header.getName().equalsIgnoreCase(CONTENT_ENCODING)) {
+        String encoding = header.getValue().trim();
+        return encoding.equalsIgnoreCase(GZIP) || encoding.equalsIgnoreCase("x-gzip");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops the headers that describe the encoded body, since that's not what the reader gets.
+   */
+  private static List<Header> withoutEncodingHeaders(List<Header> headers) {
+    List<Header> decodedHeaders = new ArrayList<>();
+    for (Header header : headers) {
+      if (!header.getName().equalsIgnoreCase(CONTENT_ENCODING)
+          && !header.getName().equalsIgnoreCase(CONTENT_LENGTH)) {
+        decodedHeaders.add(header);
+      }
+    }
+    return decodedHeaders;
+  }
+
+  /**
+   * Decodes a response body as it's read, counting bytes on both sides, and reports the sizes to
+   * the request once the body has been read to the end.
+   */
+  private static class DecodingInputStream extends InputStream {
+
+    private final Request<?> request;
+    private final CountingInputStream wire;
+    private final boolean gzipped;
+    @Nullable
+    private InputStream decoded;
+    private long decodedBytes = 0;
+    private boolean reported = false;
+
+    DecodingInputStream(Request<?> request, InputStream wire, boolean gzipped) {
+      this.request = request;
+      this.wire = new CountingInputStream(wire);
+      this.gzipped = gzipped;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = decoded().read();
+      if (b == -1) {
+        onEndOfBody();
+      } else {
+        decodedBytes++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = decoded().read(buffer, offset, length);
+      if (read == -1) {
+        onEndOfBody();
+      } else {
+        decodedBytes += read;
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (decoded != null) {
+        decoded.close();
+      } else {
+        wire.close();
+      }
+    }
+
+    /**
+     * Sets up the decoder on first read. A gzip decoder reads the gzip header as soon as it's
+     * created, so we make sure there's a body to decode first: a HEAD or a 304 may claim an
+     * encoding while having no body at all.
+     */
+    private InputStream decoded() throws IOException {
+      if (decoded == null) {
+        if (!gzipped) {
+          decoded = wire;
+        } else {
+          PushbackInputStream body = new PushbackInputStream(wire, 1);
+          int first = body.read();
+          if (first == -1) {
+            decoded = body;
+          } else {
+            body.unread(first);
+            decoded = new GZIPInputStream(body, GZIP_BUFFER_SIZE_BYTES);
+          }
+        }
+      }
+      return decoded;
+    }
+
+    private void onEndOfBody() {
+      if (reported) {
+        return;
+      }
+      reported = true;
+      ResponseSize size = ResponseSize.create(wire.getCount(), decodedBytes);
+      if (gzipped) {
+        logger.d("Decoded " + size.decodedBytes() + " bytes from " + size.wireBytes()
+            + " on the wire for " + request.getUrl());
+      }
+      if (request instanceof ResponseSizeAware) {
+        ((ResponseSizeAware) request).setResponseSize(size);
+      }
+    }
+  }
+}
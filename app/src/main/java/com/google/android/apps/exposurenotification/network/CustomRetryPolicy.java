@@ -27,6 +27,7 @@ import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.common.base.Optional;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import org.threeten.bp.Duration;
 import org.threeten.bp.Instant;
 import org.threeten.bp.ZoneOffset;
@@ -35,6 +36,10 @@ import org.threeten.bp.format.DateTimeFormatter;
 /**
  * A customised {@link RetryPolicy} that applies rules based on the http status of the response, and
  * in some cases the response headers.
+ *
+ * <p>Each retry it allows comes with a backoff, {@link #getBackoff()}, for the network to wait
+ * before retrying: the time the server asked for if it rate limited us, otherwise an exponential
+ * backoff with full jitter, so that devices that failed together don't all retry together.
  */
 public class CustomRetryPolicy implements RetryPolicy {
 
@@ -49,13 +54,47 @@ public class CustomRetryPolicy implements RetryPolicy {
 
   @VisibleForTesting
   static final long SERVER_TIMEOUT_SECS = 10;
+  @VisibleForTesting
+  static final Duration BACKOFF_BASE = Duration.ofSeconds(1);
+  @VisibleForTesting
+  static final Duration BACKOFF_CAP = Duration.ofSeconds(30);
+  // Rather than hold a network thread for longer than this, we give up and let a later run retry.
+  @VisibleForTesting
+  static final Duration MAX_RATE_LIMITED_WAIT = Duration.ofMinutes(1);
 
   private final Clock clock;
+  private final Random random;
   private Duration delay = Duration.ofSeconds(SERVER_TIMEOUT_SECS);
+  private Duration backoff = Duration.ZERO;
   private int currentRetryCount = 0;
 
   public CustomRetryPolicy(Clock clock) {
+    this(clock, new Random());
+  }
+
+  @VisibleForTesting
+  CustomRetryPolicy(Clock clock, Random random) {
     this.clock = clock;
+    this.random = random;
+  }
+
+  /**
+   * How long to wait before the retry that {@link #retry(VolleyError)} last allowed.
+   */
+  public Duration getBackoff() {
+    return backoff;
+  }
+
+  /**
+   * An exponential backoff with full jitter for the given (zero-based) retry: a random duration up
+   * to {@link #BACKOFF_BASE} doubled for each earlier retry, capped at {@link #BACKOFF_CAP}.
+   */
+  public static Duration fullJitterBackoff(Random random, int retry) {
+    long ceilingMs = BACKOFF_CAP.toMillis();
+    if (retry < 31) {
+      ceilingMs = Math.min(ceilingMs, BACKOFF_BASE.toMillis() << retry);
+    }
+    return Duration.ofMillis((long) (random.nextDouble() * (ceilingMs + 1)));
   }
 
   @Override
@@ -75,13 +114,20 @@ public class CustomRetryPolicy implements RetryPolicy {
 
     // Rate limited requests retry once.
     if (httpStatus == RATE_LIMITED && currentRetryCount < 1) {
-      currentRetryCount++;
       Optional<Instant> retryTime = parseRetryTime(error);
+      if (retryTime.isPresent()
+          && Duration.between(clock.now(), retryTime.get()).compareTo(MAX_RATE_LIMITED_WAIT) > 0) {
+        logger.d("Rate limited for longer than we'll wait. Fail now.");
+        throw error;
+      }
+      currentRetryCount++;
+      backoff = fullJitterBackoff(random, 0);
       if (retryTime.isPresent() && retryTime.get().isAfter(clock.now())) {
         // Threre's a small bug here in that: We're deciding how long to delay based on the current
         // time, but the Volley stack will start counting that delay at some future time. It'll be
         // close enough for our purposes though.
         delay = Duration.between(clock.now(), retryTime.get());
+        backoff = delay;
       }
       // If we didn't get a useful retry-time from the response header, we just keep whatever delay
       // we had.
@@ -92,6 +138,7 @@ public class CustomRetryPolicy implements RetryPolicy {
     // Server errors retry SERVER_ERR_NUM_RETRIES times.
     if (httpStatus >= SERVER_ERR && currentRetryCount < SERVER_ERR_NUM_RETRIES) {
       logger.d("Server error, retrycount:[" + currentRetryCount + "]. Will retry after delay.");
+      backoff = fullJitterBackoff(random, currentRetryCount);
       currentRetryCount++;
       return;
     }
@@ -104,6 +151,7 @@ public class CustomRetryPolicy implements RetryPolicy {
         && currentRetryCount < SERVER_ERR_NUM_RETRIES) {
       logger.d("Timeout or network error, retry count [" + currentRetryCount
           + "]. Will retry after delay.");
+      backoff = fullJitterBackoff(random, currentRetryCount);
       currentRetryCount++;
       return;
     }
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.storage.HostHealthEntity;
+import com.google.android.apps.exposurenotification.storage.HostHealthRepository;
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.threeten.bp.Duration;
+
+/**
+ * Keeps track of how each server host is doing, so that we stop sending it requests while it's
+ * failing and ration the retries we send it.
+ *
+ * <p>Each host has a circuit breaker. After {@link #FAILURE_THRESHOLD} requests in a row fail, the
+ * breaker opens and we fail requests to the host without sending them, for a cooldown starting at
+ * {@link #INITIAL_COOLDOWN}. Once the cooldown is over we let a single trial request through: if
+ * it succeeds the breaker closes, and if it fails the breaker opens again for twice as long, up to
+ * {@link #MAX_COOLDOWN}. Breaker state is kept in the database, so it carries across worker runs.
+ *
+ * <p>Each host also has a retry budget, in the manner of a token bucket: every retry spends one
+ * retry from the budget, and every {@link #SUCCESSES_PER_RETRY} successful requests earn one back.
+ * This bounds retries to a fraction of the requests that succeed, so that retries can't pile on to
+ * a host that is struggling. The budget is only kept in memory.
+ */
+@Singleton
+public class HostHealthTracker {
+
+  private static final Logger logger = Logger.getLogger("HostHealthTracker");
+
+  @VisibleForTesting
+  static final int FAILURE_THRESHOLD = 5;
+  @VisibleForTesting
+  static final Duration INITIAL_COOLDOWN = Duration.ofMinutes(1);
+  @VisibleForTesting
+  static final Duration MAX_COOLDOWN = Duration.ofHours(1);
+  @VisibleForTesting
+  static final int MAX_RETRY_BUDGET = 10;
+  // So retries can be at most about one in ten of a host's successful requests.
+  @VisibleForTesting
+  static final int SUCCESSES_PER_RETRY = 10;
+
+  /**
+   * The state of a host's circuit breaker.
+   */
+  public enum CircuitState {
+    /** Requests go through as usual. */
+    CLOSED,
+    /** Requests fail without being sent. */
+    OPEN,
+    /** The cooldown is over, and the next request to go through decides which way it goes. */
+    HALF_OPEN
+  }
+
+  /**
+   * A snapshot of how a host is doing, for monitoring.
+   */
+  @AutoValue
+  public abstract static class HostHealth {
+
+    public abstract CircuitState state();
+
+    public abstract int consecutiveFailures();
+
+    /** How long until an open breaker lets a trial request through; zero otherwise. */
+    public abstract Duration cooldownRemaining();
+
+    /** How many retries the host's retry budget has left. */
+    public abstract double retryBudget();
+
+    static HostHealth create(
+        CircuitState state, int consecutiveFailures, Duration cooldownRemaining,
+        double retryBudget) {
+      return new AutoValue_HostHealthTracker_HostHealth(
+          state, consecutiveFailures, cooldownRemaining, retryBudget);
+    }
+  }
+
+  private final HostHealthRepository repository;
+  private final Clock clock;
+  private final Map<String, Host> hosts = new HashMap<>();
+  private boolean loaded = false;
+
+  @Inject
+  HostHealthTracker(HostHealthRepository repository, Clock clock) {
+    this.repository = repository;
+    this.clock = clock;
+  }
+
+  /**
+   * Whether a request to the given host may go out now. Let through while the breaker is half
+   * open, a request becomes the trial request, and no other goes through until it's reported.
+   */
+  @WorkerThread
+  public synchronized boolean allowRequest(String host) {
+    Host h = host(host);
+    switch (state(h)) {
+      case OPEN:
+        return false;
+      case HALF_OPEN:
+        if (h.trialInFlight) {
+          return false;
+        }
+        h.trialInFlight = true;
+        logger.d("Letting a trial request through to " + host);
+        return true;
+      default:
+        return true;
+    }
+  }
+
+  /**
+   * Reports a request the host answered, which closes its breaker and earns back some retry budget.
+   */
+  @WorkerThread
+  public synchronized void onSuccess(String host) {
+    Host h = host(host);
+    h.trialInFlight = false;
+    h.retryCredits = Math.min(MAX_RETRY_BUDGET * SUCCESSES_PER_RETRY, h.retryCredits + 1);
+    if (h.consecutiveFailures == 0 && h.openUntilMs == 0) {
+      return;
+    }
+    if (h.openUntilMs != 0) {
+      logger.i("Closing circuit breaker for " + host);
+    }
+    h.consecutiveFailures = 0;
+    h.cooldownMs = 0;
+    h.openUntilMs = 0;
+    repository.delete(host);
+  }
+
+  /**
+   * Reports a request that failed because of the host (rather than, say, the device being offline),
+   * once its retries are done.
+   */
+  @WorkerThread
+  public synchronized void onFailure(String host) {
+    Host h = host(host);
+    CircuitState state = state(h);
+    h.trialInFlight = false;
+    h.consecutiveFailures++;
+    if (state == CircuitState.HALF_OPEN) {
+      open(host, h, Math.min(
+          MAX_COOLDOWN.toMillis(), Math.max(INITIAL_COOLDOWN.toMillis(), 2 * h.cooldownMs)));
+    } else if (state == CircuitState.CLOSED && h.consecutiveFailures >= FAILURE_THRESHOLD) {
+      open(host, h, INITIAL_COOLDOWN.toMillis());
+    }
+    repository.upsert(
+        HostHealthEntity.create(host, h.consecutiveFailures, h.cooldownMs, h.openUntilMs));
+  }
+
+  /**
+   * Reports a request whose outcome says nothing about the host, such as one that failed because
+   * the device is offline.
+   */
+  @WorkerThread
+  public synchronized void onInconclusive(String host) {
+    host(host).trialInFlight = false;
+  }
+
+  /**
+   * Spends one retry from the host's retry budget, if it has one left.
+   */
+  @WorkerThread
+  public synchronized boolean tryAcquireRetry(String host) {
+    Host h = host(host);
+    if (h.retryCredits < SUCCESSES_PER_RETRY) {
+      logger.w("Retry budget for " + host + " spent, not retrying.");
+      return false;
+    }
+    h.retryCredits -= SUCCESSES_PER_RETRY;
+    return true;
+  }
+
+  /**
+   * How each host we've heard from is doing.
+   */
+  @WorkerThread
+  public synchronized ImmutableMap<String, HostHealth> getHealth() {
+    loadIfNeeded();
+    ImmutableMap.Builder<String, HostHealth> health = ImmutableMap.builder();
+    for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+      Host h = entry.getValue();
+      CircuitState state = state(h);
+      Duration remaining = state == CircuitState.OPEN
+          ? Duration.ofMillis(h.openUntilMs - clock.currentTimeMillis()) : Duration.ZERO;
+      health.put(entry.getKey(),
+          HostHealth.create(state, h.consecutiveFailures, remaining,
+              (double) h.retryCredits / SUCCESSES_PER_RETRY));
+    }
+    return health.build();
+  }
+
+  private void open(String host, Host h, long cooldownMs) {
+    h.cooldownMs = cooldownMs;
+    h.openUntilMs = clock.currentTimeMillis() + cooldownMs;
+    logger.w("Opening circuit breaker for " + host + " for " + Duration.ofMillis(cooldownMs)
+        + " after " + h.consecutiveFailures + " failures in a row.");
+  }
+
+  private CircuitState state(Host h) {
+    if (h.openUntilMs == 0) {
+      return CircuitState.CLOSED;
+    }
+    long remainingMs = h.openUntilMs - clock.currentTimeMillis();
+    // Also give up on the cooldown if the clock has moved back past when we opened the breaker.
+    if (remainingMs <= 0 || remainingMs > h.cooldownMs) {
+      return CircuitState.HALF_OPEN;
+    }
+    return CircuitState.OPEN;
+  }
+
+  private Host host(String host) {
+    loadIfNeeded();
+    Host h = hosts.get(host);
+    if (h == null) {
+      h = new Host();
+      hosts.put(host, h);
+    }
+    return h;
+  }
+
+  private void loadIfNeeded() {
+    if (loaded) {
+      return;
+    }
+    for (HostHealthEntity entity : repository.getAll()) {
+      Host h = new Host();
+      h.consecutiveFailures = entity.consecutiveFailures();
+      h.cooldownMs = entity.cooldownMs();
+      h.openUntilMs = entity.openUntilMs();
+      hosts.put(entity.host(), h);
+    }
+    loaded = true;
+  }
+
+  private static class Host {
+    private int consecutiveFailures = 0;
+    private long cooldownMs = 0;
+    private long openUntilMs = 0;
+    private boolean trialInFlight = false;
+    // The retry budget, counted in successful requests.
+    private int retryCredits = MAX_RETRY_BUDGET * SUCCESSES_PER_RETRY;
+  }
+}
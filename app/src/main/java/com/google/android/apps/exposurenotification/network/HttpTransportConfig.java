@@ -0,0 +1,40 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import org.threeten.bp.Duration;
+
+/**
+ * How the app's HTTP transport keeps connections around for reuse, for those that time their
+ * requests around it (see {@link ConnectionPrewarmer}).
+ *
+ * <p>This describes the transport rather than configuring it. {@link
+ * com.android.volley.toolbox.HurlStack} shares {@link java.net.HttpURLConnection}'s process-wide
+ * pool, which we leave as the platform sets it up: tuning it would mean setting system properties
+ * that every other library in the process sees too.
+ */
+public final class HttpTransportConfig {
+
+  /**
+   * How long the platform's pool holds on to an idle connection before closing it.
+   */
+  public static final Duration KEEP_ALIVE = Duration.ofMinutes(5);
+
+  private HttpTransportConfig() {
+  }
+}
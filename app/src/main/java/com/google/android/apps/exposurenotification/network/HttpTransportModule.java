@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HurlStack;
+import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
+import dagger.Module;
+import dagger.Provides;
+import dagger.hilt.InstallIn;
+import dagger.hilt.components.SingletonComponent;
+import javax.inject.Singleton;
+
+/**
+ * Module providing the HTTP transport that all of the app's network calls go through, including
+ * those of the private analytics library, so that they share one pool of connections. Requests are
+ * dispatched through {@link RequestLanes}, so each class of traffic has its own dispatcher threads,
+ * and identical GETs in flight at the same time share one call (see {@link SingleFlightNetwork}).
+ * Requests to a failing host are backed off by its circuit breaker (see {@link
+ * CircuitBreakerNetwork}), and responses are gzipped on the wire where the server can (see {@link
+ * ContentEncodingHttpStack}). The phases of each request are timed for analytics (see {@link
+ * TimingHttpStack}).
+ *
+ * <p>The transport is Volley's {@link HurlStack}, on the platform's own pool of connections (see
+ * {@link HttpTransportConfig}).
+ */
+@Module
+@InstallIn(SingletonComponent.class)
+public class HttpTransportModule {
+
+  @Singleton
+  @Provides
+  public BaseHttpStack provideHttpStack() {
+    return new HurlStack();
+  }
+
+  @Singleton
+  @Provides
+  public RequestLanes provideRequestLanes(
+      BaseHttpStack httpStack,
+      HostHealthTracker hostHealthTracker,
+      AnalyticsLogger analyticsLogger) {
+    BaseHttpStack timedStack =
+        new TimingHttpStack(new ContentEncodingHttpStack(httpStack), analyticsLogger);
+    return new RequestLanes(new SingleFlightNetwork(
+        new CircuitBreakerNetwork(new StreamingNetwork(timedStack), hostHealthTracker)));
+  }
+}
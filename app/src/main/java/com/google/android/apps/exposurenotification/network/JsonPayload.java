@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A serialized JSON request body, as written by a {@link JsonPayloadWriter}.
+ */
+public final class JsonPayload {
+
+  private final byte[] bytes;
+
+  JsonPayload(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * The body's bytes, in UTF-8. Callers must not modify them.
+   */
+  public byte[] bytes() {
+    return bytes;
+  }
+
+  /**
+   * The size of the body in bytes.
+   */
+  public int length() {
+    return bytes.length;
+  }
+
+  /**
+   * Decodes the body, for logging.
+   */
+  @Override
+  public String toString() {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
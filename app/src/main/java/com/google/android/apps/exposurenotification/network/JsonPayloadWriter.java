@@ -0,0 +1,293 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.PoolingByteArrayOutputStream;
+import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Writes a padded JSON request body straight into bytes, as an alternative to building a tree of
+ * {@link JSONObject}s and {@link JSONArray}s that we then serialize, several times over, to pad
+ * it, log it and send it.
+ *
+ * <p>The body is a single top-level object. Fields are written in the order they're given, and
+ * escaped the way {@link JSONObject#toString()} escapes them, so the bytes are those of the
+ * equivalent {@link JSONObject}. Like {@link JSONObject#put(String, Object)}, a null string value
+ * leaves its field out. {@link #finish()} adds the {@link Padding} inline as the last field,
+ * sized from the number of bytes written so far, and returns the body as a {@link JsonPayload}.
+ *
+ * <p>The body is built in a buffer from a small shared pool, so that we don't allocate, and grow, a
+ * new buffer for each request. A writer is for a single body, and isn't thread safe.
+ */
+public class JsonPayloadWriter {
+
+  // Big enough for any padded body but a keys upload of many keys, which grows the buffer.
+  private static final int BUFFER_SIZE_BYTES = 8 * 1024;
+  private static final ByteArrayPool POOL = new ByteArrayPool(2 * BUFFER_SIZE_BYTES);
+  // The server expects base64 with padding.
+  private static final char[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+  private final PoolingByteArrayOutputStream out =
+      new PoolingByteArrayOutputStream(POOL, BUFFER_SIZE_BYTES);
+  private final Random random;
+  // Whether each open object or array has a member yet, innermost first.
+  private final Deque<Boolean> hasMembers = new ArrayDeque<>();
+  @Nullable
+  private String pendingName;
+  private boolean finished = false;
+
+  public JsonPayloadWriter() {
+    this(Padding.RAND);
+  }
+
+  @VisibleForTesting
+  JsonPayloadWriter(Random random) {
+    this.random = random;
+  }
+
+  public JsonPayloadWriter beginObject() {
+    checkState(!finished, "Already finished");
+    beforeValue();
+    hasMembers.push(false);
+    out.write('{');
+    return this;
+  }
+
+  public JsonPayloadWriter endObject() {
+    checkState(hasMembers.size() > 1, "Use finish() to end the top-level object");
+    return end('}');
+  }
+
+  public JsonPayloadWriter beginArray() {
+    checkState(!hasMembers.isEmpty(), "The body must be an object");
+    beforeValue();
+    hasMembers.push(false);
+    out.write('[');
+    return this;
+  }
+
+  public JsonPayloadWriter endArray() {
+    return end(']');
+  }
+
+  /**
+   * Names the next value, which must be a field of an object.
+   */
+  public JsonPayloadWriter name(String name) {
+    checkState(!hasMembers.isEmpty() && pendingName == null, "Not expecting a name");
+    pendingName = name;
+    return this;
+  }
+
+  /**
+   * Writes a string, or in an object leaves the named field out if {@code value} is null.
+   */
+  public JsonPayloadWriter value(@Nullable String value) {
+    if (value == null && pendingName != null) {
+      pendingName = null;
+      return this;
+    }
+    beforeValue();
+    if (value == null) {
+      writeAscii("null");
+    } else {
+      writeString(value);
+    }
+    return this;
+  }
+
+  public JsonPayloadWriter value(long value) {
+    beforeValue();
+    writeAscii(Long.toString(value));
+    return this;
+  }
+
+  public JsonPayloadWriter value(boolean value) {
+    beforeValue();
+    writeAscii(value ? "true" : "false");
+    return this;
+  }
+
+  /**
+   * Writes {@code bytes} as a base64 string, without encoding them into a temporary string first.
+   */
+  public JsonPayloadWriter base64Value(byte[] bytes) {
+    beforeValue();
+    out.write('"');
+    for (int i = 0; i < bytes.length; i += 3) {
+      int remaining = Math.min(bytes.length - i, 3);
+      int group = (bytes[i] & 0xff) << 16;
+      if (remaining > 1) {
+        group |= (bytes[i + 1] & 0xff) << 8;
+      }
+      if (remaining > 2) {
+        group |= bytes[i + 2] & 0xff;
+      }
+      for (int j = 0; j < 4; j++) {
+        writeChar(j <= remaining ? BASE64_ALPHABET[(group >> (18 - 6 * j)) & 0x3f] : '=');
+      }
+    }
+    out.write('"');
+    return this;
+  }
+
+  /**
+   * Pads and closes the top-level object, and returns the body.
+   */
+  public JsonPayload finish() {
+    checkState(!finished, "Already finished");
+    checkState(hasMembers.size() == 1 && pendingName == null, "Objects or arrays left open");
+    // Counting the closing brace.
+    int size = out.size() + 1;
+    if (size < Padding.TARGET_PAYLOAD_SIZE_BYTES) {
+      String padding = Padding.paddingFor(size, hasMembers.peek(), random);
+      name(UploadV1.PADDING).value(padding);
+    }
+    out.write('}');
+    hasMembers.pop();
+    finished = true;
+    byte[] bytes = out.toByteArray();
+    try {
+      // Hands the buffer back to the pool for the next body.
+      out.close();
+    } catch (IOException e) {
+      // Never happens: there's no underlying stream to close.
+    }
+    return new JsonPayload(bytes);
+  }
+
+  private JsonPayloadWriter end(char closing) {
+    checkState(pendingName == null, "Expecting a value for " + pendingName);
+    hasMembers.pop();
+    out.write(closing);
+    return this;
+  }
+
+  /**
+   * Writes the comma before this value if it isn't the first of its container, and its name if
+   * it has one.
+   */
+  private void beforeValue() {
+    if (hasMembers.isEmpty()) {
+      return;
+    }
+    checkState(!finished, "Already finished");
+    if (hasMembers.pop()) {
+      out.write(',');
+    }
+    hasMembers.push(true);
+    if (pendingName != null) {
+      writeString(pendingName);
+      out.write(':');
+      pendingName = null;
+    }
+  }
+
+  private void writeAscii(String ascii) {
+    for (int i = 0; i < ascii.length(); i++) {
+      out.write(ascii.charAt(i));
+    }
+  }
+
+  private void writeString(String value) {
+    out.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (Character.isHighSurrogate(c)
+          && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        writeUtf8(Character.toCodePoint(c, value.charAt(++i)));
+      } else if (Character.isSurrogate(c)) {
+        // As String#getBytes would for a lone surrogate.
+        out.write('?');
+      } else {
+        writeChar(c);
+      }
+    }
+    out.write('"');
+  }
+
+  /**
+   * Writes a character of a string, escaped like {@link JSONObject#quote(String)} would.
+   */
+  private void writeChar(char c) {
+    switch (c) {
+      case '"':
+      case '\\':
+      case '/':
+        out.write('\\');
+        out.write(c);
+        break;
+      case '\t':
+        writeAscii("\\t");
+        break;
+      case '\b':
+        writeAscii("\\b");
+        break;
+      case '\n':
+        writeAscii("\\n");
+        break;
+      case '\r':
+        writeAscii("\\r");
+        break;
+      case '\f':
+        writeAscii("\\f");
+        break;
+      default:
+        if (c <= 0x1f) {
+          writeAscii("\\u00");
+          out.write(HEX_DIGITS[c >> 4]);
+          out.write(HEX_DIGITS[c & 0xf]);
+        } else {
+          writeUtf8(c);
+        }
+    }
+  }
+
+  private void writeUtf8(int codePoint) {
+    if (codePoint < 0x80) {
+      out.write(codePoint);
+    } else if (codePoint < 0x800) {
+      out.write(0xc0 | (codePoint >> 6));
+      out.write(0x80 | (codePoint & 0x3f));
+    } else if (codePoint < 0x10000) {
+      out.write(0xe0 | (codePoint >> 12));
+      out.write(0x80 | ((codePoint >> 6) & 0x3f));
+      out.write(0x80 | (codePoint & 0x3f));
+    } else {
+      out.write(0xf0 | (codePoint >> 18));
+      out.write(0x80 | ((codePoint >> 12) & 0x3f));
+      out.write(0x80 | ((codePoint >> 6) & 0x3f));
+      out.write(0x80 | (codePoint & 0x3f));
+    }
+  }
+}
@@ -18,8 +18,10 @@
 package com.google.android.apps.exposurenotification.network;
 
 import androidx.annotation.VisibleForTesting;
-import com.google.android.apps.exposurenotification.common.StringUtils;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import com.google.common.io.BaseEncoding;
+import java.security.SecureRandom;
+import java.util.Random;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -35,17 +37,105 @@ public class Padding {
   @VisibleForTesting
   static final int TARGET_PAYLOAD_SIZE_BYTES = 5000;
 
+  // Shared with JsonPayloadWriter, which pads the bodies it writes itself.
+  static final SecureRandom RAND = new SecureRandom();
+  private static final BaseEncoding BASE64 = BaseEncoding.base64();
+  private static final String BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=";
+  // How many bytes each base64 character takes up in serialized JSON. Some JSON implementations
+  // escape some of them (Android's escapes '/', for one), so we ask ours rather than assume.
+  private static final int[] JSON_CHAR_SIZES = jsonCharSizes();
+
   public static JSONObject addPadding(JSONObject payload) throws JSONException {
-    // Because the ultimate size of the JSON depends on some things not known here, we start small
-    // and scale up until we reach the target size.
+    return addPadding(payload, RAND);
+  }
+
+  /**
+   * Pads the payload with the fewest random bytes that take its serialized size to at least the
+   * target size, as base64 in the {@link UploadV1#PADDING} field.
+   *
+   * <p>That's the same padding we'd get by trying one more byte of padding at a time until we're
+   * big enough, but here we serialize the payload just once. Base64 takes 4 characters per 3
+   * bytes, each of them taking up a known number of bytes in JSON, so we can work out the size of
+   * every candidate padding from a single encoding of enough random bytes for the largest one.
+   */
+  @VisibleForTesting
+  static JSONObject addPadding(JSONObject payload, Random random) throws JSONException {
     int currentSize = payload.toString().getBytes().length;
-    int paddingSize = 1;
-    // If we're already big enough, this will get skipped, no padding field will be added.
-    while (currentSize < TARGET_PAYLOAD_SIZE_BYTES) {
-      payload.put(UploadV1.PADDING, StringUtils.randomBase64Data(paddingSize));
+    // If we're already big enough, no padding field will be added.
+    if (currentSize >= TARGET_PAYLOAD_SIZE_BYTES) {
+      return payload;
+    }
+    if (payload.has(UploadV1.PADDING)) {
+      // We'll replace any earlier padding, so don't count it.
+      payload.remove(UploadV1.PADDING);
       currentSize = payload.toString().getBytes().length;
-      paddingSize++;
     }
+    payload.put(UploadV1.PADDING, paddingFor(currentSize, payload.length() > 0, random));
     return payload;
   }
+
+  /**
+   * Returns the base64 padding to add as the last field of a JSON object of {@code objectSize}
+   * serialized bytes, less than the target size, to take it to at least the target size.
+   *
+   * <p>For serializers that write the padding field themselves, which must escape the padding
+   * the same way as {@link JSONObject#quote(String)}.
+   */
+  static String paddingFor(int objectSize, boolean hasOtherFields, Random random) {
+    // The new field adds its name, a colon, the quotes around its value, and a comma if there are
+    // other fields before it.
+    int fieldSize = JSONObject.quote(UploadV1.PADDING).length() + 3 + (hasOtherFields ? 1 : 0);
+    int neededChars = TARGET_PAYLOAD_SIZE_BYTES - objectSize - fieldSize;
+
+    // Even unescaped, this many bytes encode to at least neededChars characters.
+    byte[] bytes = new byte[Math.max((neededChars * 3 + 3) / 4, 1)];
+    random.nextBytes(bytes);
+    int numBytes = fewestBytesToFill(bytes, BASE64.encode(bytes), neededChars);
+    return BASE64.encode(bytes, 0, numBytes);
+  }
+
+  /**
+   * Returns the fewest of the given bytes (at least one) whose base64 takes up at least {@code
+   * neededSize} bytes in JSON. {@code encoded} must be the base64 of all of {@code bytes}.
+   */
+  private static int fewestBytesToFill(byte[] bytes, String encoded, int neededSize) {
+    // The JSON size of the first 4 * groups characters of encoded, which are the base64 of the
+    // first 3 * groups bytes.
+    int groups = 0;
+    int groupsSize = 0;
+    for (int numBytes = 1; numBytes < bytes.length; numBytes++) {
+      int fullGroups = numBytes / 3;
+      while (groups < fullGroups) {
+        groupsSize += jsonSize(encoded, 4 * groups, 4 * groups + 4);
+        groups++;
+      }
+      int size = groupsSize;
+      if (numBytes % 3 != 0) {
+        // The last bytes encode differently (and with '=' padding) on their own.
+        size += jsonSize(BASE64.encode(bytes, 3 * groups, numBytes % 3), 0, 4);
+      }
+      if (size >= neededSize) {
+        return numBytes;
+      }
+    }
+    return bytes.length;
+  }
+
+  private static int jsonSize(String base64, int start, int end) {
+    int size = 0;
+    for (int i = start; i < end; i++) {
+      size += JSON_CHAR_SIZES[base64.charAt(i)];
+    }
+    return size;
+  }
+
+  private static int[] jsonCharSizes() {
+    int[] sizes = new int[128];
+    for (char c : BASE64_ALPHABET.toCharArray()) {
+      // Less the two quotes around the string.
+      sizes[c] = JSONObject.quote(String.valueOf(c)).length() - 2;
+    }
+    return sizes;
+  }
 }
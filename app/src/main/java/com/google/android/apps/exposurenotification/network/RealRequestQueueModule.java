@@ -18,9 +18,6 @@
 package com.google.android.apps.exposurenotification.network;
 
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.BasicNetwork;
-import com.android.volley.toolbox.HurlStack;
-import com.android.volley.toolbox.NoCache;
 import dagger.Module;
 import dagger.Provides;
 import dagger.hilt.InstallIn;
@@ -37,9 +34,7 @@ public final class RealRequestQueueModule {
 
   @Singleton
   @Provides
-  public RequestQueueWrapper provideRequestQueueWrapper() {
-    RequestQueue queue = new RequestQueue(new NoCache(), new BasicNetwork(new HurlStack()));
-    queue.start();
-    return RequestQueueWrapper.wrapping(queue);
+  public RequestQueueWrapper provideRequestQueueWrapper(RequestLanes lanes) {
+    return RequestQueueWrapper.wrapping(lanes);
   }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import org.threeten.bp.Duration;
+
+/**
+ * The classes of network traffic the app makes. Each lane has dispatcher threads of its own (see
+ * {@link RequestLanes}), so that a burst in one lane can't hold up requests in another.
+ */
+public enum RequestLane {
+  /** Requests a user is waiting on, such as verifying a code. */
+  INTERACTIVE(2, Duration.ofSeconds(5)),
+  /** Uploads of the user's own keys. */
+  UPLOAD(2, Duration.ofSeconds(5)),
+  /** Background downloads: key server indices and keyfiles, remote configs. */
+  BACKGROUND_BULK(4, CustomRetryPolicy.MAX_RATE_LIMITED_WAIT),
+  /** Cover traffic, which no one waits on. */
+  CHAFF(1, CustomRetryPolicy.MAX_RATE_LIMITED_WAIT),
+  /**
+   * Connection warm-ups (see {@link ConnectionPrewarmer}), which no one waits on, and which stay
+   * out of the lanes of the requests they warm up for.
+   */
+  PREWARM(2, Duration.ZERO);
+
+  private final int maxConcurrency;
+  private final Duration maxRetryWait;
+
+  RequestLane(int maxConcurrency, Duration maxRetryWait) {
+    this.maxConcurrency = maxConcurrency;
+    this.maxRetryWait = maxRetryWait;
+  }
+
+  /**
+   * How many of this lane's requests may be on the network at once.
+   */
+  public int maxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * The longest one of this lane's requests may hold a dispatcher thread waiting to retry. A
+   * request that would have to wait longer fails instead, so that the few threads of the lanes
+   * someone is waiting on are never all asleep.
+   */
+  public Duration maxRetryWait() {
+    return maxRetryWait;
+  }
+
+  /**
+   * Whether how this lane's requests go counts towards their host's health (see {@link
+   * HostHealthTracker}). A warm-up to a server slow to answer at its root says nothing about the
+   * requests we actually make to it.
+   */
+  public boolean tracksHostHealth() {
+    return this != PREWARM;
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.NoCache;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.auto.value.AutoValue;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A Volley {@link RequestQueue} per {@link RequestLane}, all on the same {@link Network} (and so
+ * the same connections). Each queue has as many dispatcher threads as its lane's concurrency
+ * limit, which keeps, say, a user verifying a code from waiting behind a batch of keyfiles.
+ *
+ * <p>Also keeps track of how long each lane's requests wait for a dispatcher, and logs a lane's
+ * stats whenever it goes idle.
+ */
+public class RequestLanes {
+
+  private static final Logger logger = Logger.getLogger("RequestLanes");
+  // The lane of the request each dispatcher thread is performing.
+  private static final ThreadLocal<RequestLane> currentLane = new ThreadLocal<>();
+
+  private final Map<RequestLane, Lane> lanes = new EnumMap<>(RequestLane.class);
+
+  public RequestLanes(Network network) {
+    for (RequestLane lane : RequestLane.values()) {
+      lanes.put(lane, new Lane(lane, network));
+    }
+  }
+
+  /**
+   * Adds the request to the given lane's queue.
+   */
+  public <T> Request<T> add(Request<T> request, RequestLane lane) {
+    return lanes.get(lane).add(request);
+  }
+
+  /**
+   * The Volley queue behind the given lane, for code that can only take a {@link RequestQueue}.
+   */
+  public RequestQueue queueFor(RequestLane lane) {
+    return lanes.get(lane).queue;
+  }
+
+  /**
+   * The lane of the request the calling thread is performing, or null if it's not one of our
+   * dispatcher threads. For networks further down, which see only the request.
+   */
+  @Nullable
+  static RequestLane currentLane() {
+    return currentLane.get();
+  }
+
+  public LaneStats getStats(RequestLane lane) {
+    return lanes.get(lane).getStats();
+  }
+
+  /**
+   * A snapshot of a lane's state.
+   */
+  @AutoValue
+  public abstract static class LaneStats {
+
+    /** Requests waiting for a dispatcher. */
+    public abstract int queued();
+
+    /** Requests on the network. */
+    public abstract int inFlight();
+
+    /** Requests that got a dispatcher since the app started. */
+    public abstract long dispatched();
+
+    /** Total time dispatched requests waited for a dispatcher. */
+    public abstract long totalQueueTimeMs();
+
+    /** The longest any request waited for a dispatcher. */
+    public abstract long maxQueueTimeMs();
+
+    public long meanQueueTimeMs() {
+      return dispatched() == 0 ? 0 : totalQueueTimeMs() / dispatched();
+    }
+
+    @VisibleForTesting
+    static LaneStats create(
+        int queued, int inFlight, long dispatched, long totalQueueTimeMs, long maxQueueTimeMs) {
+      return new AutoValue_RequestLanes_LaneStats(
+          queued, inFlight, dispatched, totalQueueTimeMs, maxQueueTimeMs);
+    }
+  }
+
+  /**
+   * One lane's queue, with a {@link Network} in front of the shared one that notes when each
+   * request gets a dispatcher.
+   */
+  private static class Lane implements Network {
+
+    private final RequestLane lane;
+    private final Network network;
+    private final RequestQueue queue;
+    // When each request not yet dispatched was added.
+    private final Map<Request<?>, Long> addedAtMs = new ConcurrentHashMap<>();
+    private int inFlight = 0;
+    private long dispatched = 0;
+    private long totalQueueTimeMs = 0;
+    private long maxQueueTimeMs = 0;
+
+    private Lane(RequestLane lane, Network network) {
+      this.lane = lane;
+      this.network = network;
+      this.queue = new RequestQueue(new NoCache(), this, lane.maxConcurrency());
+      queue.addRequestFinishedListener(this::onFinished);
+      queue.start();
+    }
+
+    private <T> Request<T> add(Request<T> request) {
+      addedAtMs.put(request, SystemClock.elapsedRealtime());
+      return queue.add(request);
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+      // Requests added straight to our queue (see queueFor()) have no queue time.
+      Long addedAt = addedAtMs.remove(request);
+      onDispatched(addedAt == null ? 0 : SystemClock.elapsedRealtime() - addedAt);
+      currentLane.set(lane);
+      try {
+        return network.performRequest(request);
+      } finally {
+        currentLane.remove();
+        onNetworkDone();
+      }
+    }
+
+    private synchronized void onDispatched(long queueTimeMs) {
+      inFlight++;
+      dispatched++;
+      totalQueueTimeMs += queueTimeMs;
+      maxQueueTimeMs = Math.max(maxQueueTimeMs, queueTimeMs);
+    }
+
+    private synchronized void onNetworkDone() {
+      inFlight--;
+    }
+
+    private void onFinished(Request<?> request) {
+      // Requests cancelled before they got a dispatcher finish without ever reaching us.
+      addedAtMs.remove(request);
+      LaneStats stats = getStats();
+      if (stats.queued() == 0 && stats.inFlight() == 0) {
+        logger.d("Lane " + lane + " idle: " + stats);
+      }
+    }
+
+    private synchronized LaneStats getStats() {
+      return LaneStats.create(
+          addedAtMs.size(), inFlight, dispatched, totalQueueTimeMs, maxQueueTimeMs);
+    }
+  }
+}
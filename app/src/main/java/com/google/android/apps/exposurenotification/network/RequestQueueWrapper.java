@@ -30,6 +30,14 @@ public abstract class RequestQueueWrapper {
    */
   public abstract <T> Request<T> add(Request<T> request);
 
+  /**
+   * Adds the request to the given {@link RequestLane}. Wrappers without lanes just {@link
+   * #add(Request)} it.
+   */
+  public <T> Request<T> add(Request<T> request, RequestLane lane) {
+    return add(request);
+  }
+
   public static RequestQueueWrapper wrapping(RequestQueue innerQueue) {
     return new RequestQueueWrapper() {
       @Override
@@ -38,4 +46,22 @@ public abstract class RequestQueueWrapper {
       }
     };
   }
+
+  /**
+   * Wraps the given lanes. Requests added without a lane go to {@link
+   * RequestLane#BACKGROUND_BULK}.
+   */
+  public static RequestQueueWrapper wrapping(RequestLanes lanes) {
+    return new RequestQueueWrapper() {
+      @Override
+      public <T> Request<T> add(Request<T> request) {
+        return lanes.add(request, RequestLane.BACKGROUND_BULK);
+      }
+
+      @Override
+      public <T> Request<T> add(Request<T> request, RequestLane lane) {
+        return lanes.add(request, lane);
+      }
+    };
+  }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.Nullable;
+import com.google.auto.value.AutoValue;
+import org.threeten.bp.Duration;
+
+/**
+ * A value class holding how long the phases of one HTTP request took, as seen by {@link
+ * TimingHttpStack}.
+ */
+@AutoValue
+public abstract class RequestTiming {
+
+  /**
+   * From sending the request until the response headers arrived. This includes resolving the host,
+   * connecting and the TLS handshake when no pooled connection could be reused, since {@link
+   * java.net.HttpURLConnection} doesn't tell those apart.
+   */
+  public abstract Duration timeToFirstByte();
+
+  /**
+   * From the response headers arriving until the end of the body, or null if the body wasn't read
+   * to the end.
+   */
+  @Nullable
+  public abstract Duration transfer();
+
+  public static RequestTiming create(Duration timeToFirstByte, @Nullable Duration transfer) {
+    return new AutoValue_RequestTiming(timeToFirstByte, transfer);
+  }
+}
@@ -18,6 +18,7 @@
 package com.google.android.apps.exposurenotification.network;
 
 import android.net.Uri;
+import androidx.annotation.Nullable;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
@@ -25,6 +26,8 @@ import com.android.volley.Response.ErrorListener;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.HttpHeaderParser;
 import com.google.android.apps.exposurenotification.common.time.Clock;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * A request for the raw bytes of a keyfile. An extension to {@link Request} to make {@link
@@ -36,6 +39,8 @@ import com.google.android.apps.exposurenotification.common.time.Clock;
 public class RespondableByteArrayRequest extends Request<byte[]> {
 
   private final Response.Listener<byte[]> listener;
+  @Nullable
+  private String range;
 
   public RespondableByteArrayRequest(
       Uri uri, Response.Listener<byte[]> listener, ErrorListener errorListener, Clock clock) {
@@ -45,6 +50,20 @@ public class RespondableByteArrayRequest extends Request<byte[]> {
     setRetryPolicy(new CustomRetryPolicy(clock));
   }
 
+  /**
+   * Asks for just bytes {@code first} to {@code last} (inclusive) of the resource. A server that
+   * doesn't support ranges sends the whole thing anyway, so callers mustn't rely on the length.
+   */
+  public void setRange(long first, long last) {
+    range = "bytes=" + first + "-" + last;
+    setShouldCache(false);
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    return range == null ? Collections.emptyMap() : Collections.singletonMap("Range", range);
+  }
+
   @Override
   protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
     return response.statusCode < 400
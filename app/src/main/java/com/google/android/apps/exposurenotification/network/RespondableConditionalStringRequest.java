@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.Nullable;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.Response.Listener;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.auto.value.AutoValue;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A GET request for a string resource that we may already have, made conditional on the validators
+ * (ETag and/or Last-Modified) the server gave us with our copy. Delivers either the new content
+ * along with its validators, or just the fact that our copy is still current.
+ *
+ * <p>Volley's own cache would do this for us, but our request queue deliberately has no cache, so
+ * that nothing we download lingers on disk. Callers instead keep whatever small state they need.
+ *
+ * <p>Like the other Respondable requests, {@link #deliverResponse(Result)} and {@link
+ * #parseNetworkResponse(NetworkResponse)} are public so that a fake request queue can deliver a
+ * test's response.
+ */
+public class RespondableConditionalStringRequest
+    extends Request<RespondableConditionalStringRequest.Result> implements ResponseSizeAware {
+
+  private final Listener<Result> listener;
+  @Nullable
+  private final String etag;
+  @Nullable
+  private final String lastModified;
+  @Nullable
+  private volatile ResponseSize responseSize;
+
+  /**
+   * The outcome of a {@link RespondableConditionalStringRequest}.
+   */
+  @AutoValue
+  public abstract static class Result {
+
+    /**
+     * True if the server says our copy is current (HTTP 304), in which case there's no content.
+     */
+    public abstract boolean notModified();
+
+    @Nullable
+    public abstract String content();
+
+    @Nullable
+    public abstract String etag();
+
+    @Nullable
+    public abstract String lastModified();
+
+    /**
+     * How big the content was on the wire and once decoded, if we know.
+     */
+    @Nullable
+    public abstract ResponseSize responseSize();
+
+    public static Result notModifiedResult() {
+      return new AutoValue_RespondableConditionalStringRequest_Result(
+          true, null, null, null, null);
+    }
+
+    public static Result modified(
+        String content,
+        @Nullable String etag,
+        @Nullable String lastModified,
+        @Nullable ResponseSize responseSize) {
+      return new AutoValue_RespondableConditionalStringRequest_Result(
+          false, content, etag, lastModified, responseSize);
+    }
+  }
+
+  /**
+   * Creates a request for {@code url}, conditional on the given validators. With both validators
+   * null this is an unconditional GET.
+   */
+  public RespondableConditionalStringRequest(
+      String url,
+      @Nullable String etag,
+      @Nullable String lastModified,
+      Listener<Result> listener,
+      ErrorListener errorListener,
+      Clock clock) {
+    super(Method.GET, url, errorListener);
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.listener = listener;
+    setShouldCache(false);
+    setShouldRetryServerErrors(true);
+    setRetryPolicy(new CustomRetryPolicy(clock));
+  }
+
+  @Override
+  public void setResponseSize(ResponseSize responseSize) {
+    this.responseSize = responseSize;
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    if (etag == null && lastModified == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> headers = new HashMap<>();
+    if (etag != null) {
+      headers.put("If-None-Match", etag);
+    }
+    if (lastModified != null) {
+      headers.put("If-Modified-Since", lastModified);
+    }
+    return headers;
+  }
+
+  @Override
+  public Response<Result> parseNetworkResponse(NetworkResponse response) {
+    if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      return Response.success(Result.notModifiedResult(), /* cacheEntry= */ null);
+    }
+    if (response.statusCode >= 400) {
+      return Response.error(new VolleyError(response));
+    }
+    Map<String, String> headers =
+        response.headers != null ? response.headers : Collections.emptyMap();
+    List<Header> allHeaders =
+        response.allHeaders != null ? response.allHeaders : Collections.emptyList();
+    byte[] data = response.data != null ? response.data : new byte[0];
+    String content;
+    try {
+      content = new String(data, HttpHeaderParser.parseCharset(headers));
+    } catch (UnsupportedEncodingException e) {
+      content = new String(data);
+    }
+    return Response.success(
+        Result.modified(
+            content,
+            header(allHeaders, "ETag"),
+            header(allHeaders, "Last-Modified"),
+            responseSize),
+        /* cacheEntry= */ null);
+  }
+
+  @Override
+  public void deliverResponse(Result response) {
+    listener.onResponse(response);
+  }
+
+  @Nullable
+  private static String header(List<Header> headers, String name) {
+    for (Header header : headers) {
+      if (header.getName().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+import com.android.volley.VolleyError;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request for a keyfile whose response body is written straight into a local {@link File}
+ * instead of being held in memory as a {@code byte[]}. Delivers the number of bytes in the file.
+ *
+ * <p>The {@link StreamingNetwork} streams the body into the file via {@link #writeBody(int, List,
+ * InputStream, byte[])} as it arrives. Any other network buffers the body as usual, in which case
+ * we write the buffered bytes out in one go when parsing the response.
+ *
+ * <p>A request may resume an earlier, interrupted download of the same file with {@link
+ * #setResumeFrom(long, String)}. We then ask only for the remaining bytes with a {@code Range}
+ * header, guarded by an {@code If-Range} on the file's ETag: if the file changed on the server, the
+ * server sends the whole new file and we start over from an empty file.
+ *
+ * <p>Like the other Respondable requests, {@link #deliverResponse(Long)} is public so that a fake
+ * request queue can deliver a test's response.
+ */
+public class RespondableFileRequest extends Request<Long> {
+
+  /**
+   * The status a server answers a {@code Range} starting at or past the end of the file with.
+   */
+  public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+  // How often to report progress while streaming a body, so that we lose at most this much of a
+  // download if the process dies part way through.
+  private static final long PROGRESS_INTERVAL_BYTES = 256 * 1024;
+  private static final int BUFFER_SIZE_BYTES = 16 * 1024;
+
+  private final File file;
+  private final Response.Listener<Long> listener;
+  @Nullable
+  private ProgressListener progressListener;
+  private long resumeOffset = 0;
+  @Nullable
+  private String etag;
+  private boolean streamed = false;
+  private long bytesWritten = 0;
+
+  /**
+   * Listens for how much of the response body is safely on disk.
+   */
+  public interface ProgressListener {
+
+    /**
+     * Called from the network thread as the body is written. {@code etag} is the ETag the server
+     * gave for the file, or null if it gave none, in which case the download can't be resumed.
+     */
+    void onProgress(@Nullable String etag, long bytesOnDisk);
+  }
+
+  public RespondableFileRequest(
+      Uri uri,
+      File file,
+      Response.Listener<Long> listener,
+      ErrorListener errorListener,
+      Clock clock) {
+    super(Method.GET, uri.toString(), errorListener);
+    this.file = file;
+    this.listener = listener;
+    setShouldCache(false);
+    setShouldRetryServerErrors(true);
+    setRetryPolicy(new CustomRetryPolicy(clock));
+  }
+
+  /**
+   * The local file the response body is written to.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Resumes a download whose first {@code offset} bytes are already in this request's file, as
+   * long as the server's copy of the file still has the given {@code etag}.
+   */
+  public synchronized void setResumeFrom(long offset, String etag) {
+    this.resumeOffset = offset;
+    this.etag = etag;
+  }
+
+  /**
+   * Whether we're asking only for the part of the file we don't have yet.
+   */
+  public synchronized boolean isResuming() {
+    return resumeOffset > 0 && etag != null;
+  }
+
+  /**
+   * Forgets the resume offset, so that the next attempt asks for the whole file.
+   */
+  public synchronized void clearResume() {
+    resumeOffset = 0;
+    etag = null;
+  }
+
+  public synchronized void setProgressListener(@Nullable ProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * The ETag of the file being downloaded, or null if we don't know it (yet).
+   */
+  @Nullable
+  public synchronized String getEtag() {
+    return etag;
+  }
+
+  @Override
+  public synchronized Map<String, String> getHeaders() {
+    if (resumeOffset <= 0 || etag == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> headers = new HashMap<>();
+    headers.put("Range", "bytes=" + resumeOffset + "-");
+    headers.put("If-Range", etag);
+    return headers;
+  }
+
+  /**
+   * Copies a full (200) response body from {@code in} into this request's file, replacing any
+   * earlier content, and returns the number of bytes written.
+   */
+  public long writeBody(InputStream in, byte[] buffer) throws IOException {
+    return writeBody(HttpURLConnection.HTTP_OK, Collections.emptyList(), in, buffer);
+  }
+
+  /**
+   * Copies the response body from {@code in} into this request's file and returns the number of
+   * bytes now in the file.
+   *
+   * <p>A partial (206) response continuing from our resume offset is appended to the bytes we
+   * already have; anything else replaces them. Only {@code buffer} is used to hold body bytes in
+   * memory, so callers control the footprint of each download and may reuse the buffer across
+   * requests.
+   */
+  public long writeBody(int statusCode, List<Header> headers, InputStream in, byte[] buffer)
+      throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+    long offset = startOffset(statusCode, headers);
+    String responseEtag = offset > 0 ? getEtag() : header(headers, "ETag");
+    ProgressListener progress = getProgressListener();
+    long total = offset;
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.setLength(offset);
+      out.seek(offset);
+      long lastReported = total;
+      reportProgress(progress, responseEtag, total);
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        if (isCanceled()) {
+          throw new IOException("Request cancelled");
+        }
+        out.write(buffer, 0, read);
+        total += read;
+        if (total - lastReported >= PROGRESS_INTERVAL_BYTES) {
+          lastReported = total;
+          reportProgress(progress, responseEtag, total);
+        }
+      }
+    } finally {
+      // Whatever made it to disk can be resumed from, by this request's retries or a later one.
+      synchronized (this) {
+        resumeOffset = total;
+        etag = responseEtag;
+      }
+      reportProgress(progress, responseEtag, total);
+    }
+    streamed = true;
+    bytesWritten = total;
+    return total;
+  }
+
+  @Override
+  protected Response<Long> parseNetworkResponse(NetworkResponse response) {
+    if (response.statusCode >= 400) {
+      return Response.error(new VolleyError(response));
+    }
+    if (!streamed) {
+      // The network buffered the body for us, so write it out now.
+      byte[] data = response.data != null ? response.data : new byte[0];
+      List<Header> headers =
+          response.allHeaders != null ? response.allHeaders : Collections.emptyList();
+      try {
+        bytesWritten = writeBody(response.statusCode, headers, new ByteArrayInputStream(data),
+            new byte[BUFFER_SIZE_BYTES]);
+      } catch (IOException e) {
+        return Response.error(new VolleyError(e));
+      }
+    }
+    return Response.success(bytesWritten, /* cacheEntry= */ null);
+  }
+
+  @Override
+  public void deliverResponse(Long response) {
+    listener.onResponse(response);
+  }
+
+  /**
+   * Works out where in the file the body starts: at our resume offset if the server sent exactly
+   * the range we asked for, otherwise at the start.
+   */
+  private synchronized long startOffset(int statusCode, List<Header> headers)
+      throws IOException {
+    if (statusCode != HttpURLConnection.HTTP_PARTIAL || resumeOffset <= 0 || etag == null) {
+      return 0;
+    }
+    String contentRange = header(headers, "Content-Range");
+    if (contentRange == null
+        || !contentRange.startsWith("bytes " + resumeOffset + "-")
+        || file.length() < resumeOffset) {
+      // We can't safely stitch this body onto what we have. Forget it, so a retry starts over.
+      String message = "Unable to resume from " + resumeOffset + ", got " + contentRange;
+      resumeOffset = 0;
+      etag = null;
+      throw new IOException(message);
+    }
+    return resumeOffset;
+  }
+
+  @Nullable
+  private synchronized ProgressListener getProgressListener() {
+    return progressListener;
+  }
+
+  private static void reportProgress(
+      @Nullable ProgressListener progress, @Nullable String etag, long bytesOnDisk) {
+    if (progress != null) {
+      progress.onProgress(etag, bytesOnDisk);
+    }
+  }
+
+  @Nullable
+  private static String header(List<Header> headers, String name) {
+    for (Header header : headers) {
+      if (header.getName().equalsIgnoreCase(name)) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+}
@@ -17,6 +17,7 @@
 
 package com.google.android.apps.exposurenotification.network;
 
+import androidx.annotation.Nullable;
 import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Response;
@@ -31,6 +32,9 @@ import org.json.JSONObject;
  *
  * <p>This is a bit of an unfortunate workaround, but other alternatives that were considered were
  * even more awkward or complicated.
+ *
+ * <p>The request body may be given as a {@link JsonPayload} already serialized by a {@link
+ * JsonPayloadWriter}, which is sent as is, instead of as a {@link JSONObject}.
  */
 public class RespondableJsonObjectRequest extends JsonObjectRequest {
 
@@ -38,16 +42,34 @@ public class RespondableJsonObjectRequest extends JsonObjectRequest {
       Response.success(new JSONObject(), new Cache.Entry());
 
   protected final boolean isCoverTraffic;
+  @Nullable
+  private final JsonPayload payload;
 
   public RespondableJsonObjectRequest(
       int method, String url, JSONObject jsonRequest, Listener<JSONObject> listener,
       Response.ErrorListener errorListener, Clock clock, boolean isCoverTraffic) {
     super(method, url, jsonRequest, listener, errorListener);
     this.isCoverTraffic = isCoverTraffic;
+    this.payload = null;
     setShouldRetryServerErrors(true);
     setRetryPolicy(new CustomRetryPolicy(clock));
   }
 
+  public RespondableJsonObjectRequest(
+      int method, String url, JsonPayload payload, Listener<JSONObject> listener,
+      Response.ErrorListener errorListener, Clock clock, boolean isCoverTraffic) {
+    super(method, url, (JSONObject) null, listener, errorListener);
+    this.isCoverTraffic = isCoverTraffic;
+    this.payload = payload;
+    setShouldRetryServerErrors(true);
+    setRetryPolicy(new CustomRetryPolicy(clock));
+  }
+
+  @Override
+  public byte[] getBody() {
+    return payload != null ? payload.bytes() : super.getBody();
+  }
+
   @Override
   public void deliverResponse(JSONObject response) {
     super.deliverResponse(response);
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * A value class holding how big a response body was as it came over the network, and once any
+ * content encoding (e.g. gzip) was decoded.
+ */
+@AutoValue
+public abstract class ResponseSize {
+
+  public abstract long wireBytes();
+
+  public abstract long decodedBytes();
+
+  public static ResponseSize create(long wireBytes, long decodedBytes) {
+    return new AutoValue_ResponseSize(wireBytes, decodedBytes);
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+/**
+ * A request that wants to be told the {@link ResponseSize} of its response, for example to log it.
+ *
+ * <p>{@link ContentEncodingHttpStack} calls {@link #setResponseSize(ResponseSize)} on the network
+ * thread once the whole body has been read, which is before the response is parsed.
+ */
+public interface ResponseSizeAware {
+
+  void setResponseSize(ResponseSize responseSize);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import androidx.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.VolleyError;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A Volley {@link Network} that merges identical GET requests in flight at the same time into one
+ * call to the network underneath. The first such request makes the call; any identical request
+ * arriving before it completes waits for that call and gets the same {@link NetworkResponse} (or
+ * {@link VolleyError}), which it then parses and delivers to its own listeners as usual.
+ *
+ * <p>Requests are identical if they are of the same class, for the same URL and with the same
+ * headers, so that, say, a conditional GET is never answered with an unconditional one's
+ * response. {@link RespondableFileRequest}s are never merged: their bodies go to their own files
+ * rather than into the response.
+ */
+public class SingleFlightNetwork implements Network {
+
+  private static final Logger logger = Logger.getLogger("SingleFlightNetwork");
+
+  private final Network network;
+  private final ConcurrentMap<String, SettableFuture<NetworkResponse>> inFlight =
+      new ConcurrentHashMap<>();
+
+  public SingleFlightNetwork(Network network) {
+    this.network = network;
+  }
+
+  @Override
+  public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+    String key = keyOf(request);
+    if (key == null) {
+      return network.performRequest(request);
+    }
+
+    SettableFuture<NetworkResponse> ours = SettableFuture.create();
+    SettableFuture<NetworkResponse> leader = inFlight.putIfAbsent(key, ours);
+    if (leader != null) {
+      logger.d("Joining in-flight request for " + request.getUrl());
+      request.addMarker("single-flight-join");
+      return await(leader);
+    }
+
+    try {
+      NetworkResponse response = network.performRequest(request);
+      inFlight.remove(key, ours);
+      ours.set(response);
+      return response;
+    } catch (VolleyError | RuntimeException e) {
+      inFlight.remove(key, ours);
+      ours.setException(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the key identifying requests that may share a network call, or null if this request
+   * must make its own.
+   */
+  @Nullable
+  private static String keyOf(Request<?> request) {
+    if (request.getMethod() != Method.GET || request instanceof RespondableFileRequest) {
+      return null;
+    }
+    try {
+      // Sort the headers, so their order doesn't matter.
+      Map<String, String> headers = new TreeMap<>(request.getHeaders());
+      return request.getClass().getName() + " " + request.getUrl() + " " + headers;
+    } catch (AuthFailureError e) {
+      return null;
+    }
+  }
+
+  private static NetworkResponse await(SettableFuture<NetworkResponse> leader)
+      throws VolleyError {
+    try {
+      return leader.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VolleyError(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof VolleyError) {
+        throw (VolleyError) e.getCause();
+      }
+      throw new VolleyError(e.getCause());
+    }
+  }
+}
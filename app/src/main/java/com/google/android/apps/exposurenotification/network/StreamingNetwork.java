@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import android.os.SystemClock;
+import androidx.annotation.VisibleForTesting;
+import com.android.volley.AuthFailureError;
+import com.android.volley.ClientError;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.RetryPolicy;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.HttpResponse;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Volley {@link Network} that streams the bodies of {@link RespondableFileRequest}s straight to
+ * disk through a small pool of reusable buffers. All other requests go to a regular {@link
+ * BasicNetwork}, which buffers the whole response body in memory.
+ *
+ * <p>Error handling and retries mirror {@link BasicNetwork}, so a {@link RespondableFileRequest}
+ * sees the same {@link VolleyError}s and the same {@link RetryPolicy} behaviour as any other
+ * request.
+ */
+public class StreamingNetwork implements Network {
+
+  private static final Logger logger = Logger.getLogger("StreamingNetwork");
+
+  // Each in-flight file download holds one buffer of this size, whatever the size of the file.
+  @VisibleForTesting
+  static final int BUFFER_SIZE_BYTES = 16 * 1024;
+  // Enough to keep a buffer per dispatcher thread of the lane that carries keyfile downloads.
+  private static final int BUFFER_POOL_SIZE_BYTES = 4 * BUFFER_SIZE_BYTES;
+
+  private final BaseHttpStack stack;
+  private final ByteArrayPool pool;
+  private final Network bufferingNetwork;
+
+  public StreamingNetwork(BaseHttpStack stack) {
+    this.stack = stack;
+    this.pool = new ByteArrayPool(BUFFER_POOL_SIZE_BYTES);
+    this.bufferingNetwork = new BasicNetwork(stack, pool);
+  }
+
+  @Override
+  public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+    if (!(request instanceof RespondableFileRequest)) {
+      return bufferingNetwork.performRequest(request);
+    }
+    RespondableFileRequest fileRequest = (RespondableFileRequest) request;
+    long requestStart = SystemClock.elapsedRealtime();
+    while (true) {
+      HttpResponse httpResponse = null;
+      try {
+        httpResponse = stack.executeRequest(request, Collections.emptyMap());
+        int statusCode = httpResponse.getStatusCode();
+        List<Header> headers = httpResponse.getHeaders();
+
+        if (statusCode >= 200 && statusCode <= 299) {
+          long bytesWritten = streamToFile(fileRequest, statusCode, headers, httpResponse);
+          logger.d("Streamed to " + fileRequest.getFile() + ", now " + bytesWritten + " bytes");
+          // The body is on disk now; the response we hand back to Volley carries no data.
+          return new NetworkResponse(
+              statusCode,
+              new byte[0],
+              /* notModified= */ false,
+              SystemClock.elapsedRealtime() - requestStart,
+              headers);
+        }
+
+        NetworkResponse errorResponse = new NetworkResponse(
+            statusCode,
+            readErrorBody(httpResponse),
+            /* notModified= */ false,
+            SystemClock.elapsedRealtime() - requestStart,
+            headers);
+        if (statusCode == RespondableFileRequest.HTTP_RANGE_NOT_SATISFIABLE
+            && fileRequest.isResuming()) {
+          // We asked to resume from past the end of the server's file, most likely because an
+          // earlier run finished it but never got to forget its journal. Start over from scratch.
+          // This takes no retry, and can't happen twice since we're no longer resuming.
+          logger.w("Unable to resume " + request.getUrl() + ", downloading it again");
+          request.addMarker("range-restart");
+          fileRequest.clearResume();
+        } else if (statusCode == HttpURLConnection.HTTP_UNAUTHORIZED
+            || statusCode == HttpURLConnection.HTTP_FORBIDDEN) {
+          attemptRetryOnException("auth", request, new AuthFailureError(errorResponse));
+        } else if (statusCode >= 400 && statusCode <= 499) {
+          throw new ClientError(errorResponse);
+        } else if (statusCode >= 500 && statusCode <= 599 && request.shouldRetryServerErrors()) {
+          attemptRetryOnException("server", request, new ServerError(errorResponse));
+        } else {
+          throw new ServerError(errorResponse);
+        }
+      } catch (SocketTimeoutException e) {
+        attemptRetryOnException("socket", request, new TimeoutError());
+      } catch (MalformedURLException e) {
+        throw new RuntimeException("Bad URL " + request.getUrl(), e);
+      } catch (IOException e) {
+        if (httpResponse == null) {
+          throw new NoConnectionError(e);
+        }
+        if (request.isCanceled()) {
+          // No one wants the file anymore, so don't spend any retries on it.
+          throw new NetworkError(e);
+        }
+        // The connection dropped part way through the body. The next attempt either resumes from
+        // what we've written or rewrites the file from the start, so it is safe to retry.
+        logger.w("Stream interrupted for " + request.getUrl(), e);
+        attemptRetryOnException("stream", request, new NetworkError(e));
+      }
+    }
+  }
+
+  private long streamToFile(
+      RespondableFileRequest request,
+      int statusCode,
+      List<Header> headers,
+      HttpResponse httpResponse) throws IOException {
+    byte[] buffer = pool.getBuf(BUFFER_SIZE_BYTES);
+    try (InputStream content = httpResponse.getContent()) {
+      if (content == null) {
+        return request.writeBody(
+            statusCode, headers, new ByteArrayInputStream(new byte[0]), buffer);
+      }
+      return request.writeBody(statusCode, headers, content, buffer);
+    } finally {
+      pool.returnBuf(buffer);
+    }
+  }
+
+  private byte[] readErrorBody(HttpResponse httpResponse) throws IOException {
+    byte[] buffer = pool.getBuf(BUFFER_SIZE_BYTES);
+    try (InputStream content = httpResponse.getContent()) {
+      if (content == null) {
+        return new byte[0];
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int read;
+      while ((read = content.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      pool.returnBuf(buffer);
+    }
+  }
+
+  /**
+   * Consults the request's {@link RetryPolicy}, which throws {@code exception} if we're out of
+   * retries, in the same way {@link BasicNetwork} does.
+   */
+  private static void attemptRetryOnException(
+      String logPrefix, Request<?> request, VolleyError exception) throws VolleyError {
+    RetryPolicy retryPolicy = request.getRetryPolicy();
+    int oldTimeout = request.getTimeoutMs();
+    try {
+      retryPolicy.retry(exception);
+    } catch (VolleyError e) {
+      request.addMarker(String.format("%s-timeout-giveup [timeout=%s]", logPrefix, oldTimeout));
+      throw e;
+    }
+    request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.HttpResponse;
+import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import org.threeten.bp.Duration;
+
+/**
+ * A {@link BaseHttpStack} that times the phases of each request and logs them, as latency
+ * histograms, against the {@link RpcCallType} the request is tagged with (see {@link
+ * Request#setTag(Object)}). Untagged requests are not timed.
+ *
+ * <p>Each attempt of a request is timed on its own, so a retried request logs once per attempt.
+ */
+public class TimingHttpStack extends BaseHttpStack {
+
+  private final BaseHttpStack stack;
+  private final AnalyticsLogger analyticsLogger;
+
+  public TimingHttpStack(BaseHttpStack stack, AnalyticsLogger analyticsLogger) {
+    this.stack = stack;
+    this.analyticsLogger = analyticsLogger;
+  }
+
+  @Override
+  public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+      throws IOException, AuthFailureError {
+    if (!(request.getTag() instanceof RpcCallType)) {
+      return stack.executeRequest(request, additionalHeaders);
+    }
+    RpcCallType rpcCallType = (RpcCallType) request.getTag();
+    long start = SystemClock.elapsedRealtime();
+    HttpResponse response = stack.executeRequest(request, additionalHeaders);
+    long headersReceived = SystemClock.elapsedRealtime();
+    Duration timeToFirstByte = Duration.ofMillis(headersReceived - start);
+
+    InputStream content = response.getContent();
+    if (content == null) {
+      analyticsLogger.logRpcCallLatencyAsync(
+          rpcCallType, RequestTiming.create(timeToFirstByte, Duration.ZERO));
+      return response;
+    }
+    return new HttpResponse(
+        response.getStatusCode(),
+        response.getHeaders(),
+        response.getContentLength(),
+        new TimedInputStream(content, rpcCallType, timeToFirstByte, headersReceived));
+  }
+
+  /**
+   * Logs the request's timing once its body has been read to the end, or closed before then.
+   */
+  private class TimedInputStream extends FilterInputStream {
+
+    private final RpcCallType rpcCallType;
+    private final Duration timeToFirstByte;
+    private final long headersReceived;
+    private boolean logged = false;
+
+    TimedInputStream(
+        InputStream in, RpcCallType rpcCallType, Duration timeToFirstByte, long headersReceived) {
+      super(in);
+      this.rpcCallType = rpcCallType;
+      this.timeToFirstByte = timeToFirstByte;
+      this.headersReceived = headersReceived;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b == -1) {
+        log(Duration.ofMillis(SystemClock.elapsedRealtime() - headersReceived));
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read == -1) {
+        log(Duration.ofMillis(SystemClock.elapsedRealtime() - headersReceived));
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // If we get here before the end of the body, there's no transfer time to speak of.
+      log(null);
+      super.close();
+    }
+
+    private void log(@Nullable Duration transfer) {
+      if (logged) {
+        return;
+      }
+      logged = true;
+      analyticsLogger.logRpcCallLatencyAsync(
+          rpcCallType, RequestTiming.create(timeToFirstByte, transfer));
+    }
+  }
+}
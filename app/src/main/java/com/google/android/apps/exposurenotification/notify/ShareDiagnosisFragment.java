@@ -134,6 +134,7 @@ public class ShareDiagnosisFragment extends BaseFragment {
     super.onViewCreated(view, savedInstanceState);
 
     shareDiagnosisViewModel = new ViewModelProvider(this).get(ShareDiagnosisViewModel.class);
+    shareDiagnosisViewModel.prewarmConnections();
 
     if (savedInstanceState != null) {
       // If this is a configuration change such as rotation, restore the fragment that was
@@ -58,6 +58,8 @@ import com.google.android.apps.exposurenotification.keyupload.UploadController;
 import com.google.android.apps.exposurenotification.keyupload.UploadController.NoInternetException;
 import com.google.android.apps.exposurenotification.keyupload.UploadController.UploadException;
 import com.google.android.apps.exposurenotification.keyupload.UploadError;
+import com.google.android.apps.exposurenotification.keyupload.UploadOutbox;
+import com.google.android.apps.exposurenotification.keyupload.UploadOutbox.QueuedForRetryException;
 import com.google.android.apps.exposurenotification.keyupload.UserReportUpload;
 import com.google.android.apps.exposurenotification.nearby.ExposureNotificationClientWrapper;
 import com.google.android.apps.exposurenotification.network.Connectivity;
@@ -171,6 +173,7 @@ public class ShareDiagnosisViewModel extends ViewModel {
   private final DiagnosisRepository diagnosisRepository;
   private final VerificationCodeRequestRepository requestRepository;
   private final UploadController uploadController;
+  private final UploadOutbox uploadOutbox;
   private final ExposureNotificationClientWrapper exposureNotificationClientWrapper;
   private final Resources resources;
   private final ExposureNotificationSharedPreferences exposureNotificationSharedPreferences;
@@ -240,6 +243,7 @@ public class ShareDiagnosisViewModel extends ViewModel {
       @ApplicationContext Context context,
       SavedStateHandle savedStateHandle,
       UploadController uploadController,
+      UploadOutbox uploadOutbox,
       DiagnosisRepository diagnosisRepository,
       VerificationCodeRequestRepository requestRepository,
       ExposureNotificationClientWrapper exposureNotificationClientWrapper,
@@ -256,6 +260,7 @@ public class ShareDiagnosisViewModel extends ViewModel {
     this.context = context;
     this.savedStateHandle = savedStateHandle;
     this.uploadController = uploadController;
+    this.uploadOutbox = uploadOutbox;
     this.diagnosisRepository = diagnosisRepository;
     this.requestRepository = requestRepository;
     this.exposureNotificationClientWrapper = exposureNotificationClientWrapper;
@@ -300,6 +305,13 @@ public class ShareDiagnosisViewModel extends ViewModel {
     }
   }
 
+  /**
+   * Gets connections to the servers ready in the background, ahead of the user submitting a code.
+   */
+  public void prewarmConnections() {
+    uploadController.prewarmConnections();
+  }
+
   public void setCurrentDiagnosisId(long id) {
     currentDiagnosisId.setValue(id);
   }
@@ -602,14 +614,36 @@ public class ShareDiagnosisViewModel extends ViewModel {
 
   /**
    * Share the keys.
+   *
+   * <p>The steps that don't depend on each other run at the same time, so that the user waits
+   * mostly on the round trips to the servers: we read the current diagnosis and the last revision
+   * token from storage while we get the keys from the EN API, and compute the HMAC of the keys as
+   * soon as we have them. The revision token isn't needed until after the certificate request.
    */
   public ListenableFuture<?> uploadKeys() {
     inFlightLiveData.postValue(true);
 
-    return FluentFuture.from(getRecentKeys())
-        .transform(
-            this::toDiagnosisKeysWithTransmissionRisk, lightweightExecutor)
-        .transformAsync(this::getCertAndUploadKeys, backgroundExecutor)
+    String hmacKeyBase64 = SecureRandomUtil.newHmacKey(secureRandom);
+    ListenableFuture<ImmutableList<DiagnosisKey>> diagnosisKeys = FluentFuture.from(getRecentKeys())
+        .transform(this::toDiagnosisKeysWithTransmissionRisk, lightweightExecutor);
+    ListenableFuture<String> keysHmac = Futures.transform(
+        diagnosisKeys,
+        keys -> uploadController.computeKeysHmac(keys, hmacKeyBase64),
+        backgroundExecutor);
+    ListenableFuture<DiagnosisEntity> currentDiagnosis = getCurrentDiagnosis();
+    ListenableFuture<String> revisionToken =
+        diagnosisRepository.getMostRecentRevisionTokenAsync();
+
+    return FluentFuture.from(
+        Futures.whenAllSucceed(diagnosisKeys, keysHmac, currentDiagnosis)
+            .call(
+                () -> toUpload(
+                    Futures.getDone(currentDiagnosis),
+                    Futures.getDone(diagnosisKeys),
+                    hmacKeyBase64,
+                    Futures.getDone(keysHmac)),
+                lightweightExecutor))
+        .transformAsync(upload -> getCertAndUploadKeys(upload, revisionToken), backgroundExecutor)
         .transform(
             unused -> {
               inFlightLiveData.postValue(false);
@@ -625,6 +659,11 @@ public class ShareDiagnosisViewModel extends ViewModel {
           handleUploadError(ex.getUploadError(), snackbarLiveEvent);
           return null;
         }, lightweightExecutor)
+        .catching(QueuedForRetryException.class, ex -> {
+          snackbarLiveEvent.postValue(resources.getString(R.string.share_queued_for_retry));
+          inFlightLiveData.postValue(false);
+          return null;
+        }, lightweightExecutor)
         .catching(ApiException.class, ex -> {
           if (ex.getStatusCode() == ExposureNotificationStatusCodes.RESOLUTION_REQUIRED) {
             teksReleaseResolutionRequiredLiveEvent.postValue(ex);
@@ -643,6 +682,68 @@ public class ShareDiagnosisViewModel extends ViewModel {
         }, lightweightExecutor);
   }
 
+  /**
+   * Uploads the certified keys. If that fails in a way that may clear up by itself, such as a lost
+   * connection or a server error, the upload goes in the {@link UploadOutbox} to be retried in the
+   * background instead, and we fail with a {@link QueuedForRetryException} so the user hears that
+   * it will be retried, not that it failed. Only if we can't queue it does the failure itself reach
+   * the user.
+   */
+  private ListenableFuture<Upload> uploadOrQueueForRetry(Upload upload) {
+    return FluentFuture.from(uploadController.upload(upload))
+        .transformAsync(
+            uploaded -> {
+              // An earlier attempt at this same upload may still be queued.
+              uploadOutbox.remove(uploaded);
+              return FluentFuture.from(queueFailedRegions(uploaded))
+                  .transform(unused -> uploaded, lightweightExecutor);
+            },
+            lightweightExecutor)
+        .catchingAsync(
+            Exception.class,
+            ex -> {
+              if (!UploadOutbox.isRetryable(ex)) {
+                return Futures.immediateFailedFuture(ex);
+              }
+              return FluentFuture.from(getCurrentDiagnosis())
+                  .transformAsync(
+                      diagnosis -> uploadOutbox.add(diagnosis.getId(), upload),
+                      lightweightExecutor)
+                  .transform(unused -> true, lightweightExecutor)
+                  .catching(
+                      Exception.class,
+                      queueEx -> {
+                        // The user can still retry by hand, so the upload error is what matters.
+                        logger.w("Failed to queue upload for retry", queueEx);
+                        return false;
+                      },
+                      lightweightExecutor)
+                  .transformAsync(
+                      queued -> Futures.<Upload>immediateFailedFuture(
+                          queued ? new QueuedForRetryException() : ex),
+                      lightweightExecutor);
+            },
+            lightweightExecutor);
+  }
+
+  /**
+   * Queues an upload that made it to our own region's keyserver for a background retry at any
+   * other region's it failed at. Doesn't fail, as the upload itself went through.
+   */
+  private ListenableFuture<Void> queueFailedRegions(Upload uploaded) {
+    return FluentFuture.from(getCurrentDiagnosis())
+        .transformAsync(
+            diagnosis -> uploadOutbox.addFailedRegions(diagnosis.getId(), uploaded),
+            lightweightExecutor)
+        .catching(
+            Exception.class,
+            ex -> {
+              logger.w("Failed to queue upload for retry at other regions", ex);
+              return null;
+            },
+            lightweightExecutor);
+  }
+
   /**
    * Gets recent (initially 14 days) Temporary Exposure Keys from Google Play Services.
    */
@@ -1012,12 +1113,29 @@ public class ShareDiagnosisViewModel extends ViewModel {
     }
   }
 
+  /**
+   * Constructs an {@link Upload} of our keys from some fields of the current diagnosis.
+   */
+  private static Upload toUpload(
+      DiagnosisEntity diagnosis,
+      ImmutableList<DiagnosisKey> diagnosisKeys,
+      String hmacKeyBase64,
+      String keysHmacBase64) {
+    return Upload.newBuilder(diagnosisKeys, diagnosis.getVerificationCode(), hmacKeyBase64)
+        .setKeysHmacBase64(keysHmacBase64)
+        .setLongTermToken(diagnosis.getLongTermToken())
+        .setSymptomOnset(diagnosis.getOnsetDate())
+        .setCertificate(diagnosis.getCertificate())
+        .setHasTraveled(TravelStatus.TRAVELED.equals(diagnosis.getTravelStatus()))
+        .setTestType(diagnosis.getTestResult().toApiType())
+        .build();
+  }
+
   /**
    * Submits TEKs and our diagnosis for sharing to other EN participating devices.
    *
    * <p>This involves these steps:
    * <ol>
-   *   <li>Grab some info from the current diagnosis in local storage.
    *   <li>Submit our TEKs to the verification server to get them signed (obtain a cert).
    *   <li>Submit the TEKs, the cert, and some other metadata to the keyserver
    * </ol>
@@ -1025,41 +1143,38 @@ public class ShareDiagnosisViewModel extends ViewModel {
    * <p>In order to support resumption of past partially-successful diagnosis sharing flows, this
    * series of operations tries to look at the state of the stored diagnosis and do the right thing.
    *
+   * @param diagnosisUpload built from the current diagnosis in local storage.
+   * @param revisionToken   the most recent revision token in local storage, if any, which may
+   *                        still be in the process of being read.
    * @return a {@link ListenableFuture} of type {@link Boolean} of successfully submitted state
    */
-  private ListenableFuture<?> getCertAndUploadKeys(ImmutableList<DiagnosisKey> diagnosisKeys) {
+  private ListenableFuture<?> getCertAndUploadKeys(
+      Upload diagnosisUpload, ListenableFuture<String> revisionToken) {
     logger.d("Certifying and uploading keys...");
     return FluentFuture.from(getCurrentDiagnosis())
-        .transform(
-            // Construct an Upload from some diagnosis fields.
-            diagnosis ->
-                Upload.newBuilder(diagnosisKeys, diagnosis.getVerificationCode(),
-                        SecureRandomUtil.newHmacKey(secureRandom))
-                    .setLongTermToken(diagnosis.getLongTermToken())
-                    .setSymptomOnset(diagnosis.getOnsetDate())
-                    .setCertificate(diagnosis.getCertificate())
-                    .setHasTraveled(TravelStatus.TRAVELED.equals(diagnosis.getTravelStatus()))
-                    .setTestType(diagnosis.getTestResult().toApiType())
-                    .build(),
-            lightweightExecutor)
         .transformAsync(
-            upload -> {
+            diagnosis -> uploadOutbox.hasPendingUpload(diagnosis.getId()), lightweightExecutor)
+        .transformAsync(
+            hasPendingUpload -> {
+              if (hasPendingUpload) {
+                // Still being retried in the background. Uploading again by hand would race it.
+                throw new QueuedForRetryException();
+              }
               logger.d("Submitting keys to verification server for certificate...");
               // We normally do not have a certificate yet, but in some cases like resuming a past
               // failed upload, we have one already. Get one if we need one.
-              if (Strings.isNullOrEmpty(upload.certificate())) {
-                return uploadController.submitKeysForCert(upload);
-              }
-              return Futures.immediateFuture(upload);
+              return Strings.isNullOrEmpty(diagnosisUpload.certificate())
+                  ? uploadController.submitKeysForCert(diagnosisUpload)
+                  : Futures.immediateFuture(diagnosisUpload);
             },
-            backgroundExecutor)
+            lightweightExecutor)
         .transformAsync(
-            this::addRevisionTokenToUpload, lightweightExecutor)
+            upload -> addRevisionTokenToUpload(upload, revisionToken), lightweightExecutor)
         .transformAsync(
             upload -> {
               logger.d("Uploading keys and cert to keyserver...");
               // Finally, the verification server having certified our diagnosis, upload our keys.
-              return uploadController.upload(upload);
+              return uploadOrQueueForRetry(upload);
             },
             backgroundExecutor)
         .transform(
@@ -1100,10 +1215,11 @@ public class ShareDiagnosisViewModel extends ViewModel {
             lightweightExecutor);
   }
 
-  private ListenableFuture<Upload> addRevisionTokenToUpload(Upload upload) {
-    return FluentFuture.from(diagnosisRepository.getMostRecentRevisionTokenAsync())
+  private ListenableFuture<Upload> addRevisionTokenToUpload(
+      Upload upload, ListenableFuture<String> revisionToken) {
+    return FluentFuture.from(revisionToken)
         .transform(
-            revisionToken -> upload.toBuilder().setRevisionToken(revisionToken).build(),
+            token -> upload.toBuilder().setRevisionToken(token).build(),
             backgroundExecutor);
   }
 
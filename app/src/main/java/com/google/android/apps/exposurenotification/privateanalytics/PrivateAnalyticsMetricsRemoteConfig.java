@@ -19,19 +19,10 @@ package com.google.android.apps.exposurenotification.privateanalytics;
 
 import android.net.Uri;
 import androidx.annotation.VisibleForTesting;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
-import com.android.volley.Response.ErrorListener;
-import com.android.volley.Response.Listener;
-import com.android.volley.VolleyError;
 import com.google.android.apps.exposurenotification.common.Qualifiers.LightweightExecutor;
 import com.google.android.apps.exposurenotification.common.logging.Logger;
-import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
 import com.google.android.apps.exposurenotification.privateanalytics.MetricsRemoteConfigs.Builder;
-import com.google.android.libraries.privateanalytics.DefaultPrivateAnalyticsRemoteConfig.FetchRemoteConfigRequest;
-import com.google.android.libraries.privateanalytics.PrivateAnalyticsEventListener;
 import com.google.android.libraries.privateanalytics.Qualifiers.RemoteConfigUri;
-import com.google.android.libraries.privateanalytics.utils.VolleyUtils;
-import com.google.common.base.Optional;
 import com.google.common.util.concurrent.FluentFuture;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -155,23 +146,20 @@ public class PrivateAnalyticsMetricsRemoteConfig {
 
   private final ListeningExecutorService lightweightExecutor;
   private final Uri remoteConfigUri;
-  private final Optional<PrivateAnalyticsEventListener> logger;
-  private final RequestQueueWrapper queue;
+  private final RemoteConfigCache remoteConfigCache;
 
   @Inject
   PrivateAnalyticsMetricsRemoteConfig(
       @LightweightExecutor ListeningExecutorService lightweightExecutor,
       @RemoteConfigUri Uri remoteConfigUri,
-      RequestQueueWrapper queue,
-      Optional<PrivateAnalyticsEventListener> logger) {
+      RemoteConfigCache remoteConfigCache) {
     this.lightweightExecutor = lightweightExecutor;
     this.remoteConfigUri = remoteConfigUri;
-    this.logger = logger;
-    this.queue = queue;
+    this.remoteConfigCache = remoteConfigCache;
   }
 
   public ListenableFuture<MetricsRemoteConfigs> fetchUpdatedConfigs() {
-    return FluentFuture.from(fetchUpdatedConfigsJson())
+    return FluentFuture.from(remoteConfigCache.get(remoteConfigUri))
         .transform(this::convertToRemoteConfig, lightweightExecutor)
         .catching(Exception.class, e -> {
           // Output the default RemoteConfigs for any exception thrown.
@@ -180,42 +168,6 @@ public class PrivateAnalyticsMetricsRemoteConfig {
         }, lightweightExecutor);
   }
 
-  private ListenableFuture<JSONObject> fetchUpdatedConfigsJson() {
-    return CallbackToFutureAdapter.getFuture(
-        completer -> {
-          Listener<JSONObject> responseListener =
-              response -> {
-                logSuccess(response);
-                completer.set(response);
-              };
-          ErrorListener errorListener =
-              err -> {
-                logFailure(err);
-                completer.set(null);
-              };
-          FetchRemoteConfigRequest request = new FetchRemoteConfigRequest(remoteConfigUri,
-              responseListener, errorListener);
-          queue.add(request);
-          return request;
-        });
-  }
-
-  private void logSuccess(JSONObject response) {
-    if (logger.isPresent()) {
-      logger.get()
-          .onPrivateAnalyticsRemoteConfigCallSuccess(
-              response.toString().length());
-    }
-    logcat.d("Successfully fetched remote configs.");
-  }
-
-  private void logFailure(VolleyError err) {
-    if (logger.isPresent()) {
-      logger.get().onPrivateAnalyticsRemoteConfigCallFailure(err);
-    }
-    logcat.d("Remote Config Fetch Failed: " + VolleyUtils.getErrorBody(err).toString());
-  }
-
   @VisibleForTesting
   MetricsRemoteConfigs convertToRemoteConfig(JSONObject jsonObject) {
     if (jsonObject == null) {
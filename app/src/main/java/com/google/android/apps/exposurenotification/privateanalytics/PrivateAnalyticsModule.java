@@ -58,8 +58,11 @@ public class PrivateAnalyticsModule {
   @Provides
   public PrivateAnalyticsRemoteConfig providesRemoteConfig(@RemoteConfigUri Uri remoteConfigUri,
       Optional<PrivateAnalyticsEventListener> listener,
-      PrivateAnalyticsLogger.Factory loggerFactory) {
-    return new DefaultPrivateAnalyticsRemoteConfig(remoteConfigUri, listener, loggerFactory);
+      PrivateAnalyticsLogger.Factory loggerFactory,
+      RemoteConfigCache remoteConfigCache) {
+    // Serve the library's config from our cache, which fetches through the app's HTTP transport.
+    return new DefaultPrivateAnalyticsRemoteConfig(
+        remoteConfigUri, listener, loggerFactory, remoteConfigCache::get);
   }
 
   @Provides
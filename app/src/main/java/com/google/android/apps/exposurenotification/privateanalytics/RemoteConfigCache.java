@@ -0,0 +1,190 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.privateanalytics;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
+import com.google.android.apps.exposurenotification.common.logging.Logger;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
+import com.google.android.apps.exposurenotification.network.RequestLane;
+import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
+import com.google.android.apps.exposurenotification.network.RespondableConditionalStringRequest;
+import com.google.android.apps.exposurenotification.network.RespondableConditionalStringRequest.Result;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.storage.RemoteConfigEntity;
+import com.google.android.apps.exposurenotification.storage.RemoteConfigRepository;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import javax.inject.Inject;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.threeten.bp.Duration;
+
+/**
+ * Serves remote config documents, going to the network only when our copy is out of date.
+ *
+ * <p>Both the private analytics library's remote config and the app's metrics remote config are
+ * read from the same document, which we keep in the database along with its validators and when
+ * we fetched it. A document younger than the configured TTL is served straight from the database,
+ * and once it's past {@link RemoteConfigCacheConfig#refreshAfter()} we also revalidate it in the
+ * background. An older document is revalidated before serving, with a conditional GET so that an
+ * unchanged document costs only a 304. If that fails, we serve the last good document we have.
+ */
+public class RemoteConfigCache {
+
+  private static final Logger logcat = Logger.getLogger("RemoteConfigCache");
+
+  private final RemoteConfigRepository repository;
+  private final RequestQueueWrapper queue;
+  private final Clock clock;
+  private final RemoteConfigCacheConfig config;
+  private final AnalyticsLogger analyticsLogger;
+  private final ListeningExecutorService backgroundExecutor;
+
+  @Inject
+  RemoteConfigCache(
+      RemoteConfigRepository repository,
+      RequestQueueWrapper queue,
+      Clock clock,
+      RemoteConfigCacheConfig config,
+      AnalyticsLogger analyticsLogger,
+      @BackgroundExecutor ListeningExecutorService backgroundExecutor) {
+    this.repository = repository;
+    this.queue = queue;
+    this.clock = clock;
+    this.config = config;
+    this.analyticsLogger = analyticsLogger;
+    this.backgroundExecutor = backgroundExecutor;
+  }
+
+  /**
+   * Returns the remote config document at the given URI, or resolves to null if we could neither
+   * fetch it nor find an earlier copy.
+   */
+  public ListenableFuture<JSONObject> get(Uri uri) {
+    return FluentFuture.from(backgroundExecutor.submit(() -> repository.get(uri)))
+        .transformAsync(cached -> serve(uri, cached), backgroundExecutor);
+  }
+
+  private ListenableFuture<JSONObject> serve(Uri uri, @Nullable RemoteConfigEntity cached) {
+    if (cached != null) {
+      Duration age = Duration.ofMillis(clock.currentTimeMillis() - cached.fetchedTimestampMs());
+      // A negative age means the clock moved back, so we can't tell how old our copy is.
+      JSONObject json = parse(cached.content());
+      if (json != null && !age.isNegative() && age.compareTo(config.ttl()) < 0) {
+        if (age.compareTo(config.refreshAfter()) >= 0) {
+          revalidateInBackground(uri, cached);
+        }
+        logcat.d("Serving cached remote config, age " + age);
+        return Futures.immediateFuture(json);
+      }
+    }
+    return FluentFuture.from(revalidate(uri, cached))
+        .catching(Exception.class, e -> {
+          if (cached == null) {
+            logcat.e("Failed to fetch remote config, and have none cached.", e);
+            return null;
+          }
+          logcat.w("Failed to fetch remote config, serving last good one.", e);
+          return parse(cached.content());
+        }, backgroundExecutor);
+  }
+
+  private void revalidateInBackground(Uri uri, RemoteConfigEntity cached) {
+    Futures.addCallback(revalidate(uri, cached), new FutureCallback<JSONObject>() {
+      @Override
+      public void onSuccess(JSONObject result) {
+        logcat.d("Revalidated cached remote config.");
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        logcat.w("Failed to revalidate cached remote config.", t);
+      }
+    }, backgroundExecutor);
+  }
+
+  /**
+   * Fetches the document, conditional on our cached copy if we have one, and caches the result.
+   */
+  private ListenableFuture<JSONObject> revalidate(Uri uri, @Nullable RemoteConfigEntity cached) {
+    return FluentFuture.from(fetch(uri, cached))
+        .transform(result -> {
+          long now = clock.currentTimeMillis();
+          if (result.notModified() && cached != null) {
+            repository.upsert(cached.withFetchedTimestampMs(now));
+            return parse(cached.content());
+          }
+          JSONObject json = result.content() != null ? parse(result.content()) : null;
+          if (json == null) {
+            throw new IllegalArgumentException("Remote config isn't a JSON object.");
+          }
+          repository.upsert(RemoteConfigEntity.create(
+              uri, result.content(), result.etag(), result.lastModified(), now));
+          return json;
+        }, backgroundExecutor);
+  }
+
+  private ListenableFuture<Result> fetch(Uri uri, @Nullable RemoteConfigEntity cached) {
+    return CallbackToFutureAdapter.getFuture(
+        completer -> {
+          RespondableConditionalStringRequest request = new RespondableConditionalStringRequest(
+              uri.toString(),
+              cached != null ? cached.etag() : null,
+              cached != null ? cached.lastModified() : null,
+              result -> {
+                logSuccess(result);
+                completer.set(result);
+              },
+              err -> {
+                analyticsLogger.logRpcCallFailureAsync(
+                    RpcCallType.RPC_TYPE_ENPA_REMOTE_CONFIG_FETCH, err);
+                completer.setException(err);
+              },
+              clock);
+          request.setTag(RpcCallType.RPC_TYPE_ENPA_REMOTE_CONFIG_FETCH);
+          queue.add(request, RequestLane.BACKGROUND_BULK);
+          return request;
+        });
+  }
+
+  private void logSuccess(Result result) {
+    if (result.responseSize() != null) {
+      analyticsLogger.logRpcCallSuccessAsync(
+          RpcCallType.RPC_TYPE_ENPA_REMOTE_CONFIG_FETCH, result.responseSize());
+    } else {
+      analyticsLogger.logRpcCallSuccessAsync(RpcCallType.RPC_TYPE_ENPA_REMOTE_CONFIG_FETCH,
+          result.content() != null ? result.content().length() : 0);
+    }
+  }
+
+  @Nullable
+  private static JSONObject parse(String content) {
+    try {
+      return new JSONObject(content);
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.privateanalytics;
+
+import com.google.auto.value.AutoValue;
+import org.threeten.bp.Duration;
+
+/**
+ * A value class holding how long we serve remote configs from {@link RemoteConfigCache} before
+ * fetching them again.
+ */
+@AutoValue
+public abstract class RemoteConfigCacheConfig {
+
+  // Private analytics runs about once a day, so each run sees a config no more than half a day old.
+  private static final Duration DEFAULT_TTL = Duration.ofHours(12);
+  private static final Duration DEFAULT_REFRESH_AFTER = Duration.ofHours(6);
+
+  /**
+   * How long a fetched config is served without going to the network. Past this, callers wait for
+   * a fresh fetch, and only get the cached config if that fails.
+   */
+  public abstract Duration ttl();
+
+  /**
+   * How old a cached config may get before serving it also starts a background revalidation, so
+   * that later callers find it fresh. No more than {@link #ttl()}.
+   */
+  public abstract Duration refreshAfter();
+
+  public static RemoteConfigCacheConfig.Builder newBuilder() {
+    return new AutoValue_RemoteConfigCacheConfig.Builder()
+        .setTtl(DEFAULT_TTL)
+        .setRefreshAfter(DEFAULT_REFRESH_AFTER);
+  }
+
+  @AutoValue.Builder
+  public abstract static class Builder {
+
+    public abstract RemoteConfigCacheConfig.Builder setTtl(Duration value);
+
+    public abstract RemoteConfigCacheConfig.Builder setRefreshAfter(Duration value);
+
+    abstract RemoteConfigCacheConfig autoBuild();
+
+    public RemoteConfigCacheConfig build() {
+      RemoteConfigCacheConfig config = autoBuild();
+      if (config.ttl().isNegative()) {
+        throw new IllegalArgumentException("TTL can't be negative.");
+      }
+      if (config.refreshAfter().isNegative() || config.refreshAfter().compareTo(config.ttl()) > 0) {
+        throw new IllegalArgumentException("Refresh must come between zero and the TTL.");
+      }
+      return config;
+    }
+  }
+}
@@ -51,10 +51,16 @@ import com.google.android.apps.exposurenotification.storage.Converters.ZonedDate
         RevisionTokenEntity.class,
         WorkerStatusEntity.class,
         ExposureCheckEntity.class,
-        VerificationCodeRequestEntity.class
+        VerificationCodeRequestEntity.class,
+        PartialDownloadEntity.class,
+        IndexFileEntity.class,
+        ProvidedKeyFileEntity.class,
+        RemoteConfigEntity.class,
+        HostHealthEntity.class,
+        PendingUploadEntity.class
     },
     exportSchema = true,
-    version = 44  // Do not increment without migration & tests.
+    version = 51  // Do not increment without migration & tests.
 )
 @TypeConverters({
     HasSymptomsConverter.class,
@@ -176,9 +182,111 @@ public abstract class ExposureNotificationDatabase extends RoomDatabase {
     }
   };
 
+  static final Migration MIGRATION_44_45 = new Migration(44, 45) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL(
+          "CREATE TABLE PartialDownloadEntity ("
+              + "uri TEXT NOT NULL, "
+              + "path TEXT NOT NULL, "
+              + "etag TEXT NOT NULL, "
+              + "bytesWritten INTEGER NOT NULL, "
+              + "lastUpdatedTimestampMs INTEGER NOT NULL, "
+              + "PRIMARY KEY(uri)"
+              + ")");
+    }
+  };
+
+  static final Migration MIGRATION_45_46 = new Migration(45, 46) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL(
+          "CREATE TABLE IndexFileEntity ("
+              + "indexUri TEXT NOT NULL, "
+              + "etag TEXT, "
+              + "lastModified TEXT, "
+              + "lastFileUri TEXT, "
+              + "PRIMARY KEY(indexUri)"
+              + ")");
+    }
+  };
+
+  static final Migration MIGRATION_46_47 = new Migration(46, 47) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL(
+          "CREATE TABLE ProvidedKeyFileEntity ("
+              + "contentHash TEXT NOT NULL, "
+              + "providedTimestampMs INTEGER NOT NULL, "
+              + "PRIMARY KEY(contentHash)"
+              + ")");
+    }
+  };
+
+  static final Migration MIGRATION_47_48 = new Migration(47, 48) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL(
+          "CREATE TABLE RemoteConfigEntity ("
+              + "uri TEXT NOT NULL, "
+              + "content TEXT NOT NULL, "
+              + "etag TEXT, "
+              + "lastModified TEXT, "
+              + "fetchedTimestampMs INTEGER NOT NULL, "
+              + "PRIMARY KEY(uri)"
+              + ")");
+    }
+  };
+
+  static final Migration MIGRATION_48_49 = new Migration(48, 49) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL(
+          "CREATE TABLE HostHealthEntity ("
+              + "host TEXT NOT NULL, "
+              + "consecutiveFailures INTEGER NOT NULL, "
+              + "cooldownMs INTEGER NOT NULL, "
+              + "openUntilMs INTEGER NOT NULL, "
+              + "PRIMARY KEY(host)"
+              + ")");
+    }
+  };
+
+  static final Migration MIGRATION_49_50 = new Migration(49, 50) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL(
+          "CREATE TABLE PendingUploadEntity ("
+              + "idempotencyKey TEXT NOT NULL, "
+              + "diagnosisId INTEGER NOT NULL, "
+              + "keys BLOB NOT NULL, "
+              + "verificationCode TEXT NOT NULL, "
+              + "hmacKeyBase64 TEXT NOT NULL, "
+              + "certificate TEXT NOT NULL, "
+              + "longTermToken TEXT, "
+              + "testType TEXT, "
+              + "symptomOnset TEXT, "
+              + "revisionToken TEXT, "
+              + "hasTraveled INTEGER NOT NULL, "
+              + "createdTimestampMs INTEGER NOT NULL, "
+              + "attempts INTEGER NOT NULL, "
+              + "PRIMARY KEY(idempotencyKey)"
+              + ")");
+    }
+  };
+
+  static final Migration MIGRATION_50_51 = new Migration(50, 51) {
+    @Override
+    public void migrate(SupportSQLiteDatabase database) {
+      database.execSQL("ALTER TABLE PendingUploadEntity ADD COLUMN region TEXT");
+    }
+  };
+
   static final Migration[] ALL_MIGRATIONS = new Migration[]{MIGRATION_35_36, MIGRATION_36_37,
       MIGRATION_37_38, MIGRATION_38_39, MIGRATION_39_40, MIGRATION_40_41, MIGRATION_41_42,
-      MIGRATION_42_43, MIGRATION_43_44};
+      MIGRATION_42_43, MIGRATION_43_44, MIGRATION_44_45, MIGRATION_45_46,
+      MIGRATION_46_47, MIGRATION_47_48, MIGRATION_48_49, MIGRATION_49_50,
+      MIGRATION_50_51};
 
   abstract AnalyticsLoggingDao analyticsLoggingDao();
 
@@ -196,6 +304,18 @@ public abstract class ExposureNotificationDatabase extends RoomDatabase {
 
   abstract VerificationCodeRequestDao verificationCodeRequestDao();
 
+  abstract PartialDownloadDao partialDownloadDao();
+
+  abstract IndexFileDao indexFileDao();
+
+  abstract ProvidedKeyFileDao providedKeyFileDao();
+
+  abstract RemoteConfigDao remoteConfigDao();
+
+  abstract HostHealthDao hostHealthDao();
+
+  abstract PendingUploadDao pendingUploadDao();
+
   public static ExposureNotificationDatabase buildDatabase(Context context) {
     // This will create a database in:
     // /data/data/com.google.android.apps.exposurenotification/databases/ which will be only
@@ -127,6 +127,8 @@ public class ExposureNotificationSharedPreferences {
 
   private static final String MIGRATION_RUN_OR_NOT_NEEDED =
       "ExposureNotificationSharedPreferences.MIGRATION_RUN_OR_NOT_NEEDED";
+  private static final String KEYFILE_SIZE_ESTIMATE_BYTES =
+      "ExposureNotificationSharedPreferences.KEYFILE_SIZE_ESTIMATE_BYTES";
 
   private final SharedPreferences sharedPreferences;
   private final Clock clock;
@@ -891,6 +893,20 @@ public class ExposureNotificationSharedPreferences {
     return sharedPreferences.getBoolean(HAS_DISPLAYED_ONBOARDING_FOR_MIGRATING_USERS, false);
   }
 
+  /**
+   * Our running estimate of the size of a keyfile, learned from earlier downloads, if we have one.
+   */
+  public Optional<Long> maybeGetKeyFileSizeEstimateBytes() {
+    if (!sharedPreferences.contains(KEYFILE_SIZE_ESTIMATE_BYTES)) {
+      return Optional.absent();
+    }
+    return Optional.of(sharedPreferences.getLong(KEYFILE_SIZE_ESTIMATE_BYTES, 0L));
+  }
+
+  public void setKeyFileSizeEstimateBytes(long bytes) {
+    sharedPreferences.edit().putLong(KEYFILE_SIZE_ESTIMATE_BYTES, bytes).apply();
+  }
+
   public interface AnalyticsStateListener {
 
     void onChanged(boolean analyticsEnabled);
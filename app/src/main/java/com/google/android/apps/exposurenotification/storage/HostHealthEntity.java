@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.AutoValue.CopyAnnotations;
+
+/**
+ * The circuit breaker state we keep for a server host, so that a host we found to be failing
+ * stays backed off across worker runs.
+ *
+ * <p>{@code consecutiveFailures} counts requests to the host that failed since the last one that
+ * succeeded. While the breaker is open, {@code openUntilMs} is when it may next let a trial
+ * request through and {@code cooldownMs} how long it was opened for; both are 0 while it's closed.
+ */
+@AutoValue
+@Entity
+public abstract class HostHealthEntity {
+
+  @CopyAnnotations
+  @PrimaryKey
+  @NonNull
+  public abstract String host();
+
+  public abstract int consecutiveFailures();
+
+  public abstract long cooldownMs();
+
+  public abstract long openUntilMs();
+
+  public static HostHealthEntity create(
+      String host, int consecutiveFailures, long cooldownMs, long openUntilMs) {
+    return new AutoValue_HostHealthEntity(host, consecutiveFailures, cooldownMs, openUntilMs);
+  }
+}
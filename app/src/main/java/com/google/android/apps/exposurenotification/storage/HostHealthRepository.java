@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import androidx.annotation.WorkerThread;
+import java.util.List;
+import javax.inject.Inject;
+
+/**
+ * Abstracts database access to {@link HostHealthDao}, the circuit breaker state of server hosts.
+ */
+public class HostHealthRepository {
+
+  private final HostHealthDao dao;
+
+  @Inject
+  public HostHealthRepository(ExposureNotificationDatabase db) {
+    dao = db.hostHealthDao();
+  }
+
+  @WorkerThread
+  public List<HostHealthEntity> getAll() {
+    return dao.getAll();
+  }
+
+  @WorkerThread
+  public void upsert(HostHealthEntity hostHealth) {
+    dao.upsert(hostHealth);
+  }
+
+  @WorkerThread
+  public void delete(String host) {
+    dao.delete(host);
+  }
+
+}
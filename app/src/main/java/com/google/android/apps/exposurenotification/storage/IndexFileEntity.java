@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.AutoValue.CopyAnnotations;
+
+/**
+ * What we know about the last version we saw of a keyserver's index file, so that we can ask the
+ * server to send it again only if it has changed.
+ *
+ * <p>{@code etag} and {@code lastModified} are the validators the server gave with the index, if
+ * any. {@code lastFileUri} is the last keyfile that index listed, or null if it listed none.
+ */
+@AutoValue
+@Entity
+public abstract class IndexFileEntity {
+
+  @CopyAnnotations
+  @PrimaryKey
+  @NonNull
+  public abstract Uri indexUri();
+
+  @Nullable
+  public abstract String etag();
+
+  @Nullable
+  public abstract String lastModified();
+
+  @Nullable
+  public abstract Uri lastFileUri();
+
+  public static IndexFileEntity create(
+      Uri indexUri,
+      @Nullable String etag,
+      @Nullable String lastModified,
+      @Nullable Uri lastFileUri) {
+    return new AutoValue_IndexFileEntity(indexUri, etag, lastModified, lastFileUri);
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.common.util.concurrent.ListenableFuture;
+import javax.inject.Inject;
+
+/**
+ * Abstracts database access to {@link IndexFileDao}, the cache of keyserver index file validators.
+ */
+public class IndexFileRepository {
+
+  private final IndexFileDao dao;
+
+  @Inject
+  public IndexFileRepository(ExposureNotificationDatabase db) {
+    dao = db.indexFileDao();
+  }
+
+  @WorkerThread
+  @Nullable
+  public IndexFileEntity get(Uri indexUri) {
+    return dao.get(indexUri);
+  }
+
+  @WorkerThread
+  public void upsert(IndexFileEntity indexFile) {
+    dao.upsert(indexFile);
+  }
+
+  @WorkerThread
+  public void delete(Uri indexUri) {
+    dao.delete(indexUri);
+  }
+
+  @AnyThread
+  public ListenableFuture<Void> deleteIndexFileEntitiesAsync() {
+    return dao.deleteAll();
+  }
+
+}
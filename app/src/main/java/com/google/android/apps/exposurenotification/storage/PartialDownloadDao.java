@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+
+@Dao
+abstract class PartialDownloadDao {
+
+  @Query("SELECT * FROM PartialDownloadEntity WHERE uri = :uri")
+  abstract PartialDownloadEntity get(Uri uri);
+
+  @Query("SELECT * FROM PartialDownloadEntity")
+  abstract List<PartialDownloadEntity> getAll();
+
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract void upsert(PartialDownloadEntity partialDownload);
+
+  @Query("DELETE FROM PartialDownloadEntity WHERE uri = :uri")
+  abstract void delete(Uri uri);
+
+  @Query("DELETE FROM PartialDownloadEntity")
+  abstract ListenableFuture<Void> deleteAll();
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.AutoValue.CopyAnnotations;
+
+/**
+ * A journal entry for a keyfile download that didn't finish, so that we can pick it up where we
+ * left off on the next run instead of starting over.
+ *
+ * <p>{@code path} is the local file holding the bytes downloaded so far, relative to the app's
+ * files dir. {@code etag} identifies the version of the file on the server those bytes came from.
+ */
+@AutoValue
+@Entity
+public abstract class PartialDownloadEntity {
+
+  @CopyAnnotations
+  @PrimaryKey
+  @NonNull
+  public abstract Uri uri();
+
+  @CopyAnnotations
+  @NonNull
+  public abstract String path();
+
+  @CopyAnnotations
+  @NonNull
+  public abstract String etag();
+
+  public abstract long bytesWritten();
+
+  public abstract long lastUpdatedTimestampMs();
+
+  public static PartialDownloadEntity create(
+      Uri uri, String path, String etag, long bytesWritten, long lastUpdatedTimestampMs) {
+    return new AutoValue_PartialDownloadEntity(
+        uri, path, etag, bytesWritten, lastUpdatedTimestampMs);
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.annotation.AnyThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import javax.inject.Inject;
+
+/**
+ * Abstracts database access to {@link PartialDownloadDao}, the journal of unfinished keyfile
+ * downloads.
+ */
+public class PartialDownloadRepository {
+
+  private final PartialDownloadDao dao;
+
+  @Inject
+  public PartialDownloadRepository(ExposureNotificationDatabase db) {
+    dao = db.partialDownloadDao();
+  }
+
+  @WorkerThread
+  @Nullable
+  public PartialDownloadEntity get(Uri uri) {
+    return dao.get(uri);
+  }
+
+  @WorkerThread
+  public List<PartialDownloadEntity> getAll() {
+    return dao.getAll();
+  }
+
+  @WorkerThread
+  public void upsert(PartialDownloadEntity partialDownload) {
+    dao.upsert(partialDownload);
+  }
+
+  @WorkerThread
+  public void delete(Uri uri) {
+    dao.delete(uri);
+  }
+
+  @AnyThread
+  public ListenableFuture<Void> deletePartialDownloadEntitiesAsync() {
+    return dao.deleteAll();
+  }
+
+}
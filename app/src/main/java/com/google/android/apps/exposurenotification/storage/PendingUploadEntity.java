@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.AutoValue.CopyAnnotations;
+import org.threeten.bp.LocalDate;
+
+/**
+ * A key upload that failed in a way that may clear up by itself, kept until a background retry
+ * gets it to the keyserver or gives up on it.
+ *
+ * <p>Keyed on the revision token of the upload, or on its certificate for a first upload which has
+ * no revision token yet, so that retrying the same upload never leaves two copies of it here. An
+ * upload that made it to our own region's keyserver but not to another region's is kept once for
+ * each such region, keyed on the region too.
+ */
+@AutoValue
+@Entity
+public abstract class PendingUploadEntity {
+
+  @CopyAnnotations
+  @PrimaryKey
+  @NonNull
+  public abstract String idempotencyKey();
+
+  public abstract long diagnosisId();
+
+  /**
+   * The keys to upload, as a serialized {@code TemporaryExposureKeyExport}.
+   */
+  @CopyAnnotations
+  @NonNull
+  @SuppressWarnings("mutable")
+  public abstract byte[] keys();
+
+  @CopyAnnotations
+  @NonNull
+  public abstract String verificationCode();
+
+  @CopyAnnotations
+  @NonNull
+  public abstract String hmacKeyBase64();
+
+  @CopyAnnotations
+  @NonNull
+  public abstract String certificate();
+
+  @Nullable
+  public abstract String longTermToken();
+
+  @Nullable
+  public abstract String testType();
+
+  @Nullable
+  public abstract LocalDate symptomOnset();
+
+  @Nullable
+  public abstract String revisionToken();
+
+  public abstract boolean hasTraveled();
+
+  public abstract long createdTimestampMs();
+
+  public abstract int attempts();
+
+  /**
+   * The one region whose keyserver to retry this upload at, or null to upload to every region's.
+   */
+  @Nullable
+  public abstract String region();
+
+  public static PendingUploadEntity create(
+      String idempotencyKey,
+      long diagnosisId,
+      byte[] keys,
+      String verificationCode,
+      String hmacKeyBase64,
+      String certificate,
+      @Nullable String longTermToken,
+      @Nullable String testType,
+      @Nullable LocalDate symptomOnset,
+      @Nullable String revisionToken,
+      boolean hasTraveled,
+      long createdTimestampMs,
+      int attempts,
+      @Nullable String region) {
+    return new AutoValue_PendingUploadEntity(idempotencyKey, diagnosisId, keys, verificationCode,
+        hmacKeyBase64, certificate, longTermToken, testType, symptomOnset, revisionToken,
+        hasTraveled, createdTimestampMs, attempts, region);
+  }
+
+  /**
+   * A copy of this upload with one more failed attempt counted against it.
+   */
+  public PendingUploadEntity withAnotherAttempt() {
+    return create(idempotencyKey(), diagnosisId(), keys(), verificationCode(), hmacKeyBase64(),
+        certificate(), longTermToken(), testType(), symptomOnset(), revisionToken(), hasTraveled(),
+        createdTimestampMs(), attempts() + 1, region());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.WorkerThread;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import javax.inject.Inject;
+import org.threeten.bp.Instant;
+
+public class PendingUploadRepository {
+
+  private final PendingUploadDao dao;
+
+  @Inject
+  public PendingUploadRepository(ExposureNotificationDatabase db) {
+    dao = db.pendingUploadDao();
+  }
+
+  /**
+   * All pending uploads, oldest first.
+   */
+  @WorkerThread
+  public List<PendingUploadEntity> getAll() {
+    return dao.getAll();
+  }
+
+  @WorkerThread
+  public void upsert(PendingUploadEntity pendingUpload) {
+    dao.upsert(pendingUpload);
+  }
+
+  @WorkerThread
+  public void delete(String idempotencyKey) {
+    dao.delete(idempotencyKey);
+  }
+
+  /**
+   * Deletes the pending uploads queued earlier than the given threshold, if any.
+   */
+  @WorkerThread
+  public void deleteOutdatedIfAny(Instant earliestThreshold) {
+    dao.deleteOlderThanThreshold(earliestThreshold.toEpochMilli());
+  }
+
+  @AnyThread
+  public ListenableFuture<Void> deletePendingUploadEntitiesAsync() {
+    return dao.deleteAll();
+  }
+
+}
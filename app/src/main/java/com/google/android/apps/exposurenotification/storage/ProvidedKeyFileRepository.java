@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.WorkerThread;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+import javax.inject.Inject;
+import org.threeten.bp.Instant;
+
+/**
+ * Abstracts database access to {@link ProvidedKeyFileDao}, the record of keyfiles we've provided
+ * to the Exposure Notifications API.
+ */
+public class ProvidedKeyFileRepository {
+
+  // Keep well within SQLite's limit on the number of variables in a query.
+  private static final int MAX_HASHES_PER_QUERY = 500;
+
+  private final ProvidedKeyFileDao dao;
+
+  @Inject
+  public ProvidedKeyFileRepository(ExposureNotificationDatabase db) {
+    dao = db.providedKeyFileDao();
+  }
+
+  /**
+   * Returns those of the given content hashes whose keyfiles we've already provided.
+   */
+  @WorkerThread
+  public ImmutableSet<String> getProvided(List<String> contentHashes) {
+    ImmutableSet.Builder<String> provided = ImmutableSet.builder();
+    for (List<String> hashes : Iterables.partition(contentHashes, MAX_HASHES_PER_QUERY)) {
+      provided.addAll(dao.getProvided(hashes));
+    }
+    return provided.build();
+  }
+
+  @WorkerThread
+  public void upsertAll(List<ProvidedKeyFileEntity> providedKeyFiles) {
+    dao.upsertAll(providedKeyFiles);
+  }
+
+  @WorkerThread
+  public void deleteProvidedBefore(Instant instant) {
+    dao.deleteProvidedBefore(instant.toEpochMilli());
+  }
+
+  @AnyThread
+  public ListenableFuture<Void> deleteProvidedKeyFileEntitiesAsync() {
+    return dao.deleteAll();
+  }
+
+}
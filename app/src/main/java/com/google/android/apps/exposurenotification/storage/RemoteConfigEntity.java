@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+import com.google.auto.value.AutoValue;
+import com.google.auto.value.AutoValue.CopyAnnotations;
+
+/**
+ * The last good remote config document we fetched from a URI, kept so that we can skip fetching
+ * it again while it's fresh, and fall back to it when a fetch fails.
+ *
+ * <p>{@code content} is the document as the server sent it, {@code etag} and {@code lastModified}
+ * the validators the server gave with it, if any, and {@code fetchedTimestampMs} when we last
+ * fetched or revalidated it.
+ */
+@AutoValue
+@Entity
+public abstract class RemoteConfigEntity {
+
+  @CopyAnnotations
+  @PrimaryKey
+  @NonNull
+  public abstract Uri uri();
+
+  @NonNull
+  public abstract String content();
+
+  @Nullable
+  public abstract String etag();
+
+  @Nullable
+  public abstract String lastModified();
+
+  public abstract long fetchedTimestampMs();
+
+  public static RemoteConfigEntity create(
+      Uri uri,
+      String content,
+      @Nullable String etag,
+      @Nullable String lastModified,
+      long fetchedTimestampMs) {
+    return new AutoValue_RemoteConfigEntity(uri, content, etag, lastModified, fetchedTimestampMs);
+  }
+
+  /**
+   * The same document, revalidated at the given time.
+   */
+  public RemoteConfigEntity withFetchedTimestampMs(long fetchedTimestampMs) {
+    return create(uri(), content(), etag(), lastModified(), fetchedTimestampMs);
+  }
+}
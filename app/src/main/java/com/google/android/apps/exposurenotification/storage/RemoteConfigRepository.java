@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.storage;
+
+import android.net.Uri;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import javax.inject.Inject;
+
+/**
+ * Abstracts database access to {@link RemoteConfigDao}, the cache of remote config documents.
+ */
+public class RemoteConfigRepository {
+
+  private final RemoteConfigDao dao;
+
+  @Inject
+  public RemoteConfigRepository(ExposureNotificationDatabase db) {
+    dao = db.remoteConfigDao();
+  }
+
+  @WorkerThread
+  @Nullable
+  public RemoteConfigEntity get(Uri uri) {
+    return dao.get(uri);
+  }
+
+  @WorkerThread
+  public void upsert(RemoteConfigEntity remoteConfig) {
+    dao.upsert(remoteConfig);
+  }
+
+}
@@ -39,6 +39,7 @@ import com.google.android.apps.exposurenotification.R;
 import com.google.android.apps.exposurenotification.common.BuildUtils.Type;
 import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
+import com.google.android.apps.exposurenotification.keydownload.KeyFileCache;
 import com.google.android.apps.exposurenotification.nearby.ExposureInformationHelper;
 import com.google.android.apps.exposurenotification.proto.EnxLogExtension;
 import com.google.android.apps.exposurenotification.proto.WorkManagerTask.Status;
@@ -61,6 +62,14 @@ import com.google.android.apps.exposurenotification.storage.ExposureNotification
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences.NotificationInteraction;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences.VaccinationStatus;
 import com.google.android.apps.exposurenotification.storage.ExposureRepository;
+import com.google.android.apps.exposurenotification.storage.IndexFileEntity;
+import com.google.android.apps.exposurenotification.storage.IndexFileRepository;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
+import com.google.android.apps.exposurenotification.storage.PendingUploadEntity;
+import com.google.android.apps.exposurenotification.storage.PendingUploadRepository;
+import com.google.android.apps.exposurenotification.storage.ProvidedKeyFileEntity;
+import com.google.android.apps.exposurenotification.storage.ProvidedKeyFileRepository;
 import com.google.android.apps.exposurenotification.storage.VerificationCodeRequestEntity;
 import com.google.android.apps.exposurenotification.storage.VerificationCodeRequestRepository;
 import com.google.android.apps.exposurenotification.storage.WorkerStatusRepository;
@@ -75,6 +84,7 @@ import dagger.hilt.android.testing.BindValue;
 import dagger.hilt.android.testing.HiltAndroidTest;
 import dagger.hilt.android.testing.HiltTestApplication;
 import dagger.hilt.android.testing.UninstallModules;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -127,12 +137,22 @@ public class CleanupHelperTest {
   @Inject
   ExposureRepository exposureRepository;
   @Inject
+  PartialDownloadRepository partialDownloadRepository;
+  @Inject
+  IndexFileRepository indexFileRepository;
+  @Inject
+  ProvidedKeyFileRepository providedKeyFileRepository;
+  @Inject
+  KeyFileCache keyFileCache;
+  @Inject
   ExposureCheckRepository exposureCheckRepository;
   @Inject
   VerificationCodeRequestRepository verificationCodeRequestRepository;
   @Inject
   WorkerStatusRepository workerStatusRepository;
   @Inject
+  PendingUploadRepository pendingUploadRepository;
+  @Inject
   NotificationHelper notificationHelper;
 
   @BindValue
@@ -167,10 +187,15 @@ public class CleanupHelperTest {
         countryRepository,
         diagnosisRepository,
         downloadServerRepository,
+        partialDownloadRepository,
+        indexFileRepository,
+        providedKeyFileRepository,
+        keyFileCache,
         exposureRepository,
         exposureCheckRepository,
         verificationCodeRequestRepository,
         workerStatusRepository,
+        pendingUploadRepository,
         exposureInformationHelper,
         workManager,
         notificationHelper,
@@ -303,6 +328,34 @@ public class CleanupHelperTest {
     assertThat(exposureInformationHelper.isActiveExposurePresent()).isTrue();
   }
 
+  @Test
+  public void deleteOutdatedData_abandonedKeyFile_keyFileDeleted() throws Exception {
+    File dir = new File(context.getFilesDir(), "diag_keys/abandoned");
+    dir.mkdirs();
+    File keyFile = new File(dir, "keys_1.zip");
+    keyFile.createNewFile();
+    keyFile.setLastModified(clock.now().minus(Duration.ofDays(2)).toEpochMilli());
+
+    cleanupHelper.deleteOutdatedData();
+
+    assertThat(keyFile.exists()).isFalse();
+    assertThat(dir.exists()).isFalse();
+  }
+
+  @Test
+  public void deleteOutdatedData_outdatedPendingUpload_pendingUploadDeleted() {
+    Instant now = clock.now();
+    pendingUploadRepository.upsert(
+        pendingUpload("outdated", now.minus(Duration.ofDays(2)).toEpochMilli()));
+    pendingUploadRepository.upsert(
+        pendingUpload("recent", now.minus(Duration.ofHours(1)).toEpochMilli()));
+
+    cleanupHelper.deleteOutdatedData();
+
+    assertThat(pendingUploadRepository.getAll()).hasSize(1);
+    assertThat(pendingUploadRepository.getAll().get(0).idempotencyKey()).isEqualTo("recent");
+  }
+
   @Test
   public void deleteOutdatedData_outdatedExposure_exposureInfoDeleted() {
     exposureNotificationSharedPreferences.setExposureClassification(
@@ -468,12 +521,20 @@ public class CleanupHelperTest {
     assertThat(diagnosisRepository.getMostRecentRevisionTokenAsync().get()).isNull();
     // Assert no download server entities are stored anymore.
     assertThat(downloadServerRepository.getMostRecentSuccessfulDownload(index)).isNull();
+    // Assert no partial download journal entries are stored anymore.
+    assertThat(partialDownloadRepository.getAll()).isEmpty();
+    // Assert no cached index file validators are stored anymore.
+    assertThat(indexFileRepository.get(index)).isNull();
+    // Assert no records of provided keyfiles are stored anymore.
+    assertThat(providedKeyFileRepository.getProvided(ImmutableList.of("hash"))).isEmpty();
     // Assert no exposure entities are stored anymore.
     assertThat(exposureRepository.getAllExposureEntities()).isEmpty();
     // Assert no exposure checks are stored anymore.
     assertThat(exposureCheckRepository.getAllExposureChecks()).isEmpty();
     // Assert no requests for a verification code are stored anymore.
     assertThat(verificationCodeRequestRepository.getAll()).isEmpty();
+    // Assert no key uploads queued for a retry are stored anymore.
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
     // Assert that no worker status entities are stored anymore.
     assertThat(workerStatusRepository.getLastRunTimestamp(WorkerTask.TASK_PROVIDE_DIAGNOSIS_KEYS,
         Status.STATUS_STARTED.toString())).isEqualTo(Optional.absent());
@@ -616,6 +677,13 @@ public class CleanupHelperTest {
     countryRepository.markCountrySeen("GB");
     // Store some download server entities.
     downloadServerRepository.upsert(DownloadServerEntity.create(index, file));
+    // Store some partial download journal entries.
+    partialDownloadRepository.upsert(
+        PartialDownloadEntity.create(file, "/diag_keys/dir/keys_1.zip", "etag", 10L, 0L));
+    // Store some cached index file validators.
+    indexFileRepository.upsert(IndexFileEntity.create(index, "etag", null, file));
+    // Store some records of provided keyfiles.
+    providedKeyFileRepository.upsertAll(ImmutableList.of(ProvidedKeyFileEntity.create("hash", 0L)));
     // Store some exposure entities.
     List<ExposureEntity> exposureEntities = ImmutableList.of(
         ExposureEntity.create(LocalDate.now(ZoneOffset.UTC).toEpochDay(), 10.0),
@@ -632,11 +700,20 @@ public class CleanupHelperTest {
         .setExpiresAtTime(clock.now().plus(Duration.ofHours(1)))
         .setNonce("nonce-1")
         .build()).get();
+    // Store some key uploads queued for a retry.
+    pendingUploadRepository.upsert(pendingUpload("cert", clock.currentTimeMillis()));
     // And finally store some worker status entities.
     workerStatusRepository.upsert(WorkerTask.TASK_PROVIDE_DIAGNOSIS_KEYS,
         Status.STATUS_STARTED.toString(), clock.now());
   }
 
+  private static PendingUploadEntity pendingUpload(String idempotencyKey, long createdTimestampMs) {
+    return PendingUploadEntity.create(idempotencyKey, /* diagnosisId= */ 1L, new byte[0], "code",
+        "hmac", "cert", /* longTermToken= */ null, /* testType= */ null, /* symptomOnset= */ null,
+        /* revisionToken= */ null, /* hasTraveled= */ false, createdTimestampMs, /* attempts= */ 0,
+        /* region= */ null);
+  }
+
   private void createAnalyticsData() {
     exposureNotificationSharedPreferences.setPrivateAnalyticsState(true);
     Instant time = Instant.ofEpochMilli(123456789L);
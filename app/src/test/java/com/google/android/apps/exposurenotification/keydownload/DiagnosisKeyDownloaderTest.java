@@ -19,9 +19,12 @@ package com.google.android.apps.exposurenotification.keydownload;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.when;
 
 import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Request;
 import com.android.volley.VolleyError;
 import com.google.android.apps.exposurenotification.common.ExecutorsModule;
 import com.google.android.apps.exposurenotification.common.Qualifiers.BackgroundExecutor;
@@ -31,6 +34,7 @@ import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
 import com.google.android.apps.exposurenotification.keydownload.Qualifiers.HomeDownloadUriPair;
 import com.google.android.apps.exposurenotification.keydownload.Qualifiers.TravellerDownloadUriPairs;
+import com.google.android.apps.exposurenotification.network.Connectivity;
 import com.google.android.apps.exposurenotification.network.RealRequestQueueModule;
 import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
 import com.google.android.apps.exposurenotification.storage.CountryRepository;
@@ -38,6 +42,9 @@ import com.google.android.apps.exposurenotification.storage.DbModule;
 import com.google.android.apps.exposurenotification.storage.DownloadServerEntity;
 import com.google.android.apps.exposurenotification.storage.DownloadServerRepository;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
 import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
 import com.google.android.apps.exposurenotification.testsupport.FakeClock;
 import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
@@ -53,6 +60,8 @@ import dagger.hilt.android.testing.BindValue;
 import dagger.hilt.android.testing.HiltAndroidTest;
 import dagger.hilt.android.testing.HiltTestApplication;
 import dagger.hilt.android.testing.UninstallModules;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -69,6 +78,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.function.ThrowingRunnable;
 import org.junit.runner.RunWith;
+import org.mockito.Mock;
 import org.robolectric.annotation.Config;
 
 @HiltAndroidTest
@@ -84,6 +94,7 @@ public class DiagnosisKeyDownloaderTest {
 
   private static final Joiner NEWLINE_JOINER = Joiner.on("\n");
   private static final AtomicInteger UNIQUE_INT = new AtomicInteger(1);
+  private static final String CORRUPT_CONTENT_PREFIX = "corrupt";
 
   // Having uninstalled some modules above (@UninstallModules), we need to provide everything they
   // would have, even if the code under test here doesn't use them.
@@ -126,9 +137,28 @@ public class DiagnosisKeyDownloaderTest {
   RequestQueueWrapper queue = new FakeRequestQueue();
   @BindValue
   Clock clock = new FakeClock();
+  // Unmetered, unless a test says otherwise.
+  @BindValue
+  @Mock
+  Connectivity connectivity;
+  private final AtomicInteger validationsToFail = new AtomicInteger(0);
+  // The keyfiles in these tests are just strings, so treat them all as valid except the corrupt
+  // ones (and, to simulate damage in transit, a given number of the first files we check).
+  @BindValue
+  KeyFileValidator keyFileValidator = new KeyFileValidator() {
+    @Override
+    public void validate(File file) throws IOException {
+      if (validationsToFail.getAndDecrement() > 0
+          || FileUtils.readFileToString(file, StandardCharsets.UTF_8)
+              .startsWith(CORRUPT_CONTENT_PREFIX)) {
+        throw new IOException("Invalid keyfile");
+      }
+    }
+  };
 
   @Rule
-  public ExposureNotificationRules rules = ExposureNotificationRules.forTest(this).build();
+  public ExposureNotificationRules rules =
+      ExposureNotificationRules.forTest(this).withMocks().build();
 
   // We need to manipulate the countries the user has visited to provoke roaming downloads.
   @Inject
@@ -136,6 +166,12 @@ public class DiagnosisKeyDownloaderTest {
   // Also need to access the last successful download.
   @Inject
   DownloadServerRepository downloadServerRepo;
+  // And the journal of partial downloads.
+  @Inject
+  PartialDownloadRepository partialDownloadRepo;
+  // And our estimate of keyfile sizes, which the metered download budget depends on.
+  @Inject
+  ExposureNotificationSharedPreferences prefs;
 
   @Inject
   DiagnosisKeyDownloader downloader;
@@ -339,6 +375,52 @@ public class DiagnosisKeyDownloaderTest {
             "home-key-file-content", "mexico-key-file-content", "canada-key-file-content");
   }
 
+  @Test
+  public void metered_userHasTravelled_shouldDeferRoamingFiles() throws Exception {
+    // GIVEN
+    when(connectivity.isMetered()).thenReturn(true);
+    List<String> homeFilenames = setupKeyFiles(HOME_URIS, "home-key-file-content");
+    setupIndexFile(HOME_URIS, homeFilenames);
+    DownloadUriPair mexicoUris = TRAVEL_URIS.get("MX").get(0);
+    List<String> mexicoFilenames = setupKeyFiles(mexicoUris, "mexico-key-file-content");
+    setupIndexFile(mexicoUris, mexicoFilenames);
+    countryRepository.markCountrySeen("US");
+    countryRepository.markCountrySeen("MX");
+
+    // WHEN
+    List<KeyFile> files = downloader.download().get();
+
+    // THEN
+    assertThat(contentsOfAllFilesIn(files)).containsExactly("home-key-file-content");
+    // We didn't even ask the roaming server what it has.
+    for (Request<?> rpc : fakeQueue().getRpcs()) {
+      assertThat(rpc.getUrl()).isNotEqualTo(mexicoUris.indexUri().toString());
+    }
+  }
+
+  @Test
+  public void metered_homeBacklogOverBudget_shouldDownloadOldestFilesAndResumeLater()
+      throws Exception {
+    // GIVEN
+    when(connectivity.isMetered()).thenReturn(true);
+    // Two keyfiles fit in the budget.
+    prefs.setKeyFileSizeEstimateBytes(
+        DownloadSchedulerConfig.newBuilder().build().meteredDownloadBudgetBytes() / 2);
+    List<String> filenames = setupKeyFiles(HOME_URIS, "key-file-content-1", "key-file-content-2",
+        "key-file-content-3", "key-file-content-4", "key-file-content-5");
+    setupIndexFile(HOME_URIS, filenames);
+
+    // WHEN
+    List<KeyFile> files = downloader.download().get();
+
+    // THEN
+    assertThat(contentsOfAllFilesIn(files))
+        .containsExactly("key-file-content-1", "key-file-content-2").inOrder();
+    // The last of them is where the next run picks up, once they've been provided.
+    assertThat(files.get(files.size() - 1).uri())
+        .isEqualTo(HOME_URIS.fileBaseUri().buildUpon().appendEncodedPath(filenames.get(1)).build());
+  }
+
   @Test
   public void indexFileNotFound_failsWithVolleyError() {
     // GIVEN
@@ -372,6 +454,122 @@ public class DiagnosisKeyDownloaderTest {
     assertThat(((VolleyError) thrown.getCause()).networkResponse.statusCode).isEqualTo(404);
   }
 
+  @Test
+  public void partialDownloadJournaled_shouldFinishDownloadInSameFileAndClearJournal()
+      throws Exception {
+    // GIVEN
+    List<String> filenames = setupKeyFiles(HOME_URIS, "key-file-content");
+    setupIndexFile(HOME_URIS, filenames);
+    Uri fileUri = HOME_URIS.fileBaseUri().buildUpon().appendEncodedPath(filenames.get(0)).build();
+    String partialPath = "/diag_keys/earlier/keys_1.zip";
+    FileUtils.writeStringToFile(
+        new File(ApplicationProvider.getApplicationContext().getFilesDir(), partialPath),
+        "key-file",
+        StandardCharsets.UTF_8);
+    partialDownloadRepo.upsert(PartialDownloadEntity.create(
+        fileUri, partialPath, "\"v1\"", /* bytesWritten= */ 8L, clock.currentTimeMillis()));
+
+    // WHEN
+    List<KeyFile> files = downloader.download().get();
+
+    // THEN
+    assertThat(files).hasSize(1);
+    assertThat(files.get(0).file().getPath()).endsWith(partialPath);
+    assertThat(contentsOfAllFilesIn(files)).containsExactly("key-file-content");
+    assertThat(partialDownloadRepo.getAll()).isEmpty();
+  }
+
+  @Test
+  public void partialDownloadFileMissing_shouldDownloadAfreshAndClearJournal() throws Exception {
+    // GIVEN
+    List<String> filenames = setupKeyFiles(HOME_URIS, "key-file-content");
+    setupIndexFile(HOME_URIS, filenames);
+    Uri fileUri = HOME_URIS.fileBaseUri().buildUpon().appendEncodedPath(filenames.get(0)).build();
+    String partialPath = "/diag_keys/missing/keys_1.zip";
+    partialDownloadRepo.upsert(PartialDownloadEntity.create(
+        fileUri, partialPath, "\"v1\"", /* bytesWritten= */ 8L, clock.currentTimeMillis()));
+
+    // WHEN
+    List<KeyFile> files = downloader.download().get();
+
+    // THEN
+    assertThat(files.get(0).file().getPath()).doesNotContain(partialPath);
+    assertThat(contentsOfAllFilesIn(files)).containsExactly("key-file-content");
+    assertThat(partialDownloadRepo.getAll()).isEmpty();
+  }
+
+  @Test
+  public void partialDownloadPastEndOfFile_shouldForgetJournalAndFile() throws Exception {
+    // GIVEN
+    // An earlier run finished the file, but died before it could forget the journal.
+    String file = uniqueFileName();
+    fakeQueue().addResponse(HOME_URIS.indexUri().toString(), 200, indexFileFor(file));
+    Uri fileUri = HOME_URIS.fileBaseUri().buildUpon().appendEncodedPath(file).build();
+    fakeQueue().addResponse(fileUri.toString(), 416, "");
+    String partialPath = "/diag_keys/finished/keys_1.zip";
+    File partialFile =
+        new File(ApplicationProvider.getApplicationContext().getFilesDir(), partialPath);
+    FileUtils.writeStringToFile(partialFile, "key-file-content", StandardCharsets.UTF_8);
+    partialDownloadRepo.upsert(PartialDownloadEntity.create(
+        fileUri, partialPath, "\"v1\"", /* bytesWritten= */ 16L, clock.currentTimeMillis()));
+
+    // WHEN
+    ThrowingRunnable operation = () -> downloader.download().get();
+
+    // THEN
+    assertThrows(ExecutionException.class, operation);
+    // So that the next run downloads the file from scratch.
+    assertThat(partialDownloadRepo.getAll()).isEmpty();
+    assertThat(partialFile.exists()).isFalse();
+  }
+
+  @Test
+  public void invalidFile_shouldDownloadItAgainAndKeepTheGoodCopy() throws Exception {
+    // GIVEN
+    List<String> filenames = setupKeyFiles(HOME_URIS, "key-file-content");
+    setupIndexFile(HOME_URIS, filenames);
+    validationsToFail.set(1);
+
+    // WHEN
+    List<KeyFile> files = downloader.download().get();
+
+    // THEN
+    assertThat(contentsOfAllFilesIn(files)).containsExactly("key-file-content");
+    // One index file plus the keyfile twice.
+    assertThat(fakeQueue().numRpcs()).isEqualTo(3);
+  }
+
+  @Test
+  public void fileInvalidEvenAfterRetry_shouldLeaveItAndTheRestOfItsServerForNextRun()
+      throws Exception {
+    // GIVEN
+    List<String> homeFilenames = setupKeyFiles(
+        HOME_URIS, "key-file-content-1", CORRUPT_CONTENT_PREFIX + "-2", "key-file-content-3");
+    setupIndexFile(HOME_URIS, homeFilenames);
+    DownloadUriPair mexicoUris = TRAVEL_URIS.get("MX").get(0);
+    List<String> mexicoFilenames = setupKeyFiles(mexicoUris, "mexico-key-file-content");
+    setupIndexFile(mexicoUris, mexicoFilenames);
+    countryRepository.markCountrySeen("US");
+    countryRepository.markCountrySeen("MX");
+
+    // WHEN
+    List<KeyFile> files = downloader.download().get();
+
+    // THEN
+    // The home server's files stop just before the bad one, so its last successful download stays
+    // in front of it. The other server's files are unaffected.
+    assertThat(contentsOfAllFilesIn(files))
+        .containsExactly("key-file-content-1", "mexico-key-file-content");
+    List<Uri> uris = new ArrayList<>();
+    for (KeyFile f : files) {
+      uris.add(f.uri());
+    }
+    assertThat(uris).doesNotContain(
+        HOME_URIS.fileBaseUri().buildUpon().appendEncodedPath(homeFilenames.get(1)).build());
+    assertThat(uris).doesNotContain(
+        HOME_URIS.fileBaseUri().buildUpon().appendEncodedPath(homeFilenames.get(2)).build());
+  }
+
   @Test
   public void server500Error_failsWithVolleyError() {
     // GIVEN
@@ -436,6 +634,10 @@ public class DiagnosisKeyDownloaderTest {
   private static List<String> contentsOfAllFilesIn(List<KeyFile> files) throws Exception {
     List<String> fileContentList = new ArrayList<>();
     for (KeyFile f : files) {
+      if (f.file() == null) {
+        // Too old to be worth downloading.
+        continue;
+      }
       fileContentList.add(FileUtils.readFileToString(f.file(), StandardCharsets.UTF_8));
     }
     return fileContentList;
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
+import com.google.android.apps.exposurenotification.network.Connectivity;
+import com.google.android.apps.exposurenotification.storage.DbModule;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
+import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import dagger.hilt.android.testing.BindValue;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import dagger.hilt.android.testing.UninstallModules;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import javax.inject.Inject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link DownloadPlanner}.
+ */
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+@UninstallModules({DbModule.class, RealTimeModule.class})
+public class DownloadPlannerTest {
+
+  private static final long MIB = 1024 * 1024;
+  // The default budget.
+  private static final long BUDGET_BYTES =
+      DownloadSchedulerConfig.newBuilder().build().meteredDownloadBudgetBytes();
+  private static final Uri HOME_INDEX = Uri.parse("http://example.com/US/index.txt");
+  private static final Uri TRAVEL_INDEX = Uri.parse("http://example.com/MX/index.txt");
+
+  @BindValue
+  ExposureNotificationDatabase db = InMemoryDb.create();
+  @BindValue
+  Clock clock = new FakeClock();
+  @BindValue
+  @Mock
+  Connectivity connectivity;
+
+  @Rule
+  public ExposureNotificationRules rules =
+      ExposureNotificationRules.forTest(this).withMocks().build();
+
+  @Inject
+  PartialDownloadRepository partialDownloadRepository;
+  @Inject
+  ExposureNotificationSharedPreferences prefs;
+  @Inject
+  DownloadPlanner planner;
+
+  @Before
+  public void setUp() {
+    rules.hilt().inject();
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void isMetered_shouldFollowConnectivity() {
+    when(connectivity.isMetered()).thenReturn(true);
+
+    assertThat(planner.isMetered()).isTrue();
+  }
+
+  @Test
+  public void unmetered_shouldPlanEveryFile() {
+    prefs.setKeyFileSizeEstimateBytes(BUDGET_BYTES);
+    List<KeyFile> keyFiles = keyFiles(HOME_INDEX, "a", "b", "c");
+
+    assertThat(planner.plan(keyFiles, ImmutableSet.of(), /* metered= */ false))
+        .containsExactlyElementsIn(keyFiles).inOrder();
+  }
+
+  @Test
+  public void metered_overBudget_shouldPlanOnlyAPrefixOfEachServersFiles() {
+    // Two files fit in the budget, three don't.
+    prefs.setKeyFileSizeEstimateBytes(BUDGET_BYTES / 2 - 1);
+    List<KeyFile> home = keyFiles(HOME_INDEX, "a", "b", "c");
+    List<KeyFile> travel = keyFiles(TRAVEL_INDEX, "d");
+
+    List<KeyFile> planned = planner.plan(
+        ImmutableList.<KeyFile>builder().addAll(home).addAll(travel).build(),
+        ImmutableSet.of(),
+        /* metered= */ true);
+
+    assertThat(planned).containsExactly(home.get(0), home.get(1)).inOrder();
+  }
+
+  @Test
+  public void metered_staleAndPartlyDownloadedFiles_shouldCostLess() throws Exception {
+    prefs.setKeyFileSizeEstimateBytes(BUDGET_BYTES / 2);
+    List<KeyFile> home = keyFiles(HOME_INDEX, "stale", "partial", "new-1", "new-2");
+    // Half of the second file is on disk already.
+    partialDownloadRepository.upsert(PartialDownloadEntity.create(
+        home.get(1).uri(), "/diag_keys/earlier/keys_1.zip", "\"v1\"", BUDGET_BYTES / 4,
+        clock.currentTimeMillis()));
+
+    List<KeyFile> planned =
+        planner.plan(home, ImmutableSet.of(home.get(0).uri()), /* metered= */ true);
+
+    assertThat(planned).containsExactly(home.get(0), home.get(1), home.get(2)).inOrder();
+  }
+
+  @Test
+  public void metered_sameFileFromTwoServers_shouldCostOnce() {
+    prefs.setKeyFileSizeEstimateBytes(BUDGET_BYTES / 2);
+    KeyFile shared = KeyFile.create(HOME_INDEX, Uri.parse("http://example.com/shared.zip"), false);
+    KeyFile sharedAgain =
+        KeyFile.create(TRAVEL_INDEX, Uri.parse("http://example.com/shared.zip"), false);
+    List<KeyFile> keyFiles =
+        ImmutableList.of(shared, keyFiles(HOME_INDEX, "a").get(0), sharedAgain);
+
+    assertThat(planner.plan(keyFiles, ImmutableSet.of(), /* metered= */ true))
+        .containsExactlyElementsIn(keyFiles).inOrder();
+  }
+
+  @Test
+  public void metered_fileLargerThanBudget_shouldStillPlanOneFile() {
+    prefs.setKeyFileSizeEstimateBytes(2 * BUDGET_BYTES);
+    List<KeyFile> home = keyFiles(HOME_INDEX, "a", "b");
+
+    assertThat(planner.plan(home, ImmutableSet.of(), /* metered= */ true))
+        .containsExactly(home.get(0));
+  }
+
+  @Test
+  public void learnFrom_noEstimateYet_shouldUseAverageFileSize() throws Exception {
+    planner.learnFrom(ImmutableList.of(
+        keyFileOfSize("a", 1 * MIB), keyFileOfSize("b", 3 * MIB)));
+
+    assertThat(prefs.maybeGetKeyFileSizeEstimateBytes()).hasValue(2 * MIB);
+  }
+
+  @Test
+  public void learnFrom_earlierEstimate_shouldBlendInThisRun() throws Exception {
+    prefs.setKeyFileSizeEstimateBytes(4 * MIB);
+
+    planner.learnFrom(ImmutableList.of(keyFileOfSize("a", 2 * MIB)));
+
+    assertThat(prefs.maybeGetKeyFileSizeEstimateBytes()).hasValue(3 * MIB);
+  }
+
+  @Test
+  public void learnFrom_noFilesDownloaded_shouldKeepEstimate() {
+    prefs.setKeyFileSizeEstimateBytes(4 * MIB);
+
+    planner.learnFrom(keyFiles(HOME_INDEX, "a"));
+
+    assertThat(prefs.maybeGetKeyFileSizeEstimateBytes()).hasValue(4 * MIB);
+  }
+
+  private static List<KeyFile> keyFiles(Uri index, String... names) {
+    ImmutableList.Builder<KeyFile> keyFiles = ImmutableList.builder();
+    for (int i = 0; i < names.length; i++) {
+      keyFiles.add(KeyFile.create(
+          index,
+          index.buildUpon().path("/files/" + names[i] + ".zip").build(),
+          i == names.length - 1));
+    }
+    return keyFiles.build();
+  }
+
+  private static KeyFile keyFileOfSize(String name, long bytes) throws Exception {
+    File file = new File(
+        ApplicationProvider.getApplicationContext().getFilesDir(), "diag_keys/run/" + name);
+    file.getParentFile().mkdirs();
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      out.setLength(bytes);
+    }
+    return keyFiles(HOME_INDEX, name).get(0).with(file);
+  }
+}
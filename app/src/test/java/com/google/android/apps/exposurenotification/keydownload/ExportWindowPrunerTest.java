@@ -0,0 +1,194 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Request;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKey;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKeyExport;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
+import com.google.common.primitives.Bytes;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link ExportWindowPruner}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExportWindowPrunerTest {
+
+  private static final DownloadUriPair URI_PAIR = DownloadUriPair.create(
+      "http://example.com/index.txt", "http://example.com/files/");
+  private static final byte[] HEADER = "EK Export v1    ".getBytes(StandardCharsets.US_ASCII);
+
+  private final FakeClock clock = new FakeClock();
+  private final FakeRequestQueue queue = new FakeRequestQueue();
+  private ExportWindowPruner pruner;
+  private long staleEndSeconds;
+  private long freshEndSeconds;
+
+  @Before
+  public void setUp() {
+    pruner = new ExportWindowPruner(queue, clock, MoreExecutors.newDirectExecutorService());
+    staleEndSeconds = clock.now().minus(ExportWindowPruner.STALE_AFTER).getEpochSecond() - 1;
+    freshEndSeconds = clock.now().minus(Duration.ofDays(1)).getEpochSecond();
+  }
+
+  @Test
+  public void endSecondsFromName_windowFileName_shouldReturnEndOfWindow() {
+    assertThat(ExportWindowPruner.endSecondsFromName(
+        Uri.parse("http://example.com/exposureKeyExport-US/1598918400-1598922000-00001.zip")))
+        .isEqualTo(1598922000L);
+  }
+
+  @Test
+  public void endSecondsFromName_otherFileNames_shouldBeUnknown() {
+    assertThat(ExportWindowPruner.endSecondsFromName(Uri.parse("http://example.com/keys.zip")))
+        .isEqualTo(Long.MAX_VALUE);
+    // The window ends before it starts.
+    assertThat(ExportWindowPruner.endSecondsFromName(
+        Uri.parse("http://example.com/1598922000-1598918400-00001.zip")))
+        .isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void filesNamedWithWindows_shouldFindStaleOnesWithoutAnyRequests() throws Exception {
+    KeyFile stale = keyFile(window(staleEndSeconds));
+    KeyFile fresh = keyFile(window(freshEndSeconds));
+
+    assertThat(pruner.findStale(Arrays.asList(stale, fresh)).get()).containsExactly(stale.uri());
+    assertThat(queue.numRpcs()).isEqualTo(0);
+  }
+
+  @Test
+  public void fewUnnamedFiles_shouldKeepThemAllWithoutProbing() throws Exception {
+    List<KeyFile> files = unnamedFiles(ExportWindowPruner.MIN_FILES_TO_PROBE - 1, 3);
+
+    assertThat(pruner.findStale(files).get()).isEmpty();
+    assertThat(queue.numRpcs()).isEqualTo(0);
+  }
+
+  @Test
+  public void manyUnnamedFiles_shouldBinarySearchForFirstFreshExportWithRangedReads()
+      throws Exception {
+    List<KeyFile> files = unnamedFiles(32, 20);
+
+    List<Uri> stale = new ArrayList<>();
+    for (KeyFile keyFile : files.subList(0, 20)) {
+      stale.add(keyFile.uri());
+    }
+    assertThat(pruner.findStale(files).get()).containsExactlyElementsIn(stale);
+    // log2(32) + 1 at most.
+    assertThat(queue.numRpcs()).isAtMost(6);
+    for (Request<?> request : queue.getRpcs()) {
+      assertThat(request.getHeaders()).containsKey("Range");
+    }
+  }
+
+  @Test
+  public void probeFails_shouldKeepFiles() throws Exception {
+    List<KeyFile> files = new ArrayList<>();
+    for (int i = 0; i < ExportWindowPruner.MIN_FILES_TO_PROBE; i++) {
+      files.add(keyFile("keys-" + i + ".zip"));
+    }
+    queue.addResponse(".*", 404, "");
+
+    assertThat(pruner.findStale(files).get()).isEmpty();
+  }
+
+  @Test
+  public void endSecondsFromPartialFile_firstBytesOfFile_shouldReadEndTimestamp()
+      throws Exception {
+    byte[] file = zipOf(export(freshEndSeconds, 500));
+
+    assertThat(ExportWindowPruner.endSecondsFromPartialFile(Arrays.copyOf(file, 256)))
+        .isEqualTo(freshEndSeconds);
+  }
+
+  @Test
+  public void endSecondsFromPartialFile_cutOffBeforeTimestamps_shouldBeUnknown()
+      throws Exception {
+    byte[] file = zipOf(export(freshEndSeconds, 500));
+
+    assertThat(ExportWindowPruner.endSecondsFromPartialFile(Arrays.copyOf(file, 40)))
+        .isEqualTo(Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates {@code count} keyfiles with no window in their names, of which the first {@code
+   * staleCount} are stale, and sets up their responses.
+   */
+  private List<KeyFile> unnamedFiles(int count, int staleCount) throws Exception {
+    List<KeyFile> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      KeyFile keyFile = keyFile("keys-" + i + ".zip");
+      long endSeconds = i < staleCount ? staleEndSeconds : freshEndSeconds;
+      queue.addResponse(keyFile.uri().toString(), 200, zipOf(export(endSeconds, 10)));
+      files.add(keyFile);
+    }
+    return files;
+  }
+
+  private static KeyFile keyFile(String name) {
+    return KeyFile.create(
+        URI_PAIR.indexUri(), URI_PAIR.fileBaseUri().buildUpon().appendPath(name).build(), false);
+  }
+
+  private static String window(long endSeconds) {
+    return (endSeconds - 3600) + "-" + endSeconds + "-00001.zip";
+  }
+
+  private static byte[] export(long endSeconds, int keyCount) {
+    TemporaryExposureKeyExport.Builder export = TemporaryExposureKeyExport.newBuilder()
+        .setStartTimestamp(endSeconds - 3600)
+        .setEndTimestamp(endSeconds)
+        .setRegion("US");
+    for (int i = 0; i < keyCount; i++) {
+      export.addKeys(TemporaryExposureKey.newBuilder()
+          .setKeyData(ByteString.copyFromUtf8(String.format("key-%012d", i)))
+          .setRollingStartIntervalNumber(2_666_666 + i));
+    }
+    return Bytes.concat(HEADER, export.build().toByteArray());
+  }
+
+  private static byte[] zipOf(byte[] export) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+      out.putNextEntry(new ZipEntry(KeyFileConstants.EXPORT_FILENAME));
+      out.write(export);
+      out.putNextEntry(new ZipEntry(KeyFileConstants.SIG_FILENAME));
+      out.write("signature".getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.testsupport.Benchmarks;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * A rough benchmark of {@link IndexFileParser} on large indices, against the split-then-search
+ * approach it replaced, which we reproduce here as {@link #parseWithSplitter}.
+ *
+ * <p>Timings are printed rather than asserted, as they depend too much on the machine running the
+ * tests. Both parsers must agree on the result, though. Only runs when {@link Benchmarks} are
+ * asked for; {@link IndexFileParserTest} covers the parser's correctness.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IndexFileParserBenchmarkTest {
+
+  private static final Joiner NEWLINE_JOINER = Joiner.on("\n");
+  private static final Splitter WHITESPACE_SPLITTER =
+      Splitter.onPattern("\\s+").trimResults().omitEmptyStrings();
+  private static final DownloadUriPair URI_PAIR = DownloadUriPair.create(
+      "http://example.com/index.txt", "http://example.com/files/");
+  private static final int WARMUP_RUNS = 3;
+  private static final int TIMED_RUNS = 5;
+
+  @Before
+  public void setUp() {
+    Benchmarks.assumeEnabled();
+  }
+
+  @Test
+  public void benchmark_10kEntries() {
+    benchmark(10_000);
+  }
+
+  @Test
+  public void benchmark_50kEntries() {
+    benchmark(50_000);
+  }
+
+  private static void benchmark(int numEntries) {
+    List<String> entries = new ArrayList<>();
+    for (int i = 0; i < numEntries; i++) {
+      entries.add("exposureKeyExport-US/" + (1_600_000_000 + i) + "-00001.zip");
+    }
+    String index = NEWLINE_JOINER.join(entries);
+    // The usual case: we've got all but the last few files already.
+    Uri checkpoint =
+        URI_PAIR.fileBaseUri().buildUpon().appendEncodedPath(entries.get(numEntries - 5)).build();
+
+    ImmutableList<KeyFile> expected = parseWithSplitter(index, checkpoint);
+    ImmutableList<KeyFile> actual = IndexFileParser.parse(URI_PAIR, index, checkpoint).keyFiles();
+    assertThat(actual).isEqualTo(expected);
+
+    long baselineNanos = time(() -> parseWithSplitter(index, checkpoint));
+    long parserNanos = time(() -> IndexFileParser.parse(URI_PAIR, index, checkpoint));
+    System.out.println(String.format(
+        "Index of %d entries: splitter %.2f ms, IndexFileParser %.2f ms",
+        numEntries, baselineNanos / 1e6, parserNanos / 1e6));
+  }
+
+  /**
+   * Returns the mean time in nanos of a run of the given parse, after a few warmup runs.
+   */
+  private static long time(Supplier<?> parse) {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      parse.get();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < TIMED_RUNS; i++) {
+      parse.get();
+    }
+    return (System.nanoTime() - start) / TIMED_RUNS;
+  }
+
+  private static ImmutableList<KeyFile> parseWithSplitter(String index, Uri checkpoint) {
+    List<Uri> fileUris = new ArrayList<>();
+    for (String entry : WHITESPACE_SPLITTER.splitToList(index)) {
+      fileUris.add(URI_PAIR.fileBaseUri().buildUpon().appendEncodedPath(entry).build());
+    }
+    if (fileUris.contains(checkpoint)) {
+      fileUris = fileUris.subList(fileUris.indexOf(checkpoint) + 1, fileUris.size());
+    }
+    ImmutableList.Builder<KeyFile> builder = ImmutableList.builder();
+    for (Uri fileUri : fileUris) {
+      boolean isMostRecent = fileUri.equals(Iterables.getLast(fileUris));
+      builder.add(KeyFile.create(URI_PAIR.indexUri(), fileUri, isMostRecent));
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.keydownload.IndexFileParser.ParsedIndex;
+import com.google.common.base.Joiner;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link IndexFileParser}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IndexFileParserTest {
+
+  private static final Joiner NEWLINE_JOINER = Joiner.on("\n");
+  private static final DownloadUriPair URI_PAIR = DownloadUriPair.create(
+      "http://example.com/index.txt", "http://example.com/files/");
+
+  @Test
+  public void emptyIndex_shouldReturnNoFiles() {
+    ParsedIndex parsed = IndexFileParser.parse(URI_PAIR, " \n\t ", null);
+
+    assertThat(parsed.entryCount()).isEqualTo(0);
+    assertThat(parsed.keyFiles()).isEmpty();
+    assertThat(parsed.lastFileUri()).isNull();
+  }
+
+  @Test
+  public void noCheckpoint_shouldReturnAllFilesWithLastMostRecent() {
+    ParsedIndex parsed = IndexFileParser.parse(URI_PAIR, "a.zip\nb.zip\nc.zip", null);
+
+    assertThat(parsed.keyFiles()).containsExactly(
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("a.zip"), false),
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("b.zip"), false),
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("c.zip"), true)).inOrder();
+    assertThat(parsed.lastFileUri()).isEqualTo(fileUri("c.zip"));
+  }
+
+  @Test
+  public void checkpointListed_shouldReturnOnlyFilesAfterIt() {
+    ParsedIndex parsed =
+        IndexFileParser.parse(URI_PAIR, "a.zip\nb.zip\nc.zip", fileUri("a.zip"));
+
+    assertThat(parsed.keyFiles()).containsExactly(
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("b.zip"), false),
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("c.zip"), true)).inOrder();
+    assertThat(parsed.entryCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void checkpointIsLastFile_shouldReturnNoFilesButRememberLastFile() {
+    ParsedIndex parsed =
+        IndexFileParser.parse(URI_PAIR, "a.zip\nb.zip\nc.zip", fileUri("c.zip"));
+
+    assertThat(parsed.keyFiles()).isEmpty();
+    assertThat(parsed.lastFileUri()).isEqualTo(fileUri("c.zip"));
+  }
+
+  @Test
+  public void checkpointNotListed_shouldReturnAllFiles() {
+    ParsedIndex parsed =
+        IndexFileParser.parse(URI_PAIR, "b.zip\nc.zip", fileUri("a.zip"));
+
+    assertThat(parsed.keyFiles()).hasSize(2);
+  }
+
+  @Test
+  public void checkpointIsPrefixOfAnEntry_shouldNotMatch() {
+    ParsedIndex parsed =
+        IndexFileParser.parse(URI_PAIR, "a.zip.old\nb.zip", fileUri("a.zip"));
+
+    assertThat(parsed.keyFiles()).hasSize(2);
+  }
+
+  @Test
+  public void extraWhitespace_shouldBeIgnored() {
+    ParsedIndex parsed =
+        IndexFileParser.parse(URI_PAIR, "\r\n\n   \u000B \t a.zip\f\n\nb.zip  \n\n\n  ", null);
+
+    assertThat(parsed.keyFiles()).containsExactly(
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("a.zip"), false),
+        KeyFile.create(URI_PAIR.indexUri(), fileUri("b.zip"), true)).inOrder();
+  }
+
+  @Test
+  public void baseUriWithoutTrailingSlash_shouldResolveLikeUriBuilder() {
+    DownloadUriPair uriPair =
+        DownloadUriPair.create("http://example.com/index.txt", "http://example.com/files");
+    Uri checkpoint = Uri.parse("http://example.com/files/a.zip");
+
+    ParsedIndex parsed = IndexFileParser.parse(uriPair, "a.zip\nb.zip", checkpoint);
+
+    assertThat(parsed.keyFiles()).containsExactly(KeyFile.create(
+        uriPair.indexUri(), Uri.parse("http://example.com/files/b.zip"), true));
+  }
+
+  @Test
+  public void baseUriWithQuery_shouldStillFindCheckpoint() {
+    DownloadUriPair uriPair =
+        DownloadUriPair.create("http://example.com/index.txt", "http://example.com/files?key=1");
+    Uri checkpoint = uriPair.fileBaseUri().buildUpon().appendEncodedPath("a.zip").build();
+
+    ParsedIndex parsed = IndexFileParser.parse(uriPair, "a.zip\nb.zip", checkpoint);
+
+    assertThat(parsed.keyFiles()).hasSize(1);
+  }
+
+  @Test
+  public void largeIndex_checkpointNearEnd_shouldReturnOnlyNewFiles() {
+    List<String> entries = new ArrayList<>();
+    for (int i = 0; i < 20_000; i++) {
+      entries.add("exposureKeyExport-US/" + (1_600_000_000 + i) + "-00001.zip");
+    }
+    Uri checkpoint = fileUri(entries.get(19_989));
+
+    ParsedIndex parsed =
+        IndexFileParser.parse(URI_PAIR, NEWLINE_JOINER.join(entries), checkpoint);
+
+    assertThat(parsed.entryCount()).isEqualTo(20_000);
+    assertThat(parsed.keyFiles()).hasSize(10);
+    assertThat(parsed.keyFiles().get(0).uri()).isEqualTo(fileUri(entries.get(19_990)));
+    assertThat(parsed.keyFiles().get(9).isMostRecent()).isTrue();
+  }
+
+  private static Uri fileUri(String entry) {
+    return URI_PAIR.fileBaseUri().buildUpon().appendEncodedPath(entry).build();
+  }
+}
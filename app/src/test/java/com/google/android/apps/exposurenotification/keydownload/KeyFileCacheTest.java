@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
+import com.google.android.apps.exposurenotification.keydownload.KeyFileCache.SweepStats;
+import com.google.android.apps.exposurenotification.storage.DbModule;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadEntity;
+import com.google.android.apps.exposurenotification.storage.PartialDownloadRepository;
+import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import dagger.hilt.android.testing.BindValue;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import dagger.hilt.android.testing.UninstallModules;
+import java.io.File;
+import java.io.RandomAccessFile;
+import javax.inject.Inject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link KeyFileCache}.
+ */
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+@UninstallModules({DbModule.class, RealTimeModule.class})
+public class KeyFileCacheTest {
+
+  private final Context context = ApplicationProvider.getApplicationContext();
+
+  @BindValue
+  ExposureNotificationDatabase db = InMemoryDb.create();
+  @BindValue
+  Clock clock = new FakeClock();
+
+  @Rule
+  public ExposureNotificationRules rules = ExposureNotificationRules.forTest(this).build();
+
+  @Inject
+  PartialDownloadRepository partialDownloadRepository;
+  @Inject
+  KeyFileCache keyFileCache;
+
+  @Before
+  public void setUp() {
+    rules.hilt().inject();
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void noKeyFiles_shouldReportEmptyCache() {
+    SweepStats stats = keyFileCache.sweep();
+
+    assertThat(stats).isEqualTo(SweepStats.create(0, 0, 0, 0));
+  }
+
+  @Test
+  public void abandonedFiles_shouldBeDeletedWithTheirDirectory() throws Exception {
+    File abandoned = keyFile("/diag_keys/old/keys_1.zip", 10, Duration.ofDays(2));
+    File recent = keyFile("/diag_keys/new/keys_1.zip", 20, Duration.ofMinutes(5));
+
+    SweepStats stats = keyFileCache.sweep();
+
+    assertThat(abandoned.exists()).isFalse();
+    assertThat(abandoned.getParentFile().exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+    assertThat(stats).isEqualTo(SweepStats.create(2, 30, 1, 10));
+  }
+
+  @Test
+  public void oldPartialDownload_shouldBeKeptForResuming() throws Exception {
+    String path = "/diag_keys/partial/keys_1.zip";
+    File partial = keyFile(path, 10, Duration.ofDays(2));
+    partialDownloadRepository.upsert(PartialDownloadEntity.create(
+        Uri.parse("http://example.com/keys_1.zip"), path, "\"v1\"", 10L,
+        clock.currentTimeMillis()));
+
+    keyFileCache.sweep();
+
+    assertThat(partial.exists()).isTrue();
+    assertThat(partialDownloadRepository.getAll()).hasSize(1);
+  }
+
+  @Test
+  public void overQuota_shouldDeleteOldestFilesNotInUseUntilWithinQuota() throws Exception {
+    long half = KeyFileCache.QUOTA_BYTES / 2;
+    String partialPath = "/diag_keys/a/keys_1.zip";
+    File oldest = keyFile(partialPath, half, Duration.ofHours(3));
+    partialDownloadRepository.upsert(PartialDownloadEntity.create(
+        Uri.parse("http://example.com/keys_1.zip"), partialPath, "\"v1\"", half,
+        clock.currentTimeMillis()));
+    File older = keyFile("/diag_keys/a/keys_2.zip", half, Duration.ofHours(2));
+    File inUse = keyFile("/diag_keys/b/keys_1.zip", half, Duration.ofMinutes(5));
+
+    keyFileCache.sweep();
+
+    assertThat(oldest.exists()).isFalse();
+    // Its journal entry goes with it.
+    assertThat(partialDownloadRepository.getAll()).isEmpty();
+    assertThat(older.exists()).isTrue();
+    assertThat(inUse.exists()).isTrue();
+  }
+
+  @Test
+  public void overQuota_allFilesInUse_shouldKeepThem() throws Exception {
+    File file = keyFile("/diag_keys/a/keys_1.zip", KeyFileCache.QUOTA_BYTES + 1,
+        Duration.ofMinutes(5));
+
+    keyFileCache.sweep();
+
+    assertThat(file.exists()).isTrue();
+  }
+
+  @Test
+  public void overQuota_filesOfLongRunStillInProgress_shouldKeepThemUntilItFinishes()
+      throws Exception {
+    long runStartedMs = keyFileCache.runStarted();
+    ((FakeClock) clock).advanceBy(KeyFileCache.IN_USE_GRACE.multipliedBy(3));
+    File file = keyFile("/diag_keys/a/keys_1.zip", KeyFileCache.QUOTA_BYTES + 1,
+        KeyFileCache.IN_USE_GRACE.multipliedBy(2));
+
+    keyFileCache.sweep();
+    assertThat(file.exists()).isTrue();
+
+    keyFileCache.runFinished(runStartedMs);
+    keyFileCache.sweep();
+    assertThat(file.exists()).isFalse();
+  }
+
+  private File keyFile(String path, long length, Duration age) throws Exception {
+    File file = new File(context.getFilesDir(), path);
+    file.getParentFile().mkdirs();
+    // A sparse file, so that testing the quota doesn't take up the real space.
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(length);
+    }
+    file.setLastModified(clock.now().minus(age).toEpochMilli());
+    return file;
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link KeyFileDownloadScheduler}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyFileDownloadSchedulerTest {
+
+  private static final Uri HOME_INDEX = Uri.parse("http://home.example.com/index.txt");
+  private static final Uri TRAVEL_INDEX = Uri.parse("http://travel.example.com/index.txt");
+
+  private final FakeClock clock = new FakeClock();
+  // Downloads the scheduler has started, in the order it started them.
+  private final Map<KeyFile, SettableFuture<KeyFile>> started = new LinkedHashMap<>();
+
+  @Test
+  public void moreFilesThanGlobalLimit_shouldOnlyStartUpToTheLimit() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 2, /* perHost= */ 2);
+    List<KeyFile> files = ImmutableList.of(
+        keyFile(HOME_INDEX, "http://a.example.com/1.zip"),
+        keyFile(HOME_INDEX, "http://b.example.com/2.zip"),
+        keyFile(HOME_INDEX, "http://c.example.com/3.zip"),
+        keyFile(HOME_INDEX, "http://d.example.com/4.zip"));
+
+    scheduler.schedule(files, HOME_INDEX, this::startDownload);
+
+    assertThat(started).hasSize(2);
+    assertThat(scheduler.getStats().queueDepth()).isEqualTo(2);
+    assertThat(scheduler.getStats().inFlight()).isEqualTo(2);
+  }
+
+  @Test
+  public void downloadFinishes_shouldStartTheNextOne() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 1, /* perHost= */ 1);
+    List<KeyFile> files = ImmutableList.of(
+        keyFile(HOME_INDEX, "http://a.example.com/1.zip"),
+        keyFile(HOME_INDEX, "http://b.example.com/2.zip"));
+    scheduler.schedule(files, HOME_INDEX, this::startDownload);
+
+    completeNext();
+
+    assertThat(started).hasSize(2);
+  }
+
+  @Test
+  public void moreFilesForOneHostThanPerHostLimit_shouldStartOtherHostsInstead() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 4, /* perHost= */ 1);
+    KeyFile sameHost1 = keyFile(HOME_INDEX, "http://a.example.com/1.zip");
+    KeyFile sameHost2 = keyFile(HOME_INDEX, "http://a.example.com/2.zip");
+    KeyFile otherHost = keyFile(TRAVEL_INDEX, "http://b.example.com/3.zip");
+
+    scheduler.schedule(
+        ImmutableList.of(sameHost1, sameHost2, otherHost), HOME_INDEX, this::startDownload);
+
+    assertThat(started.keySet()).containsExactly(sameHost2, otherHost);
+  }
+
+  @Test
+  public void priority_shouldBeHomeServerFirstThenNewestFirst() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 1, /* perHost= */ 1);
+    KeyFile travelOld = keyFile(TRAVEL_INDEX, "http://travel.example.com/1.zip");
+    KeyFile travelNew = keyFile(TRAVEL_INDEX, "http://travel.example.com/2.zip");
+    KeyFile homeOld = keyFile(HOME_INDEX, "http://home.example.com/1.zip");
+    KeyFile homeNew = keyFile(HOME_INDEX, "http://home.example.com/2.zip");
+    scheduler.schedule(
+        ImmutableList.of(travelOld, travelNew, homeOld, homeNew), HOME_INDEX, this::startDownload);
+
+    completeNext();
+    completeNext();
+    completeNext();
+
+    assertThat(started.keySet())
+        .containsExactly(homeNew, homeOld, travelNew, travelOld)
+        .inOrder();
+  }
+
+  @Test
+  public void oneDownloadFails_othersShouldStillComplete() throws Exception {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 1, /* perHost= */ 1);
+    KeyFile first = keyFile(HOME_INDEX, "http://a.example.com/1.zip");
+    KeyFile second = keyFile(HOME_INDEX, "http://a.example.com/2.zip");
+    List<ListenableFuture<KeyFile>> results =
+        scheduler.schedule(ImmutableList.of(first, second), HOME_INDEX, this::startDownload);
+
+    // The newest file goes first; fail it.
+    started.get(second).setException(new IOException("boom"));
+    completeNext();
+
+    assertThrows(ExecutionException.class, () -> results.get(1).get());
+    assertThat(results.get(0).get()).isEqualTo(first);
+    assertThat(scheduler.getStats().completed()).isEqualTo(1);
+    assertThat(scheduler.getStats().failed()).isEqualTo(1);
+  }
+
+  @Test
+  public void resultsShouldBeInTheSameOrderAsTheGivenFiles() throws Exception {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 4, /* perHost= */ 4);
+    KeyFile first = keyFile(HOME_INDEX, "http://a.example.com/1.zip");
+    KeyFile second = keyFile(HOME_INDEX, "http://a.example.com/2.zip");
+    List<ListenableFuture<KeyFile>> results =
+        scheduler.schedule(ImmutableList.of(first, second), HOME_INDEX, this::startDownload);
+
+    completeNext();
+    completeNext();
+
+    assertThat(results.get(0).get()).isEqualTo(first);
+    assertThat(results.get(1).get()).isEqualTo(second);
+  }
+
+  @Test
+  public void busyHostWithBacklog_shouldStillTakeItsFilesInPriorityOrder() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 2, /* perHost= */ 1);
+    KeyFile home1 = keyFile(HOME_INDEX, "http://home.example.com/1.zip");
+    KeyFile home2 = keyFile(HOME_INDEX, "http://home.example.com/2.zip");
+    KeyFile home3 = keyFile(HOME_INDEX, "http://home.example.com/3.zip");
+    KeyFile travel = keyFile(TRAVEL_INDEX, "http://travel.example.com/1.zip");
+    scheduler.schedule(
+        ImmutableList.of(home1, home2, home3, travel), HOME_INDEX, this::startDownload);
+
+    completeNext();
+    completeNext();
+    completeNext();
+
+    assertThat(started.keySet()).containsExactly(home3, travel, home2, home1).inOrder();
+  }
+
+  @Test
+  public void waitingDownloadCancelled_shouldNeverStartIt() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 1, /* perHost= */ 1);
+    KeyFile first = keyFile(HOME_INDEX, "http://a.example.com/1.zip");
+    KeyFile second = keyFile(HOME_INDEX, "http://a.example.com/2.zip");
+    List<ListenableFuture<KeyFile>> results =
+        scheduler.schedule(ImmutableList.of(first, second), HOME_INDEX, this::startDownload);
+
+    // The newest file goes first, so the older one is still waiting.
+    results.get(0).cancel(false);
+    completeNext();
+
+    assertThat(started.keySet()).containsExactly(second);
+    assertThat(scheduler.getStats().queueDepth()).isEqualTo(0);
+  }
+
+  @Test
+  public void stats_afterDownloadCompletes_shouldReportCountsAndEmptyQueue() {
+    KeyFileDownloadScheduler scheduler = newScheduler(/* global= */ 1, /* perHost= */ 1);
+    scheduler.schedule(
+        ImmutableList.of(keyFile(HOME_INDEX, "http://a.example.com/1.zip")),
+        HOME_INDEX,
+        this::startDownload);
+
+    clock.advanceBy(Duration.ofSeconds(2));
+    completeNext();
+
+    // Files without a local file count zero bytes, so throughput is zero but well-defined.
+    assertThat(scheduler.getStats().completed()).isEqualTo(1);
+    assertThat(scheduler.getStats().queueDepth()).isEqualTo(0);
+    assertThat(scheduler.getStats().inFlight()).isEqualTo(0);
+    assertThat(scheduler.getStats().throughputBytesPerSecond()).isEqualTo(0.0);
+  }
+
+  private KeyFileDownloadScheduler newScheduler(int global, int perHost) {
+    DownloadSchedulerConfig config = DownloadSchedulerConfig.newBuilder()
+        .setMaxConcurrentDownloads(global)
+        .setMaxConcurrentDownloadsPerHost(perHost)
+        .build();
+    return new KeyFileDownloadScheduler(
+        config, clock, MoreExecutors.newDirectExecutorService());
+  }
+
+  private ListenableFuture<KeyFile> startDownload(KeyFile keyFile) {
+    SettableFuture<KeyFile> download = SettableFuture.create();
+    started.put(keyFile, download);
+    return download;
+  }
+
+  /**
+   * Completes, successfully, the earliest started download that's not done yet.
+   */
+  private void completeNext() {
+    for (Map.Entry<KeyFile, SettableFuture<KeyFile>> entry : new ArrayList<>(started.entrySet())) {
+      if (!entry.getValue().isDone()) {
+        entry.getValue().set(entry.getKey());
+        return;
+      }
+    }
+  }
+
+  private static KeyFile keyFile(Uri index, String uri) {
+    return KeyFile.create(index, Uri.parse(uri), /* isMostRecent= */ false);
+  }
+}
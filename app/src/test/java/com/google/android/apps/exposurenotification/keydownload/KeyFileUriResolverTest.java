@@ -29,12 +29,14 @@ import com.google.android.apps.exposurenotification.storage.DbModule;
 import com.google.android.apps.exposurenotification.storage.DownloadServerEntity;
 import com.google.android.apps.exposurenotification.storage.DownloadServerRepository;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.storage.IndexFileRepository;
 import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
 import com.google.android.apps.exposurenotification.testsupport.FakeClock;
 import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
 import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import dagger.hilt.android.testing.BindValue;
 import dagger.hilt.android.testing.HiltAndroidTest;
 import dagger.hilt.android.testing.HiltTestApplication;
@@ -72,6 +74,8 @@ public final class KeyFileUriResolverTest {
 
   @Inject
   DownloadServerRepository downloadServerRepo;
+  @Inject
+  IndexFileRepository indexFileRepo;
 
   // The SUT
   @Inject
@@ -272,6 +276,73 @@ public final class KeyFileUriResolverTest {
     assertThat(keyFiles).hasSize(2);
   }
 
+  @Test
+  public void indexNotModifiedSinceAllItsFilesDownloaded_shouldAskConditionallyAndReturnNothing()
+      throws Exception {
+    // GIVEN
+    String keyfile = uniqueFileName();
+    DownloadUriPair uriPair = newDownloadUriPair();
+    queue().addResponse(
+        uriPair.indexUri().toString(), 200, indexFileFor(keyfile), ImmutableMap.of("ETag", "v1"));
+    KeyFile firstKeyFile = resolver.resolve(ImmutableList.of(uriPair)).get().get(0);
+    downloadServerRepo.upsert(DownloadServerEntity.create(uriPair.indexUri(), firstKeyFile.uri()));
+    queue().addResponse(uriPair.indexUri().toString(), 304, "");
+
+    // WHEN
+    List<KeyFile> keyFiles = resolver.resolve(ImmutableList.of(uriPair)).get();
+
+    // THEN
+    assertThat(keyFiles).isEmpty();
+    assertThat(queue().getLastRpcHeaders()).containsExactly("If-None-Match", "v1");
+  }
+
+  @Test
+  public void indexCachedButItsFilesNotDownloaded_shouldAskUnconditionally() throws Exception {
+    // GIVEN
+    String keyfile = uniqueFileName();
+    DownloadUriPair uriPair = newDownloadUriPair();
+    queue().addResponse(
+        uriPair.indexUri().toString(),
+        200,
+        indexFileFor(keyfile),
+        ImmutableMap.of("Last-Modified", "Wed, 21 Oct 2020 07:28:00 GMT"));
+    resolver.resolve(ImmutableList.of(uriPair)).get();
+
+    // WHEN
+    // The previous download of the file didn't succeed, so we still need it.
+    List<KeyFile> keyFiles = resolver.resolve(ImmutableList.of(uriPair)).get();
+
+    // THEN
+    assertThat(keyFiles).hasSize(1);
+    assertThat(queue().getLastRpcHeaders()).isEmpty();
+  }
+
+  @Test
+  public void indexModified_shouldReturnNewFilesAndCacheNewValidators() throws Exception {
+    // GIVEN
+    String keyfile1 = uniqueFileName();
+    String keyfile2 = uniqueFileName();
+    DownloadUriPair uriPair = newDownloadUriPair();
+    queue().addResponse(
+        uriPair.indexUri().toString(), 200, indexFileFor(keyfile1), ImmutableMap.of("ETag", "v1"));
+    KeyFile firstKeyFile = resolver.resolve(ImmutableList.of(uriPair)).get().get(0);
+    downloadServerRepo.upsert(DownloadServerEntity.create(uriPair.indexUri(), firstKeyFile.uri()));
+    queue().addResponse(
+        uriPair.indexUri().toString(),
+        200,
+        indexFileFor(keyfile1, keyfile2),
+        ImmutableMap.of("ETag", "v2"));
+
+    // WHEN
+    List<KeyFile> keyFiles = resolver.resolve(ImmutableList.of(uriPair)).get();
+
+    // THEN
+    Uri expectedUri = uriPair.fileBaseUri().buildUpon().appendEncodedPath(keyfile2).build();
+    assertThat(keyFiles).containsExactly(KeyFile.create(uriPair.indexUri(), expectedUri, true));
+    assertThat(queue().getLastRpcHeaders()).containsExactly("If-None-Match", "v1");
+    assertThat(indexFileRepo.get(uriPair.indexUri()).etag()).isEqualTo("v2");
+  }
+
   private static DownloadUriPair newDownloadUriPair() {
     int nextInt = UNIQUE_INT.getAndIncrement();
     return DownloadUriPair.create(
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keydownload;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.proto.TEKSignature;
+import com.google.android.apps.exposurenotification.proto.TEKSignatureList;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKey;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKeyExport;
+import com.google.common.io.Files;
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.ByteString;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link KeyFileValidator}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyFileValidatorTest {
+
+  private static final AtomicInteger UNIQUE_INT = new AtomicInteger(1);
+  private static final byte[] HEADER = "EK Export v1    ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] EXPORT = TemporaryExposureKeyExport.newBuilder()
+      .setStartTimestamp(1_600_000_000L)
+      .setEndTimestamp(1_600_086_400L)
+      .setRegion("US")
+      .addKeys(TemporaryExposureKey.newBuilder()
+          .setKeyData(ByteString.copyFrom(new byte[16]))
+          .setRollingStartIntervalNumber(2_666_666)
+          .setRollingPeriod(144))
+      .build()
+      .toByteArray();
+  private static final byte[] SIGNATURES = TEKSignatureList.newBuilder()
+      .addSignatures(TEKSignature.newBuilder()
+          .setBatchNum(1)
+          .setBatchSize(1)
+          .setSignature(ByteString.copyFromUtf8("signature")))
+      .build()
+      .toByteArray();
+  private static final byte[] CENTRAL_DIRECTORY_SIGNATURE = {'P', 'K', 1, 2};
+
+  private final KeyFileValidator validator = new KeyFileValidator();
+
+  @Test
+  public void validFile_shouldPass() throws Exception {
+    validator.validate(keyFile(Bytes.concat(HEADER, EXPORT), SIGNATURES));
+  }
+
+  @Test
+  public void zeroPaddedHeader_shouldPass() throws Exception {
+    byte[] header = "EK Export v1\0\0\0\0".getBytes(StandardCharsets.US_ASCII);
+
+    validator.validate(keyFile(Bytes.concat(header, EXPORT), SIGNATURES));
+  }
+
+  @Test
+  public void wrongHeader_shouldFail() throws Exception {
+    byte[] header = "EK Export v2    ".getBytes(StandardCharsets.US_ASCII);
+    File file = keyFile(Bytes.concat(header, EXPORT), SIGNATURES);
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void exportShorterThanHeader_shouldFail() throws Exception {
+    File file = keyFile("EK Export".getBytes(StandardCharsets.US_ASCII), SIGNATURES);
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void truncatedExport_shouldFail() throws Exception {
+    byte[] export = Bytes.concat(HEADER, EXPORT);
+    byte[] truncated = new byte[export.length - 3];
+    System.arraycopy(export, 0, truncated, 0, truncated.length);
+    File file = keyFile(truncated, SIGNATURES);
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void keysFieldWithWrongWireType_shouldFail() throws Exception {
+    // Field 7 (keys) as a varint, where a length-delimited key is expected.
+    byte[] badKeys = {(7 << 3) | 0, 1};
+    File file = keyFile(Bytes.concat(HEADER, EXPORT, badKeys), SIGNATURES);
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void unknownExportField_shouldPass() throws Exception {
+    // Field 15 as a varint, as a newer export format might add.
+    byte[] unknownField = {(15 << 3) | 0, 1};
+
+    validator.validate(keyFile(Bytes.concat(HEADER, EXPORT, unknownField), SIGNATURES));
+  }
+
+  @Test
+  public void noSignatures_shouldFail() throws Exception {
+    File file = keyFile(
+        Bytes.concat(HEADER, EXPORT), TEKSignatureList.getDefaultInstance().toByteArray());
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void missingSignatureEntry_shouldFail() throws Exception {
+    File file = keyFile(Bytes.concat(HEADER, EXPORT), null);
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void missingExportEntry_shouldFail() throws Exception {
+    File file = keyFile(null, SIGNATURES);
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void notAZip_shouldFail() throws Exception {
+    File file = newFile();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write("<html>Service unavailable</html>".getBytes(StandardCharsets.UTF_8));
+    }
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void truncatedZip_shouldFail() throws Exception {
+    File file = keyFile(Bytes.concat(HEADER, EXPORT), SIGNATURES);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // Cut into the first entry's data.
+      raf.setLength(60);
+    }
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  @Test
+  public void zipCutBeforeCentralDirectory_shouldFail() throws Exception {
+    File file = keyFile(Bytes.concat(HEADER, EXPORT), SIGNATURES);
+    // Both entries are intact, only the central directory that indexes them is gone.
+    int centralDirectory = Bytes.indexOf(Files.toByteArray(file), CENTRAL_DIRECTORY_SIGNATURE);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(centralDirectory);
+    }
+
+    assertThrows(IOException.class, () -> validator.validate(file));
+  }
+
+  private static File keyFile(byte[] export, byte[] signatures) throws IOException {
+    File file = newFile();
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+      if (export != null) {
+        out.putNextEntry(new ZipEntry(KeyFileConstants.EXPORT_FILENAME));
+        out.write(export);
+      }
+      if (signatures != null) {
+        out.putNextEntry(new ZipEntry(KeyFileConstants.SIG_FILENAME));
+        out.write(signatures);
+      }
+    }
+    return file;
+  }
+
+  private static File newFile() {
+    return new File(
+        ApplicationProvider.getApplicationContext().getFilesDir(),
+        "test-keyfile-" + UNIQUE_INT.incrementAndGet() + ".zip");
+  }
+}
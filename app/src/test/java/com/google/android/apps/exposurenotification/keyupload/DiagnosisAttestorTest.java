@@ -42,6 +42,7 @@ import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.VerifyV1;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.VerifyV1.Error;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.AdditionalUploadUris;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.UploadUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCertUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCodeUri;
@@ -61,6 +62,7 @@ import com.google.android.apps.exposurenotification.testsupport.ExposureNotifica
 import com.google.android.apps.exposurenotification.testsupport.FakeClock;
 import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -71,6 +73,7 @@ import dagger.hilt.android.testing.HiltTestApplication;
 import dagger.hilt.android.testing.UninstallModules;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -113,6 +116,9 @@ public class DiagnosisAttestorTest {
   @UploadUri
   static final Uri UNUSED_URI = Uri.EMPTY;
   @BindValue
+  @AdditionalUploadUris
+  static final Map<String, Uri> UNUSED_URIS = ImmutableMap.of();
+  @BindValue
   @BackgroundExecutor
   static final ExecutorService BACKGROUND_EXEC = MoreExecutors.newDirectExecutorService();
   @BindValue
@@ -270,6 +276,42 @@ public class DiagnosisAttestorTest {
     verifyVerificationRPCSuccessLoggedAndFailureNotLogged();
   }
 
+  @Test
+  public void certRequest_withKeysHmacComputedAhead_shouldSendSameHmacAsWithout()
+      throws Exception {
+    // GIVEN
+    Upload input = sampleUpload("code", sampleKey(1), sampleKey(2));
+    Upload inputWithHmac = input.toBuilder()
+        .setKeysHmacBase64(DiagnosisAttestor.keysHmac(input.keys(), input.hmacKeyBase64()))
+        .build();
+    setupSuccessfulCertRpc("certificate");
+
+    // WHEN
+    diagnosisAttestor.submitKeysForCert(input);
+    String hmacComputedOnRequest = fakeQueue().getLastRpcBody().getString(VerifyV1.HMAC_KEY);
+    diagnosisAttestor.submitKeysForCert(inputWithHmac);
+    String hmacComputedAhead = fakeQueue().getLastRpcBody().getString(VerifyV1.HMAC_KEY);
+
+    // THEN
+    assertThat(hmacComputedAhead).isEqualTo(hmacComputedOnRequest);
+  }
+
+  @Test
+  public void certRequest_withKeysHmacComputedAhead_shouldNotComputeItAgain() throws Exception {
+    // GIVEN
+    Upload input = sampleUpload("code", sampleKey(1)).toBuilder()
+        .setKeysHmacBase64("precomputed-hmac")
+        .build();
+    setupSuccessfulCertRpc("certificate");
+
+    // WHEN
+    diagnosisAttestor.submitKeysForCert(input);
+
+    // THEN
+    JSONObject requestBody = fakeQueue().getLastRpcBody();
+    assertThat(requestBody.getString(VerifyV1.HMAC_KEY)).isEqualTo("precomputed-hmac");
+  }
+
   @Test
   public void userReportRequest_shouldHavePadding() throws Exception {
     // GIVEN
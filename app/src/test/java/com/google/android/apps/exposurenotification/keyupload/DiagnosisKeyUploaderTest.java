@@ -31,6 +31,7 @@ import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1.Error;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.AdditionalUploadUris;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.UploadUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCertUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCodeUri;
@@ -40,6 +41,7 @@ import com.google.android.apps.exposurenotification.keyupload.UploadController.K
 import com.google.android.apps.exposurenotification.keyupload.UploadController.UploadException;
 import com.google.android.apps.exposurenotification.network.DiagnosisKey;
 import com.google.android.apps.exposurenotification.network.RealRequestQueueModule;
+import com.google.android.apps.exposurenotification.network.RequestLane;
 import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
 import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
 import com.google.android.apps.exposurenotification.testsupport.FakeClock;
@@ -56,6 +58,7 @@ import dagger.hilt.android.testing.UninstallModules;
 import dagger.hilt.components.SingletonComponent;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import javax.inject.Inject;
@@ -79,6 +82,7 @@ public final class DiagnosisKeyUploaderTest {
 
   private static final BaseEncoding BASE64 = BaseEncoding.base64();
   private static final Uri UPLOAD_URI = Uri.parse("http://sampleurls.com/upload");
+  private static final Uri OTHER_UPLOAD_URI = Uri.parse("http://other.example.com/upload");
 
   @Rule
   public ExposureNotificationRules rules = ExposureNotificationRules.forTest(this).build();
@@ -88,6 +92,11 @@ public final class DiagnosisKeyUploaderTest {
   RequestQueueWrapper queue = new FakeRequestQueue();
   @BindValue
   Clock clock = new FakeClock();
+  // Empty unless a test puts regions in. Sharing with other regions is tested in
+  // FanOutKeyUploaderTest.
+  @BindValue
+  @AdditionalUploadUris
+  Map<String, Uri> additionalUploadUris = new HashMap<>();
 
   @Inject
   DiagnosisKeyUploader keyUploader;
@@ -240,6 +249,98 @@ public final class DiagnosisKeyUploaderTest {
     assertThat(result.revisionToken()).isEqualTo("revision-token");
   }
 
+  @Test
+  public void upload_whenSuccessful_shouldRecordResultForHomeRegion() throws Exception {
+    // GIVEN
+    String homeRegion = context.getString(R.string.enx_regionIdentifier);
+    Upload input = sampleUpload("code", sampleKey(1));
+    setupSuccessfulRpc("revision-token");
+
+    // WHEN
+    Upload result = keyUploader.upload(input).get();
+
+    // THEN
+    assertThat(result.endpointResults()).containsKey(homeRegion);
+    UploadEndpointResult homeResult = result.endpointResults().get(homeRegion);
+    assertThat(homeResult.isSuccess()).isTrue();
+    assertThat(homeResult.uri()).isEqualTo(UPLOAD_URI);
+    assertThat(homeResult.revisionToken()).isEqualTo("revision-token");
+  }
+
+  @Test
+  public void revision_shouldGoToHomeRegionOnly() throws Exception {
+    // GIVEN
+    additionalUploadUris.put("XX", OTHER_UPLOAD_URI);
+    Upload input = sampleUpload("code", sampleKey(1)).toBuilder()
+        .setRevisionToken("home-revision-token")
+        .build();
+    setupSuccessfulRpc("revision-token");
+
+    // WHEN
+    Upload result = keyUploader.upload(input).get();
+
+    // THEN
+    // The other region's keyserver never issued our revision token.
+    assertThat(fakeQueue().numRpcs()).isEqualTo(1);
+    assertThat(result.endpointResults().keySet())
+        .containsExactly(context.getString(R.string.enx_regionIdentifier));
+  }
+
+  @Test
+  public void retryRegion_shouldGoToThatRegionOnly() throws Exception {
+    // GIVEN
+    additionalUploadUris.put("XX", OTHER_UPLOAD_URI);
+    Upload input = sampleUpload("code", sampleKey(1)).toBuilder().setRetryRegion("XX").build();
+    fakeQueue().addResponse(
+        OTHER_UPLOAD_URI.toString(), 200, successResponse("other-revision-token"));
+
+    // WHEN
+    Upload result = keyUploader.upload(input).get();
+
+    // THEN
+    assertThat(fakeQueue().numRpcs()).isEqualTo(1);
+    assertThat(result.endpointResults().keySet()).containsExactly("XX");
+    // We only keep our own region's revision token.
+    assertThat(result.revisionToken()).isNull();
+  }
+
+  @Test
+  public void retryRegion_withRevisionToken_shouldGoToThatRegionOnlyWithoutTheToken()
+      throws Exception {
+    // GIVEN
+    additionalUploadUris.put("XX", OTHER_UPLOAD_URI);
+    Upload input = sampleUpload("code", sampleKey(1)).toBuilder()
+        .setRevisionToken("home-revision-token")
+        .setRetryRegion("XX")
+        .build();
+    fakeQueue().addResponse(
+        OTHER_UPLOAD_URI.toString(), 200, successResponse("other-revision-token"));
+
+    // WHEN
+    Upload result = keyUploader.upload(input).get();
+
+    // THEN
+    assertThat(fakeQueue().numRpcs()).isEqualTo(1);
+    assertThat(result.endpointResults().keySet()).containsExactly("XX");
+    assertThat(fakeQueue().getLastRpcBody().has(UploadV1.REVISION_TOKEN)).isFalse();
+    // Our own region's revision token stays as it was.
+    assertThat(result.revisionToken()).isEqualTo("home-revision-token");
+  }
+
+  @Test
+  public void retryRegion_noKeyserverForRegion_shouldFail() {
+    // GIVEN
+    Upload input = sampleUpload("code", sampleKey(1)).toBuilder().setRetryRegion("XX").build();
+
+    // WHEN
+    ThrowingRunnable execute = () -> keyUploader.upload(input).get();
+
+    // THEN
+    ExecutionException thrown = assertThrows(ExecutionException.class, execute);
+    assertThat(thrown.getCause()).isInstanceOf(IllegalArgumentException.class);
+    assertThat(fakeQueue().numRpcs()).isEqualTo(0);
+  }
+
   @Test
   public void coverTrafficRequest_shouldHaveXChaffHeader() throws Exception {
     // GIVEN
@@ -254,6 +355,32 @@ public final class DiagnosisKeyUploaderTest {
     assertThat(headers).containsEntry("X-Chaff", "1");
   }
 
+  @Test
+  public void upload_shouldUseUploadLane() throws Exception {
+    // GIVEN
+    Upload input = sampleUpload("code", sampleKey(1));
+    setupSuccessfulRpc("revision-token");
+
+    // WHEN
+    keyUploader.upload(input).get();
+
+    // THEN
+    assertThat(fakeQueue().getLastRpcLane()).isEqualTo(RequestLane.UPLOAD);
+  }
+
+  @Test
+  public void coverTrafficRequest_shouldUseChaffLane() throws Exception {
+    // GIVEN
+    Upload input = sampleUpload("code", sampleKey(1)).toBuilder().setIsCoverTraffic(true).build();
+    setupSuccessfulRpc("revision-token");
+
+    // WHEN
+    keyUploader.upload(input).get();
+
+    // THEN
+    assertThat(fakeQueue().getLastRpcLane()).isEqualTo(RequestLane.CHAFF);
+  }
+
   @Test
   public void coverTrafficRequest_shouldTolerateGarbageResponse() throws Exception {
     // GIVEN
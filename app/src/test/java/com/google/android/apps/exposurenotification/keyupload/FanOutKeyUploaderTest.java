@@ -0,0 +1,298 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Request;
+import com.android.volley.TimeoutError;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitFailureException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitServerFailureException;
+import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
+import com.google.android.apps.exposurenotification.network.JsonPayload;
+import com.google.android.apps.exposurenotification.network.JsonPayloadWriter;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link FanOutKeyUploader}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FanOutKeyUploaderTest {
+
+  private static final Uri HOME_URI = Uri.parse("http://home.example.com/v1/publish");
+  private static final Uri DE_URI = Uri.parse("http://de.example.com/v1/publish");
+  private static final Uri SLOW_URI = Uri.parse("http://slow.example.com/v1/publish");
+  private static final Uri QUEUED_URI = Uri.parse("http://queued.example.com/v1/publish");
+  private static final ImmutableMap<String, Uri> ENDPOINTS =
+      ImmutableMap.of("US", HOME_URI, "DE", DE_URI);
+
+  private final SlowHostRequestQueue queue = new SlowHostRequestQueue();
+  private ScheduledExecutorService scheduledExecutor;
+  private FanOutKeyUploader uploader;
+
+  @Before
+  public void setUp() {
+    scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    uploader = new FanOutKeyUploader(
+        queue,
+        scheduledExecutor,
+        MoreExecutors.newDirectExecutorService(),
+        new FakeClock(),
+        mock(AnalyticsLogger.class),
+        Duration.ofMillis(50),
+        Duration.ofMillis(50));
+  }
+
+  @After
+  public void tearDown() {
+    scheduledExecutor.shutdownNow();
+  }
+
+  @Test
+  public void upload_allEndpointsSucceed_shouldSendSamePayloadToEach() throws Exception {
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+    queue.addResponse(DE_URI.toString(), 200, successResponse("de-token"));
+    JsonPayload payload = samplePayload();
+
+    uploader.upload(payload, ENDPOINTS, /* isCoverTraffic= */ false).get();
+
+    assertThat(queue.numRpcs()).isEqualTo(2);
+    for (Request<?> rpc : queue.getRpcs()) {
+      assertThat(rpc.getBody()).isEqualTo(payload.bytes());
+    }
+  }
+
+  @Test
+  public void upload_allEndpointsSucceed_shouldRecordEachRevisionTokenInEndpointOrder()
+      throws Exception {
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+    queue.addResponse(DE_URI.toString(), 200, successResponse("de-token"));
+
+    ImmutableMap<String, UploadEndpointResult> results =
+        uploader.upload(samplePayload(), ENDPOINTS, /* isCoverTraffic= */ false).get();
+
+    assertThat(results.keySet()).containsExactly("US", "DE").inOrder();
+    assertThat(results.get("US").isSuccess()).isTrue();
+    assertThat(results.get("US").revisionToken()).isEqualTo("us-token");
+    assertThat(results.get("DE").isSuccess()).isTrue();
+    assertThat(results.get("DE").revisionToken()).isEqualTo("de-token");
+    assertThat(results.get("DE").uri()).isEqualTo(DE_URI);
+    assertThat(results.get("DE").attempts()).isEqualTo(1);
+  }
+
+  @Test
+  public void upload_coverTraffic_shouldRecordNoRevisionTokens() throws Exception {
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+    queue.addResponse(DE_URI.toString(), 200, successResponse("de-token"));
+
+    ImmutableMap<String, UploadEndpointResult> results =
+        uploader.upload(samplePayload(), ENDPOINTS, /* isCoverTraffic= */ true).get();
+
+    assertThat(results.get("US").isSuccess()).isTrue();
+    assertThat(results.get("US").revisionToken()).isNull();
+    assertThat(results.get("DE").isSuccess()).isTrue();
+    assertThat(results.get("DE").revisionToken()).isNull();
+  }
+
+  @Test
+  public void upload_oneEndpointRejects_shouldRecordFailureWithoutRetryingOrAffectingOthers()
+      throws Exception {
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+    queue.addResponse(DE_URI.toString(), 400, "");
+
+    ImmutableMap<String, UploadEndpointResult> results =
+        uploader.upload(samplePayload(), ENDPOINTS, /* isCoverTraffic= */ false).get();
+
+    assertThat(results.get("US").isSuccess()).isTrue();
+    assertThat(results.get("DE").isSuccess()).isFalse();
+    assertThat(results.get("DE").error()).isInstanceOf(KeysSubmitFailureException.class);
+    assertThat(results.get("DE").revisionToken()).isNull();
+    assertThat(results.get("DE").attempts()).isEqualTo(1);
+    assertThat(queue.numRpcs()).isEqualTo(2);
+  }
+
+  @Test
+  public void upload_homeEndpointServerError_shouldRetryOnlyThatEndpoint() throws Exception {
+    queue.addResponse(HOME_URI.toString(), 503, "");
+    queue.addResponse(DE_URI.toString(), 200, successResponse("de-token"));
+
+    ImmutableMap<String, UploadEndpointResult> results =
+        uploader.upload(samplePayload(), ENDPOINTS, /* isCoverTraffic= */ false).get();
+
+    assertThat(results.get("US").isSuccess()).isFalse();
+    assertThat(results.get("US").error()).isInstanceOf(KeysSubmitServerFailureException.class);
+    assertThat(results.get("US").attempts())
+        .isEqualTo(FanOutKeyUploader.MAX_ATTEMPTS_PER_ENDPOINT);
+    assertThat(results.get("DE").attempts()).isEqualTo(1);
+    assertThat(rpcsTo(HOME_URI)).isEqualTo(FanOutKeyUploader.MAX_ATTEMPTS_PER_ENDPOINT);
+    assertThat(rpcsTo(DE_URI)).isEqualTo(1);
+  }
+
+  @Test
+  public void upload_otherEndpointServerError_shouldLeaveItForABackgroundRetry()
+      throws Exception {
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+    queue.addResponse(DE_URI.toString(), 503, "");
+
+    ImmutableMap<String, UploadEndpointResult> results =
+        uploader.upload(samplePayload(), ENDPOINTS, /* isCoverTraffic= */ false).get();
+
+    assertThat(results.get("US").isSuccess()).isTrue();
+    assertThat(results.get("DE").isSuccess()).isFalse();
+    assertThat(results.get("DE").error()).isInstanceOf(KeysSubmitServerFailureException.class);
+    assertThat(results.get("DE").attempts()).isEqualTo(1);
+    assertThat(rpcsTo(DE_URI)).isEqualTo(1);
+  }
+
+  @Test
+  public void upload_homeEndpointNeverResponds_shouldTimeOutEachAttempt() throws Exception {
+    queue.addResponse(DE_URI.toString(), 200, successResponse("de-token"));
+
+    ImmutableMap<String, UploadEndpointResult> results = uploader.upload(
+        samplePayload(),
+        ImmutableMap.of("US", SLOW_URI, "DE", DE_URI),
+        /* isCoverTraffic= */ false).get();
+
+    UploadEndpointResult slow = results.get("US");
+    assertThat(slow.isSuccess()).isFalse();
+    assertThat(slow.error().getCause()).isInstanceOf(TimeoutError.class);
+    assertThat(slow.attempts()).isEqualTo(FanOutKeyUploader.MAX_ATTEMPTS_PER_ENDPOINT);
+    assertThat(queue.swallowed).hasSize(FanOutKeyUploader.MAX_ATTEMPTS_PER_ENDPOINT);
+    assertThat(results.get("DE").isSuccess()).isTrue();
+  }
+
+  @Test
+  public void upload_otherEndpointNeverResponds_shouldTimeOutAndCancelOnlyThatEndpoint()
+      throws Exception {
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+
+    ImmutableMap<String, UploadEndpointResult> results = uploader.upload(
+        samplePayload(),
+        ImmutableMap.of("US", HOME_URI, "XX", SLOW_URI),
+        /* isCoverTraffic= */ false).get();
+
+    assertThat(results.get("US").isSuccess()).isTrue();
+    assertThat(results.get("US").revisionToken()).isEqualTo("us-token");
+    UploadEndpointResult slow = results.get("XX");
+    assertThat(slow.isSuccess()).isFalse();
+    assertThat(slow.error()).isInstanceOf(KeysSubmitFailureException.class);
+    assertThat(slow.error().getCause()).isInstanceOf(TimeoutError.class);
+    assertThat(slow.attempts()).isEqualTo(1);
+    assertThat(queue.swallowed).hasSize(1);
+    assertThat(queue.swallowed.get(0).isCanceled()).isTrue();
+  }
+
+  @Test
+  public void upload_otherEndpointNotSentWhenHomeAnswers_shouldNotWaitForIt() throws Exception {
+    // Timeouts far longer than the test waits.
+    uploader = new FanOutKeyUploader(
+        queue,
+        scheduledExecutor,
+        MoreExecutors.newDirectExecutorService(),
+        new FakeClock(),
+        mock(AnalyticsLogger.class),
+        Duration.ofMinutes(1),
+        Duration.ofMinutes(1));
+    queue.addResponse(HOME_URI.toString(), 200, successResponse("us-token"));
+
+    ImmutableMap<String, UploadEndpointResult> results = uploader.upload(
+        samplePayload(),
+        ImmutableMap.of("US", HOME_URI, "YY", QUEUED_URI),
+        /* isCoverTraffic= */ false).get(5, TimeUnit.SECONDS);
+
+    assertThat(results.get("US").isSuccess()).isTrue();
+    UploadEndpointResult queued = results.get("YY");
+    assertThat(queued.isSuccess()).isFalse();
+    // Worth retrying in the background.
+    assertThat(UploadOutbox.isRetryable(queued.error())).isTrue();
+    assertThat(queue.swallowed).hasSize(1);
+    assertThat(queue.swallowed.get(0).isCanceled()).isTrue();
+  }
+
+  @Test
+  public void upload_noEndpoints_shouldReturnNoResults() throws Exception {
+    ImmutableMap<String, UploadEndpointResult> results =
+        uploader.upload(samplePayload(), ImmutableMap.of(), /* isCoverTraffic= */ false).get();
+
+    assertThat(results).isEmpty();
+    assertThat(queue.numRpcs()).isEqualTo(0);
+  }
+
+  private int rpcsTo(Uri uri) {
+    int count = 0;
+    for (Request<?> rpc : queue.getRpcs()) {
+      if (rpc.getUrl().equals(uri.toString())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static JsonPayload samplePayload() {
+    return new JsonPayloadWriter()
+        .beginObject()
+        .name("key")
+        .value("value")
+        .finish();
+  }
+
+  private static String successResponse(String revisionToken) throws Exception {
+    return new JSONObject().put("revisionToken", revisionToken).toString();
+  }
+
+  /**
+   * Never responds to requests to {@link #SLOW_URI}, as a keyserver that hangs wouldn't, and never
+   * even sends those to {@link #QUEUED_URI}, as if they waited for a dispatcher all along.
+   */
+  private static class SlowHostRequestQueue extends FakeRequestQueue {
+
+    private final List<Request<?>> swallowed = new ArrayList<>();
+
+    @Override
+    public <T> Request<T> add(Request<T> request) {
+      boolean slow = request.getUrl().equals(SLOW_URI.toString());
+      if (slow || request.getUrl().equals(QUEUED_URI.toString())) {
+        synchronized (swallowed) {
+          swallowed.add(request);
+        }
+        if (slow) {
+          markDispatched(request);
+        }
+        return request;
+      }
+      return super.add(request);
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import static com.google.android.apps.exposurenotification.keyupload.UploadOutboxWorker.WORKER_NAME;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.work.Configuration;
+import androidx.work.WorkInfo;
+import androidx.work.WorkInfo.State;
+import androidx.work.WorkManager;
+import androidx.work.impl.utils.SynchronousExecutor;
+import androidx.work.testing.WorkManagerTestInitHelper;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitFailureException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitServerFailureException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.NoInternetException;
+import com.google.android.apps.exposurenotification.network.DiagnosisKey;
+import com.google.android.apps.exposurenotification.storage.PendingUploadEntity;
+import com.google.android.apps.exposurenotification.storage.PendingUploadRepository;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.LocalDate;
+
+/**
+ * Tests for {@link UploadOutbox}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class UploadOutboxTest {
+
+  private static final long DIAGNOSIS_ID = 7L;
+  private static final ImmutableList<DiagnosisKey> KEYS = ImmutableList.of(
+      DiagnosisKey.newBuilder()
+          .setKeyBytes("key-one-16-bytes".getBytes())
+          .setIntervalNumber(2650000)
+          .setRollingPeriod(144)
+          .setTransmissionRisk(3)
+          .build(),
+      DiagnosisKey.newBuilder()
+          .setKeyBytes("key-two-16-bytes".getBytes())
+          .setIntervalNumber(2650144)
+          .setRollingPeriod(100)
+          .setTransmissionRisk(5)
+          .build());
+
+  private final FakeClock clock = new FakeClock();
+  private PendingUploadRepository repository;
+  private WorkManager workManager;
+  private UploadOutbox outbox;
+
+  @Before
+  public void setUp() {
+    Context context = ApplicationProvider.getApplicationContext();
+    WorkManagerTestInitHelper.initializeTestWorkManager(
+        context, new Configuration.Builder().setExecutor(new SynchronousExecutor()).build());
+    workManager = WorkManager.getInstance(context);
+    repository = new PendingUploadRepository(InMemoryDb.create());
+    outbox = new UploadOutbox(
+        repository, workManager, clock, MoreExecutors.newDirectExecutorService());
+  }
+
+  @Test
+  public void add_shouldKeepUploadAndScheduleRetry() throws Exception {
+    outbox.add(DIAGNOSIS_ID, upload("revision-token")).get();
+
+    List<PendingUploadEntity> pendingUploads = repository.getAll();
+    assertThat(pendingUploads).hasSize(1);
+    assertThat(pendingUploads.get(0).diagnosisId()).isEqualTo(DIAGNOSIS_ID);
+    assertThat(pendingUploads.get(0).attempts()).isEqualTo(0);
+    List<WorkInfo> workInfos = workManager.getWorkInfosForUniqueWork(WORKER_NAME).get();
+    assertThat(workInfos).hasSize(1);
+    assertThat(workInfos.get(0).getState()).isEqualTo(State.ENQUEUED);
+  }
+
+  @Test
+  public void add_sameRevisionTokenTwice_shouldKeepOnlyLatestUpload() throws Exception {
+    outbox.add(DIAGNOSIS_ID, upload("revision-token")).get();
+    outbox.add(DIAGNOSIS_ID, upload("revision-token").toBuilder().setCertificate("cert-2").build())
+        .get();
+
+    List<PendingUploadEntity> pendingUploads = repository.getAll();
+    assertThat(pendingUploads).hasSize(1);
+    assertThat(pendingUploads.get(0).certificate()).isEqualTo("cert-2");
+  }
+
+  @Test
+  public void add_firstUploadsWithoutRevisionToken_shouldBeKeyedOnCertificate() throws Exception {
+    outbox.add(DIAGNOSIS_ID, upload(null)).get();
+    outbox.add(DIAGNOSIS_ID, upload(null)).get();
+    outbox.add(DIAGNOSIS_ID, upload(null).toBuilder().setCertificate("cert-2").build()).get();
+
+    assertThat(repository.getAll()).hasSize(2);
+  }
+
+  @Test
+  public void hasPendingUpload_onlyForDiagnosisWithQueuedUpload() throws Exception {
+    outbox.add(DIAGNOSIS_ID, upload("revision-token")).get();
+
+    assertThat(outbox.hasPendingUpload(DIAGNOSIS_ID).get()).isTrue();
+    assertThat(outbox.hasPendingUpload(DIAGNOSIS_ID + 1).get()).isFalse();
+  }
+
+  @Test
+  public void addFailedRegions_shouldQueueRegionsWorthRetryingForThoseRegionsOnly()
+      throws Exception {
+    Uri uri = Uri.parse("http://example.com/upload");
+    Upload uploaded = upload("home-revision-token").toBuilder()
+        .setEndpointResults(ImmutableMap.of(
+            "US", UploadEndpointResult.success("US", uri, "home-revision-token", 1),
+            "XX", UploadEndpointResult.failure(
+                "XX", uri, new KeysSubmitFailureException(UploadError.SERVER_ERROR), 2),
+            "YY", UploadEndpointResult.failure(
+                "YY", uri, new KeysSubmitFailureException(UploadError.CODE_INVALID), 1)))
+        .build();
+
+    outbox.addFailedRegions(DIAGNOSIS_ID, uploaded).get();
+
+    List<PendingUploadEntity> pendingUploads = repository.getAll();
+    assertThat(pendingUploads).hasSize(1);
+    assertThat(pendingUploads.get(0).region()).isEqualTo("XX");
+    // Our own region's revision token means nothing to the other region's keyserver.
+    assertThat(pendingUploads.get(0).revisionToken()).isNull();
+    assertThat(UploadOutbox.toUpload(pendingUploads.get(0)).get().retryRegion()).isEqualTo("XX");
+    // The diagnosis itself was shared, so the user may share it again.
+    assertThat(outbox.hasPendingUpload(DIAGNOSIS_ID).get()).isFalse();
+    assertThat(workManager.getWorkInfosForUniqueWork(WORKER_NAME).get()).hasSize(1);
+  }
+
+  @Test
+  public void addFailedRegions_allRegionsSucceeded_shouldQueueNothing() throws Exception {
+    Uri uri = Uri.parse("http://example.com/upload");
+    Upload uploaded = upload("home-revision-token").toBuilder()
+        .setEndpointResults(ImmutableMap.of(
+            "US", UploadEndpointResult.success("US", uri, "home-revision-token", 1),
+            "XX", UploadEndpointResult.success("XX", uri, "other-revision-token", 1)))
+        .build();
+
+    outbox.addFailedRegions(DIAGNOSIS_ID, uploaded).get();
+
+    assertThat(repository.getAll()).isEmpty();
+  }
+
+  @Test
+  public void remove_shouldForgetQueuedCopyOfUpload() throws Exception {
+    outbox.add(DIAGNOSIS_ID, upload("revision-token")).get();
+    outbox.add(DIAGNOSIS_ID, upload("other-revision-token")).get();
+
+    outbox.remove(upload("revision-token")).get();
+
+    List<PendingUploadEntity> pendingUploads = repository.getAll();
+    assertThat(pendingUploads).hasSize(1);
+    assertThat(pendingUploads.get(0).revisionToken()).isEqualTo("other-revision-token");
+  }
+
+  @Test
+  public void toUpload_shouldRestoreEverythingTheKeyserverNeeds() {
+    Upload upload = upload("revision-token");
+
+    Upload restored =
+        UploadOutbox.toUpload(UploadOutbox.toPendingUpload(DIAGNOSIS_ID, upload, 0L)).get();
+
+    assertThat(restored.keys()).containsExactlyElementsIn(KEYS).inOrder();
+    assertThat(restored.verificationCode()).isEqualTo(upload.verificationCode());
+    assertThat(restored.hmacKeyBase64()).isEqualTo(upload.hmacKeyBase64());
+    assertThat(restored.certificate()).isEqualTo(upload.certificate());
+    assertThat(restored.longTermToken()).isEqualTo(upload.longTermToken());
+    assertThat(restored.testType()).isEqualTo(upload.testType());
+    assertThat(restored.symptomOnset()).isEqualTo(upload.symptomOnset());
+    assertThat(restored.revisionToken()).isEqualTo(upload.revisionToken());
+    assertThat(restored.hasTraveled()).isTrue();
+  }
+
+  @Test
+  public void isRetryable_shouldRetryOnlyFailuresThatMayClearUp() {
+    assertThat(UploadOutbox.isRetryable(new NoInternetException())).isTrue();
+    assertThat(UploadOutbox.isRetryable(new KeysSubmitFailureException(UploadError.SERVER_ERROR)))
+        .isTrue();
+    assertThat(UploadOutbox.isRetryable(new KeysSubmitFailureException(UploadError.RATE_LIMITED)))
+        .isTrue();
+    assertThat(UploadOutbox.isRetryable(new KeysSubmitServerFailureException(serverError(503))))
+        .isTrue();
+    assertThat(UploadOutbox.isRetryable(new KeysSubmitFailureException(new TimeoutError())))
+        .isTrue();
+    assertThat(UploadOutbox.isRetryable(new KeysSubmitFailureException(new NoConnectionError())))
+        .isTrue();
+    assertThat(UploadOutbox.isRetryable(new KeysSubmitFailureException(UploadError.CODE_INVALID)))
+        .isFalse();
+    assertThat(UploadOutbox.isRetryable(new RuntimeException())).isFalse();
+  }
+
+  private static VolleyError serverError(int httpStatus) {
+    return new VolleyError(
+        new NetworkResponse(httpStatus, new byte[0], /* notModified= */ false, 0L, null));
+  }
+
+  private static Upload upload(String revisionToken) {
+    return Upload.newBuilder(KEYS, "verification-code", "hmac-key")
+        .setCertificate("cert")
+        .setLongTermToken("long-term-token")
+        .setTestType("confirmed")
+        .setSymptomOnset(LocalDate.parse("2020-04-01"))
+        .setRevisionToken(revisionToken)
+        .setHasTraveled(true)
+        .build();
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.keyupload;
+
+import static com.google.android.apps.exposurenotification.keyupload.UploadOutboxWorker.MAX_AGE;
+import static com.google.android.apps.exposurenotification.keyupload.UploadOutboxWorker.MAX_ATTEMPTS;
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.work.Configuration;
+import androidx.work.ListenableWorker.Result;
+import androidx.work.WorkManager;
+import androidx.work.WorkerParameters;
+import androidx.work.impl.utils.SynchronousExecutor;
+import androidx.work.testing.WorkManagerTestInitHelper;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.KeysSubmitFailureException;
+import com.google.android.apps.exposurenotification.keyupload.UploadController.NoInternetException;
+import com.google.android.apps.exposurenotification.network.DiagnosisKey;
+import com.google.android.apps.exposurenotification.storage.DbModule;
+import com.google.android.apps.exposurenotification.storage.DiagnosisEntity;
+import com.google.android.apps.exposurenotification.storage.DiagnosisEntity.Shared;
+import com.google.android.apps.exposurenotification.storage.DiagnosisRepository;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
+import com.google.android.apps.exposurenotification.storage.PendingUploadEntity;
+import com.google.android.apps.exposurenotification.storage.PendingUploadRepository;
+import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import dagger.hilt.android.testing.BindValue;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import dagger.hilt.android.testing.UninstallModules;
+import javax.inject.Inject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.annotation.Config;
+import org.threeten.bp.Duration;
+
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+@UninstallModules({DbModule.class})
+public class UploadOutboxWorkerTest {
+
+  private static final ImmutableList<DiagnosisKey> KEYS = ImmutableList.of(
+      DiagnosisKey.newBuilder()
+          .setKeyBytes("key-one-16-bytes".getBytes())
+          .setIntervalNumber(2650000)
+          .build());
+
+  @Rule
+  public ExposureNotificationRules rules =
+      ExposureNotificationRules.forTest(this).withMocks().build();
+
+  @BindValue
+  ExposureNotificationDatabase db = InMemoryDb.create();
+
+  @Inject
+  DiagnosisRepository diagnosisRepository;
+  @Inject
+  ExposureNotificationSharedPreferences exposureNotificationSharedPreferences;
+
+  @Mock
+  WorkerParameters workerParameters;
+  @Mock
+  UploadController uploadController;
+
+  private final FakeClock clock = new FakeClock();
+  private PendingUploadRepository pendingUploadRepository;
+  private UploadOutbox outbox;
+  private long diagnosisId;
+
+  // The SUT.
+  private UploadOutboxWorker worker;
+
+  @Before
+  public void setUp() throws Exception {
+    rules.hilt().inject();
+    Context context = ApplicationProvider.getApplicationContext();
+    WorkManagerTestInitHelper.initializeTestWorkManager(
+        context, new Configuration.Builder().setExecutor(new SynchronousExecutor()).build());
+    pendingUploadRepository = new PendingUploadRepository(db);
+    outbox = new UploadOutbox(pendingUploadRepository, WorkManager.getInstance(context), clock,
+        MoreExecutors.newDirectExecutorService());
+    diagnosisId = diagnosisRepository.upsertAsync(
+        DiagnosisEntity.newBuilder()
+            .setVerificationCode("verification-code")
+            .setSharedStatus(Shared.NOT_SHARED)
+            .build())
+        .get();
+    outbox.add(diagnosisId, upload()).get();
+
+    worker = new UploadOutboxWorker(
+        context,
+        workerParameters,
+        outbox,
+        uploadController,
+        diagnosisRepository,
+        exposureNotificationSharedPreferences,
+        clock,
+        MoreExecutors.newDirectExecutorService(),
+        MoreExecutors.newDirectExecutorService());
+  }
+
+  @Test
+  public void uploadSucceeds_shouldMarkDiagnosisSharedAndEmptyOutbox() throws Exception {
+    when(uploadController.upload(any())).thenAnswer(
+        invocation -> Futures.immediateFuture(invocation.getArgument(0)));
+
+    Result result = worker.startWork().get();
+
+    assertThat(result).isEqualTo(Result.success());
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+    DiagnosisEntity diagnosis = diagnosisRepository.getByIdAsync(diagnosisId).get();
+    assertThat(diagnosis.getSharedStatus()).isEqualTo(Shared.SHARED);
+    assertThat(diagnosis.getCertificate()).isEqualTo("cert");
+    assertThat(diagnosis.getRevisionToken()).isEqualTo("revision-token");
+  }
+
+  @Test
+  public void uploadedKeys_shouldBeTheQueuedKeys() throws Exception {
+    when(uploadController.upload(any())).thenAnswer(
+        invocation -> {
+          Upload upload = invocation.getArgument(0);
+          assertThat(upload.keys()).containsExactlyElementsIn(KEYS);
+          assertThat(upload.certificate()).isEqualTo("cert");
+          return Futures.immediateFuture(upload);
+        });
+
+    worker.startWork().get();
+
+    verify(uploadController).upload(any());
+  }
+
+  @Test
+  public void uploadFailsWithServerError_shouldCountAttemptAndRetry() throws Exception {
+    when(uploadController.upload(any())).thenReturn(
+        Futures.immediateFailedFuture(new KeysSubmitFailureException(UploadError.SERVER_ERROR)));
+
+    Result result = worker.startWork().get();
+
+    assertThat(result).isEqualTo(Result.retry());
+    assertThat(pendingUploadRepository.getAll()).hasSize(1);
+    assertThat(pendingUploadRepository.getAll().get(0).attempts()).isEqualTo(1);
+  }
+
+  @Test
+  public void uploadFailsWithoutInternet_shouldRetry() throws Exception {
+    when(uploadController.upload(any()))
+        .thenReturn(Futures.immediateFailedFuture(new NoInternetException()));
+
+    Result result = worker.startWork().get();
+
+    assertThat(result).isEqualTo(Result.retry());
+    assertThat(pendingUploadRepository.getAll()).hasSize(1);
+  }
+
+  @Test
+  public void uploadFailsForGood_shouldGiveUpOnUpload() throws Exception {
+    when(uploadController.upload(any())).thenReturn(
+        Futures.immediateFailedFuture(new KeysSubmitFailureException(UploadError.CODE_INVALID)));
+
+    Result result = worker.startWork().get();
+
+    assertThat(result).isEqualTo(Result.success());
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+    assertThat(diagnosisRepository.getByIdAsync(diagnosisId).get().getSharedStatus())
+        .isEqualTo(Shared.NOT_SHARED);
+  }
+
+  @Test
+  public void uploadFailsOnLastAttempt_shouldGiveUpOnUpload() throws Exception {
+    PendingUploadEntity pendingUpload = pendingUploadRepository.getAll().get(0);
+    for (int i = 0; i < MAX_ATTEMPTS - 1; i++) {
+      pendingUpload = pendingUpload.withAnotherAttempt();
+    }
+    pendingUploadRepository.upsert(pendingUpload);
+    when(uploadController.upload(any())).thenReturn(
+        Futures.immediateFailedFuture(new KeysSubmitFailureException(UploadError.SERVER_ERROR)));
+
+    Result result = worker.startWork().get();
+
+    assertThat(result).isEqualTo(Result.success());
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+  }
+
+  @Test
+  public void uploadTooOld_shouldGiveUpWithoutUploading() throws Exception {
+    clock.advanceBy(MAX_AGE.plus(Duration.ofMinutes(1)));
+
+    Result result = worker.startWork().get();
+
+    verify(uploadController, never()).upload(any());
+    assertThat(result).isEqualTo(Result.success());
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+  }
+
+  @Test
+  public void diagnosisSharedInTheMeantime_shouldDropUploadWithoutUploading() throws Exception {
+    diagnosisRepository.createOrMutateById(
+        diagnosisId, d -> d.toBuilder().setSharedStatus(Shared.SHARED).build());
+
+    Result result = worker.startWork().get();
+
+    verify(uploadController, never()).upload(any());
+    assertThat(result).isEqualTo(Result.success());
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+  }
+
+  @Test
+  public void regionRetryForSharedDiagnosis_shouldUploadToThatRegionOnly() throws Exception {
+    outbox.remove(upload()).get();
+    diagnosisRepository.createOrMutateById(
+        diagnosisId, d -> d.toBuilder().setSharedStatus(Shared.SHARED).build());
+    pendingUploadRepository.upsert(UploadOutbox.toPendingUpload(diagnosisId,
+        upload().toBuilder().setRevisionToken(null).setRetryRegion("XX").build(),
+        clock.currentTimeMillis()));
+    when(uploadController.upload(any())).thenAnswer(
+        invocation -> {
+          Upload upload = invocation.getArgument(0);
+          assertThat(upload.retryRegion()).isEqualTo("XX");
+          assertThat(upload.revisionToken()).isNull();
+          return Futures.immediateFuture(upload);
+        });
+
+    Result result = worker.startWork().get();
+
+    verify(uploadController).upload(any());
+    assertThat(result).isEqualTo(Result.success());
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+    // The home region's revision token stays the one the diagnosis is revised with.
+    assertThat(diagnosisRepository.getByIdAsync(diagnosisId).get().getRevisionToken())
+        .isNull();
+  }
+
+  private static Upload upload() {
+    return Upload.newBuilder(KEYS, "verification-code", "hmac-key")
+        .setCertificate("cert")
+        .setRevisionToken("revision-token")
+        .build();
+  }
+}
@@ -49,12 +49,14 @@ import com.google.android.apps.exposurenotification.logging.AnalyticsLogger.NotE
 import com.google.android.apps.exposurenotification.nearby.ExposureNotificationClientWrapper;
 import com.google.android.apps.exposurenotification.nearby.ExposureNotificationsClientModule;
 import com.google.android.apps.exposurenotification.nearby.PackageConfigurationHelper;
+import com.google.android.apps.exposurenotification.network.RequestTiming;
 import com.google.android.apps.exposurenotification.proto.ApiCall;
 import com.google.android.apps.exposurenotification.proto.ApiCall.ApiCallType;
 import com.google.android.apps.exposurenotification.proto.EnxLogExtension;
 import com.google.android.apps.exposurenotification.proto.RpcCall;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallResult;
 import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.proto.RpcLatency.Phase;
 import com.google.android.apps.exposurenotification.proto.UiInteraction;
 import com.google.android.apps.exposurenotification.proto.UiInteraction.EventType;
 import com.google.android.apps.exposurenotification.proto.WorkManagerTask;
@@ -258,6 +260,38 @@ public class FirelogAnalyticsLoggerTest {
             .build());
   }
 
+  @Test
+  public void logRpcCallLatencyAsync_shouldWriteDbRecord_withHistogramPerPhase()
+      throws Exception {
+    // WHEN
+    logger.logRpcCallLatencyAsync(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD,
+        RequestTiming.create(Duration.ofMillis(300), Duration.ofSeconds(3))).get();
+
+    // THEN
+    assertThat(storedLogs())
+        .containsExactly(EnxLogExtension.newBuilder()
+            .addRpcLatency(RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD,
+                Phase.PHASE_TIME_TO_FIRST_BYTE, Duration.ofMillis(300)))
+            .addRpcLatency(RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD,
+                Phase.PHASE_TRANSFER, Duration.ofSeconds(3)))
+            .build());
+  }
+
+  @Test
+  public void logRpcCallLatencyAsync_incompleteTransfer_shouldOnlyRecordTimeToFirstByte()
+      throws Exception {
+    // WHEN
+    logger.logRpcCallLatencyAsync(RpcCallType.RPC_TYPE_VERIFICATION,
+        RequestTiming.create(Duration.ofMillis(300), null)).get();
+
+    // THEN
+    assertThat(storedLogs())
+        .containsExactly(EnxLogExtension.newBuilder()
+            .addRpcLatency(RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_VERIFICATION,
+                Phase.PHASE_TIME_TO_FIRST_BYTE, Duration.ofMillis(300)))
+            .build());
+  }
+
   @Test
   public void logRpcCallFailure_shouldWriteDbRecord_withRpcCallType_andGeneric4xxHttpStatus()
       throws Exception {
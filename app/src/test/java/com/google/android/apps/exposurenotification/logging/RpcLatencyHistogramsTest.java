@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.logging;
+
+import static com.google.android.apps.exposurenotification.logging.RpcLatencyHistograms.BUCKET_COUNT;
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.proto.RpcCall.RpcCallType;
+import com.google.android.apps.exposurenotification.proto.RpcLatency;
+import com.google.android.apps.exposurenotification.proto.RpcLatency.Phase;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link RpcLatencyHistograms}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RpcLatencyHistogramsTest {
+
+  @Test
+  public void bucketOf_shouldUseUpperBoundsExclusively() {
+    assertThat(RpcLatencyHistograms.bucketOf(Duration.ZERO)).isEqualTo(0);
+    assertThat(RpcLatencyHistograms.bucketOf(Duration.ofMillis(99))).isEqualTo(0);
+    assertThat(RpcLatencyHistograms.bucketOf(Duration.ofMillis(100))).isEqualTo(1);
+    assertThat(RpcLatencyHistograms.bucketOf(Duration.ofSeconds(59))).isEqualTo(BUCKET_COUNT - 2);
+    assertThat(RpcLatencyHistograms.bucketOf(Duration.ofHours(1))).isEqualTo(BUCKET_COUNT - 1);
+  }
+
+  @Test
+  public void of_shouldCountOneCallInItsBucket() {
+    RpcLatency histogram = RpcLatencyHistograms.of(
+        RpcCallType.RPC_TYPE_KEYS_DOWNLOAD, Phase.PHASE_TRANSFER, Duration.ofMillis(300));
+
+    assertThat(histogram.getRpcCallType()).isEqualTo(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD);
+    assertThat(histogram.getPhase()).isEqualTo(Phase.PHASE_TRANSFER);
+    assertThat(histogram.getBucketCountList())
+        .containsExactly(0, 0, 1, 0, 0, 0, 0, 0, 0, 0).inOrder();
+  }
+
+  @Test
+  public void merge_shouldSumHistogramsOfSameTypeAndPhase() {
+    List<RpcLatency> merged = RpcLatencyHistograms.merge(ImmutableList.of(
+        RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD,
+            Phase.PHASE_TIME_TO_FIRST_BYTE, Duration.ofMillis(50)),
+        RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_VERIFICATION,
+            Phase.PHASE_TIME_TO_FIRST_BYTE, Duration.ofMillis(50)),
+        RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD,
+            Phase.PHASE_TIME_TO_FIRST_BYTE, Duration.ofMillis(60)),
+        RpcLatencyHistograms.of(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD,
+            Phase.PHASE_TIME_TO_FIRST_BYTE, Duration.ofSeconds(90))));
+
+    assertThat(merged).hasSize(2);
+    assertThat(merged.get(0).getRpcCallType()).isEqualTo(RpcCallType.RPC_TYPE_KEYS_DOWNLOAD);
+    assertThat(merged.get(0).getBucketCountList())
+        .containsExactly(2, 0, 0, 0, 0, 0, 0, 0, 0, 1).inOrder();
+    assertThat(merged.get(1).getRpcCallType()).isEqualTo(RpcCallType.RPC_TYPE_VERIFICATION);
+    assertThat(merged.get(1).getBucketCountList())
+        .containsExactly(1, 0, 0, 0, 0, 0, 0, 0, 0, 0).inOrder();
+  }
+}
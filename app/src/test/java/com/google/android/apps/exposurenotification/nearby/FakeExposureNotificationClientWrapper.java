@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.nearby;
+
+import com.google.android.apps.exposurenotification.keydownload.KeyFileConstants;
+import com.google.android.apps.exposurenotification.proto.TEKSignatureList;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKey;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKeyExport;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.CodedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A fake {@link ExposureNotificationClientWrapper} for benchmarks, which does about as much work
+ * per keyfile in {@link #provideDiagnosisKeys(List)} as the EN API does before matching.
+ *
+ * <p>For each file, it unzips and parses the export and its signatures, and hashes the export as
+ * the first step of checking its signature. For each key, it then encrypts as many AES blocks as
+ * the key has Rolling Proximity Identifiers to derive (144 for a day-long key), much as the API
+ * derives each key's identifiers to match them against those it's seen. It fails the call, as the
+ * API would, if a file is unreadable.
+ *
+ * <p>Only {@link #provideDiagnosisKeys(List)} is faked. Everything else has no client behind it.
+ */
+public class FakeExposureNotificationClientWrapper extends ExposureNotificationClientWrapper {
+
+  private static final int AES_BLOCK_LENGTH = 16;
+  private static final int HEADER_LEN = 16;
+
+  private final int rpisPerKey;
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger filesProvided = new AtomicInteger();
+  private final AtomicLong keysProvided = new AtomicLong();
+
+  /**
+   * Creates a fake that derives {@code rpisPerKey} identifiers for each key it's given. Zero skips
+   * the derivation, leaving just the cost of parsing files.
+   */
+  public FakeExposureNotificationClientWrapper(int rpisPerKey) {
+    super(/* exposureNotificationClient= */ null, /* logger= */ null);
+    this.rpisPerKey = rpisPerKey;
+  }
+
+  @Override
+  public Task<Void> provideDiagnosisKeys(List<File> files) {
+    calls.incrementAndGet();
+    try {
+      for (File file : files) {
+        keysProvided.addAndGet(process(file));
+        filesProvided.incrementAndGet();
+      }
+    } catch (IOException | GeneralSecurityException e) {
+      return Tasks.forException(e);
+    }
+    return Tasks.forResult(null);
+  }
+
+  public int getCalls() {
+    return calls.get();
+  }
+
+  public int getFilesProvided() {
+    return filesProvided.get();
+  }
+
+  public long getKeysProvided() {
+    return keysProvided.get();
+  }
+
+  /**
+   * Does the work the API does on a keyfile, and returns the number of keys in it.
+   */
+  private int process(File file) throws IOException, GeneralSecurityException {
+    try (ZipFile zip = new ZipFile(file)) {
+      byte[] export = readEntry(zip, KeyFileConstants.EXPORT_FILENAME);
+      TEKSignatureList signatures = TEKSignatureList.parseFrom(
+          readEntry(zip, KeyFileConstants.SIG_FILENAME));
+      if (signatures.getSignaturesCount() == 0 || export.length < HEADER_LEN) {
+        throw new IOException("Bad keyfile " + file);
+      }
+      Hashing.sha256().hashBytes(export);
+      TemporaryExposureKeyExport keys = TemporaryExposureKeyExport.parseFrom(
+          CodedInputStream.newInstance(export, HEADER_LEN, export.length - HEADER_LEN));
+      if (rpisPerKey > 0) {
+        byte[] intervals = new byte[rpisPerKey * AES_BLOCK_LENGTH];
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        for (TemporaryExposureKey key : keys.getKeysList()) {
+          cipher.init(
+              Cipher.ENCRYPT_MODE, new SecretKeySpec(key.getKeyData().toByteArray(), "AES"));
+          cipher.doFinal(intervals);
+        }
+      }
+      return keys.getKeysCount();
+    }
+  }
+
+  private static byte[] readEntry(ZipFile zip, String name) throws IOException {
+    ZipEntry entry = zip.getEntry(name);
+    if (entry == null) {
+      throw new IOException("Missing " + name);
+    }
+    try (InputStream in = zip.getInputStream(entry)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+}
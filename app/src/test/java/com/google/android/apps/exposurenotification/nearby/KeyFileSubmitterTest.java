@@ -20,6 +20,8 @@ package com.google.android.apps.exposurenotification.nearby;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
@@ -74,7 +76,8 @@ import org.robolectric.annotation.Config;
 @UninstallModules({
     DbModule.class,
     ExecutorsModule.class,
-    ExposureNotificationsClientModule.class
+    ExposureNotificationsClientModule.class,
+    KeyFileSubmissionModule.class
 })
 public class KeyFileSubmitterTest {
 
@@ -111,6 +114,10 @@ public class KeyFileSubmitterTest {
 
   @BindValue
   ExposureNotificationDatabase db = InMemoryDb.create();
+  // Submit incrementally, in small batches, so that tests can span several batches.
+  @BindValue
+  KeyFileSubmissionConfig config =
+      KeyFileSubmissionConfig.newBuilder().setIncremental(true).setMaxFilesPerBatch(2).build();
   @BindValue
   @Mock
   ExposureNotificationClientWrapper exposureNotificationClient;
@@ -194,10 +201,139 @@ public class KeyFileSubmitterTest {
     assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index)).isEqualTo(fileUri1);
   }
 
+  @Test
+  public void incremental_shouldProvideFilesInBoundedBatches() throws Exception {
+    // GIVEN
+    Uri index = Uri.parse("http://example-1.com/index");
+    ImmutableList.Builder<KeyFile> keyFiles = ImmutableList.builder();
+    for (int i = 1; i <= 5; i++) {
+      keyFiles.add(
+          KeyFile.create(index, Uri.parse("http://example-1.com/file" + i), i == 5)
+              .with(createFile()));
+    }
+
+    // WHEN
+    submitter.submitFiles(keyFiles.build()).get();
+
+    // THEN
+    verify(exposureNotificationClient, times(3)).provideDiagnosisKeys(any());
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index))
+        .isEqualTo(Uri.parse("http://example-1.com/file5"));
+  }
+
+  @Test
+  public void incremental_laterBatchFails_shouldKeepProgressOfEarlierBatches() throws Exception {
+    // GIVEN
+    Uri index = Uri.parse("http://example-1.com/index");
+    Uri fileUri1 = Uri.parse("http://example-1.com/file1");
+    Uri fileUri2 = Uri.parse("http://example-1.com/file2");
+    Uri fileUri3 = Uri.parse("http://example-1.com/file3");
+    KeyFile keyFile1 = KeyFile.create(index, fileUri1, false).with(createFile());
+    KeyFile keyFile2 = KeyFile.create(index, fileUri2, false).with(createFile());
+    KeyFile keyFile3 = KeyFile.create(index, fileUri3, true).with(createFile());
+    // The first batch succeeds, the second fails.
+    when(exposureNotificationClient.provideDiagnosisKeys(any()))
+        .thenReturn(Tasks.forResult(null))
+        .thenReturn(Tasks.forException(new RuntimeException("BOOOOOM!")));
+
+    // WHEN
+    assertThrows(
+        ExecutionException.class,
+        () -> submitter.submitFiles(ImmutableList.of(keyFile1, keyFile2, keyFile3)).get());
+
+    // THEN
+    // The first batch's last file is remembered, so the next run resumes after it.
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index)).isEqualTo(fileUri2);
+    assertThat(keyFile1.file().exists()).isFalse();
+    assertThat(keyFile2.file().exists()).isFalse();
+    assertThat(keyFile3.file().exists()).isFalse();
+  }
+
+  @Test
+  public void incremental_filesFromInterleavedServers_shouldBatchInServerOrder() throws Exception {
+    // GIVEN
+    Uri index1 = Uri.parse("http://example-1.com/index");
+    Uri index2 = Uri.parse("http://example-2.com/index");
+    Uri server1FileUri1 = Uri.parse("http://example-1.com/file1");
+    Uri server1FileUri2 = Uri.parse("http://example-1.com/file2");
+    Uri server2FileUri1 = Uri.parse("http://example-2.com/file1");
+    KeyFile server1keyFile1 = KeyFile.create(index1, server1FileUri1, false).with(createFile());
+    KeyFile server2keyFile1 = KeyFile.create(index2, server2FileUri1, true).with(createFile());
+    KeyFile server1keyFile2 = KeyFile.create(index1, server1FileUri2, true).with(createFile());
+    when(exposureNotificationClient.provideDiagnosisKeys(any()))
+        .thenReturn(Tasks.forResult(null))
+        .thenReturn(Tasks.forException(new RuntimeException("BOOOOOM!")));
+
+    // WHEN
+    assertThrows(
+        ExecutionException.class,
+        () -> submitter.submitFiles(
+            ImmutableList.of(server1keyFile1, server2keyFile1, server1keyFile2)).get());
+
+    // THEN
+    // Server 1's files went together in the first batch, and only server 2's second batch failed.
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index1))
+        .isEqualTo(server1FileUri2);
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index2)).isNull();
+  }
+
+  @Test
+  public void sameContentFromTwoServers_shouldProvideOnceButRememberBothServers()
+      throws Exception {
+    // GIVEN
+    Uri index1 = Uri.parse("http://example-1.com/index");
+    Uri index2 = Uri.parse("http://example-2.com/index");
+    Uri server1FileUri = Uri.parse("http://example-1.com/file1");
+    Uri server2FileUri = Uri.parse("http://example-2.com/file1");
+    int content = UNIQUE_INT.incrementAndGet();
+    KeyFile server1keyFile = KeyFile.create(index1, server1FileUri, true).with(createFile(content));
+    KeyFile server2keyFile = KeyFile.create(index2, server2FileUri, true).with(createFile(content));
+
+    // WHEN
+    submitter.submitFiles(ImmutableList.of(server1keyFile, server2keyFile)).get();
+
+    // THEN
+    verify(exposureNotificationClient)
+        .provideDiagnosisKeys(ImmutableList.of(server1keyFile.file()));
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index1))
+        .isEqualTo(server1FileUri);
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index2))
+        .isEqualTo(server2FileUri);
+  }
+
+  @Test
+  public void contentProvidedInEarlierRun_shouldNotProvideAgain() throws Exception {
+    // GIVEN
+    Uri index1 = Uri.parse("http://example-1.com/index");
+    Uri index2 = Uri.parse("http://example-2.com/index");
+    Uri server1FileUri = Uri.parse("http://example-1.com/file1");
+    Uri server2FileUri = Uri.parse("http://example-2.com/file1");
+    int content = UNIQUE_INT.incrementAndGet();
+    submitter.submitFiles(ImmutableList.of(
+        KeyFile.create(index1, server1FileUri, true).with(createFile(content)))).get();
+
+    // WHEN
+    submitter.submitFiles(ImmutableList.of(
+        KeyFile.create(index2, server2FileUri, true).with(createFile(content)))).get();
+
+    // THEN
+    verify(exposureNotificationClient, times(1)).provideDiagnosisKeys(any());
+    assertThat(downloadServerRepo.getMostRecentSuccessfulDownload(index2))
+        .isEqualTo(server2FileUri);
+  }
+
   /**
-   * Creates a structurally compliant but empty keyfile and writes it to disk.
+   * Creates a structurally compliant but empty keyfile with unique content and writes it to disk.
    */
   private File createFile() throws Exception {
+    return createFile(UNIQUE_INT.incrementAndGet());
+  }
+
+  /**
+   * Creates a structurally compliant but empty keyfile and writes it to disk. Files created with
+   * the same {@code content} have the same content.
+   */
+  private File createFile(int content) throws Exception {
     File outFile =
         new File(
             context.getFilesDir(),
@@ -205,13 +341,16 @@ public class KeyFileSubmitterTest {
     try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outFile))) {
       ZipEntry signatureEntry = new ZipEntry(KeyFileConstants.SIG_FILENAME);
       ZipEntry exportEntry = new ZipEntry(KeyFileConstants.EXPORT_FILENAME);
+      // Fix the entries' timestamps, so that only the content tells files apart.
+      signatureEntry.setTime(0L);
+      exportEntry.setTime(0L);
 
       byte[] exportBytes = Bytes.concat(
           Strings.padEnd(HEADER_V1, HEADER_LEN, ' ').getBytes(),
           TemporaryExposureKeyExport.getDefaultInstance().toByteArray());
 
       out.putNextEntry(signatureEntry);
-      out.write("signature".getBytes());
+      out.write(("signature-" + content).getBytes());
 
       out.putNextEntry(exportEntry);
       out.write(exportBytes);
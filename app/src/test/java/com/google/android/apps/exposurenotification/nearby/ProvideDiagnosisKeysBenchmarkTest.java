@@ -0,0 +1,288 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.nearby;
+
+import static android.os.Looper.getMainLooper;
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
+import com.google.android.apps.exposurenotification.keydownload.DiagnosisKeyDownloader;
+import com.google.android.apps.exposurenotification.keydownload.DownloadUriPair;
+import com.google.android.apps.exposurenotification.keydownload.DownloadUrisModule;
+import com.google.android.apps.exposurenotification.keydownload.KeyFile;
+import com.google.android.apps.exposurenotification.keydownload.Qualifiers.HomeDownloadUriPair;
+import com.google.android.apps.exposurenotification.keydownload.Qualifiers.TravellerDownloadUriPairs;
+import com.google.android.apps.exposurenotification.network.Connectivity;
+import com.google.android.apps.exposurenotification.storage.DbModule;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.testsupport.Benchmarks;
+import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.FakeKeyServer;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import dagger.hilt.android.testing.BindValue;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import dagger.hilt.android.testing.UninstallModules;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.annotation.Config;
+
+/**
+ * A rough benchmark of the pipeline {@link ProvideDiagnosisKeysWorker} runs: downloading keyfiles
+ * with the {@link DiagnosisKeyDownloader} and providing them with the {@link
+ * DiagnosisKeyFileSubmitter}, at 10, 100 and 1000 files.
+ *
+ * <p>Everything but the key server and the EN API is real: the files come over HTTP from a {@link
+ * FakeKeyServer} through the app's network stack, and go to a {@link
+ * FakeExposureNotificationClientWrapper} that does about the work the API does to parse them. We
+ * skip the worker's own startup checks, which need the API.
+ *
+ * <p>For each run we print the wall time, the peak heap in use above where we started, the bytes
+ * of keyfiles on disk once downloaded, and the bytes allocated by the app's threads. As with our
+ * other benchmarks, numbers are printed rather than asserted, as they depend too much on the
+ * machine running the tests. Every file must make it to the API, though. At up to a thousand
+ * files, this only runs when {@link Benchmarks} are asked for.
+ */
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+@UninstallModules({
+    DbModule.class,
+    DownloadUrisModule.class,
+    ExposureNotificationsClientModule.class,
+    RealTimeModule.class})
+public class ProvideDiagnosisKeysBenchmarkTest {
+
+  // Around the size of a day's keys for a small region.
+  private static final int KEYS_PER_FILE = 500;
+  // A day-long key has 144 Rolling Proximity Identifiers.
+  private static final int RPIS_PER_KEY = 144;
+  private static final long HEAP_SAMPLE_INTERVAL_MS = 5;
+  private static final String HEAP_SAMPLER_THREAD = "HeapSampler";
+  // Threads whose allocations aren't the app's: the fake server's, the JDK HTTP server's under it,
+  // and our own heap sampler.
+  private static final ImmutableList<String> NOT_APP_THREADS = ImmutableList.of(
+      FakeKeyServer.THREAD_NAME_PREFIX, "HTTP-Dispatcher", HEAP_SAMPLER_THREAD);
+
+  @BindValue
+  ExposureNotificationDatabase db = InMemoryDb.create();
+  @BindValue
+  Clock clock = new FakeClock();
+  private final FakeExposureNotificationClientWrapper fakeClient =
+      new FakeExposureNotificationClientWrapper(RPIS_PER_KEY);
+  @BindValue
+  ExposureNotificationClientWrapper exposureNotificationClient = fakeClient;
+  // Unmetered, so that every run downloads all the files.
+  @BindValue
+  @Mock
+  Connectivity connectivity;
+  // Set when each benchmark starts its server.
+  @BindValue
+  @HomeDownloadUriPair
+  DownloadUriPair homeUris;
+  @BindValue
+  @TravellerDownloadUriPairs
+  Map<String, List<DownloadUriPair>> travelUris = ImmutableMap.of();
+
+  @Rule
+  public ExposureNotificationRules rules =
+      ExposureNotificationRules.forTest(this).withMocks().build();
+
+  @Inject
+  DiagnosisKeyDownloader downloader;
+  @Inject
+  DiagnosisKeyFileSubmitter submitter;
+
+  private FakeKeyServer server;
+
+  @Before
+  public void setUp() {
+    Benchmarks.assumeEnabled();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.close();
+    }
+    db.close();
+  }
+
+  @Test
+  public void benchmark_10files() throws Exception {
+    benchmark(10);
+  }
+
+  @Test
+  public void benchmark_100files() throws Exception {
+    benchmark(100);
+  }
+
+  @Test
+  public void benchmark_1000files() throws Exception {
+    benchmark(1000);
+  }
+
+  private void benchmark(int numFiles) throws Exception {
+    // The server's time windows must line up with the clock the app judges staleness by.
+    server = FakeKeyServer.start(numFiles, KEYS_PER_FILE, clock);
+    homeUris = server.uris();
+    rules.hilt().inject();
+
+    System.gc();
+    long baselineHeap = usedHeap();
+    long baselineAllocated = allocatedByAppThreads();
+    HeapSampler heapSampler = new HeapSampler();
+    heapSampler.start();
+    long start = System.nanoTime();
+
+    ImmutableList<KeyFile> keyFiles = await(downloader.download());
+    long bytesOnDisk = bytesOnDisk(keyFiles);
+    await(submitter.submitFiles(keyFiles));
+
+    long wallNanos = System.nanoTime() - start;
+    long peakHeap = heapSampler.stop() - baselineHeap;
+    long allocated = allocatedByAppThreads() - baselineAllocated;
+
+    assertThat(fakeClient.getFilesProvided()).isEqualTo(numFiles);
+    assertThat(fakeClient.getKeysProvided()).isEqualTo((long) numFiles * KEYS_PER_FILE);
+    assertThat(bytesOnDisk).isEqualTo(server.totalFileBytes());
+    System.out.println(String.format(
+        "Download and provide %d keyfiles (%d requests, %d bytes served): %.1f ms wall time, "
+            + "%d KiB peak heap, %d KiB on disk, %d KiB allocated",
+        numFiles, server.requestCount(), server.bytesServed(), wallNanos / 1e6,
+        peakHeap / 1024, bytesOnDisk / 1024, allocated / 1024));
+  }
+
+  /**
+   * Waits for the given future, running the main looper meanwhile, as Volley delivers responses
+   * on the main thread, which in a Robolectric test is this one.
+   */
+  private static <T> T await(ListenableFuture<T> future) throws Exception {
+    while (!future.isDone()) {
+      shadowOf(getMainLooper()).idle();
+      Thread.sleep(1);
+    }
+    return future.get();
+  }
+
+  private static long bytesOnDisk(List<KeyFile> keyFiles) {
+    Set<File> uniqueFiles = new HashSet<>();
+    long bytes = 0;
+    for (KeyFile keyFile : keyFiles) {
+      if (keyFile.file() != null && uniqueFiles.add(keyFile.file())) {
+        bytes += keyFile.file().length();
+      }
+    }
+    return bytes;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Returns the bytes allocated so far by the app's live threads, or zero if the JVM can't tell us.
+   *
+   * <p>The app's executors and Volley's dispatchers keep their threads for the life of the app, so
+   * the difference between two calls is a fair count of what the app allocated in between.
+   */
+  private static long allocatedByAppThreads() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+    long bytes = 0;
+    for (ThreadInfo thread : threads.getThreadInfo(threads.getAllThreadIds())) {
+      if (thread == null || isNotAppThread(thread.getThreadName())) {
+        continue;
+      }
+      bytes += Math.max(allocations.getThreadAllocatedBytes(thread.getThreadId()), 0);
+    }
+    return bytes;
+  }
+
+  private static boolean isNotAppThread(String name) {
+    for (String prefix : NOT_APP_THREADS) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Samples the heap in use on a thread of its own, keeping the highest value it sees.
+   */
+  private static class HeapSampler extends Thread {
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong peak = new AtomicLong(usedHeap());
+
+    private HeapSampler() {
+      super(HEAP_SAMPLER_THREAD);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running.get()) {
+        peak.accumulateAndGet(usedHeap(), Math::max);
+        try {
+          Thread.sleep(HEAP_SAMPLE_INTERVAL_MS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * Stops sampling and returns the peak heap in use.
+     */
+    private long stop() throws InterruptedException {
+      running.set(false);
+      join();
+      return peak.accumulateAndGet(usedHeap(), Math::max);
+    }
+  }
+}
@@ -41,6 +41,7 @@ import com.google.android.apps.exposurenotification.keydownload.DiagnosisKeyDown
 import com.google.android.apps.exposurenotification.keydownload.DownloadUriPair;
 import com.google.android.apps.exposurenotification.keydownload.DownloadUrisModule;
 import com.google.android.apps.exposurenotification.keydownload.KeyFile;
+import com.google.android.apps.exposurenotification.keydownload.KeyFileCache;
 import com.google.android.apps.exposurenotification.keydownload.Qualifiers.HomeDownloadUriPair;
 import com.google.android.apps.exposurenotification.keydownload.Qualifiers.TravellerDownloadUriPairs;
 import com.google.android.apps.exposurenotification.logging.AnalyticsLogger;
@@ -132,6 +133,8 @@ public class ProvideDiagnosisKeysWorkerTest {
   DiagnosisKeysDataMapping diagnosisKeysDataMapping;
   @Inject
   PackageConfigurationHelper packageConfigurationHelper;
+  @Inject
+  KeyFileCache keyFileCache;
 
   @Mock
   AnalyticsLogger analyticsLogger;
@@ -177,7 +180,7 @@ public class ProvideDiagnosisKeysWorkerTest {
     // Instantiate the actual object under test
     provideDiagnosisKeysWorker = spy(new ProvideDiagnosisKeysWorker(context, workerParameters,
         diagnosisKeyDownloader, exposureNotificationClientWrapper,
-        diagnosisKeyFileSubmitter, diagnosisKeysDataMapping,
+        diagnosisKeyFileSubmitter, keyFileCache, diagnosisKeysDataMapping,
         MoreExecutors.newDirectExecutorService(),
         TestingExecutors.sameThreadScheduledExecutor(),
         new WorkerStartupManager(
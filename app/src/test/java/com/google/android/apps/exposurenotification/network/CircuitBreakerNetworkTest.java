@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Header;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.google.android.apps.exposurenotification.storage.HostHealthRepository;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import com.google.common.collect.ImmutableList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+import org.threeten.bp.ZoneOffset;
+import org.threeten.bp.format.DateTimeFormatter;
+
+/**
+ * Tests for {@link CircuitBreakerNetwork}'s waits between retries, on the {@link RequestLanes} it
+ * runs under.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CircuitBreakerNetworkTest {
+
+  private final FakeClock clock = new FakeClock();
+  private final AtomicInteger attempts = new AtomicInteger(0);
+
+  // The network under the circuit breaker, unless a test says otherwise.
+  private volatile Network network = new RateLimitedNetwork();
+  private HostHealthTracker tracker;
+  private RequestLanes lanes;
+
+  @Before
+  public void setUp() {
+    tracker = new HostHealthTracker(new HostHealthRepository(InMemoryDb.create()), clock);
+    lanes = new RequestLanes(
+        new CircuitBreakerNetwork(request -> network.performRequest(request), tracker));
+  }
+
+  @After
+  public void tearDown() {
+    for (RequestLane lane : RequestLane.values()) {
+      lanes.queueFor(lane).stop();
+    }
+  }
+
+  @Test
+  public void interactiveLane_rateLimitedForLongerThanLaneWaits_shouldFailWithoutWaiting()
+      throws Exception {
+    lanes.add(new RateLimitedRequest(Duration.ofSeconds(30)), RequestLane.INTERACTIVE);
+
+    assertThat(awaitIdle(RequestLane.INTERACTIVE)).isTrue();
+    assertThat(attempts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void interactiveLane_rateLimitedForLessThanLaneWaits_shouldRetry() throws Exception {
+    lanes.add(new RateLimitedRequest(Duration.ofSeconds(1)), RequestLane.INTERACTIVE);
+
+    assertThat(awaitIdle(RequestLane.INTERACTIVE)).isTrue();
+    assertThat(attempts.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void prewarmLane_timedOut_shouldNotCountTowardsHostHealth() throws Exception {
+    network = request -> {
+      attempts.incrementAndGet();
+      throw new TimeoutError();
+    };
+
+    lanes.add(new RateLimitedRequest(Duration.ZERO), RequestLane.PREWARM);
+
+    assertThat(awaitIdle(RequestLane.PREWARM)).isTrue();
+    assertThat(attempts.get()).isEqualTo(1);
+    assertThat(tracker.getHealth()).doesNotContainKey("example.com");
+  }
+
+  /**
+   * Waits until the lane has dispatched a request and has none left on the network, for no longer
+   * than the interactive lane would ever wait to retry. Returns whether it got there.
+   */
+  private boolean awaitIdle(RequestLane lane) throws InterruptedException {
+    long deadlineMs = System.currentTimeMillis()
+        + RequestLane.INTERACTIVE.maxRetryWait().toMillis();
+    while (System.currentTimeMillis() < deadlineMs) {
+      if (lanes.getStats(lane).dispatched() == 1 && lanes.getStats(lane).inFlight() == 0) {
+        return true;
+      }
+      Thread.sleep(10);
+    }
+    return false;
+  }
+
+  /**
+   * A network that gets rate limited on every attempt, retrying as long as the request's policy
+   * lets it, like Volley's own networks do.
+   */
+  private class RateLimitedNetwork implements Network {
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+      while (true) {
+        attempts.incrementAndGet();
+        String retryTime = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            clock.now().plus(((RateLimitedRequest) request).retryAfter).atZone(ZoneOffset.UTC));
+        request.getRetryPolicy().retry(new VolleyError(new NetworkResponse(
+            429, new byte[0], false, 0,
+            ImmutableList.of(new Header("X-Retry-After", retryTime)))));
+      }
+    }
+  }
+
+  private class RateLimitedRequest extends Request<String> {
+
+    private final Duration retryAfter;
+
+    RateLimitedRequest(Duration retryAfter) {
+      super(Method.GET, "http://example.com", error -> {});
+      this.retryAfter = retryAfter;
+      setShouldCache(false);
+      setRetryPolicy(new CustomRetryPolicy(clock));
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+      return Response.success("", null);
+    }
+
+    @Override
+    protected void deliverResponse(String response) {}
+  }
+}
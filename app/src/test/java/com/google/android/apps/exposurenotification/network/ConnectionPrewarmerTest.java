@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link ConnectionPrewarmer}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConnectionPrewarmerTest {
+
+  private static final Uri VERIFY_CODE = Uri.parse("https://verify.example.com/api/verify");
+  private static final Uri VERIFY_CERT = Uri.parse("https://verify.example.com/api/certificate");
+  private static final Uri UPLOAD = Uri.parse("https://keys.example.com:8443/v1/publish");
+
+  private final FakeRequestQueue queue = new FakeRequestQueue();
+  private final FakeClock clock = new FakeClock();
+
+  private ConnectionPrewarmer prewarmer;
+
+  @Before
+  public void setUp() {
+    // Servers won't have anything at their root; we don't care.
+    queue.addResponse(".*", 404, "");
+    prewarmer = new ConnectionPrewarmer(queue, clock);
+  }
+
+  @Test
+  public void prewarm_shouldSendOneHeadRequestPerServer() {
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CODE, VERIFY_CERT, UPLOAD));
+
+    assertThat(urls()).containsExactly(
+        "https://verify.example.com/", "https://keys.example.com:8443/").inOrder();
+    for (Request<?> request : rpcs()) {
+      assertThat(request.getMethod()).isEqualTo(Method.HEAD);
+    }
+    assertThat(queue.getLastRpcLane()).isEqualTo(RequestLane.PREWARM);
+  }
+
+  @Test
+  public void prewarm_again_whileConnectionsStillPooled_shouldSkipServers() {
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CODE, UPLOAD));
+    clock.advanceBy(Duration.ofMinutes(1));
+
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CERT, UPLOAD));
+
+    assertThat(queue.numRpcs()).isEqualTo(2);
+  }
+
+  @Test
+  public void prewarm_again_afterHalfTheKeepAlive_shouldWarmUpAgain() {
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CODE));
+    clock.advanceBy(HttpTransportConfig.KEEP_ALIVE.dividedBy(2));
+
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CODE));
+
+    assertThat(queue.numRpcs()).isEqualTo(2);
+  }
+
+  @Test
+  public void prewarm_afterClockMovedBack_shouldWarmUpAgain() {
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CODE));
+    clock.moveBackBy(Duration.ofMinutes(1));
+
+    prewarmer.prewarm(ImmutableList.of(VERIFY_CODE));
+
+    assertThat(queue.numRpcs()).isEqualTo(2);
+  }
+
+  @Test
+  public void prewarm_uriWithoutHost_shouldBeIgnored() {
+    prewarmer.prewarm(ImmutableList.of(Uri.parse("not a url")));
+
+    assertThat(queue.numRpcs()).isEqualTo(0);
+  }
+
+  private List<Request<?>> rpcs() {
+    List<Request<?>> rpcs = new ArrayList<>();
+    for (Request<?> request : queue.getRpcs()) {
+      rpcs.add(request);
+    }
+    return rpcs;
+  }
+
+  private List<String> urls() {
+    List<String> urls = new ArrayList<>();
+    for (Request<?> request : rpcs()) {
+      urls.add(request.getUrl());
+    }
+    return urls;
+  }
+}
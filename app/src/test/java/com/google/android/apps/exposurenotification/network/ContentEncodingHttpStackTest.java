@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.android.apps.exposurenotification.network.ContentEncodingHttpStack.ACCEPT_ENCODING;
+import static com.google.android.apps.exposurenotification.network.ContentEncodingHttpStack.CONTENT_ENCODING;
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.toolbox.BaseHttpStack;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpResponse;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link ContentEncodingHttpStack}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ContentEncodingHttpStackTest {
+
+  private static final String URL = "http://example.com/index.txt";
+  private static final String CONTENT = Strings.repeat("exposureKeyExport-US/1600000000.zip\n", 50);
+
+  private final FakeHttpStack fakeStack = new FakeHttpStack();
+  private final ContentEncodingHttpStack stack = new ContentEncodingHttpStack(fakeStack);
+
+  @Test
+  public void request_shouldAskForGzip() throws Exception {
+    fakeStack.respond(200, ImmutableList.of(), new byte[0]);
+
+    stack.executeRequest(newStringRequest(), ImmutableMap.of());
+
+    assertThat(fakeStack.lastHeaders).containsEntry(ACCEPT_ENCODING, "gzip");
+  }
+
+  @Test
+  public void fileRequest_shouldAskForNoEncoding() throws Exception {
+    fakeStack.respond(200, ImmutableList.of(), new byte[0]);
+    RespondableFileRequest request = new RespondableFileRequest(
+        Uri.parse(URL), new File("keys.zip"), bytes -> {}, err -> {}, new FakeClock());
+
+    stack.executeRequest(request, ImmutableMap.of());
+
+    assertThat(fakeStack.lastHeaders).containsEntry(ACCEPT_ENCODING, "identity");
+  }
+
+  @Test
+  public void rangeRequest_shouldAskForNoEncoding() throws Exception {
+    fakeStack.respond(206, ImmutableList.of(), new byte[0]);
+    RespondableByteArrayRequest request = new RespondableByteArrayRequest(
+        Uri.parse(URL), bytes -> {}, err -> {}, new FakeClock());
+    request.setRange(0, 99);
+
+    stack.executeRequest(request, ImmutableMap.of());
+
+    assertThat(fakeStack.lastHeaders).containsEntry(ACCEPT_ENCODING, "identity");
+  }
+
+  @Test
+  public void byteArrayRequestWithoutRange_shouldAskForGzip() throws Exception {
+    fakeStack.respond(200, ImmutableList.of(), new byte[0]);
+    RespondableByteArrayRequest request = new RespondableByteArrayRequest(
+        Uri.parse(URL), bytes -> {}, err -> {}, new FakeClock());
+
+    stack.executeRequest(request, ImmutableMap.of());
+
+    assertThat(fakeStack.lastHeaders).containsEntry(ACCEPT_ENCODING, "gzip");
+  }
+
+  @Test
+  public void gzippedResponse_shouldBeDecodedWithoutEncodingHeaders() throws Exception {
+    byte[] gzipped = gzip(CONTENT);
+    fakeStack.respond(200, ImmutableList.of(
+        new Header(CONTENT_ENCODING, "gzip"),
+        new Header("Content-Length", Integer.toString(gzipped.length)),
+        new Header("ETag", "\"v1\"")), gzipped);
+
+    NetworkResponse response = new BasicNetwork(stack).performRequest(newStringRequest());
+
+    assertThat(new String(response.data, StandardCharsets.UTF_8)).isEqualTo(CONTENT);
+    assertThat(response.headers).doesNotContainKey(CONTENT_ENCODING);
+    assertThat(response.headers).doesNotContainKey("Content-Length");
+    assertThat(response.headers).containsEntry("ETag", "\"v1\"");
+  }
+
+  @Test
+  public void gzippedResponse_shouldReportWireAndDecodedSizes() throws Exception {
+    byte[] gzipped = gzip(CONTENT);
+    fakeStack.respond(200, ImmutableList.of(new Header(CONTENT_ENCODING, "gzip")), gzipped);
+    RespondableConditionalStringRequest request = newStringRequest();
+
+    NetworkResponse response = new BasicNetwork(stack).performRequest(request);
+
+    ResponseSize size = request.parseNetworkResponse(response).result.responseSize();
+    assertThat(size.wireBytes()).isEqualTo(gzipped.length);
+    assertThat(size.decodedBytes()).isEqualTo(CONTENT.length());
+    assertThat(size.wireBytes()).isLessThan(size.decodedBytes());
+  }
+
+  @Test
+  public void plainResponse_shouldReportSameWireAndDecodedSizes() throws Exception {
+    byte[] plain = CONTENT.getBytes(StandardCharsets.UTF_8);
+    fakeStack.respond(200, ImmutableList.of(), plain);
+    RespondableConditionalStringRequest request = newStringRequest();
+
+    NetworkResponse response = new BasicNetwork(stack).performRequest(request);
+
+    assertThat(new String(response.data, StandardCharsets.UTF_8)).isEqualTo(CONTENT);
+    assertThat(request.parseNetworkResponse(response).result.responseSize())
+        .isEqualTo(ResponseSize.create(plain.length, plain.length));
+  }
+
+  @Test
+  public void gzippedResponseWithoutBody_shouldNotFail() throws Exception {
+    fakeStack.respond(204, ImmutableList.of(new Header(CONTENT_ENCODING, "gzip")), new byte[0]);
+
+    NetworkResponse response = new BasicNetwork(stack).performRequest(newStringRequest());
+
+    assertThat(response.data).isEmpty();
+  }
+
+  private static RespondableConditionalStringRequest newStringRequest() {
+    return new RespondableConditionalStringRequest(
+        URL, null, null, result -> {}, err -> {}, new FakeClock());
+  }
+
+  private static byte[] gzip(String content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Responds to every request with a canned response, and remembers the headers it was given.
+   */
+  private static class FakeHttpStack extends BaseHttpStack {
+
+    private int statusCode;
+    private List<Header> headers;
+    private byte[] body;
+    private Map<String, String> lastHeaders;
+
+    void respond(int statusCode, List<Header> headers, byte[] body) {
+      this.statusCode = statusCode;
+      this.headers = headers;
+      this.body = body;
+    }
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) {
+      lastHeaders = additionalHeaders;
+      return new HttpResponse(
+          statusCode, headers, body.length, new ByteArrayInputStream(body));
+    }
+  }
+}
@@ -17,6 +17,9 @@
 
 package com.google.android.apps.exposurenotification.network;
 
+import static com.google.android.apps.exposurenotification.network.CustomRetryPolicy.BACKOFF_BASE;
+import static com.google.android.apps.exposurenotification.network.CustomRetryPolicy.BACKOFF_CAP;
+import static com.google.android.apps.exposurenotification.network.CustomRetryPolicy.MAX_RATE_LIMITED_WAIT;
 import static com.google.android.apps.exposurenotification.network.CustomRetryPolicy.SERVER_TIMEOUT_SECS;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
@@ -31,6 +34,7 @@ import com.google.common.collect.ImmutableList;
 import dagger.hilt.android.testing.HiltAndroidTest;
 import dagger.hilt.android.testing.HiltTestApplication;
 import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.function.ThrowingRunnable;
 import org.junit.runner.RunWith;
@@ -158,6 +162,63 @@ public class CustomRetryPolicyTest {
     assertThat(policy.getCurrentTimeout()).isEqualTo(newDelay.toMillis());
   }
 
+  @Test
+  public void http429_retryTimeTooFarAway_shouldFailNow() {
+    // GIVEN
+    CustomRetryPolicy policy = new CustomRetryPolicy(clock);
+    String retryTime = RETRY_TIME_FORMAT.format(
+        clock.now().plus(MAX_RATE_LIMITED_WAIT).plusSeconds(1).atZone(ZoneOffset.UTC));
+
+    // WHEN
+    ThrowingRunnable failure =
+        () -> policy.retry(errorOf(429, ImmutableList.of(new Header("X-Retry-After", retryTime))));
+
+    // THEN
+    assertThrows(VolleyError.class, failure);
+    assertThat(policy.getCurrentRetryCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void http429_shouldBackOffUntilTimeDesignatedByResponseHeader() throws Exception {
+    // GIVEN
+    CustomRetryPolicy policy = new CustomRetryPolicy(clock);
+    Duration retryDelay = Duration.ofSeconds(20);
+    String retryTime =
+        RETRY_TIME_FORMAT.format(clock.now().plus(retryDelay).atZone(ZoneOffset.UTC));
+
+    // WHEN
+    policy.retry(errorOf(429, ImmutableList.of(new Header("X-Retry-After", retryTime))));
+
+    // THEN
+    assertThat(policy.getBackoff()).isEqualTo(retryDelay);
+  }
+
+  @Test
+  public void http500_backoffShouldGrowExponentiallyWithinJitterRange() throws Exception {
+    // GIVEN
+    // A Random that always draws its maximum, so we see the top of each jitter range.
+    CustomRetryPolicy maxPolicy = new CustomRetryPolicy(clock, randomAlways(0.9999999));
+    // And one that always draws its minimum.
+    CustomRetryPolicy minPolicy = new CustomRetryPolicy(clock, randomAlways(0));
+
+    for (int retry = 0; retry < 3; retry++) {
+      // WHEN
+      maxPolicy.retry(errorOf(500));
+      minPolicy.retry(errorOf(500));
+
+      // THEN
+      assertThat(maxPolicy.getBackoff()).isEqualTo(BACKOFF_BASE.multipliedBy(1L << retry));
+      assertThat(minPolicy.getBackoff()).isEqualTo(Duration.ZERO);
+    }
+  }
+
+  @Test
+  public void fullJitterBackoff_shouldBeCapped() {
+    Duration backoff = CustomRetryPolicy.fullJitterBackoff(randomAlways(0.9999999), 40);
+
+    assertThat(backoff).isEqualTo(BACKOFF_CAP);
+  }
+
   @Test
   public void requestTimeout_shouldRetry() throws Exception {
     // WHEN
@@ -178,6 +239,15 @@ public class CustomRetryPolicyTest {
     assertThat(policy.getCurrentRetryCount()).isEqualTo(1);
   }
 
+  private static Random randomAlways(double value) {
+    return new Random() {
+      @Override
+      public double nextDouble() {
+        return value;
+      }
+    };
+  }
+
   private static VolleyError errorOf(int httpStatus) throws Exception {
     return errorOf(httpStatus, ImmutableList.of());
   }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.android.apps.exposurenotification.network.HostHealthTracker.FAILURE_THRESHOLD;
+import static com.google.android.apps.exposurenotification.network.HostHealthTracker.INITIAL_COOLDOWN;
+import static com.google.android.apps.exposurenotification.network.HostHealthTracker.MAX_COOLDOWN;
+import static com.google.android.apps.exposurenotification.network.HostHealthTracker.MAX_RETRY_BUDGET;
+import static com.google.android.apps.exposurenotification.network.HostHealthTracker.SUCCESSES_PER_RETRY;
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.network.HostHealthTracker.CircuitState;
+import com.google.android.apps.exposurenotification.storage.HostHealthRepository;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.threeten.bp.Duration;
+
+/**
+ * Tests for {@link HostHealthTracker}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HostHealthTrackerTest {
+
+  private static final String HOST = "keys.example.com";
+  private static final String OTHER_HOST = "verify.example.com";
+
+  private final FakeClock clock = new FakeClock();
+  private HostHealthRepository repository;
+  private HostHealthTracker tracker;
+
+  @Before
+  public void setUp() {
+    repository = new HostHealthRepository(InMemoryDb.create());
+    tracker = new HostHealthTracker(repository, clock);
+  }
+
+  @Test
+  public void failuresBelowThreshold_shouldKeepBreakerClosed() {
+    failTimes(HOST, FAILURE_THRESHOLD - 1);
+
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+    assertThat(tracker.getHealth().get(HOST).state()).isEqualTo(CircuitState.CLOSED);
+  }
+
+  @Test
+  public void failuresAtThreshold_shouldOpenBreakerForThatHostOnly() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+
+    assertThat(tracker.allowRequest(HOST)).isFalse();
+    assertThat(tracker.allowRequest(OTHER_HOST)).isTrue();
+    assertThat(tracker.getHealth().get(HOST).state()).isEqualTo(CircuitState.OPEN);
+    assertThat(tracker.getHealth().get(HOST).cooldownRemaining()).isEqualTo(INITIAL_COOLDOWN);
+  }
+
+  @Test
+  public void successBetweenFailures_shouldResetCount() {
+    failTimes(HOST, FAILURE_THRESHOLD - 1);
+    tracker.onSuccess(HOST);
+    failTimes(HOST, FAILURE_THRESHOLD - 1);
+
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+  }
+
+  @Test
+  public void cooldownOver_shouldLetOneTrialRequestThrough() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+    clock.advanceBy(INITIAL_COOLDOWN);
+
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+    assertThat(tracker.allowRequest(HOST)).isFalse();
+  }
+
+  @Test
+  public void trialRequestSucceeds_shouldCloseBreaker() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+    clock.advanceBy(INITIAL_COOLDOWN);
+    tracker.allowRequest(HOST);
+
+    tracker.onSuccess(HOST);
+
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+    assertThat(tracker.getHealth().get(HOST).state()).isEqualTo(CircuitState.CLOSED);
+    assertThat(repository.getAll()).isEmpty();
+  }
+
+  @Test
+  public void trialRequestFails_shouldReopenBreakerForTwiceAsLong() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+    clock.advanceBy(INITIAL_COOLDOWN);
+    tracker.allowRequest(HOST);
+
+    tracker.onFailure(HOST);
+
+    assertThat(tracker.allowRequest(HOST)).isFalse();
+    assertThat(tracker.getHealth().get(HOST).cooldownRemaining())
+        .isEqualTo(INITIAL_COOLDOWN.multipliedBy(2));
+  }
+
+  @Test
+  public void trialRequestsKeepFailing_shouldCapCooldown() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+    for (int i = 0; i < 20; i++) {
+      clock.advanceBy(MAX_COOLDOWN);
+      tracker.allowRequest(HOST);
+      tracker.onFailure(HOST);
+    }
+
+    assertThat(tracker.getHealth().get(HOST).cooldownRemaining()).isEqualTo(MAX_COOLDOWN);
+  }
+
+  @Test
+  public void trialRequestInconclusive_shouldLetAnotherTrialThrough() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+    clock.advanceBy(INITIAL_COOLDOWN);
+    tracker.allowRequest(HOST);
+
+    tracker.onInconclusive(HOST);
+
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+  }
+
+  @Test
+  public void openBreaker_shouldStayOpenForNewTracker() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+
+    // As in a later worker run, in a new process.
+    HostHealthTracker laterTracker = new HostHealthTracker(repository, clock);
+
+    assertThat(laterTracker.allowRequest(HOST)).isFalse();
+  }
+
+  @Test
+  public void clockMovedBackPastOpening_shouldLetTrialRequestThrough() {
+    failTimes(HOST, FAILURE_THRESHOLD);
+
+    clock.moveBackBy(Duration.ofDays(1));
+
+    assertThat(tracker.allowRequest(HOST)).isTrue();
+  }
+
+  @Test
+  public void retryBudget_shouldRunOutAndBeEarnedBackBySuccesses() {
+    for (int i = 0; i < MAX_RETRY_BUDGET; i++) {
+      assertThat(tracker.tryAcquireRetry(HOST)).isTrue();
+    }
+    assertThat(tracker.tryAcquireRetry(HOST)).isFalse();
+    // Other hosts have budgets of their own.
+    assertThat(tracker.tryAcquireRetry(OTHER_HOST)).isTrue();
+
+    for (int i = 0; i < SUCCESSES_PER_RETRY; i++) {
+      tracker.onSuccess(HOST);
+    }
+
+    assertThat(tracker.tryAcquireRetry(HOST)).isTrue();
+    assertThat(tracker.tryAcquireRetry(HOST)).isFalse();
+  }
+
+  private void failTimes(String host, int times) {
+    for (int i = 0; i < times; i++) {
+      tracker.onFailure(host);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.common.StringUtils;
+import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import com.google.common.io.BaseEncoding;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link JsonPayloadWriter}.
+ */
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+public class JsonPayloadWriterTest {
+
+  private static final BaseEncoding BASE64 = BaseEncoding.base64();
+  private static final String AWKWARD_STRING =
+      "quote\" backslash\\ slash/ tab\t newline\n control\u0001 accent\u00e9 emoji\ud83d\ude00";
+
+  @Test
+  public void finish_shouldWriteSameBytesAsPaddedJsonObject() throws Exception {
+    for (int seed = 0; seed < 20; seed++) {
+      byte[] key = new byte[16 + seed];
+      new Random(seed).nextBytes(key);
+      JSONObject expected = new JSONObject()
+          .put("keys", new JSONArray()
+              .put(new JSONObject().put("key", BASE64.encode(key)).put("period", 144)))
+          .put("awkward", AWKWARD_STRING)
+          .put("number", -1234567890123L)
+          .put("flag", true)
+          .put("absent", (Object) null)
+          .put("list", new JSONArray().put("a").put("b"));
+      expected = Padding.addPadding(expected, new Random(seed));
+
+      JsonPayload payload = new JsonPayloadWriter(new Random(seed))
+          .beginObject()
+          .name("keys").beginArray()
+          .beginObject().name("key").base64Value(key).name("period").value(144).endObject()
+          .endArray()
+          .name("awkward").value(AWKWARD_STRING)
+          .name("number").value(-1234567890123L)
+          .name("flag").value(true)
+          .name("absent").value((String) null)
+          .name("list").beginArray().value("a").value("b").endArray()
+          .finish();
+
+      assertThat(payload.toString()).isEqualTo(expected.toString());
+      assertThat(payload.bytes())
+          .isEqualTo(expected.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void finish_emptyObject_shouldWriteOnlyPadding() throws Exception {
+    JsonPayload payload = new JsonPayloadWriter(new Random(1)).beginObject().finish();
+
+    JSONObject expected = Padding.addPadding(new JSONObject(), new Random(1));
+    assertThat(payload.toString()).isEqualTo(expected.toString());
+  }
+
+  @Test
+  public void finish_largerThanTarget_shouldNotPad() throws Exception {
+    String large = StringUtils.randomBase64Data(Padding.TARGET_PAYLOAD_SIZE_BYTES);
+
+    JsonPayload payload = new JsonPayloadWriter().beginObject().name("foo").value(large).finish();
+
+    JSONObject body = new JSONObject(payload.toString());
+    assertThat(body.has(UploadV1.PADDING)).isFalse();
+    assertThat(body.getString("foo")).isEqualTo(large);
+  }
+
+  @Test
+  public void length_shouldBeSizeOfBytes() {
+    JsonPayload payload =
+        new JsonPayloadWriter().beginObject().name("foo").value("\u00e9").finish();
+
+    assertThat(payload.length()).isEqualTo(payload.bytes().length);
+    assertThat(payload.length()).isAtLeast(Padding.TARGET_PAYLOAD_SIZE_BYTES);
+  }
+
+  @Test
+  public void finish_withArrayLeftOpen_shouldThrow() {
+    JsonPayloadWriter writer = new JsonPayloadWriter().beginObject().name("foo").beginArray();
+
+    assertThrows(IllegalStateException.class, writer::finish);
+  }
+
+  @Test
+  public void value_afterFinish_shouldThrow() {
+    JsonPayloadWriter writer = new JsonPayloadWriter().beginObject();
+    writer.finish();
+
+    assertThrows(IllegalStateException.class, () -> writer.name("foo").value("bar"));
+  }
+}
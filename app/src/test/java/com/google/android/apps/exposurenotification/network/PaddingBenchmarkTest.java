@@ -0,0 +1,116 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.common.StringUtils;
+import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import com.google.android.apps.exposurenotification.testsupport.Benchmarks;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * A rough benchmark of {@link Padding} against the pad-one-more-byte-at-a-time approach it
+ * replaced, which we reproduce here as {@link #addPaddingIteratively}.
+ *
+ * <p>Timings are printed rather than asserted, as they depend too much on the machine running the
+ * tests. Both must pad to about the same size, though. Only runs when {@link Benchmarks} are asked
+ * for; {@link PaddingTest} checks that the sizes come out the same on every run.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PaddingBenchmarkTest {
+
+  private static final int WARMUP_RUNS = 3;
+  private static final int TIMED_RUNS = 20;
+  // The padding doesn't come out at exactly the same size every time, as some base64 characters
+  // take up more space in JSON than others.
+  private static final int TOLERANCE = (int) (Padding.TARGET_PAYLOAD_SIZE_BYTES * 0.01);
+
+  @Before
+  public void setUp() {
+    Benchmarks.assumeEnabled();
+  }
+
+  @Test
+  public void benchmark_smallPayload() throws Exception {
+    // Like a verification code request.
+    benchmark(new JSONObject()
+        .put("code", "12345678")
+        .put("accept", "confirmed"));
+  }
+
+  @Test
+  public void benchmark_largePayload() throws Exception {
+    // Like a keys upload, already most of the way to the target size.
+    benchmark(new JSONObject()
+        .put("temporaryExposureKeys", StringUtils.randomBase64Data(2500))
+        .put("healthAuthorityID", "com.example.health"));
+  }
+
+  private static void benchmark(JSONObject payload) throws Exception {
+    String json = payload.toString();
+    int paddedSize = Padding.addPadding(new JSONObject(json)).toString().getBytes().length;
+    int baselineSize = addPaddingIteratively(new JSONObject(json)).toString().getBytes().length;
+    assertThat(paddedSize).isAtLeast(Padding.TARGET_PAYLOAD_SIZE_BYTES);
+    assertThat(paddedSize).isAtMost(Padding.TARGET_PAYLOAD_SIZE_BYTES + TOLERANCE);
+    assertThat(baselineSize).isAtLeast(Padding.TARGET_PAYLOAD_SIZE_BYTES);
+    assertThat(baselineSize).isAtMost(Padding.TARGET_PAYLOAD_SIZE_BYTES + TOLERANCE);
+
+    long baselineNanos = time(() -> addPaddingIteratively(new JSONObject(json)));
+    long paddingNanos = time(() -> Padding.addPadding(new JSONObject(json)));
+    System.out.println(String.format(
+        "Padding a %d byte payload: one byte at a time %.3f ms, Padding %.3f ms",
+        json.getBytes().length, baselineNanos / 1e6, paddingNanos / 1e6));
+  }
+
+  /**
+   * Returns the mean time in nanos of a run of the given padding, after a few warmup runs.
+   */
+  private static long time(Pad pad) throws JSONException {
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      pad.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < TIMED_RUNS; i++) {
+      pad.run();
+    }
+    return (System.nanoTime() - start) / TIMED_RUNS;
+  }
+
+  private static JSONObject addPaddingIteratively(JSONObject payload) throws JSONException {
+    int currentSize = payload.toString().getBytes().length;
+    int paddingSize = 1;
+    while (currentSize < Padding.TARGET_PAYLOAD_SIZE_BYTES) {
+      payload.put(UploadV1.PADDING, StringUtils.randomBase64Data(paddingSize));
+      currentSize = payload.toString().getBytes().length;
+      paddingSize++;
+    }
+    return payload;
+  }
+
+  private interface Pad {
+
+    JSONObject run() throws JSONException;
+  }
+}
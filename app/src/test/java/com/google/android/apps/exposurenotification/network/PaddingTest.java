@@ -23,8 +23,10 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.google.android.apps.exposurenotification.common.StringUtils;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
+import com.google.common.io.BaseEncoding;
 import dagger.hilt.android.testing.HiltAndroidTest;
 import dagger.hilt.android.testing.HiltTestApplication;
+import java.util.Random;
 import org.json.JSONObject;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -40,6 +42,7 @@ public class PaddingTest {
 
   // Padding doesn't have to be perfect size; just pretty close, and consistent.
   private static final int TOLERANCE = (int) (Padding.TARGET_PAYLOAD_SIZE_BYTES * 0.01);
+  private static final BaseEncoding BASE64 = BaseEncoding.base64();
 
   @Test
   public void objectSmallerThanTarget_shouldAddNewPaddingFieldToJsonObject() throws Exception {
@@ -108,4 +111,53 @@ public class PaddingTest {
         .isWithin(TOLERANCE)
         .of(largePadded.toString().getBytes().length);
   }
+
+  @Test
+  public void manyObjects_shouldPadExactlyAsPaddingOneByteAtATimeWould() throws Exception {
+    for (int seed = 0; seed < 200; seed++) {
+      // Sizes either side of the target, and some with padding already.
+      JSONObject object = new JSONObject().put("foo", StringUtils.randomBase64Data(seed * 20));
+      if (seed % 5 == 0) {
+        object.put(UploadV1.PADDING, StringUtils.randomBase64Data(seed));
+      }
+      JSONObject expected = new JSONObject(object.toString());
+
+      JSONObject padded = Padding.addPadding(object, new Random(seed));
+      padIterativelyWithBytesFrom(expected, new Random(seed));
+
+      assertWithMessage("Padding of object " + seed)
+          .that(padded.toString())
+          .isEqualTo(expected.toString());
+    }
+  }
+
+  @Test
+  public void emptyObject_shouldPadExactlyAsPaddingOneByteAtATimeWould() throws Exception {
+    JSONObject expected = new JSONObject();
+
+    JSONObject padded = Padding.addPadding(new JSONObject(), new Random(1));
+    padIterativelyWithBytesFrom(expected, new Random(1));
+
+    assertThat(padded.toString()).isEqualTo(expected.toString());
+  }
+
+  /**
+   * Pads the object the way we used to: one more byte of padding at a time, reserializing the
+   * object each time, until it's big enough. The padding bytes come from {@code random}, in the
+   * same order as {@link Padding} takes them, so that we can compare the two exactly.
+   */
+  private static void padIterativelyWithBytesFrom(JSONObject payload, Random random)
+      throws Exception {
+    // Random.nextBytes() gives the same first bytes whatever the length, so these are a prefix of
+    // the bytes Padding takes.
+    byte[] bytes = new byte[2 * Padding.TARGET_PAYLOAD_SIZE_BYTES];
+    random.nextBytes(bytes);
+    int currentSize = payload.toString().getBytes().length;
+    int paddingSize = 1;
+    while (currentSize < Padding.TARGET_PAYLOAD_SIZE_BYTES) {
+      payload.put(UploadV1.PADDING, BASE64.encode(bytes, 0, paddingSize));
+      currentSize = payload.toString().getBytes().length;
+      paddingSize++;
+    }
+  }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.google.android.apps.exposurenotification.network.RequestLanes.LaneStats;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link RequestLanes}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RequestLanesTest {
+
+  private final Semaphore started = new Semaphore(0);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private RequestLanes lanes;
+
+  @Before
+  public void setUp() {
+    // A network that holds on to every request until the test releases them.
+    Network network = request -> {
+      started.release();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return new NetworkResponse(new byte[0]);
+    };
+    lanes = new RequestLanes(network);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    for (RequestLane lane : RequestLane.values()) {
+      lanes.queueFor(lane).stop();
+    }
+  }
+
+  @Test
+  public void add_shouldDispatchOnGivenLaneOnly() throws Exception {
+    lanes.add(new TestRequest(), RequestLane.INTERACTIVE);
+
+    assertThat(started.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    LaneStats stats = lanes.getStats(RequestLane.INTERACTIVE);
+    assertThat(stats.dispatched()).isEqualTo(1);
+    assertThat(stats.inFlight()).isEqualTo(1);
+    assertThat(stats.queued()).isEqualTo(0);
+    assertThat(lanes.getStats(RequestLane.BACKGROUND_BULK).dispatched()).isEqualTo(0);
+  }
+
+  @Test
+  public void add_overLaneConcurrency_shouldQueueRequest() throws Exception {
+    lanes.add(new TestRequest(), RequestLane.CHAFF);
+    lanes.add(new TestRequest(), RequestLane.CHAFF);
+
+    assertThat(started.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(started.tryAcquire(100, TimeUnit.MILLISECONDS)).isFalse();
+    LaneStats stats = lanes.getStats(RequestLane.CHAFF);
+    assertThat(stats.inFlight()).isEqualTo(1);
+    assertThat(stats.queued()).isEqualTo(1);
+  }
+
+  @Test
+  public void busyLane_shouldNotHoldUpOtherLanes() throws Exception {
+    for (int i = 0; i < RequestLane.BACKGROUND_BULK.maxConcurrency() + 2; i++) {
+      lanes.add(new TestRequest(), RequestLane.BACKGROUND_BULK);
+    }
+    assertThat(started.tryAcquire(
+        RequestLane.BACKGROUND_BULK.maxConcurrency(), 5, TimeUnit.SECONDS)).isTrue();
+
+    lanes.add(new TestRequest(), RequestLane.INTERACTIVE);
+
+    assertThat(started.tryAcquire(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(lanes.getStats(RequestLane.INTERACTIVE).dispatched()).isEqualTo(1);
+    assertThat(lanes.getStats(RequestLane.BACKGROUND_BULK).queued()).isEqualTo(2);
+  }
+
+  @Test
+  public void queueFor_shouldReturnSameQueueEachTime() {
+    RequestQueue queue = lanes.queueFor(RequestLane.UPLOAD);
+
+    assertThat(lanes.queueFor(RequestLane.UPLOAD)).isSameInstanceAs(queue);
+    assertThat(lanes.queueFor(RequestLane.INTERACTIVE)).isNotSameInstanceAs(queue);
+  }
+
+  @Test
+  public void meanQueueTime_shouldAverageOverDispatchedRequests() {
+    assertThat(LaneStats.create(0, 0, 4, 100, 70).meanQueueTimeMs()).isEqualTo(25);
+    assertThat(LaneStats.create(0, 0, 0, 0, 0).meanQueueTimeMs()).isEqualTo(0);
+  }
+
+  private static class TestRequest extends Request<String> {
+
+    TestRequest() {
+      super(Method.GET, "http://example.com", error -> {});
+      setShouldCache(false);
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+      return Response.success("", null);
+    }
+
+    @Override
+    protected void deliverResponse(String response) {}
+  }
+}
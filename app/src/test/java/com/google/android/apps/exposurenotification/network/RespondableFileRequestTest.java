@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import android.net.Uri;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Header;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.common.collect.ImmutableList;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+/**
+ * Tests for {@link RespondableFileRequest}.
+ */
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+public class RespondableFileRequestTest {
+
+  private static final Uri URI = Uri.parse("http://example.com/keys.zip");
+
+  private File file;
+
+  @Before
+  public void setUp() {
+    file = new File(
+        ApplicationProvider.getApplicationContext().getFilesDir(), "diag_keys/dir/keys_1.zip");
+  }
+
+  @Test
+  public void writeBody_smallBuffer_shouldWriteWholeBodyAndReturnBytesWritten() throws Exception {
+    byte[] body = "some key file content larger than the buffer".getBytes(StandardCharsets.UTF_8);
+    RespondableFileRequest request = newRequest();
+
+    long bytesWritten = request.writeBody(new ByteArrayInputStream(body), new byte[4]);
+
+    assertThat(bytesWritten).isEqualTo(body.length);
+    assertThat(FileUtils.readFileToByteArray(file)).isEqualTo(body);
+  }
+
+  @Test
+  public void writeBody_calledAgainOnRetry_shouldReplaceEarlierContent() throws Exception {
+    RespondableFileRequest request = newRequest();
+    request.writeBody(
+        new ByteArrayInputStream("partial-first-attempt".getBytes(StandardCharsets.UTF_8)),
+        new byte[8]);
+
+    request.writeBody(
+        new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)), new byte[8]);
+
+    assertThat(FileUtils.readFileToString(file, StandardCharsets.UTF_8)).isEqualTo("second");
+  }
+
+  @Test
+  public void parseNetworkResponse_afterStreaming_shouldReportBytesWritten() throws Exception {
+    RespondableFileRequest request = newRequest();
+    request.writeBody(
+        new ByteArrayInputStream("streamed".getBytes(StandardCharsets.UTF_8)), new byte[8]);
+
+    // A streamed response carries no body of its own.
+    Response<Long> response = request.parseNetworkResponse(new NetworkResponse(new byte[0]));
+
+    assertThat(response.result).isEqualTo(8L);
+    assertThat(FileUtils.readFileToString(file, StandardCharsets.UTF_8)).isEqualTo("streamed");
+  }
+
+  @Test
+  public void parseNetworkResponse_bufferedBody_shouldWriteBodyToFile() throws Exception {
+    RespondableFileRequest request = newRequest();
+
+    Response<Long> response = request.parseNetworkResponse(
+        new NetworkResponse("buffered".getBytes(StandardCharsets.UTF_8)));
+
+    assertThat(response.result).isEqualTo(8L);
+    assertThat(FileUtils.readFileToString(file, StandardCharsets.UTF_8)).isEqualTo("buffered");
+  }
+
+  @Test
+  public void parseNetworkResponse_errorStatus_shouldFail() {
+    RespondableFileRequest request = newRequest();
+
+    Response<Long> response = request.parseNetworkResponse(
+        new NetworkResponse(404, new byte[0], /* notModified= */ false, 0L, null));
+
+    assertThat(response.isSuccess()).isFalse();
+  }
+
+  @Test
+  public void getHeaders_notResuming_shouldNotAskForRange() {
+    RespondableFileRequest request = newRequest();
+
+    assertThat(request.getHeaders()).isEmpty();
+  }
+
+  @Test
+  public void getHeaders_resuming_shouldAskForRemainingRangeOfSameVersion() {
+    RespondableFileRequest request = newRequest();
+    request.setResumeFrom(7L, "\"v1\"");
+
+    assertThat(request.getHeaders()).containsExactly("Range", "bytes=7-", "If-Range", "\"v1\"");
+  }
+
+  @Test
+  public void clearResume_shouldAskForWholeFileAgain() {
+    RespondableFileRequest request = newRequest();
+    request.setResumeFrom(7L, "\"v1\"");
+    assertThat(request.isResuming()).isTrue();
+
+    request.clearResume();
+
+    assertThat(request.isResuming()).isFalse();
+    assertThat(request.getHeaders()).isEmpty();
+  }
+
+  @Test
+  public void writeBody_partialContentFromResumeOffset_shouldAppendToExistingBytes()
+      throws Exception {
+    FileUtils.writeStringToFile(file, "partial-garbage", StandardCharsets.UTF_8);
+    RespondableFileRequest request = newRequest();
+    request.setResumeFrom(8L, "\"v1\"");
+
+    long bytesOnDisk = request.writeBody(
+        206,
+        ImmutableList.of(new Header("Content-Range", "bytes 8-15/16")),
+        new ByteArrayInputStream("-content".getBytes(StandardCharsets.UTF_8)),
+        new byte[4]);
+
+    assertThat(bytesOnDisk).isEqualTo(16L);
+    assertThat(FileUtils.readFileToString(file, StandardCharsets.UTF_8))
+        .isEqualTo("partial--content");
+  }
+
+  @Test
+  public void writeBody_fullContentWhileResuming_shouldStartOverWithNewEtag() throws Exception {
+    FileUtils.writeStringToFile(file, "old-version", StandardCharsets.UTF_8);
+    RespondableFileRequest request = newRequest();
+    request.setResumeFrom(3L, "\"v1\"");
+
+    // The file changed on the server, so it ignored our If-Range and sent the whole new file.
+    request.writeBody(
+        200,
+        ImmutableList.of(new Header("ETag", "\"v2\"")),
+        new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8)),
+        new byte[4]);
+
+    assertThat(FileUtils.readFileToString(file, StandardCharsets.UTF_8)).isEqualTo("new");
+    assertThat(request.getEtag()).isEqualTo("\"v2\"");
+  }
+
+  @Test
+  public void writeBody_unexpectedContentRange_shouldFailAndForgetResumeOffset() {
+    RespondableFileRequest request = newRequest();
+    request.setResumeFrom(8L, "\"v1\"");
+
+    assertThrows(IOException.class, () -> request.writeBody(
+        206,
+        ImmutableList.of(new Header("Content-Range", "bytes 0-15/16")),
+        new ByteArrayInputStream(new byte[16]),
+        new byte[4]));
+    // So a retry asks for the whole file again.
+    assertThat(request.getHeaders()).isEmpty();
+  }
+
+  @Test
+  public void writeBody_withProgressListener_shouldReportBytesOnDiskAndEtag() throws Exception {
+    List<Long> progress = new ArrayList<>();
+    RespondableFileRequest request = newRequest();
+    request.setProgressListener((etag, bytesOnDisk) -> {
+      assertThat(etag).isEqualTo("\"v1\"");
+      progress.add(bytesOnDisk);
+    });
+
+    request.writeBody(
+        200,
+        ImmutableList.of(new Header("ETag", "\"v1\"")),
+        new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)),
+        new byte[4]);
+
+    assertThat(progress).containsExactly(0L, 7L).inOrder();
+  }
+
+  private RespondableFileRequest newRequest() {
+    return new RespondableFileRequest(
+        URI, file, bytes -> {}, err -> {}, new FakeClock());
+  }
+}
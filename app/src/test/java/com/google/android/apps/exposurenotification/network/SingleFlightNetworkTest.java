@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.network;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.google.common.collect.ImmutableMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link SingleFlightNetwork}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SingleFlightNetworkTest {
+
+  private static final String URL = "http://example.com/config";
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+  private final AtomicInteger calls = new AtomicInteger();
+  private final CountDownLatch firstCallStarted = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void identicalGetsInFlight_shouldShareOneCall() throws Exception {
+    NetworkResponse response = new NetworkResponse(new byte[]{1, 2, 3});
+    SingleFlightNetwork network = new SingleFlightNetwork(blockingNetwork(response, null));
+
+    Future<NetworkResponse> first = performInBackground(network, new TestRequest(Method.GET, URL));
+    assertThat(firstCallStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<NetworkResponse> second =
+        performInBackground(network, new TestRequest(Method.GET, URL));
+    // Give the second request time to join the first.
+    Thread.sleep(100);
+    release.countDown();
+
+    assertThat(first.get(5, TimeUnit.SECONDS)).isSameInstanceAs(response);
+    assertThat(second.get(5, TimeUnit.SECONDS)).isSameInstanceAs(response);
+    assertThat(calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void identicalGetsInFlight_failure_shouldFailBoth() throws Exception {
+    ServerError error = new ServerError();
+    SingleFlightNetwork network = new SingleFlightNetwork(blockingNetwork(null, error));
+
+    Future<NetworkResponse> first = performInBackground(network, new TestRequest(Method.GET, URL));
+    assertThat(firstCallStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<NetworkResponse> second =
+        performInBackground(network, new TestRequest(Method.GET, URL));
+    Thread.sleep(100);
+    release.countDown();
+
+    ExecutionException firstError = assertThrows(ExecutionException.class, first::get);
+    ExecutionException secondError = assertThrows(ExecutionException.class, second::get);
+    assertThat(firstError).hasCauseThat().isSameInstanceAs(error);
+    assertThat(secondError).hasCauseThat().isSameInstanceAs(error);
+    assertThat(calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void sequentialGets_shouldEachMakeACall() throws Exception {
+    release.countDown();
+    SingleFlightNetwork network =
+        new SingleFlightNetwork(blockingNetwork(new NetworkResponse(new byte[0]), null));
+
+    network.performRequest(new TestRequest(Method.GET, URL));
+    network.performRequest(new TestRequest(Method.GET, URL));
+
+    assertThat(calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void differentHeaders_shouldNotShareACall() throws Exception {
+    SingleFlightNetwork network =
+        new SingleFlightNetwork(blockingNetwork(new NetworkResponse(new byte[0]), null));
+
+    Future<NetworkResponse> first = performInBackground(network, new TestRequest(Method.GET, URL));
+    assertThat(firstCallStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    TestRequest conditional = new TestRequest(Method.GET, URL);
+    conditional.headers = ImmutableMap.of("If-None-Match", "\"v1\"");
+    Future<NetworkResponse> second = performInBackground(network, conditional);
+    Thread.sleep(100);
+    release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    assertThat(calls.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void posts_shouldNotShareACall() throws Exception {
+    SingleFlightNetwork network =
+        new SingleFlightNetwork(blockingNetwork(new NetworkResponse(new byte[0]), null));
+
+    Future<NetworkResponse> first =
+        performInBackground(network, new TestRequest(Method.POST, URL));
+    assertThat(firstCallStarted.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<NetworkResponse> second =
+        performInBackground(network, new TestRequest(Method.POST, URL));
+    Thread.sleep(100);
+    release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+
+    assertThat(calls.get()).isEqualTo(2);
+  }
+
+  /**
+   * A network that holds each call until the test releases it, then responds with the given
+   * response or fails with the given error.
+   */
+  private Network blockingNetwork(NetworkResponse response, VolleyError error) {
+    return request -> {
+      calls.incrementAndGet();
+      firstCallStarted.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new VolleyError(e);
+      }
+      if (error != null) {
+        throw error;
+      }
+      return response;
+    };
+  }
+
+  private Future<NetworkResponse> performInBackground(Network network, Request<?> request) {
+    return executor.submit(() -> network.performRequest(request));
+  }
+
+  private static class TestRequest extends Request<String> {
+
+    private Map<String, String> headers = ImmutableMap.of();
+
+    TestRequest(int method, String url) {
+      super(method, url, error -> {});
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+      return Response.success("", null);
+    }
+
+    @Override
+    protected void deliverResponse(String response) {}
+  }
+}
@@ -39,11 +39,15 @@ import android.content.Context;
 import android.content.IntentSender.SendIntentException;
 import android.net.Uri;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.IntentSenderRequest;
 import androidx.annotation.Nullable;
 import androidx.lifecycle.SavedStateHandle;
 import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Configuration;
+import androidx.work.impl.utils.SynchronousExecutor;
+import androidx.work.testing.WorkManagerTestInitHelper;
 import com.google.android.apps.exposurenotification.R;
 import com.google.android.apps.exposurenotification.appupdate.AppUpdateManagerModule;
 import com.google.android.apps.exposurenotification.appupdate.EnxAppUpdateManager;
@@ -55,12 +59,14 @@ import com.google.android.apps.exposurenotification.common.time.Clock;
 import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.UploadV1;
 import com.google.android.apps.exposurenotification.keyupload.ApiConstants.VerifyV1;
+import com.google.android.apps.exposurenotification.keyupload.Qualifiers.AdditionalUploadUris;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.UploadUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCertUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationCodeUri;
 import com.google.android.apps.exposurenotification.keyupload.Qualifiers.VerificationUserReportUri;
 import com.google.android.apps.exposurenotification.keyupload.UploadController;
 import com.google.android.apps.exposurenotification.keyupload.UploadError;
+import com.google.android.apps.exposurenotification.keyupload.UploadOutbox;
 import com.google.android.apps.exposurenotification.keyupload.UploadUrisModule;
 import com.google.android.apps.exposurenotification.nearby.ExposureNotificationClientWrapper;
 import com.google.android.apps.exposurenotification.nearby.ExposureNotificationsClientModule;
@@ -80,6 +86,8 @@ import com.google.android.apps.exposurenotification.storage.DiagnosisRepository;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences;
 import com.google.android.apps.exposurenotification.storage.ExposureNotificationSharedPreferences.VaccinationStatus;
+import com.google.android.apps.exposurenotification.storage.PendingUploadEntity;
+import com.google.android.apps.exposurenotification.storage.PendingUploadRepository;
 import com.google.android.apps.exposurenotification.storage.VerificationCodeRequestRepository;
 import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
 import com.google.android.apps.exposurenotification.testsupport.FakeClock;
@@ -112,6 +120,7 @@ import dagger.hilt.android.testing.UninstallModules;
 import dagger.hilt.components.SingletonComponent;
 import java.security.SecureRandom;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -156,6 +165,10 @@ public class ShareDiagnosisViewModelTest {
   @Inject
   UploadController uploadController;
   @Inject
+  UploadOutbox uploadOutbox;
+  @Inject
+  PendingUploadRepository pendingUploadRepository;
+  @Inject
   DiagnosisRepository diagnosisRepository;
   @Inject
   VerificationCodeRequestRepository verificationCodeRequestRepository;
@@ -198,6 +211,12 @@ public class ShareDiagnosisViewModelTest {
       return UPLOAD_URI;
     }
 
+    @Provides
+    @AdditionalUploadUris
+    public Map<String, Uri> provideAdditionalUploadUris() {
+      return ImmutableMap.of();
+    }
+
     @Provides
     @VerificationCodeUri
     public Uri provideCodeUri() {
@@ -221,6 +240,9 @@ public class ShareDiagnosisViewModelTest {
 
   @Before
   public void setup() {
+    // The upload outbox schedules its retries with WorkManager.
+    WorkManagerTestInitHelper.initializeTestWorkManager(
+        context, new Configuration.Builder().setExecutor(new SynchronousExecutor()).build());
     rules.hilt().inject();
 
     enxAppUpdateManager = spy(new EnxAppUpdateManager(appUpdateManager,
@@ -231,6 +253,7 @@ public class ShareDiagnosisViewModelTest {
         context,
         new SavedStateHandle(),
         uploadController,
+        uploadOutbox,
         diagnosisRepository,
         verificationCodeRequestRepository,
         exposureNotificationClient,
@@ -268,6 +291,7 @@ public class ShareDiagnosisViewModelTest {
         context,
         savedStateHandle,
         uploadController,
+        uploadOutbox,
         diagnosisRepository,
         verificationCodeRequestRepository,
         exposureNotificationClient,
@@ -996,6 +1020,88 @@ public class ShareDiagnosisViewModelTest {
     assertThat(diagnosis.getTravelStatus()).isEqualTo(TravelStatus.TRAVELED);
   }
 
+  @Test
+  public void uploadKeys_keyserverServerError_shouldQueueUploadAndTellUserItWillBeRetried()
+      throws Exception {
+    // GIVEN
+    AtomicLong observedDiagnosisId = observeDiagnosisId();
+    AtomicReference<String> snackBarErrorMessage = new AtomicReference<>();
+    viewModel.getSnackbarSingleLiveEvent().observeForever(snackBarErrorMessage::set);
+    queue().addResponse(
+        CODE_URI.toString(),
+        200,
+        codeResponse("token", /* testType= */ "confirmed", /* onsetDate= */ null));
+    queue().addResponse(CERT_URI.toString(), 200, certResponse("cert-data"));
+    queue().addResponse(UPLOAD_URI.toString(), 503, "");
+    Task<List<TemporaryExposureKey>> keys = Tasks.forResult(ImmutableList.of(key("key1")));
+    when(exposureNotificationClient.getTemporaryExposureKeyHistory()).thenReturn(keys);
+
+    // WHEN
+    viewModel.submitCode("code", false).get();
+    viewModel.uploadKeys().get();
+
+    // THEN
+    // The user hears that sharing will be retried, not that it failed...
+    assertThat(snackBarErrorMessage.get())
+        .isEqualTo(context.getString(R.string.share_queued_for_retry));
+    // ...and the certified upload is kept for the background retry.
+    List<PendingUploadEntity> pendingUploads = pendingUploadRepository.getAll();
+    assertThat(pendingUploads).hasSize(1);
+    assertThat(pendingUploads.get(0).diagnosisId()).isEqualTo(observedDiagnosisId.get());
+    assertThat(pendingUploads.get(0).certificate()).isEqualTo("cert-data");
+  }
+
+  @Test
+  public void uploadKeys_uploadAlreadyQueuedForRetry_shouldNotUploadAgain() throws Exception {
+    // GIVEN
+    AtomicLong observedDiagnosisId = observeDiagnosisId();
+    AtomicReference<String> snackBarErrorMessage = new AtomicReference<>();
+    viewModel.getSnackbarSingleLiveEvent().observeForever(snackBarErrorMessage::set);
+    queue().addResponse(
+        CODE_URI.toString(),
+        200,
+        codeResponse("token", /* testType= */ "confirmed", /* onsetDate= */ null));
+    queue().addResponse(CERT_URI.toString(), 200, certResponse("cert-data"));
+    queue().addResponse(UPLOAD_URI.toString(), 200, "{\"revisionToken\": \"token\"}");
+    Task<List<TemporaryExposureKey>> keys = Tasks.forResult(ImmutableList.of(key("key1")));
+    when(exposureNotificationClient.getTemporaryExposureKeyHistory()).thenReturn(keys);
+    viewModel.submitCode("code", false).get();
+    pendingUploadRepository.upsert(PendingUploadEntity.create("cert-data",
+        observedDiagnosisId.get(), new byte[0], "code", "hmac", "cert-data",
+        /* longTermToken= */ null, /* testType= */ null, /* symptomOnset= */ null,
+        /* revisionToken= */ null, /* hasTraveled= */ false, clock.currentTimeMillis(),
+        /* attempts= */ 0, /* region= */ null));
+
+    // WHEN
+    viewModel.uploadKeys().get();
+
+    // THEN
+    // Only the code was verified: the queued upload is left to the background retry.
+    assertThat(queue().numRpcs()).isEqualTo(1);
+    assertThat(snackBarErrorMessage.get())
+        .isEqualTo(context.getString(R.string.share_queued_for_retry));
+  }
+
+  @Test
+  public void uploadKeys_keyserverRejectsUpload_shouldNotQueueUpload() throws Exception {
+    // GIVEN
+    queue().addResponse(
+        CODE_URI.toString(),
+        200,
+        codeResponse("token", /* testType= */ "confirmed", /* onsetDate= */ null));
+    queue().addResponse(CERT_URI.toString(), 200, certResponse("cert-data"));
+    queue().addResponse(UPLOAD_URI.toString(), 400, "");
+    Task<List<TemporaryExposureKey>> keys = Tasks.forResult(ImmutableList.of(key("key1")));
+    when(exposureNotificationClient.getTemporaryExposureKeyHistory()).thenReturn(keys);
+
+    // WHEN
+    viewModel.submitCode("code", false).get();
+    viewModel.uploadKeys().get();
+
+    // THEN
+    assertThat(pendingUploadRepository.getAll()).isEmpty();
+  }
+
   @Test
   public void setLastVaccinationResponse_setState_setsStateAndTimestamp() {
     Instant timestamp = Instant.now();
@@ -1113,6 +1219,7 @@ public class ShareDiagnosisViewModelTest {
         context,
         savedStateHandle,
         uploadController,
+        uploadOutbox,
         diagnosisRepository,
         verificationCodeRequestRepository,
         exposureNotificationClient,
@@ -39,8 +39,7 @@ public class PrivateAnalyticsMetricsRemoteConfigTest {
 
   @Before
   public void setup() {
-    privateAnalyticsMetricsRemoteConfig = new PrivateAnalyticsMetricsRemoteConfig(null, null, null,
-        null);
+    privateAnalyticsMetricsRemoteConfig = new PrivateAnalyticsMetricsRemoteConfig(null, null, null);
   }
 
   @Test
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.privateanalytics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.Uri;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.common.time.RealTimeModule;
+import com.google.android.apps.exposurenotification.network.RealRequestQueueModule;
+import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
+import com.google.android.apps.exposurenotification.storage.DbModule;
+import com.google.android.apps.exposurenotification.storage.ExposureNotificationDatabase;
+import com.google.android.apps.exposurenotification.storage.RemoteConfigEntity;
+import com.google.android.apps.exposurenotification.storage.RemoteConfigRepository;
+import com.google.android.apps.exposurenotification.testsupport.ExposureNotificationRules;
+import com.google.android.apps.exposurenotification.testsupport.FakeClock;
+import com.google.android.apps.exposurenotification.testsupport.FakeRequestQueue;
+import com.google.android.apps.exposurenotification.testsupport.InMemoryDb;
+import com.google.common.collect.ImmutableMap;
+import dagger.hilt.android.testing.BindValue;
+import dagger.hilt.android.testing.HiltAndroidTest;
+import dagger.hilt.android.testing.HiltTestApplication;
+import dagger.hilt.android.testing.UninstallModules;
+import javax.inject.Inject;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+import org.threeten.bp.Duration;
+
+@RunWith(AndroidJUnit4.class)
+@HiltAndroidTest
+@Config(application = HiltTestApplication.class)
+@UninstallModules({
+    RealTimeModule.class,
+    RealRequestQueueModule.class,
+    DbModule.class,
+    RemoteConfigCacheModule.class})
+public final class RemoteConfigCacheTest {
+
+  private static final Uri URI = Uri.parse("http://example.com/config.json");
+  private static final String OLD_CONFIG = "{\"enpa_enabled\":false}";
+  private static final String NEW_CONFIG = "{\"enpa_enabled\":true}";
+
+  @Rule
+  public ExposureNotificationRules rules = ExposureNotificationRules.forTest(this).build();
+
+  @BindValue
+  RequestQueueWrapper queue = new FakeRequestQueue();
+  @BindValue
+  Clock clock = new FakeClock();
+  @BindValue
+  ExposureNotificationDatabase db = InMemoryDb.create();
+  @BindValue
+  RemoteConfigCacheConfig config = RemoteConfigCacheConfig.newBuilder()
+      .setTtl(Duration.ofHours(12))
+      .setRefreshAfter(Duration.ofHours(6))
+      .build();
+
+  @Inject
+  RemoteConfigRepository repository;
+
+  // The SUT
+  @Inject
+  RemoteConfigCache cache;
+
+  @Before
+  public void setUp() {
+    rules.hilt().inject();
+  }
+
+  @Test
+  public void nothingCached_shouldFetchAndCache() throws Exception {
+    queue().addResponse(URI.toString(), 200, NEW_CONFIG, ImmutableMap.of("ETag", "\"v2\""));
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(NEW_CONFIG);
+    RemoteConfigEntity cached = repository.get(URI);
+    assertThat(cached.content()).isEqualTo(NEW_CONFIG);
+    assertThat(cached.etag()).isEqualTo("\"v2\"");
+    assertThat(cached.fetchedTimestampMs()).isEqualTo(clock.currentTimeMillis());
+  }
+
+  @Test
+  public void freshConfigCached_shouldServeCachedWithoutFetching() throws Exception {
+    cacheOldConfigFetchedAgo(Duration.ofHours(1));
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(OLD_CONFIG);
+    assertThat(queue().numRpcs()).isEqualTo(0);
+  }
+
+  @Test
+  public void configCachedPastRefreshAfter_shouldServeCachedAndRevalidate() throws Exception {
+    cacheOldConfigFetchedAgo(Duration.ofHours(7));
+    queue().addResponse(URI.toString(), 200, NEW_CONFIG);
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(OLD_CONFIG);
+    assertThat(queue().numRpcs()).isEqualTo(1);
+    assertThat(queue().getLastRpcHeaders()).containsEntry("If-None-Match", "\"v1\"");
+  }
+
+  @Test
+  public void expiredConfigCached_notModified_shouldServeCachedAndMarkFresh() throws Exception {
+    cacheOldConfigFetchedAgo(Duration.ofHours(13));
+    queue().addResponse(URI.toString(), 304, "");
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(OLD_CONFIG);
+    assertThat(repository.get(URI).fetchedTimestampMs()).isEqualTo(clock.currentTimeMillis());
+  }
+
+  @Test
+  public void expiredConfigCached_modified_shouldServeAndCacheNewConfig() throws Exception {
+    cacheOldConfigFetchedAgo(Duration.ofHours(13));
+    queue().addResponse(URI.toString(), 200, NEW_CONFIG, ImmutableMap.of("ETag", "\"v2\""));
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(NEW_CONFIG);
+    assertThat(repository.get(URI).content()).isEqualTo(NEW_CONFIG);
+    assertThat(repository.get(URI).etag()).isEqualTo("\"v2\"");
+  }
+
+  @Test
+  public void expiredConfigCached_fetchFails_shouldServeLastGoodConfig() throws Exception {
+    cacheOldConfigFetchedAgo(Duration.ofHours(13));
+    queue().addResponse(URI.toString(), 500, "");
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(OLD_CONFIG);
+  }
+
+  @Test
+  public void expiredConfigCached_newConfigNotJson_shouldServeLastGoodConfig() throws Exception {
+    cacheOldConfigFetchedAgo(Duration.ofHours(13));
+    queue().addResponse(URI.toString(), 200, "Not JSON");
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(OLD_CONFIG);
+    assertThat(repository.get(URI).content()).isEqualTo(OLD_CONFIG);
+  }
+
+  @Test
+  public void nothingCached_fetchFails_shouldReturnNull() throws Exception {
+    queue().addResponse(URI.toString(), 500, "");
+
+    assertThat(cache.get(URI).get()).isNull();
+  }
+
+  @Test
+  public void configCachedInTheFuture_shouldFetch() throws Exception {
+    // As happens when the clock moves back.
+    cacheOldConfigFetchedAgo(Duration.ofHours(-1));
+    queue().addResponse(URI.toString(), 200, NEW_CONFIG);
+
+    JSONObject json = cache.get(URI).get();
+
+    assertThat(json.toString()).isEqualTo(NEW_CONFIG);
+  }
+
+  private void cacheOldConfigFetchedAgo(Duration age) {
+    repository.upsert(RemoteConfigEntity.create(
+        URI, OLD_CONFIG, "\"v1\"", null, clock.currentTimeMillis() - age.toMillis()));
+  }
+
+  private FakeRequestQueue queue() {
+    return (FakeRequestQueue) queue;
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.google.android.apps.exposurenotification.testsupport;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * For the benchmarks among our unit tests, which take too long, and print too much, to run with
+ * every build. They're skipped unless asked for, with {@code ./gradlew test -PrunBenchmarks}.
+ */
+public class Benchmarks {
+
+  private static final String PROPERTY = "runBenchmarks";
+
+  /**
+   * Skips the calling test unless benchmarks were asked for.
+   */
+  public static void assumeEnabled() {
+    assumeTrue("Benchmarks only run with -P" + PROPERTY, Boolean.getBoolean(PROPERTY));
+  }
+
+  private Benchmarks() {
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+
+package com.google.android.apps.exposurenotification.testsupport;
+
+import com.google.android.apps.exposurenotification.common.time.Clock;
+import com.google.android.apps.exposurenotification.keydownload.DownloadUriPair;
+import com.google.android.apps.exposurenotification.keydownload.KeyFileConstants;
+import com.google.android.apps.exposurenotification.proto.SignatureInfo;
+import com.google.android.apps.exposurenotification.proto.TEKSignature;
+import com.google.android.apps.exposurenotification.proto.TEKSignatureList;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKey;
+import com.google.android.apps.exposurenotification.proto.TemporaryExposureKeyExport;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.threeten.bp.Duration;
+
+/**
+ * An in-process key server on localhost, for tests and benchmarks that need to go over real HTTP
+ * without a real key server.
+ *
+ * <p>Serves an {@code index.txt} listing a configurable number of synthetic keyfiles, each a zip
+ * with an {@code export.bin} of a configurable number of random keys and an {@code export.sig}
+ * with a random, signature-sized signature. They pass {@code KeyFileValidator}, but the signatures
+ * don't verify, so only a fake EN API will take them.
+ *
+ * <p>Files are named by their time windows, spread evenly over the last 14 days, so none of them
+ * is old enough to be skipped as stale. They're written to a temp directory up front and streamed
+ * from there, so that serving them takes little memory away from the code under test.
+ * Ranged requests aren't supported: the whole file is always sent.
+ */
+public class FakeKeyServer implements Closeable {
+
+  /**
+   * The names of the threads serving requests start with this, so benchmarks can tell the server's
+   * work from that of the code under test.
+   */
+  public static final String THREAD_NAME_PREFIX = "FakeKeyServer";
+
+  private static final Joiner NEWLINE_JOINER = Joiner.on("\n");
+  private static final byte[] HEADER = "EK Export v1    ".getBytes(StandardCharsets.US_ASCII);
+  private static final Duration WINDOW_SPAN = Duration.ofDays(14);
+  // An ECDSA P-256 signature in X9.62 format is 70 to 72 bytes long.
+  private static final int SIGNATURE_LENGTH = 71;
+  private static final int KEY_LENGTH = 16;
+  private static final String INDEX_PATH = "/index.txt";
+  private static final String FILES_PATH = "/files/";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final File dir;
+  private final ImmutableList<String> fileNames;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicLong bytesServed = new AtomicLong();
+
+  private FakeKeyServer(int numFiles, int keysPerFile, Clock clock) throws IOException {
+    dir = Files.createTempDirectory("fake-key-server").toFile();
+    long endSeconds = clock.now().getEpochSecond();
+    long windowSeconds = Math.max(WINDOW_SPAN.getSeconds() / Math.max(numFiles, 1), 1);
+    long startSeconds = endSeconds - windowSeconds * numFiles;
+    ImmutableList.Builder<String> names = ImmutableList.builder();
+    for (int i = 0; i < numFiles; i++) {
+      long windowStart = startSeconds + i * windowSeconds;
+      String name = windowStart + "-" + (windowStart + windowSeconds) + "-00001.zip";
+      writeKeyFile(new File(dir, name), windowStart, windowSeconds, keysPerFile, new Random(i));
+      names.add(name);
+    }
+    fileNames = names.build();
+
+    executor = Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat(THREAD_NAME_PREFIX + " #%d").build());
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Starts a server with {@code numFiles} keyfiles of {@code keysPerFile} keys each, with time
+   * windows up to {@code clock}'s now.
+   */
+  public static FakeKeyServer start(int numFiles, int keysPerFile, Clock clock)
+      throws IOException {
+    return new FakeKeyServer(numFiles, keysPerFile, clock);
+  }
+
+  /**
+   * The URIs of this server's index and files.
+   */
+  public DownloadUriPair uris() {
+    String base = "http://127.0.0.1:" + server.getAddress().getPort();
+    return DownloadUriPair.create(base + INDEX_PATH, base + FILES_PATH);
+  }
+
+  /**
+   * The names of the keyfiles in the index, oldest first, as the index lists them.
+   */
+  public List<String> fileNames() {
+    return fileNames;
+  }
+
+  /**
+   * The total size of the keyfiles in the index.
+   */
+  public long totalFileBytes() {
+    long bytes = 0;
+    for (String name : fileNames) {
+      bytes += new File(dir, name).length();
+    }
+    return bytes;
+  }
+
+  public int requestCount() {
+    return requests.get();
+  }
+
+  public long bytesServed() {
+    return bytesServed.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.stop(/* delay= */ 0);
+    executor.shutdownNow();
+    FileUtils.deleteDirectory(dir);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      String path = exchange.getRequestURI().getPath();
+      boolean head = "HEAD".equals(exchange.getRequestMethod());
+      if (INDEX_PATH.equals(path)) {
+        byte[] index = NEWLINE_JOINER.join(fileNames).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        send(exchange, head, index.length, new ByteArrayInputStream(index));
+        return;
+      }
+      File file = path.startsWith(FILES_PATH)
+          ? new File(dir, path.substring(FILES_PATH.length())) : null;
+      if (file == null || !fileNames.contains(file.getName()) || !file.isFile()) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/zip");
+      exchange.getResponseHeaders().set("ETag", "\"" + file.getName() + "\"");
+      try (InputStream in = new FileInputStream(file)) {
+        send(exchange, head, file.length(), in);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void send(HttpExchange exchange, boolean head, long length, InputStream body)
+      throws IOException {
+    if (head) {
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      bytesServed.addAndGet(ByteStreams.copy(body, out));
+    }
+  }
+
+  private static void writeKeyFile(
+      File file, long windowStart, long windowSeconds, int numKeys, Random random)
+      throws IOException {
+    TemporaryExposureKeyExport.Builder export = TemporaryExposureKeyExport.newBuilder()
+        .setStartTimestamp(windowStart)
+        .setEndTimestamp(windowStart + windowSeconds)
+        .setRegion("US")
+        .setBatchNum(1)
+        .setBatchSize(1)
+        .addSignatureInfos(signatureInfo());
+    // Keys are published a day or more after their rolling period, in 10 minute intervals.
+    int newestInterval = (int) (windowStart / 600) - 144;
+    byte[] keyData = new byte[KEY_LENGTH];
+    for (int i = 0; i < numKeys; i++) {
+      random.nextBytes(keyData);
+      export.addKeys(TemporaryExposureKey.newBuilder()
+          .setKeyData(ByteString.copyFrom(keyData))
+          .setTransmissionRiskLevel(random.nextInt(8))
+          .setRollingStartIntervalNumber(newestInterval - 144 * random.nextInt(14))
+          .setRollingPeriod(144));
+    }
+    byte[] signature = new byte[SIGNATURE_LENGTH];
+    random.nextBytes(signature);
+    TEKSignatureList signatures = TEKSignatureList.newBuilder()
+        .addSignatures(TEKSignature.newBuilder()
+            .setSignatureInfo(signatureInfo())
+            .setBatchNum(1)
+            .setBatchSize(1)
+            .setSignature(ByteString.copyFrom(signature)))
+        .build();
+
+    try (ZipOutputStream out =
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.putNextEntry(new ZipEntry(KeyFileConstants.EXPORT_FILENAME));
+      out.write(HEADER);
+      export.build().writeTo(out);
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry(KeyFileConstants.SIG_FILENAME));
+      signatures.writeTo(out);
+      out.closeEntry();
+    }
+  }
+
+  private static SignatureInfo signatureInfo() {
+    return SignatureInfo.newBuilder()
+        .setVerificationKeyVersion("v1")
+        .setVerificationKeyId("310")
+        .setSignatureAlgorithm("1.2.840.10045.4.3.2")
+        .build();
+  }
+}
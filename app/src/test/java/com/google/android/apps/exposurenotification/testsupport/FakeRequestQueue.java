@@ -17,16 +17,23 @@
 
 package com.google.android.apps.exposurenotification.testsupport;
 
+import androidx.annotation.Nullable;
 import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
+import com.google.android.apps.exposurenotification.network.RequestLane;
 import com.google.android.apps.exposurenotification.network.RequestQueueWrapper;
 import com.google.android.apps.exposurenotification.network.RespondableByteArrayRequest;
+import com.google.android.apps.exposurenotification.network.RespondableConditionalStringRequest;
+import com.google.android.apps.exposurenotification.network.RespondableConditionalStringRequest.Result;
+import com.google.android.apps.exposurenotification.network.RespondableFileRequest;
 import com.google.android.apps.exposurenotification.network.RespondableJsonObjectRequest;
 import com.google.android.apps.exposurenotification.network.RespondableStringRequest;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -112,6 +119,7 @@ public class FakeRequestQueue extends RequestQueueWrapper {
 
   private final Map<Pattern, TestResponse> responses = new HashMap<>();
   private final List<Request> requests = new ArrayList<>();
+  private final Map<Request, RequestLane> lanes = new HashMap<>();
 
   /**
    * Dispatches the pre-configured response matching the given request.
@@ -119,6 +127,7 @@ public class FakeRequestQueue extends RequestQueueWrapper {
   @Override
   public <T> Request<T> add(Request<T> request) {
     requests.add(request);
+    markDispatched(request);
 
     TestResponse matchingResponse = null;
     for (Map.Entry<Pattern, TestResponse> entry : responses.entrySet()) {
@@ -140,15 +149,35 @@ public class FakeRequestQueue extends RequestQueueWrapper {
       if (request instanceof RespondableStringRequest) {
         ((RespondableStringRequest) request).deliverResponse(matchingResponse.responseBody);
       } else if (request instanceof RespondableByteArrayRequest) {
-        ((RespondableByteArrayRequest) request)
-            .deliverResponse(matchingResponse.responseBody.getBytes());
+        ((RespondableByteArrayRequest) request).deliverResponse(matchingResponse.responseBytes);
+      } else if (request instanceof RespondableFileRequest) {
+        // Stream the body into the request's file, as the real StreamingNetwork would.
+        RespondableFileRequest fileRequest = (RespondableFileRequest) request;
+        try {
+          long bytesWritten = fileRequest.writeBody(
+              new ByteArrayInputStream(matchingResponse.responseBytes), new byte[1024]);
+          fileRequest.deliverResponse(bytesWritten);
+        } catch (IOException e) {
+          request.deliverError(new VolleyError(e));
+        }
+      } else if (request instanceof RespondableConditionalStringRequest) {
+        // Let the request make what it will of the status (e.g. 304) and headers.
+        RespondableConditionalStringRequest conditionalRequest =
+            (RespondableConditionalStringRequest) request;
+        Response<Result> response =
+            conditionalRequest.parseNetworkResponse(toNetworkResponse(matchingResponse));
+        if (response.isSuccess()) {
+          conditionalRequest.deliverResponse(response.result);
+        } else {
+          request.deliverError(response.error);
+        }
       } else if (request instanceof RespondableJsonObjectRequest) {
         // We do some awkward looking back-and-forths here to support testing how
         // RespondableJsonObjectRequest handles non-JSON responses with its own overload of
         // parseNetworkResponse(). Makes this fake request queue a bit tightly coupled to the SUT,
         // not ideal.
         NetworkResponse networkResponse =
-            new NetworkResponse(matchingResponse.responseBody.getBytes());
+            new NetworkResponse(matchingResponse.responseBytes);
         Response<JSONObject> jsonResponse =
             ((RespondableJsonObjectRequest) request).parseNetworkResponse(networkResponse);
         ((RespondableJsonObjectRequest) request).deliverResponse(jsonResponse.result);
@@ -156,13 +185,15 @@ public class FakeRequestQueue extends RequestQueueWrapper {
         throw new RuntimeException(FakeRequestQueue.class.getSimpleName()
             + " only works with " + RespondableStringRequest.class.getSimpleName()
             + ", " + RespondableByteArrayRequest.class.getSimpleName()
+            + ", " + RespondableFileRequest.class.getSimpleName()
+            + ", " + RespondableConditionalStringRequest.class.getSimpleName()
             + " and " + RespondableJsonObjectRequest.class.getSimpleName() + ".");
       }
     } else {
       // Failure responses.
       NetworkResponse response = new NetworkResponse(
           matchingResponse.httpStatus,
-          matchingResponse.responseBody.getBytes(),
+          matchingResponse.responseBytes,
           /* notModified= */ true,
           /* networkTimeMs= */0L,
           /* allHeaders= */ImmutableList.of());
@@ -172,6 +203,22 @@ public class FakeRequestQueue extends RequestQueueWrapper {
     return request;
   }
 
+  /**
+   * Marks the request as taken by a network dispatcher, as Volley's own dispatchers do.
+   */
+  public static void markDispatched(Request<?> request) {
+    request.addMarker("network-queue-take");
+  }
+
+  /**
+   * Notes the lane, then dispatches as {@link #add(Request)} does.
+   */
+  @Override
+  public <T> Request<T> add(Request<T> request, RequestLane lane) {
+    lanes.put(request, lane);
+    return add(request);
+  }
+
   /**
    * Accepts the given response data to be dispatched to a later request added via {@link
    * #add(Request)}.
@@ -187,6 +234,27 @@ public class FakeRequestQueue extends RequestQueueWrapper {
         new TestResponse(httpStatus, responseBody, ImmutableList.of()));
   }
 
+  /**
+   * Like {@link #addResponse(String, int, String)}, for a binary response body, such as a real
+   * keyfile's.
+   */
+  public void addResponse(String uriRegex, int httpStatus, byte[] responseBody) {
+    responses.put(Pattern.compile(uriRegex),
+        new TestResponse(httpStatus, responseBody, ImmutableList.of()));
+  }
+
+  /**
+   * Like {@link #addResponse(String, int, String)}, with the given response headers too.
+   */
+  public void addResponse(
+      String uriRegex, int httpStatus, String responseBody, Map<String, String> responseHeaders) {
+    List<Header> headers = new ArrayList<>();
+    for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+      headers.add(new Header(header.getKey(), header.getValue()));
+    }
+    responses.put(Pattern.compile(uriRegex), new TestResponse(httpStatus, responseBody, headers));
+  }
+
   public int numRpcs() {
     return requests.size();
   }
@@ -199,6 +267,14 @@ public class FakeRequestQueue extends RequestQueueWrapper {
     return Iterables.getLast(requests);
   }
 
+  /**
+   * The lane the last request was added to, or null if it was added without one.
+   */
+  @Nullable
+  public RequestLane getLastRpcLane() {
+    return lanes.get(getLastRpc());
+  }
+
   public JSONObject getLastRpcBody() throws Exception {
     String body = new String(getLastRpc().getBody(), StandardCharsets.UTF_8);
     return new JSONObject(body);
@@ -208,6 +284,19 @@ public class FakeRequestQueue extends RequestQueueWrapper {
     return getLastRpc().getHeaders();
   }
 
+  private static NetworkResponse toNetworkResponse(TestResponse testResponse) {
+    List<com.android.volley.Header> headers = new ArrayList<>();
+    for (Header header : testResponse.headers) {
+      headers.add(new com.android.volley.Header(header.key, header.value));
+    }
+    return new NetworkResponse(
+        testResponse.httpStatus,
+        testResponse.responseBytes,
+        /* notModified= */ testResponse.httpStatus == 304,
+        /* networkTimeMs= */ 0L,
+        headers);
+  }
+
   /**
    * Simple value class to carry response basics.
    */
@@ -215,11 +304,20 @@ public class FakeRequestQueue extends RequestQueueWrapper {
 
     private final int httpStatus;
     private final String responseBody;
+    private final byte[] responseBytes;
     private final List<Header> headers;
 
     TestResponse(int httpStatus, String responseBody, List<Header> headers) {
       this.httpStatus = httpStatus;
       this.responseBody = responseBody;
+      this.responseBytes = responseBody.getBytes();
+      this.headers = headers;
+    }
+
+    TestResponse(int httpStatus, byte[] responseBytes, List<Header> headers) {
+      this.httpStatus = httpStatus;
+      this.responseBody = new String(responseBytes, StandardCharsets.ISO_8859_1);
+      this.responseBytes = responseBytes;
       this.headers = headers;
     }
   }
@@ -73,6 +73,7 @@ public class DefaultPrivateAnalyticsRemoteConfig implements PrivateAnalyticsRemo
   private static final Duration FETCH_CONFIG_TIMEOUT = Duration.ofSeconds(10);
   private final static RemoteConfigs DEFAULT_REMOTE_CONFIGS = RemoteConfigs.newBuilder().build();
   private RequestQueueWrapper queue;
+  private final JsonSource jsonSource;
   private final Uri remoteConfigUri;
   private final ListeningExecutorService lightweightExecutor = Executors.getLightweightListeningExecutor();
   private final Optional<PrivateAnalyticsEventListener> listener;
@@ -86,15 +87,42 @@ public class DefaultPrivateAnalyticsRemoteConfig implements PrivateAnalyticsRemo
     this.remoteConfigUri = remoteConfigUri;
     this.listener = listener;
     this.logger = loggerFactory.create(TAG);
+    this.jsonSource = uri -> fetchUpdatedConfigsJson();
 
     RequestQueue queue = new RequestQueue(new NoCache(), new BasicNetwork(new HurlStack()));
     queue.start();
     this.queue = RequestQueueWrapper.wrapping(queue);
   }
 
+  /**
+   * Creates a remote config that gets its JSON from the given source instead of fetching it, so
+   * that an app can serve it from its own cache.
+   */
+  public DefaultPrivateAnalyticsRemoteConfig(
+      Uri remoteConfigUri,
+      Optional<PrivateAnalyticsEventListener> listener,
+      PrivateAnalyticsLogger.Factory loggerFactory,
+      JsonSource jsonSource) {
+    this.remoteConfigUri = remoteConfigUri;
+    this.listener = listener;
+    this.logger = loggerFactory.create(TAG);
+    this.jsonSource = jsonSource;
+  }
+
+  /**
+   * Supplies the remote config JSON.
+   */
+  public interface JsonSource {
+
+    /**
+     * Returns the remote config JSON at the given URI, or resolves to null if there is none.
+     */
+    ListenableFuture<JSONObject> fetchJson(Uri remoteConfigUri);
+  }
+
   @Override
   public ListenableFuture<RemoteConfigs> fetchUpdatedConfigs() {
-    return FluentFuture.from(fetchUpdatedConfigsJson())
+    return FluentFuture.from(jsonSource.fetchJson(remoteConfigUri))
         .transform(this::convertToRemoteConfig, lightweightExecutor)
         .catching(Exception.class, e -> {
           // Output the default RemoteConfigs for any exception thrown.